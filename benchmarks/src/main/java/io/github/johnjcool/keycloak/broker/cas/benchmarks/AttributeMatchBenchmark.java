@@ -0,0 +1,97 @@
+package io.github.johnjcool.keycloak.broker.cas.benchmarks;
+
+import io.github.johnjcool.keycloak.broker.cas.CasIdentityProvider;
+import io.github.johnjcool.keycloak.broker.cas.CasIdentityProviderConfig;
+import io.github.johnjcool.keycloak.broker.cas.mappers.AbstractAttributeMapper;
+import io.github.johnjcool.keycloak.broker.cas.mappers.AttributeToRoleMapper;
+import io.github.johnjcool.keycloak.broker.cas.model.CasAttributes;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.keycloak.broker.provider.BrokeredIdentityContext;
+import org.keycloak.broker.provider.ConfigConstants;
+import org.keycloak.models.IdentityProviderMapperModel;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * One role mapper matching a user's group memberships in each match mode, with the matching group
+ * last so that every value is looked at.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AttributeMatchBenchmark {
+
+  private static final String ROLE = "admin";
+
+  @Param({"contains", "regex", "glob"})
+  public String mode;
+
+  @Param({"10", "5000"})
+  public int groups;
+
+  private final AttributeToRoleMapper roleMapper = new AttributeToRoleMapper();
+
+  private RealmModel realm;
+  private UserModel user;
+  private BrokeredIdentityContext context;
+  private IdentityProviderMapperModel mapperModel;
+
+  @Setup
+  public void setup() {
+    realm = Fixtures.realm("benchmark", Fixtures.role(ROLE));
+    user = Fixtures.user("jdoe");
+
+    CasAttributes.Builder attributes = CasAttributes.builder();
+    for (int i = 0; i < groups - 1; i++) {
+      attributes.add("memberOf", "cn=group-" + i + ",ou=groups,dc=example,dc=org");
+    }
+    attributes.add("memberOf", "cn=admins,ou=groups,dc=example,dc=org");
+    CasIdentityProviderConfig config = new CasIdentityProviderConfig();
+    config.setAlias("cas");
+    context = new BrokeredIdentityContext("jdoe", config);
+    context.getContextData().put(CasIdentityProvider.USER_ATTRIBUTES, attributes.build());
+
+    String value =
+        switch (mode) {
+          case "regex" -> "cn=admins,ou=[^,]+,dc=example,dc=org";
+          case "glob" -> "cn=admins,*,dc=example,dc=org";
+          default -> "cn=admins,ou=groups,dc=example,dc=org";
+        };
+    Map<String, String> mapperConfig = new HashMap<>();
+    mapperConfig.put(AbstractAttributeMapper.ATTRIBUTE, "memberOf");
+    mapperConfig.put(AbstractAttributeMapper.ATTRIBUTE_VALUE, value);
+    mapperConfig.put(AttributeToRoleMapper.ATTRIBUTE_MATCH, mode);
+    mapperConfig.put(ConfigConstants.ROLE, ROLE);
+    mapperModel = new IdentityProviderMapperModel();
+    mapperModel.setId("role-" + mode);
+    mapperModel.setName("role-" + mode);
+    mapperModel.setIdentityProviderMapper(AttributeToRoleMapper.PROVIDER_ID);
+    mapperModel.setIdentityProviderAlias("cas");
+    mapperModel.setConfig(mapperConfig);
+
+    roleMapper.importNewUser(null, realm, user, mapperModel, context);
+  }
+
+  @Benchmark
+  public void updateBrokeredUser(final Blackhole blackhole) {
+    roleMapper.updateBrokeredUser(null, realm, user, mapperModel, context);
+    blackhole.consume(user);
+  }
+}
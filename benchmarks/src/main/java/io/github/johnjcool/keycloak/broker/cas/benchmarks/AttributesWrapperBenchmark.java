@@ -0,0 +1,59 @@
+package io.github.johnjcool.keycloak.broker.cas.benchmarks;
+
+import io.github.johnjcool.keycloak.broker.cas.jaxb.AttributesWrapper;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/** Grouping of the DOM nodes JAXB collects for {@code cas:attributes} into a multimap. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AttributesWrapperBenchmark {
+
+  @Param({"5", "200"})
+  public int attributes;
+
+  private AttributesWrapper wrapper;
+
+  @Setup
+  public void setup() throws ParserConfigurationException {
+    DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+    factory.setNamespaceAware(true);
+    Document document = factory.newDocumentBuilder().newDocument();
+    wrapper = new AttributesWrapper();
+    Fixtures.attributes(attributes)
+        .forEach(
+            (name, values) ->
+                values.forEach(
+                    value -> {
+                      Element element =
+                          document.createElementNS("http://www.yale.edu/tp/cas", "cas:" + name);
+                      element.setTextContent(value);
+                      wrapper.getAttributes().add(element);
+                    }));
+  }
+
+  @Benchmark
+  public Map<String, List<String>> toMap() {
+    return wrapper.toMap();
+  }
+}
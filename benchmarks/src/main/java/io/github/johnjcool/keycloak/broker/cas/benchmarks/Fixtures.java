@@ -0,0 +1,184 @@
+package io.github.johnjcool.keycloak.broker.cas.benchmarks;
+
+import jakarta.ws.rs.core.UriBuilder;
+import jakarta.ws.rs.core.UriInfo;
+import java.lang.reflect.Proxy;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RoleModel;
+import org.keycloak.models.UserModel;
+
+/** Test data and minimal in-memory stand-ins for the Keycloak models the benchmarks touch. */
+final class Fixtures {
+
+  static final String CAS_SERVER_URL_PREFIX = "https://cas.example.org/cas";
+  static final URI BASE_URI = URI.create("https://keycloak.example.org/");
+  static final URI ENDPOINT_URI =
+      URI.create("https://keycloak.example.org/realms/benchmark/broker/cas/endpoint");
+
+  private Fixtures() {
+    // util
+  }
+
+  /**
+   * Attributes as a typical directory returns them: mostly single values plus a few multi-valued
+   * group memberships.
+   */
+  static Map<String, List<String>> attributes(final int count) {
+    Map<String, List<String>> attributes = new LinkedHashMap<>();
+    attributes.put("mail", List.of("jdoe@example.org"));
+    attributes.put("givenName", List.of("John"));
+    attributes.put("sn", List.of("Doe"));
+    for (int i = attributes.size(); i < count; i++) {
+      if (i % 10 == 0) {
+        attributes.put("memberOf" + i, List.of("group-" + i + "-a", "group-" + i + "-b"));
+      } else {
+        attributes.put("attribute" + i, List.of("value-" + i));
+      }
+    }
+    return attributes;
+  }
+
+  static byte[] serviceResponse(final int attributeCount) {
+    StringBuilder xml =
+        new StringBuilder()
+            .append("<cas:serviceResponse xmlns:cas=\"http://www.yale.edu/tp/cas\">")
+            .append("<cas:authenticationSuccess><cas:user>jdoe</cas:user><cas:attributes>");
+    attributes(attributeCount)
+        .forEach(
+            (name, values) ->
+                values.forEach(
+                    value ->
+                        xml.append("<cas:")
+                            .append(name)
+                            .append('>')
+                            .append(value)
+                            .append("</cas:")
+                            .append(name)
+                            .append('>')));
+    xml.append("</cas:attributes></cas:authenticationSuccess></cas:serviceResponse>");
+    return xml.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  /** The same response as {@link #serviceResponse(int)} in the CAS JSON format. */
+  static byte[] jsonServiceResponse(final int attributeCount) {
+    StringBuilder json =
+        new StringBuilder()
+            .append("{\"serviceResponse\":{\"authenticationSuccess\":{")
+            .append("\"user\":\"jdoe\",\"attributes\":{");
+    attributes(attributeCount)
+        .forEach(
+            (name, values) -> {
+              json.append('"').append(name).append("\":[");
+              values.forEach(value -> json.append('"').append(value).append("\","));
+              json.setCharAt(json.length() - 1, ']');
+              json.append(',');
+            });
+    json.setCharAt(json.length() - 1, '}');
+    json.append("}}}");
+    return json.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  static UriInfo uriInfo() {
+    return proxy(
+        UriInfo.class,
+        (method, args) ->
+            switch (method) {
+              case "getAbsolutePath", "getRequestUri" -> ENDPOINT_URI;
+              case "getBaseUri" -> BASE_URI;
+              case "getBaseUriBuilder" -> UriBuilder.fromUri(BASE_URI);
+              case "getAbsolutePathBuilder" -> UriBuilder.fromUri(ENDPOINT_URI);
+              default -> unsupported(method);
+            });
+  }
+
+  static RealmModel realm(final String name, final RoleModel... roles) {
+    Map<String, RoleModel> byName = new HashMap<>();
+    for (RoleModel role : roles) {
+      byName.put(role.getName(), role);
+    }
+    return proxy(
+        RealmModel.class,
+        (method, args) ->
+            switch (method) {
+              case "getName", "getId" -> name;
+              // role ids are their names
+              case "getRole", "getRoleById" -> byName.get((String) args[0]);
+              case "getClientByClientId" -> null;
+              default -> unsupported(method);
+            });
+  }
+
+  static RoleModel role(final String name) {
+    return proxy(
+        RoleModel.class,
+        (method, args) ->
+            switch (method) {
+              case "getName", "getId" -> name;
+              case "isClientRole" -> false;
+              case "getContainerId" -> "realm";
+              default -> unsupported(method);
+            });
+  }
+
+  /** User keeping attributes and role mappings in plain collections. */
+  static UserModel user(final String username) {
+    Map<String, List<String>> attributes = new HashMap<>();
+    List<RoleModel> roles = new ArrayList<>();
+    return proxy(
+        UserModel.class,
+        (method, args) ->
+            switch (method) {
+              case "getUsername", "getId" -> username;
+              case "getAttributeStream" ->
+                  attributes.getOrDefault((String) args[0], List.of()).stream();
+              case "getAttributes" -> attributes;
+              case "setAttribute" -> {
+                @SuppressWarnings("unchecked")
+                List<String> values = (List<String>) args[1];
+                attributes.put((String) args[0], List.copyOf(values));
+                yield null;
+              }
+              case "setSingleAttribute" ->
+                  attributes.put((String) args[0], List.of((String) args[1]));
+              case "removeAttribute" -> attributes.remove((String) args[0]);
+              case "setEmail" -> attributes.put(UserModel.EMAIL, List.of((String) args[0]));
+              case "setFirstName" ->
+                  attributes.put(UserModel.FIRST_NAME, List.of((String) args[0]));
+              case "setLastName" -> attributes.put(UserModel.LAST_NAME, List.of((String) args[0]));
+              case "grantRole" -> roles.add((RoleModel) args[0]);
+              case "deleteRoleMapping" -> roles.remove((RoleModel) args[0]);
+              case "getRoleMappingsStream" -> roles.stream();
+              default -> unsupported(method);
+            });
+  }
+
+  private static <T> T proxy(final Class<T> type, final Handler handler) {
+    return type.cast(
+        Proxy.newProxyInstance(
+            Fixtures.class.getClassLoader(),
+            new Class<?>[] {type},
+            (proxy, method, args) ->
+                switch (method.getName()) {
+                  case "hashCode" -> System.identityHashCode(proxy);
+                  case "equals" -> proxy == args[0];
+                  case "toString" -> type.getSimpleName() + "@" + System.identityHashCode(proxy);
+                  default -> handler.invoke(method.getName(), args);
+                }));
+  }
+
+  private static Object unsupported(final String method) {
+    throw new UnsupportedOperationException(method);
+  }
+
+  @FunctionalInterface
+  private interface Handler {
+    Object invoke(String method, Object[] args);
+  }
+}
@@ -0,0 +1,166 @@
+package io.github.johnjcool.keycloak.broker.cas.benchmarks;
+
+import io.github.johnjcool.keycloak.broker.cas.CasIdentityProvider;
+import io.github.johnjcool.keycloak.broker.cas.CasIdentityProviderConfig;
+import io.github.johnjcool.keycloak.broker.cas.mappers.AbstractAttributeMapper;
+import io.github.johnjcool.keycloak.broker.cas.mappers.AttributeToRoleMapper;
+import io.github.johnjcool.keycloak.broker.cas.mappers.UserAttributeMapper;
+import io.github.johnjcool.keycloak.broker.cas.util.AttributeDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.keycloak.broker.provider.BrokeredIdentityContext;
+import org.keycloak.broker.provider.ConfigConstants;
+import org.keycloak.models.IdentityProviderMapperModel;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * One login's worth of mapper calls: an attribute importer per mapped attribute plus a role mapper,
+ * run against a user whose attributes are already in sync.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MapperBenchmark {
+
+  private static final String ROLE = "cas-user";
+
+  @Param({"5", "200"})
+  public int attributes;
+
+  @Param({"3", "20"})
+  public int mappers;
+
+  private final UserAttributeMapper userAttributeMapper = new UserAttributeMapper();
+  private final AttributeToRoleMapper roleMapper = new AttributeToRoleMapper();
+
+  private RealmModel realm;
+  private UserModel user;
+  private BrokeredIdentityContext context;
+  private List<IdentityProviderMapperModel> userAttributeMappers;
+  private IdentityProviderMapperModel roleMapperModel;
+  private Map<String, List<String>> casAttributes;
+  private List<IdentityProviderMapperModel> allMappers;
+  private String storedDigest;
+
+  @Setup
+  public void setup() {
+    realm = Fixtures.realm("benchmark", Fixtures.role(ROLE));
+    user = Fixtures.user("jdoe");
+
+    CasIdentityProviderConfig config = new CasIdentityProviderConfig();
+    config.setAlias("cas");
+    casAttributes = Fixtures.attributes(attributes);
+    context = new BrokeredIdentityContext("jdoe", config);
+    context.setUsername("jdoe");
+    context.getContextData().put(CasIdentityProvider.USER_ATTRIBUTES, casAttributes);
+
+    userAttributeMappers = new ArrayList<>(mappers);
+    List<String> names = new ArrayList<>(casAttributes.keySet());
+    for (int i = 0; i < mappers; i++) {
+      String name = names.get(i % names.size());
+      userAttributeMappers.add(
+          mapper(
+              UserAttributeMapper.PROVIDER_ID,
+              Map.of(AbstractAttributeMapper.ATTRIBUTE, name, "user.attribute", name + "-" + i)));
+    }
+    roleMapperModel =
+        mapper(
+            AttributeToRoleMapper.PROVIDER_ID,
+            Map.of(
+                AbstractAttributeMapper.ATTRIBUTE,
+                "mail",
+                AbstractAttributeMapper.ATTRIBUTE_VALUE,
+                "jdoe@example.org",
+                ConfigConstants.ROLE,
+                ROLE));
+
+    allMappers = new ArrayList<>(userAttributeMappers);
+    allMappers.add(roleMapperModel);
+
+    // first login, so that the benchmarks measure the steady state of returning users
+    importNewUser();
+    storedDigest = AttributeDigest.of(casAttributes, allMappers);
+  }
+
+  @Benchmark
+  public void preprocessFederatedIdentity(final Blackhole blackhole) {
+    for (IdentityProviderMapperModel mapper : userAttributeMappers) {
+      userAttributeMapper.preprocessFederatedIdentity(null, realm, mapper, context);
+    }
+    blackhole.consume(context);
+  }
+
+  @Benchmark
+  public void updateBrokeredUser(final Blackhole blackhole) {
+    for (IdentityProviderMapperModel mapper : userAttributeMappers) {
+      userAttributeMapper.updateBrokeredUser(null, realm, user, mapper, context);
+    }
+    roleMapper.updateBrokeredUser(null, realm, user, roleMapperModel, context);
+    blackhole.consume(user);
+  }
+
+  /** A returning user whose attributes are unchanged: the digest check replaces the updates. */
+  @Benchmark
+  public void updateBrokeredUserUnchanged(final Blackhole blackhole) {
+    BrokeredIdentityContext unchanged = new BrokeredIdentityContext("jdoe", context.getIdpConfig());
+    unchanged.getContextData().put(CasIdentityProvider.USER_ATTRIBUTES, casAttributes);
+    if (AttributeDigest.of(casAttributes, allMappers).equals(storedDigest)) {
+      unchanged.getContextData().put(CasIdentityProvider.ATTRIBUTES_UNCHANGED, Boolean.TRUE);
+    }
+    for (IdentityProviderMapperModel mapper : userAttributeMappers) {
+      userAttributeMapper.updateBrokeredUser(null, realm, user, mapper, unchanged);
+    }
+    roleMapper.updateBrokeredUser(null, realm, user, roleMapperModel, unchanged);
+    blackhole.consume(user);
+  }
+
+  /** A returning user with changed attributes, with the importers applied as one batch. */
+  @Benchmark
+  public void updateBrokeredUserBatch(final Blackhole blackhole) {
+    BrokeredIdentityContext batch = new BrokeredIdentityContext("jdoe", context.getIdpConfig());
+    batch.getContextData().put(CasIdentityProvider.USER_ATTRIBUTES, casAttributes);
+    UserAttributeMapper.applyAll(user, allMappers, batch);
+    for (IdentityProviderMapperModel mapper : userAttributeMappers) {
+      userAttributeMapper.updateBrokeredUser(null, realm, user, mapper, batch);
+    }
+    roleMapper.updateBrokeredUser(null, realm, user, roleMapperModel, batch);
+    blackhole.consume(user);
+  }
+
+  private void importNewUser() {
+    for (IdentityProviderMapperModel mapper : userAttributeMappers) {
+      userAttributeMapper.updateBrokeredUser(null, realm, user, mapper, context);
+    }
+    roleMapper.importNewUser(null, realm, user, roleMapperModel, context);
+  }
+
+  private static IdentityProviderMapperModel mapper(
+      final String type, final Map<String, String> config) {
+    IdentityProviderMapperModel model = new IdentityProviderMapperModel();
+    model.setId(type + "-" + config.hashCode());
+    model.setName(type);
+    model.setIdentityProviderMapper(type);
+    model.setIdentityProviderAlias("cas");
+    model.setConfig(new HashMap<>(config));
+    return model;
+  }
+}
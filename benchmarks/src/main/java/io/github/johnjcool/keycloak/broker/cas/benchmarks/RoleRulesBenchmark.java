@@ -0,0 +1,137 @@
+package io.github.johnjcool.keycloak.broker.cas.benchmarks;
+
+import io.github.johnjcool.keycloak.broker.cas.CasIdentityProvider;
+import io.github.johnjcool.keycloak.broker.cas.CasIdentityProviderConfig;
+import io.github.johnjcool.keycloak.broker.cas.mappers.AbstractAttributeMapper;
+import io.github.johnjcool.keycloak.broker.cas.mappers.AttributeRulesToRoleMapper;
+import io.github.johnjcool.keycloak.broker.cas.mappers.AttributeToRoleMapper;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.keycloak.broker.provider.BrokeredIdentityContext;
+import org.keycloak.broker.provider.ConfigConstants;
+import org.keycloak.models.IdentityProviderMapperModel;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RoleModel;
+import org.keycloak.models.UserModel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * A returning user in a few groups, mapped by a group-to-role table: once as one {@link
+ * AttributeToRoleMapper} per rule and once as a single {@link AttributeRulesToRoleMapper}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RoleRulesBenchmark {
+
+  private static final String ATTRIBUTE = "memberOf";
+
+  @Param({"40", "400"})
+  public int rules;
+
+  private final AttributeToRoleMapper roleMapper = new AttributeToRoleMapper();
+  private final AttributeRulesToRoleMapper rulesMapper = new AttributeRulesToRoleMapper();
+
+  private RealmModel realm;
+  private UserModel singleRuleUser;
+  private UserModel ruleTableUser;
+  private BrokeredIdentityContext context;
+  private List<IdentityProviderMapperModel> roleMappers;
+  private IdentityProviderMapperModel rulesMapperModel;
+
+  @Setup
+  public void setup() {
+    RoleModel[] roles = new RoleModel[rules];
+    StringBuilder table = new StringBuilder("[");
+    roleMappers = new ArrayList<>(rules);
+    for (int i = 0; i < rules; i++) {
+      roles[i] = Fixtures.role("role-" + i);
+      roleMappers.add(
+          mapper(
+              AttributeToRoleMapper.PROVIDER_ID,
+              Map.of(
+                  AbstractAttributeMapper.ATTRIBUTE,
+                  ATTRIBUTE,
+                  AbstractAttributeMapper.ATTRIBUTE_VALUE,
+                  group(i),
+                  ConfigConstants.ROLE,
+                  "role-" + i)));
+      table
+          .append(i == 0 ? "" : ",")
+          .append("{\"key\":\"")
+          .append(ATTRIBUTE)
+          .append('=')
+          .append(group(i))
+          .append("\",\"value\":\"role-")
+          .append(i)
+          .append("\"}");
+    }
+    rulesMapperModel =
+        mapper(
+            AttributeRulesToRoleMapper.PROVIDER_ID,
+            Map.of(AttributeRulesToRoleMapper.RULES, table.append(']').toString()));
+    realm = Fixtures.realm("benchmark", roles);
+
+    // the single-rule mapper compares the whole attribute, so the user is in exactly one group
+    Map<String, List<String>> attributes = new HashMap<>(Fixtures.attributes(20));
+    attributes.put(ATTRIBUTE, List.of(group(rules / 2)));
+    CasIdentityProviderConfig config = new CasIdentityProviderConfig();
+    config.setAlias("cas");
+    context = new BrokeredIdentityContext("jdoe", config);
+    context.setUsername("jdoe");
+    context.getContextData().put(CasIdentityProvider.USER_ATTRIBUTES, attributes);
+
+    singleRuleUser = Fixtures.user("jdoe");
+    ruleTableUser = Fixtures.user("jdoe");
+    for (IdentityProviderMapperModel mapper : roleMappers) {
+      roleMapper.importNewUser(null, realm, singleRuleUser, mapper, context);
+    }
+    rulesMapper.importNewUser(null, realm, ruleTableUser, rulesMapperModel, context);
+  }
+
+  @Benchmark
+  public void singleRuleMappers(final Blackhole blackhole) {
+    for (IdentityProviderMapperModel mapper : roleMappers) {
+      roleMapper.updateBrokeredUser(null, realm, singleRuleUser, mapper, context);
+    }
+    blackhole.consume(singleRuleUser);
+  }
+
+  @Benchmark
+  public void ruleTableMapper(final Blackhole blackhole) {
+    rulesMapper.updateBrokeredUser(null, realm, ruleTableUser, rulesMapperModel, context);
+    blackhole.consume(ruleTableUser);
+  }
+
+  private static String group(final int i) {
+    return "cn=group-" + i + ",ou=groups,dc=example,dc=org";
+  }
+
+  private static IdentityProviderMapperModel mapper(
+      final String type, final Map<String, String> config) {
+    IdentityProviderMapperModel model = new IdentityProviderMapperModel();
+    model.setId(type + "-" + config.hashCode());
+    model.setName(type);
+    model.setIdentityProviderMapper(type);
+    model.setIdentityProviderAlias("cas");
+    model.setConfig(new HashMap<>(config));
+    return model;
+  }
+}
@@ -0,0 +1,58 @@
+package io.github.johnjcool.keycloak.broker.cas.benchmarks;
+
+import io.github.johnjcool.keycloak.broker.cas.model.ServiceResponse;
+import io.github.johnjcool.keycloak.broker.cas.parser.ServiceResponseParser;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Parsing of a serviceValidate success response with each parser implementation. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ServiceResponseBenchmark {
+
+  @Param({ServiceResponseParser.STAX, ServiceResponseParser.JAXB, ServiceResponseParser.JSON})
+  public String parser;
+
+  @Param({"5", "200"})
+  public int attributes;
+
+  /** Keep only the attributes a typical mapper setup reads (mail, givenName, sn). */
+  @Param({"false", "true"})
+  public boolean projected;
+
+  private ServiceResponseParser responseParser;
+  private byte[] response;
+  private Set<String> referenced;
+
+  @Setup
+  public void setup() {
+    responseParser = ServiceResponseParser.forName(parser);
+    response =
+        responseParser.getFormat() != null
+            ? Fixtures.jsonServiceResponse(attributes)
+            : Fixtures.serviceResponse(attributes);
+    referenced = projected ? Set.of("mail", "givenName", "sn") : null;
+  }
+
+  @Benchmark
+  public ServiceResponse parse() throws IOException {
+    return responseParser.parse(new ByteArrayInputStream(response), referenced);
+  }
+}
@@ -0,0 +1,115 @@
+package io.github.johnjcool.keycloak.broker.cas.benchmarks;
+
+import io.github.johnjcool.keycloak.broker.cas.CasConfigSnapshot;
+import io.github.johnjcool.keycloak.broker.cas.CasIdentityProvider;
+import io.github.johnjcool.keycloak.broker.cas.CasIdentityProviderConfig;
+import io.github.johnjcool.keycloak.broker.cas.util.UrlHelper;
+import jakarta.ws.rs.core.UriBuilder;
+import jakarta.ws.rs.core.UriInfo;
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+import org.keycloak.broker.provider.AuthenticationRequest;
+import org.keycloak.models.RealmModel;
+import org.keycloak.services.resources.IdentityBrokerService;
+import org.keycloak.services.resources.RealmsResource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Building the login, serviceValidate and logout URLs sent to CAS. The {@code uriBuilder*}
+ * benchmarks are the per-request {@link UriBuilder} construction the URL templates replaced, kept
+ * as a baseline.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UrlHelperBenchmark {
+
+  private static final String TICKET = "ST-1-Yp2kNQdYhmQsT5uZc0cGSpd3C4w-cas01.example.org";
+
+  private CasIdentityProviderConfig model;
+  private CasConfigSnapshot config;
+  private AuthenticationRequest request;
+  private UriInfo uriInfo;
+  private RealmModel realm;
+
+  @Setup
+  public void setup() {
+    model = new CasIdentityProviderConfig();
+    model.setAlias("cas");
+    model.setCasServerUrlPrefix(Fixtures.CAS_SERVER_URL_PREFIX);
+    model.setRenew(true);
+    config = CasConfigSnapshot.of(model);
+    uriInfo = Fixtures.uriInfo();
+    realm = Fixtures.realm("benchmark");
+    request =
+        new AuthenticationRequest(
+            null, realm, null, null, uriInfo, null, Fixtures.ENDPOINT_URI.toString());
+  }
+
+  @Benchmark
+  public URI authenticationUrl() {
+    return UrlHelper.createAuthenticationUrl(config, request);
+  }
+
+  @Benchmark
+  public URI validateServiceUrl() {
+    return UrlHelper.createValidateServiceUrl(
+        config, Fixtures.CAS_SERVER_URL_PREFIX, TICKET, uriInfo);
+  }
+
+  @Benchmark
+  public URI logoutUrl() {
+    return UrlHelper.createLogoutUrl(config, realm, uriInfo);
+  }
+
+  @Benchmark
+  public URI uriBuilderAuthenticationUrl() {
+    UriBuilder builder =
+        UriBuilder.fromUri(model.getCasServerLoginUrl())
+            .queryParam("service", request.getRedirectUri());
+    if (model.isRenew()) {
+      builder.queryParam("renew", model.isRenew());
+    }
+    if (model.isGateway()) {
+      builder.queryParam("gateway", model.isGateway());
+    }
+    return builder.build();
+  }
+
+  @Benchmark
+  public URI uriBuilderValidateServiceUrl() {
+    UriBuilder builder =
+        UriBuilder.fromUri(model.getCasServiceValidateUrl(Fixtures.CAS_SERVER_URL_PREFIX))
+            .queryParam("ticket", TICKET)
+            .queryParam("service", uriInfo.getAbsolutePath().toString());
+    if (model.isRenew()) {
+      builder.queryParam("renew", model.isRenew());
+    }
+    return builder.build();
+  }
+
+  @Benchmark
+  public URI uriBuilderLogoutUrl() {
+    return UriBuilder.fromUri(model.getCasServerLogoutUrl())
+        .queryParam(
+            "service",
+            RealmsResource.brokerUrl(uriInfo)
+                .path(IdentityBrokerService.class, "getEndpoint")
+                .path(CasIdentityProvider.Endpoint.class, "logoutResponse")
+                .build(realm.getName(), model.getAlias())
+                .toString())
+        .build();
+  }
+}
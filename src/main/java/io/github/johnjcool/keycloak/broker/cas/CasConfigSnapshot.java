@@ -0,0 +1,226 @@
+package io.github.johnjcool.keycloak.broker.cas;
+
+import io.github.johnjcool.keycloak.broker.cas.parser.ServiceResponseParser;
+import io.github.johnjcool.keycloak.broker.cas.util.UrlTemplate;
+import io.github.johnjcool.keycloak.broker.cas.validation.CasProtocol;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import org.keycloak.models.IdentityProviderModel;
+
+/**
+ * Immutable, validated view of a {@link CasIdentityProviderConfig} with the CAS URLs parsed once.
+ * The factory caches one per identity provider and builds a new one when an admin changes the
+ * provider, so the login path reads plain fields instead of the config map.
+ */
+public final class CasConfigSnapshot {
+
+  private static final String PARAMETER_SERVICE = "service";
+  private static final String PARAMETER_RENEW = "renew";
+  private static final String PARAMETER_GATEWAY = "gateway";
+  private static final String PARAMETER_PGT = "pgt";
+  private static final String PARAMETER_TARGET_SERVICE = "targetService";
+
+  private final String alias;
+  private final Map<String, String> configuration;
+  private final URI loginUrl;
+  private final URI logoutUrl;
+  private final Map<String, URI> serviceValidateUrls;
+  private final UrlTemplate loginTemplate;
+  private final UrlTemplate logoutTemplate;
+  private final Map<String, UrlTemplate> serviceValidateTemplates;
+  private final Map<String, UrlTemplate> proxyTemplates;
+  private final boolean renew;
+  private final boolean gateway;
+  private final boolean keepAllAttributes;
+  private final boolean forceAttributeSync;
+  private final boolean proxyGranting;
+  private final int proxyGrantingTicketLifespan;
+  private final CasProtocol protocol;
+  private final ServiceResponseParser responseParser;
+
+  private CasConfigSnapshot(final CasIdentityProviderConfig config) {
+    this.alias = config.getAlias();
+    this.configuration = Collections.unmodifiableMap(new HashMap<>(config.getConfig()));
+    String casServerUrlPrefix = config.getCasServerUrlPrefix();
+    if (casServerUrlPrefix == null || casServerUrlPrefix.isBlank()) {
+      throw new IllegalArgumentException("casServerUrlPrefix is required");
+    }
+    this.loginUrl = parse("casServerUrlPrefix", config.getCasServerLoginUrl());
+    this.logoutUrl = parse("casServerUrlPrefix", config.getCasServerLogoutUrl());
+    Map<String, URI> validateUrls = new LinkedHashMap<>();
+    for (String prefix : config.getValidationUrlPrefixes()) {
+      validateUrls.put(
+          prefix, parse("validationUrlPrefixes", config.getCasServiceValidateUrl(prefix)));
+    }
+    this.serviceValidateUrls = Collections.unmodifiableMap(validateUrls);
+    this.renew = config.isRenew();
+    this.gateway = config.isGateway();
+    this.keepAllAttributes = config.isKeepAllAttributes();
+    this.forceAttributeSync = config.isForceAttributeSync();
+    this.proxyGranting = config.isProxyGranting();
+    this.proxyGrantingTicketLifespan = config.getProxyGrantingTicketLifespan();
+    this.protocol = CasProtocol.forName(config.getValidationProtocol());
+    this.responseParser =
+        protocol.getParser(ServiceResponseParser.forName(config.getResponseParser()));
+    if (proxyGranting && !protocol.supportsProxyCallback()) {
+      throw new IllegalArgumentException(
+          "proxyGranting needs the "
+              + CasProtocol.CAS20.getName()
+              + " or "
+              + CasProtocol.CAS30.getName()
+              + " protocol");
+    }
+
+    UrlTemplate.Builder login = UrlTemplate.builder(loginUrl).variable(PARAMETER_SERVICE);
+    if (renew) {
+      login.constant(PARAMETER_RENEW, "true");
+    }
+    if (gateway) {
+      login.constant(PARAMETER_GATEWAY, "true");
+    }
+    this.loginTemplate = login.build();
+    this.logoutTemplate = UrlTemplate.builder(logoutUrl).variable(PARAMETER_SERVICE).build();
+    Map<String, UrlTemplate> validateTemplates = new HashMap<>();
+    serviceValidateUrls.forEach(
+        (prefix, url) ->
+            validateTemplates.put(
+                prefix,
+                protocol.getValidateTemplate(
+                    url, renew, responseParser.getFormat(), proxyGranting)));
+    this.serviceValidateTemplates = validateTemplates;
+    Map<String, UrlTemplate> proxy = new HashMap<>();
+    for (String prefix : serviceValidateUrls.keySet()) {
+      proxy.put(
+          prefix,
+          UrlTemplate.builder(parse("validationUrlPrefixes", config.getCasProxyUrl(prefix)))
+              .variable(PARAMETER_PGT)
+              .variable(PARAMETER_TARGET_SERVICE)
+              .build());
+    }
+    this.proxyTemplates = proxy;
+  }
+
+  public static CasConfigSnapshot of(final CasIdentityProviderConfig config) {
+    return new CasConfigSnapshot(config);
+  }
+
+  private static URI parse(final String name, final String url) {
+    try {
+      URI uri = new URI(url);
+      if (!uri.isAbsolute()) {
+        throw new IllegalArgumentException(name + " must be an absolute URL: " + url);
+      }
+      return uri;
+    } catch (URISyntaxException e) {
+      throw new IllegalArgumentException(name + " is not a valid URL: " + url, e);
+    }
+  }
+
+  /** Whether this snapshot still reflects the given, possibly edited, identity provider. */
+  public boolean isSnapshotOf(final IdentityProviderModel model) {
+    return Objects.equals(alias, model.getAlias()) && configuration.equals(model.getConfig());
+  }
+
+  public String getAlias() {
+    return alias;
+  }
+
+  public URI getLoginUrl() {
+    return loginUrl;
+  }
+
+  public URI getLogoutUrl() {
+    return logoutUrl;
+  }
+
+  /** The validation URL of the protocol for one of the validation URL prefixes. */
+  public URI getServiceValidateUrl(final String casServerUrlPrefix) {
+    URI url = serviceValidateUrls.get(casServerUrlPrefix);
+    if (url == null) {
+      throw new IllegalArgumentException("Unknown CAS server URL prefix: " + casServerUrlPrefix);
+    }
+    return url;
+  }
+
+  /** Login URL expecting the {@code service} parameter. */
+  public UrlTemplate getLoginTemplate() {
+    return loginTemplate;
+  }
+
+  /** Logout URL expecting the {@code service} parameter. */
+  public UrlTemplate getLogoutTemplate() {
+    return logoutTemplate;
+  }
+
+  /**
+   * Validation URL of a validation URL prefix, expanded by {@link CasProtocol#expand(UrlTemplate,
+   * String, String)}.
+   */
+  public UrlTemplate getServiceValidateTemplate(final String casServerUrlPrefix) {
+    UrlTemplate template = serviceValidateTemplates.get(casServerUrlPrefix);
+    if (template == null) {
+      throw new IllegalArgumentException("Unknown CAS server URL prefix: " + casServerUrlPrefix);
+    }
+    return template;
+  }
+
+  /** Proxy URL of a validation URL prefix expecting {@code pgt} and {@code targetService}. */
+  public UrlTemplate getProxyTemplate(final String casServerUrlPrefix) {
+    UrlTemplate template = proxyTemplates.get(casServerUrlPrefix);
+    if (template == null) {
+      throw new IllegalArgumentException("Unknown CAS server URL prefix: " + casServerUrlPrefix);
+    }
+    return template;
+  }
+
+  public List<String> getValidationUrlPrefixes() {
+    return List.copyOf(serviceValidateUrls.keySet());
+  }
+
+  public boolean isRenew() {
+    return renew;
+  }
+
+  public boolean isGateway() {
+    return gateway;
+  }
+
+  public boolean isKeepAllAttributes() {
+    return keepAllAttributes;
+  }
+
+  public boolean isForceAttributeSync() {
+    return forceAttributeSync;
+  }
+
+  public boolean isProxyGranting() {
+    return proxyGranting;
+  }
+
+  /** Seconds a proxy-granting ticket is used for, at most as long as its user session. */
+  public int getProxyGrantingTicketLifespan() {
+    return proxyGrantingTicketLifespan;
+  }
+
+  public CasProtocol getProtocol() {
+    return protocol;
+  }
+
+  /** The parser for the protocol's responses. */
+  public ServiceResponseParser getResponseParser() {
+    return responseParser;
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        "CasConfigSnapshot [alias=%s, loginUrl=%s, protocol=%s, renew=%s, gateway=%s]",
+        alias, loginUrl, protocol.getName(), renew, gateway);
+  }
+}
@@ -1,35 +1,54 @@
 package io.github.johnjcool.keycloak.broker.cas;
 
 import static io.github.johnjcool.keycloak.broker.cas.util.UrlHelper.PROVIDER_PARAMETER_TICKET;
+import static io.github.johnjcool.keycloak.broker.cas.util.UrlHelper.PROXY_CALLBACK_PATH;
 import static io.github.johnjcool.keycloak.broker.cas.util.UrlHelper.createAuthenticationUrl;
 import static io.github.johnjcool.keycloak.broker.cas.util.UrlHelper.createLogoutUrl;
+import static io.github.johnjcool.keycloak.broker.cas.util.UrlHelper.createProxyUrl;
 import static io.github.johnjcool.keycloak.broker.cas.util.UrlHelper.createValidateServiceUrl;
 
+import io.github.johnjcool.keycloak.broker.cas.mappers.UserAttributeMapper;
+import io.github.johnjcool.keycloak.broker.cas.model.Code;
+import io.github.johnjcool.keycloak.broker.cas.model.Failure;
+import io.github.johnjcool.keycloak.broker.cas.model.ProxyResponse;
 import io.github.johnjcool.keycloak.broker.cas.model.ServiceResponse;
 import io.github.johnjcool.keycloak.broker.cas.model.Success;
+import io.github.johnjcool.keycloak.broker.cas.parser.LogoutRequestParser;
+import io.github.johnjcool.keycloak.broker.cas.parser.ServiceResponseParseException;
+import io.github.johnjcool.keycloak.broker.cas.util.AttributeDigest;
+import io.github.johnjcool.keycloak.broker.cas.validation.BulkheadFullException;
+import io.github.johnjcool.keycloak.broker.cas.validation.CasProtocol;
+import io.github.johnjcool.keycloak.broker.cas.validation.CircuitBreakerOpenException;
+import io.github.johnjcool.keycloak.broker.cas.validation.TicketValidationService;
+import jakarta.ws.rs.Consumes;
 import jakarta.ws.rs.CookieParam;
+import jakarta.ws.rs.FormParam;
 import jakarta.ws.rs.GET;
+import jakarta.ws.rs.POST;
 import jakarta.ws.rs.Path;
 import jakarta.ws.rs.QueryParam;
 import jakarta.ws.rs.core.*;
-import jakarta.xml.bind.JAXBContext;
-import jakarta.xml.bind.JAXBException;
-import jakarta.xml.bind.Unmarshaller;
-import java.io.IOException;
-import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
 import org.jboss.logging.Logger;
 import org.keycloak.broker.provider.AbstractIdentityProvider;
 import org.keycloak.broker.provider.AuthenticationRequest;
 import org.keycloak.broker.provider.BrokeredIdentityContext;
 import org.keycloak.broker.provider.IdentityBrokerException;
-import org.keycloak.broker.provider.util.SimpleHttp;
 import org.keycloak.common.ClientConnection;
+import org.keycloak.common.util.Time;
+import org.keycloak.events.Details;
 import org.keycloak.events.Errors;
 import org.keycloak.events.EventBuilder;
 import org.keycloak.events.EventType;
 import org.keycloak.models.FederatedIdentityModel;
+import org.keycloak.models.IdentityProviderMapperModel;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
 import org.keycloak.models.UserSessionModel;
 import org.keycloak.services.ErrorPage;
 import org.keycloak.services.managers.AuthenticationManager;
@@ -42,26 +61,65 @@ public class CasIdentityProvider extends AbstractIdentityProvider<CasIdentityPro
 
   public static final String USER_ATTRIBUTES = "UserAttributes";
 
+  /** Context data flag telling the CAS mappers that the user is already in sync. */
+  public static final String ATTRIBUTES_UNCHANGED = "CasAttributesUnchanged";
+
+  /** Context data flag telling the attribute importers that the provider already applied them. */
+  public static final String USER_ATTRIBUTES_APPLIED = "CasUserAttributesApplied";
+
+  /** User attribute prefix, followed by the provider alias, of the last synced attribute digest. */
+  public static final String ATTRIBUTE_DIGEST_PREFIX = "cas.digest.";
+
+  /** User session note, followed by the provider alias, holding the proxy-granting ticket. */
+  public static final String PROXY_GRANTING_TICKET_NOTE_PREFIX = "cas.pgt.";
+
+  /** User session note, followed by the provider alias, of the time the ticket is used until. */
+  public static final String PROXY_GRANTING_TICKET_EXPIRES_NOTE_PREFIX = "cas.pgtExpires.";
+
   private static final String STATE_COOKIE_NAME = "__Host-cas_state";
 
-  private static final Unmarshaller unmarshaller;
+  private static final String PGT_IOU_PREFIX = "cas.pgtIou.";
+  private static final String PGT_ID = "pgtId";
+  // CAS calls back just before it answers the validation
+  private static final long PGT_IOU_LIFESPAN = 60;
+  // CAS tickets are far shorter; anything longer is not worth storing
+  private static final int MAX_TICKET_LENGTH = 256;
 
-  static {
-    try {
-      unmarshaller = JAXBContext.newInstance(ServiceResponse.class).createUnmarshaller();
-    } catch (JAXBException e) {
-      throw new RuntimeException(e);
-    }
-  }
+  private static final String LOGOUT_REQUEST = "logoutRequest";
+  private static final String SESSION_INDEX_PREFIX = "cas.sessionIndex.";
+  private static final String USER_SESSION_ID = "userSessionId";
+
+  private static final ReferencedAttributesCache REFERENCED_ATTRIBUTES =
+      new ReferencedAttributesCache();
+
+  private final CasConfigSnapshot snapshot;
+  private final TicketValidationService validationService;
+  private boolean released;
+  // read once per login, by the validation and then the user update on this same instance
+  private List<IdentityProviderMapperModel> mappers;
 
   public CasIdentityProvider(
-      final KeycloakSession session, final CasIdentityProviderConfig config) {
+      final KeycloakSession session,
+      final CasIdentityProviderConfig config,
+      final CasConfigSnapshot snapshot,
+      final TicketValidationService validationService) {
     super(session, config);
+    this.snapshot = snapshot;
+    this.validationService = validationService;
+  }
+
+  /** Releases the validation service the factory retained for this provider. */
+  @Override
+  public void close() {
+    if (validationService != null && !released) {
+      released = true;
+      validationService.release();
+    }
   }
 
   @Override
   public Response performLogin(final AuthenticationRequest request) {
-    return Response.seeOther(createAuthenticationUrl(getConfig(), request).build())
+    return Response.seeOther(createAuthenticationUrl(snapshot, request))
         .cookie(
             new NewCookie.Builder(STATE_COOKIE_NAME)
                 .value(request.getState().getEncoded())
@@ -78,9 +136,95 @@ public class CasIdentityProvider extends AbstractIdentityProvider<CasIdentityPro
       final UserSessionModel userSession,
       final UriInfo uriInfo,
       final RealmModel realm) {
-    return Response.status(302)
-        .location(createLogoutUrl(getConfig(), realm, uriInfo).build())
-        .build();
+    return Response.status(302).location(createLogoutUrl(snapshot, realm, uriInfo)).build();
+  }
+
+  @Override
+  public void importNewUser(
+      final KeycloakSession session,
+      final RealmModel realm,
+      final UserModel user,
+      final BrokeredIdentityContext context) {
+    user.setSingleAttribute(getDigestAttribute(), getAttributeDigest(context, getMappers(session)));
+  }
+
+  @Override
+  public void updateBrokeredUser(
+      final KeycloakSession session,
+      final RealmModel realm,
+      final UserModel user,
+      final BrokeredIdentityContext context) {
+    // runs before the mappers; one stored value stands in for all their reads and writes
+    List<IdentityProviderMapperModel> mappers = getMappers(session);
+    String digest = getAttributeDigest(context, mappers);
+    String attribute = getDigestAttribute();
+    if (digest.equals(user.getFirstAttribute(attribute))) {
+      if (!snapshot.isForceAttributeSync()) {
+        context.getContextData().put(ATTRIBUTES_UNCHANGED, Boolean.TRUE);
+        return;
+      }
+    } else {
+      user.setSingleAttribute(attribute, digest);
+    }
+    UserAttributeMapper.applyAll(user, mappers, context);
+  }
+
+  private String getDigestAttribute() {
+    return ATTRIBUTE_DIGEST_PREFIX + snapshot.getAlias();
+  }
+
+  private List<IdentityProviderMapperModel> getMappers(final KeycloakSession session) {
+    if (mappers == null) {
+      mappers =
+          session
+              .identityProviders()
+              .getMappersByAliasStream(snapshot.getAlias())
+              .collect(Collectors.toList());
+    }
+    return mappers;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static String getAttributeDigest(
+      final BrokeredIdentityContext context, final List<IdentityProviderMapperModel> mappers) {
+    return AttributeDigest.of(
+        (Map<String, List<String>>) context.getContextData().get(USER_ATTRIBUTES), mappers);
+  }
+
+  /**
+   * Requests a proxy ticket for {@code targetService} with the proxy-granting ticket of a user
+   * session, sparing the backend a browser round trip through CAS. Returns null when the session
+   * holds no usable proxy-granting ticket, e.g. because it expired.
+   */
+  public String requestProxyTicket(final UserSessionModel userSession, final String targetService) {
+    String ticketNote = PROXY_GRANTING_TICKET_NOTE_PREFIX + snapshot.getAlias();
+    String expiresNote = PROXY_GRANTING_TICKET_EXPIRES_NOTE_PREFIX + snapshot.getAlias();
+    String proxyGrantingTicket = userSession.getNote(ticketNote);
+    if (proxyGrantingTicket == null) {
+      return null;
+    }
+    String expires = userSession.getNote(expiresNote);
+    if (expires == null || Integer.parseInt(expires) < Time.currentTime()) {
+      userSession.removeNote(ticketNote);
+      userSession.removeNote(expiresNote);
+      return null;
+    }
+    ProxyResponse response =
+        validationService.requestProxyTicket(
+            casServerUrlPrefix ->
+                createProxyUrl(snapshot, casServerUrlPrefix, proxyGrantingTicket, targetService));
+    Failure failure = response.getFailure();
+    if (failure == null) {
+      return response.getProxyTicket();
+    }
+    if (failure.getCode() == Code.INVALID_TICKET || failure.getCode() == Code.BAD_PGT) {
+      // CAS ended the ticket, e.g. at single logout, so there is no point in keeping it
+      userSession.removeNote(ticketNote);
+      userSession.removeNote(expiresNote);
+      return null;
+    }
+    throw new IdentityBrokerException(
+        "Failure response from CAS: " + failure.getCode() + "(" + failure.getDescription() + ")");
   }
 
   @Override
@@ -123,9 +267,147 @@ public class CasIdentityProvider extends AbstractIdentityProvider<CasIdentityPro
     public Response authResponse(
         @QueryParam(PROVIDER_PARAMETER_TICKET) final String ticket,
         @CookieParam(STATE_COOKIE_NAME) final Cookie stateCookie) {
-      return callback.authenticated(
-          getFederatedIdentity(
-              config, ticket, session.getContext().getUri(), stateCookie.getValue()));
+      BrokeredIdentityContext federatedIdentity;
+      try {
+        federatedIdentity =
+            getFederatedIdentity(
+                config, ticket, session.getContext().getUri(), stateCookie.getValue());
+      } catch (CircuitBreakerOpenException | BulkheadFullException e) {
+        logger.warn(e.getMessage());
+        EventBuilder event = new EventBuilder(realm, session, clientConnection);
+        event.event(EventType.IDENTITY_PROVIDER_LOGIN);
+        event.detail(Details.IDENTITY_PROVIDER, config.getAlias());
+        event.error(Errors.IDENTITY_PROVIDER_ERROR);
+        return ErrorPage.error(
+            session,
+            null,
+            Response.Status.SERVICE_UNAVAILABLE,
+            Messages.IDENTITY_PROVIDER_UNEXPECTED_ERROR);
+      }
+      return callback.authenticated(federatedIdentity);
+    }
+
+    /**
+     * Receives the proxy-granting ticket CAS issues during validation, keyed by the IOU the
+     * validation response will carry. CAS may call without parameters first to check the URL.
+     */
+    @GET
+    @Path(PROXY_CALLBACK_PATH)
+    public Response proxyCallback(
+        @QueryParam("pgtIou") final String pgtIou, @QueryParam("pgtId") final String pgtId) {
+      if (pgtIou == null && pgtId == null) {
+        return Response.ok().build();
+      }
+      if (!provider.snapshot.isProxyGranting() || !isTicket(pgtIou) || !isTicket(pgtId)) {
+        return Response.status(Response.Status.BAD_REQUEST).build();
+      }
+      session
+          .singleUseObjects()
+          .put(getProxyGrantingTicketIouKey(pgtIou), PGT_IOU_LIFESPAN, Map.of(PGT_ID, pgtId));
+      return Response.ok().build();
+    }
+
+    private static boolean isTicket(final String value) {
+      return value != null && !value.isBlank() && value.length() <= MAX_TICKET_LENGTH;
+    }
+
+    private String getProxyGrantingTicketIouKey(final String pgtIou) {
+      return PGT_IOU_PREFIX + config.getAlias() + "." + pgtIou;
+    }
+
+    void keepProxyGrantingTicket(
+        final String pgtIou, final AuthenticationSessionModel authSession) {
+      if (pgtIou == null) {
+        logger.debugf("CAS issued no proxy-granting ticket for %s", config.getAlias());
+        return;
+      }
+      Map<String, String> entry =
+          session.singleUseObjects().remove(getProxyGrantingTicketIouKey(pgtIou));
+      if (entry == null) {
+        logger.warnf("CAS did not deliver the proxy-granting ticket for %s", config.getAlias());
+        return;
+      }
+      // copied to the user session, so the ticket lives and is replicated with it
+      int expires = Time.currentTime() + provider.snapshot.getProxyGrantingTicketLifespan();
+      authSession.setUserSessionNote(
+          PROXY_GRANTING_TICKET_NOTE_PREFIX + config.getAlias(), entry.get(PGT_ID));
+      authSession.setUserSessionNote(
+          PROXY_GRANTING_TICKET_EXPIRES_NOTE_PREFIX + config.getAlias(), String.valueOf(expires));
+    }
+
+    /**
+     * Back-channel single logout: CAS posts a SAML {@code LogoutRequest} naming the service ticket
+     * of each session to end. Unknown tickets are ignored, as CAS does not expect an answer.
+     */
+    @POST
+    @Consumes(MediaType.APPLICATION_FORM_URLENCODED)
+    public Response backchannelLogout(
+        @FormParam(LOGOUT_REQUEST) final List<String> logoutRequests) {
+      if (logoutRequests == null || logoutRequests.isEmpty()) {
+        return Response.status(Response.Status.BAD_REQUEST).build();
+      }
+      List<String> tickets = new ArrayList<>(logoutRequests.size());
+      for (String logoutRequest : logoutRequests) {
+        try {
+          tickets.addAll(LogoutRequestParser.INSTANCE.parseSessionIndexes(logoutRequest));
+        } catch (ServiceResponseParseException e) {
+          logger.warn("Ignoring malformed CAS logout request", e);
+          return Response.status(Response.Status.BAD_REQUEST).build();
+        }
+      }
+      int loggedOut = 0;
+      for (String ticket : tickets) {
+        UserSessionModel userSession = findUserSession(ticket);
+        if (userSession != null
+            && userSession.getState() != UserSessionModel.State.LOGGED_OUT
+            && userSession.getState() != UserSessionModel.State.LOGGING_OUT) {
+          AuthenticationManager.backchannelLogout(
+              session,
+              realm,
+              userSession,
+              session.getContext().getUri(),
+              clientConnection,
+              headers,
+              true);
+          loggedOut++;
+        }
+      }
+      logger.debugf(
+          "CAS logout request for %d ticket(s) ended %d session(s)", tickets.size(), loggedOut);
+      return Response.ok().build();
+    }
+
+    private UserSessionModel findUserSession(final String ticket) {
+      // the index written at login; the broker session id lookup covers entries lost to a restart
+      Map<String, String> entry = session.singleUseObjects().remove(getSessionIndexKey(ticket));
+      if (entry != null) {
+        UserSessionModel userSession =
+            session.sessions().getUserSession(realm, entry.get(USER_SESSION_ID));
+        if (userSession != null) {
+          return userSession;
+        }
+      }
+      return session.sessions().getUserSessionByBrokerSessionId(realm, getBrokerSessionId(ticket));
+    }
+
+    void indexSession(final String ticket, final AuthenticationSessionModel authSession) {
+      // the user session created for this login takes over the id of the root session
+      long lifespan =
+          Math.max(realm.getSsoSessionMaxLifespan(), realm.getSsoSessionMaxLifespanRememberMe());
+      session
+          .singleUseObjects()
+          .put(
+              getSessionIndexKey(ticket),
+              lifespan,
+              Map.of(USER_SESSION_ID, authSession.getParentSession().getId()));
+    }
+
+    private String getSessionIndexKey(final String ticket) {
+      return SESSION_INDEX_PREFIX + config.getAlias() + "." + ticket;
+    }
+
+    private String getBrokerSessionId(final String ticket) {
+      return config.getAlias() + "." + ticket;
     }
 
     @GET
@@ -162,50 +444,68 @@ public class CasIdentityProvider extends AbstractIdentityProvider<CasIdentityPro
         final UriInfo uriInfo,
         final String state) {
       logger.debug("Current state value: " + state);
-      try (SimpleHttp.Response response =
-          SimpleHttp.doGet(
-                  createValidateServiceUrl(config, ticket, uriInfo).build().toURL().toString(),
-                  session)
-              .asResponse()) {
-        if (response.getStatus() != 200) {
-          logger.error(response.asString());
-          throw new IdentityBrokerException(
-              "CAS returned a non-200 response code: " + response.getStatus());
-        }
+      ServiceResponse serviceResponse = validateTicket(ticket, uriInfo);
 
-        if (logger.isDebugEnabled()) {
-          logger.debug("Raw XML from CAS: " + response.asString());
-        }
-
-        ServiceResponse serviceResponse =
-            (ServiceResponse) unmarshaller.unmarshal(new StringReader(response.asString()));
+      if (logger.isDebugEnabled()) {
+        logger.debug("Parsed response: " + serviceResponse);
+      }
 
-        if (logger.isDebugEnabled()) {
-          logger.debug("Parsed response: " + serviceResponse);
-        }
+      if (serviceResponse.getFailure() != null) {
+        throw new IdentityBrokerException(
+            "Failure response from CAS: "
+                + serviceResponse.getFailure().getCode()
+                + "("
+                + serviceResponse.getFailure().getDescription()
+                + ")");
+      }
+      Success success = serviceResponse.getSuccess();
 
-        if (serviceResponse.getFailure() != null) {
-          throw new IdentityBrokerException(
-              "Failure response from CAS: "
-                  + serviceResponse.getFailure().getCode()
-                  + "("
-                  + serviceResponse.getFailure().getDescription()
-                  + ")");
-        }
-        Success success = serviceResponse.getSuccess();
-
-        BrokeredIdentityContext user = new BrokeredIdentityContext(success.getUser(), config);
-        user.setUsername(success.getUser());
-        user.getContextData().put(USER_ATTRIBUTES, success.getAttributes());
-        user.setIdp(provider);
-        AuthenticationSessionModel authSession =
-            this.callback.getAndVerifyAuthenticationSession(state);
-        session.getContext().setAuthenticationSession(authSession);
-        user.setAuthenticationSession(authSession);
-        return user;
-      } catch (IOException | JAXBException e) {
-        throw new IdentityBrokerException("Failed to complete CAS authentication", e);
+      BrokeredIdentityContext user = new BrokeredIdentityContext(success.getUser(), config);
+      user.setUsername(success.getUser());
+      user.getContextData().put(USER_ATTRIBUTES, success.getAttributes());
+      user.setIdp(provider);
+      user.setBrokerSessionId(getBrokerSessionId(ticket));
+      AuthenticationSessionModel authSession =
+          this.callback.getAndVerifyAuthenticationSession(state);
+      session.getContext().setAuthenticationSession(authSession);
+      user.setAuthenticationSession(authSession);
+      indexSession(ticket, authSession);
+      if (provider.snapshot.isProxyGranting()) {
+        keepProxyGrantingTicket(success.getProxyGrantingTicket(), authSession);
       }
+      return user;
     }
+
+    private ServiceResponse validateTicket(final String ticket, final UriInfo uriInfo) {
+      CasConfigSnapshot snapshot = provider.snapshot;
+      CasProtocol protocol = snapshot.getProtocol();
+      // without attributes to filter there is no point in looking at the mappers
+      boolean keepAll = snapshot.isKeepAllAttributes() || !protocol.releasesAttributes();
+      return provider.validationService.validate(
+          casServerUrlPrefix ->
+              protocol.newRequest(
+                  createValidateServiceUrl(snapshot, casServerUrlPrefix, ticket, uriInfo), ticket),
+          snapshot.getResponseParser(),
+          keepAll ? null : getReferencedAttributes());
+    }
+
+    /**
+     * Attribute names read by the provider's mappers, or null when a mapper of unknown kind is
+     * compatible with CAS and could read any of them.
+     */
+    private Set<String> getReferencedAttributes() {
+      return REFERENCED_ATTRIBUTES.get(
+          realm.getId() + "/" + config.getAlias(),
+          provider.getMappers(session),
+          session.getKeycloakSessionFactory());
+    }
+  }
+
+  public CasConfigSnapshot getSnapshot() {
+    return snapshot;
+  }
+
+  public TicketValidationService getValidationService() {
+    return validationService;
   }
 }
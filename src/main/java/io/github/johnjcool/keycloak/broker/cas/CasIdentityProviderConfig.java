@@ -1,7 +1,15 @@
 package io.github.johnjcool.keycloak.broker.cas;
 
+import io.github.johnjcool.keycloak.broker.cas.http.CasHttpClientSettings;
+import io.github.johnjcool.keycloak.broker.cas.parser.ServiceResponseParser;
+import io.github.johnjcool.keycloak.broker.cas.validation.CasProtocol;
+import io.github.johnjcool.keycloak.broker.cas.validation.CasServerPool;
 import java.io.Serial;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import org.keycloak.models.IdentityProviderModel;
+import org.keycloak.models.RealmModel;
 
 public class CasIdentityProviderConfig extends IdentityProviderModel {
 
@@ -9,8 +17,20 @@ public class CasIdentityProviderConfig extends IdentityProviderModel {
 
   private static final String DEFAULT_CAS_LOGIN_SUFFIX = "login";
   private static final String DEFAULT_CAS_LOGOUT_SUFFIX = "logout";
-  private static final String CAS_SERVICE_VALIDATE_SUFFIX = "serviceValidate";
-  private static final String CAS_3_PROTOCOL_PREFIX = "p3";
+  private static final String CAS_PROXY_SUFFIX = "proxy";
+
+  static final int DEFAULT_VALIDATION_MAX_CONNECTIONS = 20;
+  static final int DEFAULT_VALIDATION_KEEP_ALIVE = 60;
+  static final int DEFAULT_VALIDATION_CONNECT_TIMEOUT = 5000;
+  static final int DEFAULT_VALIDATION_READ_TIMEOUT = 10000;
+  static final int DEFAULT_VALIDATION_TIMEOUT = 15000;
+  static final int DEFAULT_VALIDATION_MAX_CONCURRENT = DEFAULT_VALIDATION_MAX_CONNECTIONS;
+  static final int DEFAULT_VALIDATION_QUEUE_SIZE = 100;
+  static final int DEFAULT_VALIDATION_QUEUE_TIMEOUT = 5000;
+  static final int DEFAULT_CIRCUIT_BREAKER_FAILURE_THRESHOLD = 5;
+  static final int DEFAULT_CIRCUIT_BREAKER_OPEN_DURATION = 30000;
+  static final int DEFAULT_HEDGING_PERCENTILE = 95;
+  static final int DEFAULT_PROXY_GRANTING_TICKET_LIFESPAN = 7200;
 
   public CasIdentityProviderConfig() {
     super();
@@ -28,6 +48,30 @@ public class CasIdentityProviderConfig extends IdentityProviderModel {
     return getConfig().get("casServerUrlPrefix");
   }
 
+  public void setValidationUrlPrefixes(final String validationUrlPrefixes) {
+    getConfig().put("validationUrlPrefixes", validationUrlPrefixes);
+  }
+
+  /**
+   * CAS URL prefixes ticket validation is spread over, falling back to the CAS server URL prefix.
+   * Login and logout always use the CAS server URL prefix.
+   */
+  public List<String> getValidationUrlPrefixes() {
+    String value = getConfig().get("validationUrlPrefixes");
+    if (value == null || value.isBlank()) {
+      return Collections.singletonList(getCasServerUrlPrefix());
+    }
+    return Arrays.stream(value.split("[,\\s]+")).filter(prefix -> !prefix.isEmpty()).toList();
+  }
+
+  public void setLoadBalancing(final String loadBalancing) {
+    getConfig().put("loadBalancing", loadBalancing);
+  }
+
+  public String getLoadBalancing() {
+    return getConfig().getOrDefault("loadBalancing", CasServerPool.ROUND_ROBIN);
+  }
+
   public void setGateway(final boolean gateway) {
     getConfig().put("gateway", String.valueOf(gateway));
   }
@@ -44,6 +88,180 @@ public class CasIdentityProviderConfig extends IdentityProviderModel {
     return Boolean.parseBoolean(getConfig().get("renew"));
   }
 
+  public void setValidationProtocol(final String validationProtocol) {
+    getConfig().put("validationProtocol", validationProtocol);
+  }
+
+  /** Name of the {@link CasProtocol} tickets are validated with, CAS 3.0 by default. */
+  public String getValidationProtocol() {
+    return getConfig().getOrDefault("validationProtocol", CasProtocol.CAS30.getName());
+  }
+
+  public void setResponseParser(final String responseParser) {
+    getConfig().put("responseParser", responseParser);
+  }
+
+  public String getResponseParser() {
+    return getConfig().getOrDefault("responseParser", ServiceResponseParser.STAX);
+  }
+
+  public void setValidationMaxConnections(final int maxConnections) {
+    getConfig().put("validationMaxConnections", String.valueOf(maxConnections));
+  }
+
+  public int getValidationMaxConnections() {
+    return getInt("validationMaxConnections", DEFAULT_VALIDATION_MAX_CONNECTIONS);
+  }
+
+  public void setValidationKeepAlive(final int keepAliveSeconds) {
+    getConfig().put("validationKeepAlive", String.valueOf(keepAliveSeconds));
+  }
+
+  public int getValidationKeepAlive() {
+    return getInt("validationKeepAlive", DEFAULT_VALIDATION_KEEP_ALIVE);
+  }
+
+  public void setValidationConnectTimeout(final int connectTimeoutMillis) {
+    getConfig().put("validationConnectTimeout", String.valueOf(connectTimeoutMillis));
+  }
+
+  public int getValidationConnectTimeout() {
+    return getInt("validationConnectTimeout", DEFAULT_VALIDATION_CONNECT_TIMEOUT);
+  }
+
+  public void setValidationReadTimeout(final int readTimeoutMillis) {
+    getConfig().put("validationReadTimeout", String.valueOf(readTimeoutMillis));
+  }
+
+  public int getValidationReadTimeout() {
+    return getInt("validationReadTimeout", DEFAULT_VALIDATION_READ_TIMEOUT);
+  }
+
+  public void setValidationTimeout(final int timeoutMillis) {
+    getConfig().put("validationTimeout", String.valueOf(timeoutMillis));
+  }
+
+  public int getValidationTimeout() {
+    return getInt("validationTimeout", DEFAULT_VALIDATION_TIMEOUT);
+  }
+
+  public void setValidationMaxConcurrent(final int maxConcurrent) {
+    getConfig().put("validationMaxConcurrent", String.valueOf(maxConcurrent));
+  }
+
+  /** Validations in flight against this provider's CAS at a time; 0 leaves them unlimited. */
+  public int getValidationMaxConcurrent() {
+    return getInt("validationMaxConcurrent", DEFAULT_VALIDATION_MAX_CONCURRENT);
+  }
+
+  public void setValidationQueueSize(final int queueSize) {
+    getConfig().put("validationQueueSize", String.valueOf(queueSize));
+  }
+
+  public int getValidationQueueSize() {
+    return getInt("validationQueueSize", DEFAULT_VALIDATION_QUEUE_SIZE);
+  }
+
+  public void setValidationQueueTimeout(final int queueTimeoutMillis) {
+    getConfig().put("validationQueueTimeout", String.valueOf(queueTimeoutMillis));
+  }
+
+  public int getValidationQueueTimeout() {
+    return getInt("validationQueueTimeout", DEFAULT_VALIDATION_QUEUE_TIMEOUT);
+  }
+
+  public void setCircuitBreakerFailureThreshold(final int failureThreshold) {
+    getConfig().put("circuitBreakerFailureThreshold", String.valueOf(failureThreshold));
+  }
+
+  public int getCircuitBreakerFailureThreshold() {
+    return getInt("circuitBreakerFailureThreshold", DEFAULT_CIRCUIT_BREAKER_FAILURE_THRESHOLD);
+  }
+
+  public void setCircuitBreakerOpenDuration(final int openDurationMillis) {
+    getConfig().put("circuitBreakerOpenDuration", String.valueOf(openDurationMillis));
+  }
+
+  public int getCircuitBreakerOpenDuration() {
+    return getInt("circuitBreakerOpenDuration", DEFAULT_CIRCUIT_BREAKER_OPEN_DURATION);
+  }
+
+  public void setAdaptiveTimeout(final boolean adaptiveTimeout) {
+    getConfig().put("adaptiveTimeout", String.valueOf(adaptiveTimeout));
+  }
+
+  public boolean isAdaptiveTimeout() {
+    return Boolean.parseBoolean(getConfig().get("adaptiveTimeout"));
+  }
+
+  public void setKeepAllAttributes(final boolean keepAllAttributes) {
+    getConfig().put("keepAllAttributes", String.valueOf(keepAllAttributes));
+  }
+
+  /**
+   * Whether every attribute released by CAS is kept, instead of only those the provider's mappers
+   * reference.
+   */
+  public boolean isKeepAllAttributes() {
+    return Boolean.parseBoolean(getConfig().get("keepAllAttributes"));
+  }
+
+  public void setForceAttributeSync(final boolean forceAttributeSync) {
+    getConfig().put("forceAttributeSync", String.valueOf(forceAttributeSync));
+  }
+
+  /**
+   * Whether the CAS mappers update returning users on every login, instead of only when the
+   * released attributes or the mapper configuration changed since their last login.
+   */
+  public boolean isForceAttributeSync() {
+    return Boolean.parseBoolean(getConfig().get("forceAttributeSync"));
+  }
+
+  public void setHedging(final boolean hedging) {
+    getConfig().put("hedging", String.valueOf(hedging));
+  }
+
+  public boolean isHedging() {
+    return Boolean.parseBoolean(getConfig().get("hedging"));
+  }
+
+  public void setHedgingPercentile(final int hedgingPercentile) {
+    getConfig().put("hedgingPercentile", String.valueOf(hedgingPercentile));
+  }
+
+  public int getHedgingPercentile() {
+    return getInt("hedgingPercentile", DEFAULT_HEDGING_PERCENTILE);
+  }
+
+  public void setProxyGranting(final boolean proxyGranting) {
+    getConfig().put("proxyGranting", String.valueOf(proxyGranting));
+  }
+
+  /**
+   * Whether validation asks CAS for a proxy-granting ticket, kept with the user session to request
+   * proxy tickets for backend services.
+   */
+  public boolean isProxyGranting() {
+    return Boolean.parseBoolean(getConfig().get("proxyGranting"));
+  }
+
+  public void setProxyGrantingTicketLifespan(final int lifespanSeconds) {
+    getConfig().put("proxyGrantingTicketLifespan", String.valueOf(lifespanSeconds));
+  }
+
+  public int getProxyGrantingTicketLifespan() {
+    return getInt("proxyGrantingTicketLifespan", DEFAULT_PROXY_GRANTING_TICKET_LIFESPAN);
+  }
+
+  public CasHttpClientSettings getHttpClientSettings() {
+    return new CasHttpClientSettings(
+        getValidationMaxConnections(),
+        getValidationKeepAlive(),
+        getValidationConnectTimeout(),
+        getValidationReadTimeout());
+  }
+
   public String getCasServerLoginUrl() {
     return String.format("%s/%s", getConfig().get("casServerUrlPrefix"), DEFAULT_CAS_LOGIN_SUFFIX);
   }
@@ -53,8 +271,63 @@ public class CasIdentityProviderConfig extends IdentityProviderModel {
   }
 
   public String getCasServiceValidateUrl() {
-    return String.format(
-        "%s/%s/%s",
-        getConfig().get("casServerUrlPrefix"), CAS_3_PROTOCOL_PREFIX, CAS_SERVICE_VALIDATE_SUFFIX);
+    return getCasServiceValidateUrl(getConfig().get("casServerUrlPrefix"));
+  }
+
+  public String getCasServiceValidateUrl(final String casServerUrlPrefix) {
+    return CasProtocol.forName(getValidationProtocol()).getValidateUrl(casServerUrlPrefix);
+  }
+
+  public String getCasProxyUrl(final String casServerUrlPrefix) {
+    return String.format("%s/%s", casServerUrlPrefix, CAS_PROXY_SUFFIX);
+  }
+
+  @Override
+  public void validate(final RealmModel realm) {
+    super.validate(realm);
+    checkInt("validationMaxConnections", 1);
+    checkInt("validationKeepAlive", 0);
+    checkInt("validationConnectTimeout", 0);
+    checkInt("validationReadTimeout", 0);
+    checkInt("validationTimeout", 1);
+    checkInt("validationMaxConcurrent", 0);
+    checkInt("validationQueueSize", 0);
+    checkInt("validationQueueTimeout", 0);
+    checkInt("circuitBreakerFailureThreshold", 0);
+    checkInt("circuitBreakerOpenDuration", 0);
+    checkInt("hedgingPercentile", 1);
+    checkInt("proxyGrantingTicketLifespan", 1);
+    if (getHedgingPercentile() > 99) {
+      throw new IllegalArgumentException("hedgingPercentile must be at most 99");
+    }
+    CasConfigSnapshot.of(this);
+  }
+
+  private int getInt(final String name, final int defaultValue) {
+    String value = getConfig().get(name);
+    if (value == null || value.isBlank()) {
+      return defaultValue;
+    }
+    try {
+      return Integer.parseInt(value.trim());
+    } catch (NumberFormatException e) {
+      return defaultValue;
+    }
+  }
+
+  private void checkInt(final String name, final int min) {
+    String value = getConfig().get(name);
+    if (value == null || value.isBlank()) {
+      return;
+    }
+    int parsed;
+    try {
+      parsed = Integer.parseInt(value.trim());
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException(name + " must be a number");
+    }
+    if (parsed < min) {
+      throw new IllegalArgumentException(name + " must be at least " + min);
+    }
   }
 }
@@ -1,18 +1,50 @@
 package io.github.johnjcool.keycloak.broker.cas;
 
+import io.github.johnjcool.keycloak.broker.cas.metrics.ValidationMetrics;
+import io.github.johnjcool.keycloak.broker.cas.parser.JaxbServiceResponseParser;
+import io.github.johnjcool.keycloak.broker.cas.parser.ServiceResponseParser;
+import io.github.johnjcool.keycloak.broker.cas.validation.CasProtocol;
+import io.github.johnjcool.keycloak.broker.cas.validation.CasServerPool;
+import io.github.johnjcool.keycloak.broker.cas.validation.TicketValidationService;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import java.io.IOException;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.jboss.logging.Logger;
 import org.keycloak.broker.provider.AbstractIdentityProviderFactory;
 import org.keycloak.models.IdentityProviderModel;
 import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
 import org.keycloak.provider.ConfiguredProvider;
 import org.keycloak.provider.ProviderConfigProperty;
 import org.keycloak.provider.ProviderConfigurationBuilder;
+import org.keycloak.truststore.TruststoreProvider;
 
 public class CasIdentityProviderFactory extends AbstractIdentityProviderFactory<CasIdentityProvider>
     implements ConfiguredProvider {
 
   public static final String PROVIDER_ID = "cas";
 
+  private static final Logger logger = Logger.getLogger(CasIdentityProviderFactory.class);
+
+  private final ConcurrentMap<String, CasConfigSnapshot> snapshots = new ConcurrentHashMap<>();
+
+  private final ConcurrentMap<String, TicketValidationService> validationServices =
+      new ConcurrentHashMap<>();
+
+  private final MeterRegistry meterRegistry = Metrics.globalRegistry;
+
+  private List<Meter> unmarshallerPoolMeters = List.of();
+
+  private final ExecutorService validationExecutor =
+      Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("cas-validation-", 0).factory());
+
   @Override
   public String getName() {
     return "CAS";
@@ -21,7 +53,139 @@ public class CasIdentityProviderFactory extends AbstractIdentityProviderFactory<
   @Override
   public CasIdentityProvider create(
       final KeycloakSession session, final IdentityProviderModel model) {
-    return new CasIdentityProvider(session, new CasIdentityProviderConfig(model));
+    CasIdentityProviderConfig config = new CasIdentityProviderConfig(model);
+    RealmModel realm = session.getContext().getRealm();
+    String key = getKey(realm == null ? null : realm.getId(), config);
+    CasIdentityProvider provider =
+        new CasIdentityProvider(
+            session,
+            config,
+            getSnapshot(key, config),
+            retainValidationService(key, session, config));
+    // gives the validation service back when the request is done
+    session.enlistForClose(provider);
+    return provider;
+  }
+
+  // the internal id alone would do, but a realm's entries have to be found when it is removed
+  private static String getKey(final String realmId, final IdentityProviderModel model) {
+    return realmId
+        + "/"
+        + (model.getInternalId() != null ? model.getInternalId() : model.getAlias());
+  }
+
+  private CasConfigSnapshot getSnapshot(final String key, final CasIdentityProviderConfig config) {
+    CasConfigSnapshot snapshot = snapshots.get(key);
+    if (snapshot != null && snapshot.isSnapshotOf(config)) {
+      return snapshot;
+    }
+    return snapshots.compute(
+        key,
+        (k, existing) ->
+            existing != null && existing.isSnapshotOf(config)
+                ? existing
+                : CasConfigSnapshot.of(config));
+  }
+
+  private TicketValidationService retainValidationService(
+      final String key, final KeycloakSession session, final CasIdentityProviderConfig config) {
+    while (true) {
+      TicketValidationService service = getValidationService(key, session, config);
+      // a service replaced meanwhile is given back and its successor taken instead
+      if (service.retain()) {
+        if (validationServices.get(key) == service) {
+          return service;
+        }
+        service.release();
+      }
+    }
+  }
+
+  private TicketValidationService getValidationService(
+      final String key, final KeycloakSession session, final CasIdentityProviderConfig config) {
+    TicketValidationService service = validationServices.get(key);
+    if (service != null && service.isConfiguredBy(config)) {
+      return service;
+    }
+    return validationServices.compute(
+        key,
+        (k, existing) -> {
+          if (existing != null) {
+            if (existing.isConfiguredBy(config)) {
+              return existing;
+            }
+            // closed once the logins still using it are done
+            existing.retire();
+          }
+          logger.debugf("Creating CAS validation service for %s", config.getAlias());
+          return new TicketValidationService(
+              config,
+              session.getProvider(TruststoreProvider.class),
+              validationExecutor,
+              meterRegistry);
+        });
+  }
+
+  @Override
+  public void postInit(final KeycloakSessionFactory factory) {
+    unmarshallerPoolMeters =
+        ValidationMetrics.bindUnmarshallerPool(
+            meterRegistry, JaxbServiceResponseParser.INSTANCE.getUnmarshallers());
+    // only fired on the node the admin used; other nodes notice the change on the next create()
+    factory.register(
+        event -> {
+          if (event instanceof RealmModel.IdentityProviderUpdatedEvent updated) {
+            evict(updated.getRealm(), updated.getUpdatedIdentityProvider(), false);
+          } else if (event instanceof RealmModel.IdentityProviderRemovedEvent removed) {
+            evict(removed.getRealm(), removed.getRemovedIdentityProvider(), true);
+          } else if (event instanceof RealmModel.RealmRemovedEvent removed) {
+            evictRealm(removed.getRealm().getId());
+          }
+        });
+  }
+
+  private void evict(
+      final RealmModel realm, final IdentityProviderModel model, final boolean removed) {
+    if (!PROVIDER_ID.equals(model.getProviderId())) {
+      return;
+    }
+    String key = getKey(realm.getId(), model);
+    snapshots.remove(key);
+    if (removed) {
+      TicketValidationService service = validationServices.remove(key);
+      if (service != null) {
+        service.retire();
+      }
+    }
+  }
+
+  private void evictRealm(final String realmId) {
+    String prefix = realmId + "/";
+    snapshots.keySet().removeIf(key -> key.startsWith(prefix));
+    for (String key : List.copyOf(validationServices.keySet())) {
+      TicketValidationService service =
+          key.startsWith(prefix) ? validationServices.remove(key) : null;
+      if (service != null) {
+        service.retire();
+      }
+    }
+  }
+
+  @Override
+  public void close() {
+    validationExecutor.shutdownNow();
+    validationServices.values().forEach(CasIdentityProviderFactory::closeQuietly);
+    validationServices.clear();
+    snapshots.clear();
+    unmarshallerPoolMeters.forEach(meterRegistry::remove);
+  }
+
+  private static void closeQuietly(final TicketValidationService service) {
+    try {
+      service.close();
+    } catch (IOException e) {
+      logger.warn("Failed to close CAS validation service", e);
+    }
   }
 
   @Override
@@ -44,6 +208,36 @@ public class CasIdentityProviderFactory extends AbstractIdentityProviderFactory<
         .helpText("The start of the CAS server URL, i.e. https://localhost:8443/cas")
         .add()
         .property()
+        .name("validationUrlPrefixes")
+        .type(ProviderConfigProperty.STRING_TYPE)
+        .label("Validation URL prefixes")
+        .helpText(
+            "Comma separated CAS server URL prefixes to validate tickets against, i.e. https://cas1:8443/cas,https://cas2:8443/cas. Defaults to the CAS server URL prefix; login and logout always use the CAS server URL prefix.")
+        .add()
+        .property()
+        .name("loadBalancing")
+        .type(ProviderConfigProperty.LIST_TYPE)
+        .label("Validation load balancing")
+        .helpText(
+            "How a validation URL prefix is chosen. Nodes that keep failing are skipped for a while, and validations that never reached a node are retried on another one.")
+        .options(CasServerPool.ROUND_ROBIN, CasServerPool.LEAST_LATENCY)
+        .defaultValue(CasServerPool.ROUND_ROBIN)
+        .add()
+        .property()
+        .name("hedging")
+        .type(ProviderConfigProperty.BOOLEAN_TYPE)
+        .label("Hedged validation")
+        .helpText(
+            "Send a second validation to another validation URL prefix when the first has not answered within the hedging percentile of recent latencies. The first successful answer wins. Needs at least two validation URL prefixes; waits at most the validation timeout.")
+        .add()
+        .property()
+        .name("hedgingPercentile")
+        .type(ProviderConfigProperty.STRING_TYPE)
+        .label("Hedging percentile")
+        .helpText("Latency percentile (1-99) after which a hedged validation is sent.")
+        .defaultValue(String.valueOf(CasIdentityProviderConfig.DEFAULT_HEDGING_PERCENTILE))
+        .add()
+        .property()
         .name("renew")
         .type(ProviderConfigProperty.BOOLEAN_TYPE)
         .label("CAS renew")
@@ -55,6 +249,144 @@ public class CasIdentityProviderFactory extends AbstractIdentityProviderFactory<
         .label("CAS gateway")
         .helpText("Do not force users to authenticate if they are not already authenticated.")
         .add()
+        .property()
+        .name("proxyGranting")
+        .type(ProviderConfigProperty.BOOLEAN_TYPE)
+        .label("Proxy-granting tickets")
+        .helpText(
+            "Ask CAS for a proxy-granting ticket at login and keep it with the user session, so that proxy tickets for backend services can be requested without a browser round trip. Needs the cas-2.0 or cas-3.0 protocol, and CAS must be able to reach Keycloak over HTTPS.")
+        .add()
+        .property()
+        .name("proxyGrantingTicketLifespan")
+        .type(ProviderConfigProperty.STRING_TYPE)
+        .label("Proxy-granting ticket lifespan")
+        .helpText(
+            "Seconds a proxy-granting ticket is used for; it never outlives its user session. Should not exceed the lifetime CAS grants it.")
+        .defaultValue(
+            String.valueOf(CasIdentityProviderConfig.DEFAULT_PROXY_GRANTING_TICKET_LIFESPAN))
+        .add()
+        .property()
+        .name("validationProtocol")
+        .type(ProviderConfigProperty.LIST_TYPE)
+        .label("Validation protocol")
+        .helpText(
+            "CAS endpoint tickets are validated against. 'cas-3.0' is /p3/serviceValidate, 'cas-2.0' /serviceValidate and 'saml-1.1' /samlValidate. 'cas-1.0' is the plain-text /validate, which releases no attributes and is the cheapest when the mappers need none.")
+        .options(
+            CasProtocol.CAS30.getName(),
+            CasProtocol.CAS20.getName(),
+            CasProtocol.CAS10.getName(),
+            CasProtocol.SAML11.getName())
+        .defaultValue(CasProtocol.CAS30.getName())
+        .add()
+        .property()
+        .name("responseParser")
+        .type(ProviderConfigProperty.LIST_TYPE)
+        .label("Response parser")
+        .helpText(
+            "Parser for the CAS 2.0 and 3.0 responses. 'stax' streams the XML response in a single pass, 'jaxb' is the previous JAXB binding kept as a fallback. 'json' requests format=JSON, supported from CAS 5 on, and streams the smaller JSON response.")
+        .options(ServiceResponseParser.STAX, ServiceResponseParser.JAXB, ServiceResponseParser.JSON)
+        .defaultValue(ServiceResponseParser.STAX)
+        .add()
+        .property()
+        .name("keepAllAttributes")
+        .type(ProviderConfigProperty.BOOLEAN_TYPE)
+        .label("Keep all attributes")
+        .helpText(
+            "Keep every attribute released by CAS. By default only the attributes referenced by this provider's CAS mappers are kept; enable this if other mappers or extensions read the CAS attributes from the brokered context.")
+        .add()
+        .property()
+        .name("forceAttributeSync")
+        .type(ProviderConfigProperty.BOOLEAN_TYPE)
+        .label("Force attribute sync")
+        .helpText(
+            "Run the CAS mappers for returning users on every login. By default they are skipped when the released attributes and the mapper configuration are unchanged since the user's last login; enable this to also repair changes made to the user in Keycloak.")
+        .add()
+        .property()
+        .name("validationMaxConnections")
+        .type(ProviderConfigProperty.STRING_TYPE)
+        .label("Validation max connections")
+        .helpText("Maximum number of pooled connections to the CAS server for ticket validation.")
+        .defaultValue(String.valueOf(CasIdentityProviderConfig.DEFAULT_VALIDATION_MAX_CONNECTIONS))
+        .add()
+        .property()
+        .name("validationKeepAlive")
+        .type(ProviderConfigProperty.STRING_TYPE)
+        .label("Validation keep-alive")
+        .helpText(
+            "Seconds an idle validation connection is kept open for reuse. 0 closes connections after each request.")
+        .defaultValue(String.valueOf(CasIdentityProviderConfig.DEFAULT_VALIDATION_KEEP_ALIVE))
+        .add()
+        .property()
+        .name("validationConnectTimeout")
+        .type(ProviderConfigProperty.STRING_TYPE)
+        .label("Validation connect timeout")
+        .helpText(
+            "Milliseconds to wait for a connection to the CAS server, or for a free pooled connection.")
+        .defaultValue(String.valueOf(CasIdentityProviderConfig.DEFAULT_VALIDATION_CONNECT_TIMEOUT))
+        .add()
+        .property()
+        .name("validationReadTimeout")
+        .type(ProviderConfigProperty.STRING_TYPE)
+        .label("Validation read timeout")
+        .helpText("Milliseconds to wait for data from the CAS server during ticket validation.")
+        .defaultValue(String.valueOf(CasIdentityProviderConfig.DEFAULT_VALIDATION_READ_TIMEOUT))
+        .add()
+        .property()
+        .name("validationTimeout")
+        .type(ProviderConfigProperty.STRING_TYPE)
+        .label("Validation timeout")
+        .helpText(
+            "Milliseconds a login waits for the complete validation, including retries on other nodes and a hedged request. The request still in flight is aborted when it elapses.")
+        .defaultValue(String.valueOf(CasIdentityProviderConfig.DEFAULT_VALIDATION_TIMEOUT))
+        .add()
+        .property()
+        .name("validationMaxConcurrent")
+        .type(ProviderConfigProperty.STRING_TYPE)
+        .label("Validation max concurrent")
+        .helpText(
+            "Maximum number of validations in flight against this provider's CAS, so that a slow CAS cannot tie up the request threads of other realms. 0 leaves them unlimited.")
+        .defaultValue(String.valueOf(CasIdentityProviderConfig.DEFAULT_VALIDATION_MAX_CONCURRENT))
+        .add()
+        .property()
+        .name("validationQueueSize")
+        .type(ProviderConfigProperty.STRING_TYPE)
+        .label("Validation queue size")
+        .helpText(
+            "Logins that may wait for a validation slot; further logins are rejected at once.")
+        .defaultValue(String.valueOf(CasIdentityProviderConfig.DEFAULT_VALIDATION_QUEUE_SIZE))
+        .add()
+        .property()
+        .name("validationQueueTimeout")
+        .type(ProviderConfigProperty.STRING_TYPE)
+        .label("Validation queue timeout")
+        .helpText("Milliseconds a login waits for a validation slot before it is rejected.")
+        .defaultValue(String.valueOf(CasIdentityProviderConfig.DEFAULT_VALIDATION_QUEUE_TIMEOUT))
+        .add()
+        .property()
+        .name("circuitBreakerFailureThreshold")
+        .type(ProviderConfigProperty.STRING_TYPE)
+        .label("Circuit breaker failure threshold")
+        .helpText(
+            "Consecutive unreachable, timed out or 5xx validations after which logins fail fast without contacting CAS. 0 disables the circuit breaker.")
+        .defaultValue(
+            String.valueOf(CasIdentityProviderConfig.DEFAULT_CIRCUIT_BREAKER_FAILURE_THRESHOLD))
+        .add()
+        .property()
+        .name("circuitBreakerOpenDuration")
+        .type(ProviderConfigProperty.STRING_TYPE)
+        .label("Circuit breaker open duration")
+        .helpText(
+            "Milliseconds logins fail fast once the circuit breaker opened, before a single probe validation is let through.")
+        .defaultValue(
+            String.valueOf(CasIdentityProviderConfig.DEFAULT_CIRCUIT_BREAKER_OPEN_DURATION))
+        .add()
+        .property()
+        .name("adaptiveTimeout")
+        .type(ProviderConfigProperty.BOOLEAN_TYPE)
+        .label("Adaptive read timeout")
+        .helpText(
+            "Derive the read timeout from recently observed validation latency (three times the 99th percentile), capped by the validation read timeout.")
+        .add()
         .build();
   }
 }
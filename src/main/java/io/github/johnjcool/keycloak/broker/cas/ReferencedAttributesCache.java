@@ -0,0 +1,106 @@
+package io.github.johnjcool.keycloak.broker.cas;
+
+import io.github.johnjcool.keycloak.broker.cas.mappers.AbstractAttributeMapper;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.keycloak.broker.provider.IdentityProviderMapper;
+import org.keycloak.models.IdentityProviderMapperModel;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.provider.ProviderFactory;
+
+/**
+ * Keeps the attribute names the mappers of a provider read, keyed by realm and alias. An entry is
+ * reused for as long as the ids, kinds and config of the mappers are unchanged, so a login only
+ * compares them instead of looking up each mapper's factory.
+ */
+final class ReferencedAttributesCache {
+
+  // providers are rarely deleted; this only guards against unbounded growth from churn
+  private static final int MAX_ENTRIES = 4096;
+
+  private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+  /**
+   * Attribute names read by {@code mappers}, or null when a mapper of unknown kind is compatible
+   * with CAS and could read any of them.
+   */
+  Set<String> get(
+      final String key,
+      final List<IdentityProviderMapperModel> mappers,
+      final KeycloakSessionFactory factory) {
+    Entry entry = entries.get(key);
+    if (entry != null && entry.isFor(mappers)) {
+      return entry.attributes;
+    }
+    if (entries.size() >= MAX_ENTRIES) {
+      entries.clear();
+    }
+    List<Source> sources = new ArrayList<>(mappers.size());
+    for (IdentityProviderMapperModel mapper : mappers) {
+      Map<String, String> config = mapper.getConfig();
+      sources.add(
+          new Source(
+              mapper.getId(),
+              mapper.getIdentityProviderMapper(),
+              config == null ? null : new HashMap<>(config)));
+    }
+    entry = new Entry(sources, collect(mappers, factory));
+    entries.put(key, entry);
+    return entry.attributes;
+  }
+
+  private static Set<String> collect(
+      final List<IdentityProviderMapperModel> mappers, final KeycloakSessionFactory factory) {
+    Set<String> attributes = new HashSet<>();
+    for (IdentityProviderMapperModel mapper : mappers) {
+      ProviderFactory<IdentityProviderMapper> mapperFactory =
+          factory.getProviderFactory(
+              IdentityProviderMapper.class, mapper.getIdentityProviderMapper());
+      if (mapperFactory instanceof AbstractAttributeMapper attributeMapper) {
+        attributes.addAll(attributeMapper.getReferencedAttributes(mapper));
+      } else if (mapperFactory instanceof IdentityProviderMapper other
+          && Arrays.asList(other.getCompatibleProviders())
+              .contains(CasIdentityProviderFactory.PROVIDER_ID)) {
+        return null;
+      }
+    }
+    return Collections.unmodifiableSet(attributes);
+  }
+
+  int size() {
+    return entries.size();
+  }
+
+  private record Source(String id, String mapperType, Map<String, String> config) {
+
+    boolean isFor(final IdentityProviderMapperModel mapper) {
+      return Objects.equals(id, mapper.getId())
+          && Objects.equals(mapperType, mapper.getIdentityProviderMapper())
+          && Objects.equals(config, mapper.getConfig());
+    }
+  }
+
+  private record Entry(List<Source> sources, Set<String> attributes) {
+
+    boolean isFor(final List<IdentityProviderMapperModel> mappers) {
+      if (sources.size() != mappers.size()) {
+        return false;
+      }
+      for (int i = 0; i < sources.size(); i++) {
+        if (!sources.get(i).isFor(mappers.get(i))) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+}
@@ -0,0 +1,123 @@
+package io.github.johnjcool.keycloak.broker.cas.authenticator;
+
+import io.github.johnjcool.keycloak.broker.cas.util.SingleFlight;
+import java.util.concurrent.TimeUnit;
+import org.jboss.logging.Logger;
+import org.keycloak.authentication.AuthenticationFlowContext;
+import org.keycloak.authentication.authenticators.broker.AbstractIdpAuthenticator;
+import org.keycloak.authentication.authenticators.broker.IdpConfirmOverrideLinkAuthenticator;
+import org.keycloak.authentication.authenticators.broker.util.SerializedBrokeredIdentityContext;
+import org.keycloak.broker.provider.BrokeredIdentityContext;
+import org.keycloak.models.AbstractKeycloakTransaction;
+import org.keycloak.models.AuthenticatorConfigModel;
+import org.keycloak.models.FederatedIdentityModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+
+/**
+ * First broker login step that lets one first login of the same brokered user through at a time,
+ * e.g. after the CAS login completed in two tabs. Placed as the first alternative before "Create
+ * User If Unique", it holds the user until the request that creates them has committed. The second
+ * login then finds the brokered identity linked and ends as that user, instead of failing on the
+ * unique username or asking to link the account. It only coalesces logins on the same node.
+ */
+public class LoginCoalescingAuthenticator extends AbstractIdpAuthenticator {
+
+  private static final Logger logger = Logger.getLogger(LoginCoalescingAuthenticator.class);
+
+  // first logins in progress per realm, provider and brokered user on this node
+  private static final SingleFlight LOGINS = new SingleFlight();
+
+  @Override
+  protected void authenticateImpl(
+      final AuthenticationFlowContext context,
+      final SerializedBrokeredIdentityContext serializedCtx,
+      final BrokeredIdentityContext brokerContext) {
+    String key =
+        context.getRealm().getId()
+            + "."
+            + brokerContext.getIdpConfig().getAlias()
+            + "."
+            + brokerContext.getId();
+    int timeout = getTimeout(context.getAuthenticatorConfig());
+    SingleFlight.Permit permit = LOGINS.acquire(key, timeout, TimeUnit.MILLISECONDS);
+    if (permit == null) {
+      logger.debugf(
+          "Timed out waiting for a concurrent first login of %s, going ahead",
+          brokerContext.getId());
+    } else {
+      context
+          .getSession()
+          .getTransactionManager()
+          .enlistAfterCompletion(
+              new AbstractKeycloakTransaction() {
+                @Override
+                protected void commitImpl() {
+                  permit.close();
+                }
+
+                @Override
+                protected void rollbackImpl() {
+                  permit.close();
+                }
+              });
+    }
+    UserModel linked =
+        context
+            .getSession()
+            .users()
+            .getUserByFederatedIdentity(
+                context.getRealm(),
+                new FederatedIdentityModel(
+                    brokerContext.getIdpConfig().getAlias(),
+                    brokerContext.getId(),
+                    brokerContext.getUsername()));
+    if (linked != null) {
+      logger.debugf(
+          "%s was linked by a concurrent first login, continuing as user %s",
+          brokerContext.getId(), linked.getUsername());
+      // the link is added again once the flow ends, so replace the one that exists
+      context
+          .getAuthenticationSession()
+          .setAuthNote(IdpConfirmOverrideLinkAuthenticator.OVERRIDE_LINK, "true");
+      context.setUser(linked);
+      context.success();
+    } else if (context.getExecution() != null && context.getExecution().isAlternative()) {
+      context.attempted();
+    } else {
+      context.success();
+    }
+  }
+
+  @Override
+  protected void actionImpl(
+      final AuthenticationFlowContext context,
+      final SerializedBrokeredIdentityContext serializedCtx,
+      final BrokeredIdentityContext brokerContext) {}
+
+  static int getTimeout(final AuthenticatorConfigModel config) {
+    if (config == null || config.getConfig() == null) {
+      return LoginCoalescingAuthenticatorFactory.DEFAULT_TIMEOUT;
+    }
+    String timeout = config.getConfig().get(LoginCoalescingAuthenticatorFactory.TIMEOUT);
+    try {
+      return timeout == null || timeout.isBlank()
+          ? LoginCoalescingAuthenticatorFactory.DEFAULT_TIMEOUT
+          : Math.max(0, Integer.parseInt(timeout.trim()));
+    } catch (NumberFormatException e) {
+      return LoginCoalescingAuthenticatorFactory.DEFAULT_TIMEOUT;
+    }
+  }
+
+  @Override
+  public boolean requiresUser() {
+    return false;
+  }
+
+  @Override
+  public boolean configuredFor(
+      final KeycloakSession session, final RealmModel realm, final UserModel user) {
+    return true;
+  }
+}
@@ -0,0 +1,90 @@
+package io.github.johnjcool.keycloak.broker.cas.authenticator;
+
+import java.util.List;
+import org.keycloak.Config;
+import org.keycloak.authentication.Authenticator;
+import org.keycloak.authentication.AuthenticatorFactory;
+import org.keycloak.models.AuthenticationExecutionModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.provider.ProviderConfigProperty;
+import org.keycloak.provider.ProviderConfigurationBuilder;
+
+public class LoginCoalescingAuthenticatorFactory implements AuthenticatorFactory {
+
+  public static final String PROVIDER_ID = "cas-login-coalescing";
+
+  static final String TIMEOUT = "timeout";
+  static final int DEFAULT_TIMEOUT = 2000;
+
+  private static final AuthenticationExecutionModel.Requirement[] REQUIREMENT_CHOICES = {
+    AuthenticationExecutionModel.Requirement.ALTERNATIVE,
+    AuthenticationExecutionModel.Requirement.REQUIRED,
+    AuthenticationExecutionModel.Requirement.DISABLED
+  };
+
+  private static final LoginCoalescingAuthenticator SINGLETON = new LoginCoalescingAuthenticator();
+
+  @Override
+  public Authenticator create(final KeycloakSession session) {
+    return SINGLETON;
+  }
+
+  @Override
+  public void init(final Config.Scope config) {}
+
+  @Override
+  public void postInit(final KeycloakSessionFactory factory) {}
+
+  @Override
+  public void close() {}
+
+  @Override
+  public String getId() {
+    return PROVIDER_ID;
+  }
+
+  @Override
+  public String getDisplayType() {
+    return "Wait For Concurrent First Login";
+  }
+
+  @Override
+  public String getReferenceCategory() {
+    return "loginCoalescing";
+  }
+
+  @Override
+  public boolean isConfigurable() {
+    return true;
+  }
+
+  @Override
+  public AuthenticationExecutionModel.Requirement[] getRequirementChoices() {
+    return REQUIREMENT_CHOICES;
+  }
+
+  @Override
+  public boolean isUserSetupAllowed() {
+    return false;
+  }
+
+  @Override
+  public String getHelpText() {
+    return "Place as the first alternative before 'Create User If Unique' to let one first login of the same brokered user through at a time on this node. A concurrent login, e.g. from a second tab, then continues as the user the first one created instead of racing to create it.";
+  }
+
+  @Override
+  public List<ProviderConfigProperty> getConfigProperties() {
+    return ProviderConfigurationBuilder.create()
+        .property()
+        .name(TIMEOUT)
+        .type(ProviderConfigProperty.STRING_TYPE)
+        .label("Timeout")
+        .helpText(
+            "Milliseconds a first login waits for a concurrent one of the same user before going ahead anyway. 0 turns waiting off.")
+        .defaultValue(String.valueOf(DEFAULT_TIMEOUT))
+        .add()
+        .build();
+  }
+}
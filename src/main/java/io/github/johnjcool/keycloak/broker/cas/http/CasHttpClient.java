@@ -0,0 +1,119 @@
+package io.github.johnjcool.keycloak.broker.cas.http;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.SSLSocketFactory;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.DefaultHostnameVerifier;
+import org.apache.http.conn.ssl.NoopHostnameVerifier;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.DefaultConnectionReuseStrategy;
+import org.apache.http.impl.NoConnectionReuseStrategy;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.keycloak.common.enums.HostnameVerificationPolicy;
+import org.keycloak.truststore.TruststoreProvider;
+
+/**
+ * Connection-pooling HTTP client dedicated to one CAS identity provider, so that validation calls
+ * reuse warm TLS connections independently of Keycloak's shared client.
+ */
+public final class CasHttpClient implements Closeable {
+
+  private final CasHttpClientSettings settings;
+  private final PoolingHttpClientConnectionManager connectionManager;
+  private final RequestConfig defaultRequestConfig;
+  private final CloseableHttpClient client;
+
+  public CasHttpClient(
+      final CasHttpClientSettings settings, final TruststoreProvider truststoreProvider) {
+    this.settings = settings;
+
+    Registry<ConnectionSocketFactory> registry =
+        RegistryBuilder.<ConnectionSocketFactory>create()
+            .register("http", PlainConnectionSocketFactory.getSocketFactory())
+            .register("https", createSslSocketFactory(truststoreProvider))
+            .build();
+    connectionManager = new PoolingHttpClientConnectionManager(registry);
+    connectionManager.setMaxTotal(settings.maxConnections());
+    connectionManager.setDefaultMaxPerRoute(settings.maxConnections());
+    connectionManager.setValidateAfterInactivity(1000);
+
+    defaultRequestConfig =
+        RequestConfig.custom()
+            .setConnectTimeout(settings.connectTimeoutMillis())
+            .setConnectionRequestTimeout(settings.connectTimeoutMillis())
+            .setSocketTimeout(settings.readTimeoutMillis())
+            .build();
+
+    HttpClientBuilder builder =
+        HttpClientBuilder.create()
+            .setConnectionManager(connectionManager)
+            .setDefaultRequestConfig(defaultRequestConfig)
+            .disableCookieManagement()
+            .disableAutomaticRetries()
+            .disableRedirectHandling();
+    if (settings.keepAliveSeconds() > 0) {
+      long keepAliveMillis = TimeUnit.SECONDS.toMillis(settings.keepAliveSeconds());
+      builder
+          .setConnectionReuseStrategy(DefaultConnectionReuseStrategy.INSTANCE)
+          .setKeepAliveStrategy(
+              (response, context) -> {
+                long announced =
+                    DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(
+                        response, context);
+                return announced > 0 ? Math.min(announced, keepAliveMillis) : keepAliveMillis;
+              })
+          .evictExpiredConnections()
+          .evictIdleConnections(settings.keepAliveSeconds(), TimeUnit.SECONDS);
+    } else {
+      builder.setConnectionReuseStrategy(NoConnectionReuseStrategy.INSTANCE);
+    }
+    client = builder.build();
+  }
+
+  private static SSLConnectionSocketFactory createSslSocketFactory(
+      final TruststoreProvider truststoreProvider) {
+    if (truststoreProvider == null || truststoreProvider.getSSLSocketFactory() == null) {
+      return SSLConnectionSocketFactory.getSystemSocketFactory();
+    }
+    SSLSocketFactory socketFactory = truststoreProvider.getSSLSocketFactory();
+    HostnameVerifier hostnameVerifier =
+        truststoreProvider.getPolicy() == HostnameVerificationPolicy.ANY
+            ? NoopHostnameVerifier.INSTANCE
+            : new DefaultHostnameVerifier();
+    return new SSLConnectionSocketFactory(socketFactory, hostnameVerifier);
+  }
+
+  public CloseableHttpResponse execute(final HttpUriRequest request) throws IOException {
+    return client.execute(request);
+  }
+
+  public CasHttpClientSettings getSettings() {
+    return settings;
+  }
+
+  public RequestConfig getDefaultRequestConfig() {
+    return defaultRequestConfig;
+  }
+
+  public PoolStats getPoolStats() {
+    return connectionManager.getTotalStats();
+  }
+
+  @Override
+  public void close() throws IOException {
+    client.close();
+  }
+}
@@ -0,0 +1,14 @@
+package io.github.johnjcool.keycloak.broker.cas.http;
+
+public record CasHttpClientSettings(
+    int maxConnections, int keepAliveSeconds, int connectTimeoutMillis, int readTimeoutMillis) {
+
+  public CasHttpClientSettings {
+    if (maxConnections < 1) {
+      throw new IllegalArgumentException("maxConnections must be at least 1");
+    }
+    if (keepAliveSeconds < 0 || connectTimeoutMillis < 0 || readTimeoutMillis < 0) {
+      throw new IllegalArgumentException("keep-alive and timeouts must not be negative");
+    }
+  }
+}
@@ -1,9 +1,9 @@
 package io.github.johnjcool.keycloak.broker.cas.jaxb;
 
+import io.github.johnjcool.keycloak.broker.cas.model.CasAttributes;
 import jakarta.xml.bind.annotation.XmlAnyElement;
 import jakarta.xml.bind.annotation.XmlType;
 import java.util.*;
-import java.util.stream.Collectors;
 import org.w3c.dom.Node;
 
 @XmlType
@@ -17,9 +17,10 @@ public class AttributesWrapper {
   }
 
   public Map<String, List<String>> toMap() {
-    return attributes.stream()
-        .collect(
-            Collectors.groupingBy(
-                Node::getLocalName, Collectors.mapping(Node::getTextContent, Collectors.toList())));
+    CasAttributes.Builder builder = CasAttributes.builder();
+    for (Node attribute : attributes) {
+      builder.add(attribute.getLocalName(), attribute.getTextContent());
+    }
+    return builder.build();
   }
 }
@@ -0,0 +1,109 @@
+package io.github.johnjcool.keycloak.broker.cas.jaxb;
+
+import jakarta.xml.bind.JAXBContext;
+import jakarta.xml.bind.JAXBException;
+import jakarta.xml.bind.Unmarshaller;
+import java.io.InputStream;
+import java.io.Reader;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded pool of {@link Unmarshaller}s sharing one {@link JAXBContext}. Unmarshallers are not
+ * thread-safe, so each parse borrows one exclusively; when the pool is empty a new one is created
+ * instead of waiting, and surplus instances are dropped on release.
+ */
+public final class UnmarshallerPool {
+
+  private static final int DEFAULT_MAX_IDLE =
+      Math.max(8, Runtime.getRuntime().availableProcessors() * 4);
+
+  private final JAXBContext context;
+  private final BlockingQueue<Unmarshaller> idle;
+
+  private final LongAdder created = new LongAdder();
+  private final LongAdder reused = new LongAdder();
+  private final LongAdder discarded = new LongAdder();
+
+  public UnmarshallerPool(final JAXBContext context, final int maxIdle) {
+    if (maxIdle < 1) {
+      throw new IllegalArgumentException("maxIdle must be at least 1 but was " + maxIdle);
+    }
+    this.context = context;
+    this.idle = new ArrayBlockingQueue<>(maxIdle);
+  }
+
+  public static UnmarshallerPool create(final Class<?>... classesToBeBound) {
+    try {
+      return new UnmarshallerPool(JAXBContext.newInstance(classesToBeBound), DEFAULT_MAX_IDLE);
+    } catch (JAXBException e) {
+      throw new IllegalStateException("Unable to create JAXB context", e);
+    }
+  }
+
+  public <T> T unmarshal(final Reader reader, final Class<T> type) throws JAXBException {
+    return unmarshal(unmarshaller -> unmarshaller.unmarshal(reader), type);
+  }
+
+  public <T> T unmarshal(final InputStream in, final Class<T> type) throws JAXBException {
+    return unmarshal(unmarshaller -> unmarshaller.unmarshal(in), type);
+  }
+
+  private <T> T unmarshal(final Unmarshal unmarshal, final Class<T> type) throws JAXBException {
+    Unmarshaller unmarshaller = borrow();
+    boolean clean = false;
+    try {
+      T result = type.cast(unmarshal.apply(unmarshaller));
+      clean = true;
+      return result;
+    } finally {
+      release(unmarshaller, clean);
+    }
+  }
+
+  private Unmarshaller borrow() throws JAXBException {
+    Unmarshaller unmarshaller = idle.poll();
+    if (unmarshaller != null) {
+      reused.increment();
+      return unmarshaller;
+    }
+    created.increment();
+    return context.createUnmarshaller();
+  }
+
+  private void release(final Unmarshaller unmarshaller, final boolean clean) {
+    // an unmarshaller that failed mid-document may keep partial state, so it is not reused
+    if (!clean || !idle.offer(unmarshaller)) {
+      discarded.increment();
+    }
+  }
+
+  public long getCreatedCount() {
+    return created.sum();
+  }
+
+  public long getReusedCount() {
+    return reused.sum();
+  }
+
+  public long getDiscardedCount() {
+    return discarded.sum();
+  }
+
+  public int getIdleCount() {
+    return idle.size();
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        "UnmarshallerPool [idle=%s, created=%s, reused=%s, discarded=%s]",
+        getIdleCount(), getCreatedCount(), getReusedCount(), getDiscardedCount());
+  }
+
+  @FunctionalInterface
+  private interface Unmarshal {
+    Object apply(Unmarshaller unmarshaller) throws JAXBException;
+  }
+}
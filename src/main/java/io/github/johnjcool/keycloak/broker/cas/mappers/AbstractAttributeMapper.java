@@ -1,12 +1,16 @@
 package io.github.johnjcool.keycloak.broker.cas.mappers;
 
 import io.github.johnjcool.keycloak.broker.cas.CasIdentityProvider;
+import io.github.johnjcool.keycloak.broker.cas.metrics.MapperMetrics;
 import java.util.*;
 import org.jboss.logging.Logger;
 import org.keycloak.broker.provider.AbstractIdentityProviderMapper;
 import org.keycloak.broker.provider.BrokeredIdentityContext;
 import org.keycloak.common.util.CollectionUtil;
 import org.keycloak.models.IdentityProviderMapperModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
 
 public abstract class AbstractAttributeMapper extends AbstractIdentityProviderMapper {
 
@@ -20,15 +24,95 @@ public abstract class AbstractAttributeMapper extends AbstractIdentityProviderMa
     @SuppressWarnings("unchecked")
     Map<String, List<String>> userAttributes =
         (Map<String, List<String>>) user.getContextData().get(CasIdentityProvider.USER_ATTRIBUTES);
-    logger.debug("getAttributeValue attributes: " + userAttributes);
+    logger.debugf("getAttributeValue attributes: %s", userAttributes);
     return userAttributes.getOrDefault(
         mapperModel.getConfig().get(ATTRIBUTE), Collections.emptyList());
   }
 
+  /** Names of the CAS attributes this mapper reads, so that the parser can drop all others. */
+  public Collection<String> getReferencedAttributes(final IdentityProviderMapperModel mapperModel) {
+    String attribute = mapperModel.getConfig().get(ATTRIBUTE);
+    return attribute == null || attribute.isEmpty()
+        ? Collections.emptySet()
+        : Collections.singleton(attribute);
+  }
+
   protected boolean hasAttributeValue(
       final IdentityProviderMapperModel mapperModel, final BrokeredIdentityContext context) {
     return CollectionUtil.collectionEquals(
         Collections.singletonList(mapperModel.getConfig().get(ATTRIBUTE_VALUE)),
         getAttributeValue(mapperModel, context));
   }
+
+  // the Keycloak entry points are timed here and the mappers of this package implement the do*
+  // variants. Updates are skipped when the provider found the user's attributes unchanged since the
+  // last login. The entry points stay overridable for existing subclasses, which then bypass both.
+
+  @Override
+  public void preprocessFederatedIdentity(
+      final KeycloakSession session,
+      final RealmModel realm,
+      final IdentityProviderMapperModel mapperModel,
+      final BrokeredIdentityContext context) {
+    long start = System.nanoTime();
+    try {
+      doPreprocessFederatedIdentity(session, realm, mapperModel, context);
+    } finally {
+      MapperMetrics.record(getId(), "preprocessFederatedIdentity", start);
+    }
+  }
+
+  @Override
+  public void importNewUser(
+      final KeycloakSession session,
+      final RealmModel realm,
+      final UserModel user,
+      final IdentityProviderMapperModel mapperModel,
+      final BrokeredIdentityContext context) {
+    long start = System.nanoTime();
+    try {
+      doImportNewUser(session, realm, user, mapperModel, context);
+    } finally {
+      MapperMetrics.record(getId(), "importNewUser", start);
+    }
+  }
+
+  @Override
+  public void updateBrokeredUser(
+      final KeycloakSession session,
+      final RealmModel realm,
+      final UserModel user,
+      final IdentityProviderMapperModel mapperModel,
+      final BrokeredIdentityContext context) {
+    if (Boolean.TRUE.equals(
+        context.getContextData().get(CasIdentityProvider.ATTRIBUTES_UNCHANGED))) {
+      return;
+    }
+    long start = System.nanoTime();
+    try {
+      doUpdateBrokeredUser(session, realm, user, mapperModel, context);
+    } finally {
+      MapperMetrics.record(getId(), "updateBrokeredUser", start);
+    }
+  }
+
+  protected void doPreprocessFederatedIdentity(
+      final KeycloakSession session,
+      final RealmModel realm,
+      final IdentityProviderMapperModel mapperModel,
+      final BrokeredIdentityContext context) {}
+
+  protected void doImportNewUser(
+      final KeycloakSession session,
+      final RealmModel realm,
+      final UserModel user,
+      final IdentityProviderMapperModel mapperModel,
+      final BrokeredIdentityContext context) {}
+
+  protected void doUpdateBrokeredUser(
+      final KeycloakSession session,
+      final RealmModel realm,
+      final UserModel user,
+      final IdentityProviderMapperModel mapperModel,
+      final BrokeredIdentityContext context) {}
 }
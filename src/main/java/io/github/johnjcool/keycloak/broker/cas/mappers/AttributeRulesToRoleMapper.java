@@ -0,0 +1,168 @@
+package io.github.johnjcool.keycloak.broker.cas.mappers;
+
+import io.github.johnjcool.keycloak.broker.cas.CasIdentityProvider;
+import io.github.johnjcool.keycloak.broker.cas.CasIdentityProviderFactory;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import org.keycloak.broker.provider.BrokeredIdentityContext;
+import org.keycloak.broker.provider.IdentityBrokerException;
+import org.keycloak.models.IdentityProviderMapperModel;
+import org.keycloak.models.IdentityProviderSyncMode;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RoleModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.provider.ProviderConfigProperty;
+
+/**
+ * Maps a whole table of attribute rules to roles in one mapper, instead of one {@link
+ * AttributeToRoleMapper} per rule. The roles of the table are managed by this mapper: on every
+ * login the user is granted the roles whose rules match and loses those whose rules no longer do.
+ */
+public class AttributeRulesToRoleMapper extends AbstractAttributeMapper {
+
+  protected static final String[] COMPATIBLE_PROVIDERS = {CasIdentityProviderFactory.PROVIDER_ID};
+
+  public static final String RULES = "rules";
+
+  private static final List<ProviderConfigProperty> configProperties = new ArrayList<>();
+
+  private static final MapperConfigCache<RoleRuleTable> tables =
+      new MapperConfigCache<>(AttributeRulesToRoleMapper::compile, RULES);
+
+  static {
+    ProviderConfigProperty rules = new ProviderConfigProperty();
+    rules.setName(RULES);
+    rules.setLabel("Rules");
+    rules.setHelpText(
+        "Rules as 'attribute=value' or 'attribute~regex', each with the comma separated roles to grant when one of the attribute's values matches. To reference an application role the syntax is appname.approle, i.e. myapp.myrole");
+    rules.setType(ProviderConfigProperty.MAP_TYPE);
+    configProperties.add(rules);
+  }
+
+  public static final String PROVIDER_ID = "cas-role-rules-idp-mapper";
+
+  @Override
+  public List<ProviderConfigProperty> getConfigProperties() {
+    return configProperties;
+  }
+
+  @Override
+  public String getId() {
+    return PROVIDER_ID;
+  }
+
+  @Override
+  public String[] getCompatibleProviders() {
+    return COMPATIBLE_PROVIDERS;
+  }
+
+  @Override
+  public String getDisplayCategory() {
+    return "Role Importer";
+  }
+
+  @Override
+  public String getDisplayType() {
+    return "Attribute Rules to Roles";
+  }
+
+  @Override
+  public boolean supportsSyncMode(final IdentityProviderSyncMode syncMode) {
+    return true;
+  }
+
+  @Override
+  public void postInit(final KeycloakSessionFactory factory) {
+    ResolvedRoleCache.ROLES.register(factory);
+  }
+
+  @Override
+  public Collection<String> getReferencedAttributes(final IdentityProviderMapperModel mapperModel) {
+    return getTable(mapperModel).getAttributes();
+  }
+
+  @Override
+  protected void doImportNewUser(
+      final KeycloakSession session,
+      final RealmModel realm,
+      final UserModel user,
+      final IdentityProviderMapperModel mapperModel,
+      final BrokeredIdentityContext context) {
+    RoleRuleTable table = getTable(mapperModel);
+    String[] roles = table.getRoles();
+    BitSet matched = table.match(getAttributes(context));
+    for (int i = matched.nextSetBit(0); i >= 0; i = matched.nextSetBit(i + 1)) {
+      user.grantRole(getRole(realm, roles[i]));
+    }
+  }
+
+  @Override
+  protected void doUpdateBrokeredUser(
+      final KeycloakSession session,
+      final RealmModel realm,
+      final UserModel user,
+      final IdentityProviderMapperModel mapperModel,
+      final BrokeredIdentityContext context) {
+    RoleRuleTable table = getTable(mapperModel);
+    String[] roles = table.getRoles();
+    if (roles.length == 0) {
+      return;
+    }
+    BitSet matched = table.match(getAttributes(context));
+
+    // only the user's current mappings are walked; the realm is only asked for roles to grant
+    BitSet held = new BitSet(roles.length);
+    for (RoleModel role : user.getRoleMappingsStream().toList()) {
+      int i = table.indexOf(role);
+      if (i >= 0) {
+        if (matched.get(i)) {
+          held.set(i);
+        } else {
+          user.deleteRoleMapping(role);
+        }
+      }
+    }
+
+    matched.andNot(held);
+    for (int i = matched.nextSetBit(0); i >= 0; i = matched.nextSetBit(i + 1)) {
+      user.grantRole(getRole(realm, roles[i]));
+    }
+  }
+
+  private static RoleRuleTable getTable(final IdentityProviderMapperModel mapperModel) {
+    try {
+      return tables.get(mapperModel);
+    } catch (IllegalArgumentException e) {
+      throw new IdentityBrokerException(
+          "Invalid rules in mapper " + mapperModel.getName() + ": " + e.getMessage(), e);
+    }
+  }
+
+  private static RoleRuleTable compile(final IdentityProviderMapperModel mapperModel) {
+    return RoleRuleTable.compile(mapperModel.getConfigMap(RULES));
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Map<String, List<String>> getAttributes(final BrokeredIdentityContext context) {
+    return (Map<String, List<String>>)
+        context.getContextData().get(CasIdentityProvider.USER_ATTRIBUTES);
+  }
+
+  private static RoleModel getRole(final RealmModel realm, final String roleName) {
+    RoleModel role = ResolvedRoleCache.ROLES.getRole(realm, roleName);
+    if (role == null) {
+      throw new IdentityBrokerException("Unable to find role: " + roleName);
+    }
+    return role;
+  }
+
+  @Override
+  public String getHelpText() {
+    return "Grant and revoke realm or application roles from a table of attribute rules.";
+  }
+}
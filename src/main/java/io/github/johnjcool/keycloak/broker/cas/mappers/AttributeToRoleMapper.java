@@ -8,18 +8,29 @@ import org.keycloak.broker.provider.ConfigConstants;
 import org.keycloak.broker.provider.IdentityBrokerException;
 import org.keycloak.models.IdentityProviderMapperModel;
 import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
 import org.keycloak.models.RealmModel;
 import org.keycloak.models.RoleModel;
 import org.keycloak.models.UserModel;
-import org.keycloak.models.utils.KeycloakModelUtils;
 import org.keycloak.provider.ProviderConfigProperty;
 
 public class AttributeToRoleMapper extends AbstractAttributeMapper {
 
   protected static final String[] COMPATIBLE_PROVIDERS = {CasIdentityProviderFactory.PROVIDER_ID};
 
+  public static final String ATTRIBUTE_MATCH = "attribute.match";
+
   private static final List<ProviderConfigProperty> configProperties = new ArrayList<>();
 
+  private static final MapperConfigCache<AttributeValueMatcher> matchers =
+      new MapperConfigCache<>(
+          mapperModel ->
+              AttributeValueMatcher.compile(
+                  mapperModel.getConfig().get(ATTRIBUTE_MATCH),
+                  mapperModel.getConfig().get(ATTRIBUTE_VALUE)),
+          ATTRIBUTE_MATCH,
+          ATTRIBUTE_VALUE);
+
   static {
     ProviderConfigProperty attributeName = new ProviderConfigProperty();
     attributeName.setName(ATTRIBUTE);
@@ -32,10 +43,20 @@ public class AttributeToRoleMapper extends AbstractAttributeMapper {
     attributeValue.setName(ATTRIBUTE_VALUE);
     attributeValue.setLabel("Attribute Value");
     attributeValue.setHelpText(
-        "Value the attribute must have. If the attribute is an array, then the value must be contained in the array.");
+        "Value the attribute must have, interpreted according to the match mode.");
     attributeValue.setType(ProviderConfigProperty.STRING_TYPE);
     configProperties.add(attributeValue);
 
+    ProviderConfigProperty attributeMatch = new ProviderConfigProperty();
+    attributeMatch.setName(ATTRIBUTE_MATCH);
+    attributeMatch.setLabel("Match Mode");
+    attributeMatch.setHelpText(
+        "How the attribute value is matched: 'equals' requires the attribute to have exactly this one value, 'contains' that one of its values equals it, 'regex' that one of its values matches it as a whole, 'glob' the same with * and ? wildcards.");
+    attributeMatch.setType(ProviderConfigProperty.LIST_TYPE);
+    attributeMatch.setOptions(AttributeValueMatcher.MODES);
+    attributeMatch.setDefaultValue(AttributeValueMatcher.EQUALS);
+    configProperties.add(attributeMatch);
+
     ProviderConfigProperty role = new ProviderConfigProperty();
     role.setName(ConfigConstants.ROLE);
     role.setLabel("Role");
@@ -73,15 +94,20 @@ public class AttributeToRoleMapper extends AbstractAttributeMapper {
   }
 
   @Override
-  public void importNewUser(
+  public void postInit(final KeycloakSessionFactory factory) {
+    ResolvedRoleCache.ROLES.register(factory);
+  }
+
+  @Override
+  protected void doImportNewUser(
       final KeycloakSession session,
       final RealmModel realm,
       final UserModel user,
       final IdentityProviderMapperModel mapperModel,
       final BrokeredIdentityContext context) {
     String roleName = mapperModel.getConfig().get(ConfigConstants.ROLE);
-    if (hasAttributeValue(mapperModel, context)) {
-      RoleModel role = KeycloakModelUtils.getRoleFromString(realm, roleName);
+    if (matches(mapperModel, context)) {
+      RoleModel role = ResolvedRoleCache.ROLES.getRole(realm, roleName);
       if (role == null) {
         throw new IdentityBrokerException("Unable to find role: " + roleName);
       }
@@ -90,20 +116,36 @@ public class AttributeToRoleMapper extends AbstractAttributeMapper {
   }
 
   @Override
-  public void updateBrokeredUser(
+  protected void doUpdateBrokeredUser(
       final KeycloakSession session,
       final RealmModel realm,
       final UserModel user,
       final IdentityProviderMapperModel mapperModel,
       final BrokeredIdentityContext context) {
     String roleName = mapperModel.getConfig().get(ConfigConstants.ROLE);
-    if (!hasAttributeValue(mapperModel, context)) {
-      RoleModel role = KeycloakModelUtils.getRoleFromString(realm, roleName);
-      if (role == null) {
+    if (!matches(mapperModel, context)) {
+      // a known role is recognised among the user's mappings by name, without loading it
+      if (!ResolvedRoleCache.ROLES.isResolved(realm, roleName)
+          && ResolvedRoleCache.ROLES.getRole(realm, roleName) == null) {
         throw new IdentityBrokerException("Unable to find role: " + roleName);
       }
-      user.deleteRoleMapping(role);
+      user.getRoleMappingsStream()
+          .filter(role -> ResolvedRoleCache.names(roleName, role))
+          .findFirst()
+          .ifPresent(user::deleteRoleMapping);
+    }
+  }
+
+  private static boolean matches(
+      final IdentityProviderMapperModel mapperModel, final BrokeredIdentityContext context) {
+    AttributeValueMatcher matcher;
+    try {
+      matcher = matchers.get(mapperModel);
+    } catch (IllegalArgumentException e) {
+      throw new IdentityBrokerException(
+          "Invalid match in mapper " + mapperModel.getName() + ": " + e.getMessage(), e);
     }
+    return matcher.matches(getAttributeValue(mapperModel, context));
   }
 
   @Override
@@ -0,0 +1,148 @@
+package io.github.johnjcool.keycloak.broker.cas.mappers;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Decides whether an attribute's values match a configured value. Matchers are compiled once per
+ * mapper config and do not allocate while matching, however many values a user has.
+ */
+abstract class AttributeValueMatcher {
+
+  static final String EQUALS = "equals";
+  static final String CONTAINS = "contains";
+  static final String REGEX = "regex";
+  static final String GLOB = "glob";
+
+  static final List<String> MODES = List.of(EQUALS, CONTAINS, REGEX, GLOB);
+
+  abstract boolean matches(List<String> values);
+
+  static AttributeValueMatcher compile(final String mode, final String value) {
+    String matchMode = mode == null || mode.isEmpty() ? EQUALS : mode.toLowerCase(Locale.ROOT);
+    return switch (matchMode) {
+      case EQUALS -> new Equals(value);
+      case CONTAINS -> new Contains(value);
+      case REGEX -> new Regex(pattern(value));
+      case GLOB -> new Glob(Objects.requireNonNullElse(value, ""));
+      default -> throw new IllegalArgumentException("Unknown match mode '" + mode + "'");
+    };
+  }
+
+  private static Pattern pattern(final String regex) {
+    try {
+      return Pattern.compile(Objects.requireNonNullElse(regex, ""));
+    } catch (PatternSyntaxException e) {
+      throw new IllegalArgumentException("Invalid pattern '" + regex + "'", e);
+    }
+  }
+
+  /** The attribute has exactly the one value, as the mapper has always required. */
+  private static final class Equals extends AttributeValueMatcher {
+    private final String value;
+
+    Equals(final String value) {
+      this.value = value;
+    }
+
+    @Override
+    boolean matches(final List<String> values) {
+      return values.size() == 1 && Objects.equals(value, values.getFirst());
+    }
+  }
+
+  private static final class Contains extends AttributeValueMatcher {
+    private final String value;
+
+    Contains(final String value) {
+      this.value = value;
+    }
+
+    @Override
+    boolean matches(final List<String> values) {
+      for (int i = 0, size = values.size(); i < size; i++) {
+        if (Objects.equals(value, values.get(i))) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  /** Some value matches the pattern as a whole. */
+  private static final class Regex extends AttributeValueMatcher {
+    // a Matcher is not thread-safe but can be reset for every value
+    private final ThreadLocal<Matcher> matcher;
+
+    Regex(final Pattern pattern) {
+      this.matcher = ThreadLocal.withInitial(() -> pattern.matcher(""));
+    }
+
+    @Override
+    boolean matches(final List<String> values) {
+      Matcher m = matcher.get();
+      try {
+        for (int i = 0, size = values.size(); i < size; i++) {
+          if (m.reset(values.get(i)).matches()) {
+            return true;
+          }
+        }
+        return false;
+      } finally {
+        // do not keep the last value reachable from the thread
+        m.reset("");
+      }
+    }
+  }
+
+  /** Some value matches a pattern where {@code *} stands for any run and {@code ?} for any char. */
+  private static final class Glob extends AttributeValueMatcher {
+    private final String glob;
+
+    Glob(final String glob) {
+      this.glob = glob;
+    }
+
+    @Override
+    boolean matches(final List<String> values) {
+      for (int i = 0, size = values.size(); i < size; i++) {
+        String value = values.get(i);
+        if (value != null && matches(value)) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    // linear wildcard matching: on a mismatch, retry from the last star one char further on
+    private boolean matches(final String value) {
+      int g = 0;
+      int v = 0;
+      int star = -1;
+      int retry = 0;
+      while (v < value.length()) {
+        char c = g < glob.length() ? glob.charAt(g) : 0;
+        if (c == '*') {
+          star = g++;
+          retry = v;
+        } else if (g < glob.length() && (c == '?' || c == value.charAt(v))) {
+          g++;
+          v++;
+        } else if (star >= 0) {
+          g = star + 1;
+          v = ++retry;
+        } else {
+          return false;
+        }
+      }
+      while (g < glob.length() && glob.charAt(g) == '*') {
+        g++;
+      }
+      return g == glob.length();
+    }
+  }
+}
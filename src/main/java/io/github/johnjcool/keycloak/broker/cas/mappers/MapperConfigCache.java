@@ -0,0 +1,73 @@
+package io.github.johnjcool.keycloak.broker.cas.mappers;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+import org.keycloak.models.IdentityProviderMapperModel;
+
+/**
+ * Keeps what a mapper compiles from some of its config values, keyed by mapper id. An entry is
+ * reused for as long as the raw config values are unchanged, so an edit in the admin console takes
+ * effect on the next login without any invalidation hook.
+ */
+final class MapperConfigCache<T> {
+
+  // mappers are rarely deleted; this only guards against unbounded growth from churn
+  private static final int MAX_ENTRIES = 4096;
+
+  private final String[] configKeys;
+  private final Function<IdentityProviderMapperModel, T> compiler;
+  private final ConcurrentMap<String, Entry<T>> entries = new ConcurrentHashMap<>();
+
+  MapperConfigCache(
+      final Function<IdentityProviderMapperModel, T> compiler, final String... configKeys) {
+    this.configKeys = configKeys;
+    this.compiler = compiler;
+  }
+
+  T get(final IdentityProviderMapperModel mapperModel) {
+    Map<String, String> config = mapperModel.getConfig();
+    String id = mapperModel.getId();
+    if (id == null) {
+      // unsaved mappers, as in tests, are keyed by their config
+      id = Arrays.toString(sources(config));
+    }
+    Entry<T> entry = entries.get(id);
+    if (entry != null && entry.isFor(config, configKeys)) {
+      return entry.value;
+    }
+    if (entries.size() >= MAX_ENTRIES) {
+      entries.clear();
+    }
+    entry = new Entry<>(sources(config), compiler.apply(mapperModel));
+    entries.put(id, entry);
+    return entry.value;
+  }
+
+  private String[] sources(final Map<String, String> config) {
+    String[] sources = new String[configKeys.length];
+    for (int i = 0; i < configKeys.length; i++) {
+      sources[i] = config.get(configKeys[i]);
+    }
+    return sources;
+  }
+
+  int size() {
+    return entries.size();
+  }
+
+  private record Entry<T>(String[] sources, T value) {
+
+    boolean isFor(final Map<String, String> config, final String[] configKeys) {
+      for (int i = 0; i < configKeys.length; i++) {
+        if (!Objects.equals(sources[i], config.get(configKeys[i]))) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+}
@@ -0,0 +1,142 @@
+package io.github.johnjcool.keycloak.broker.cas.mappers;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RoleContainerModel;
+import org.keycloak.models.RoleModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.provider.ProviderEvent;
+import org.keycloak.provider.ProviderEventListener;
+
+/**
+ * Role strings from mapper configs ({@code role} or {@code clientId.role}) resolved to role ids per
+ * realm. Role models are bound to the session that loaded them, so only ids are kept; a role to be
+ * granted is fetched by id from the realm cache instead of parsing the string and looking up client
+ * and role by name. Roles a user already holds are recognised by {@link #names(String, RoleModel)}
+ * without any lookup at all.
+ *
+ * <p>Entries are dropped on role, client and realm removal, on role renames and on client updates.
+ * An id the realm no longer finds, as after a removal on another node, is resolved again.
+ */
+final class ResolvedRoleCache implements ProviderEventListener {
+
+  static final ResolvedRoleCache ROLES = new ResolvedRoleCache();
+
+  // realm id -> role string -> resolved role
+  private final ConcurrentMap<String, ConcurrentMap<String, Resolved>> realms =
+      new ConcurrentHashMap<>();
+  private final AtomicBoolean registered = new AtomicBoolean();
+
+  private ResolvedRoleCache() {}
+
+  /** Registers the invalidation listener; every role mapper calls this, only the first counts. */
+  void register(final KeycloakSessionFactory factory) {
+    if (registered.compareAndSet(false, true)) {
+      factory.register(this);
+    }
+  }
+
+  /** The role a role string names, or null when the realm has no such role. */
+  RoleModel getRole(final RealmModel realm, final String roleString) {
+    ConcurrentMap<String, Resolved> roles = roles(realm);
+    Resolved resolved = roles.get(roleString);
+    if (resolved != null) {
+      RoleModel role = realm.getRoleById(resolved.id);
+      if (role != null) {
+        return role;
+      }
+      roles.remove(roleString, resolved);
+    }
+    return resolve(realm, roleString);
+  }
+
+  /** Whether the role string was resolved to a role of the realm before. */
+  boolean isResolved(final RealmModel realm, final String roleString) {
+    return roles(realm).containsKey(roleString);
+  }
+
+  /**
+   * Whether a role string names the given role, compared by name and client id. The client is only
+   * loaded for a client role whose name fits the string.
+   */
+  static boolean names(final String roleString, final RoleModel role) {
+    String name = role.getName();
+    if (!roleString.endsWith(name)) {
+      return false;
+    }
+    if (!role.isClientRole()) {
+      return roleString.length() == name.length();
+    }
+    int dot = roleString.length() - name.length() - 1;
+    if (dot <= 0 || roleString.charAt(dot) != '.') {
+      return false;
+    }
+    String clientId = getClientId(role);
+    return clientId != null
+        && clientId.length() == dot
+        && roleString.regionMatches(0, clientId, 0, dot);
+  }
+
+  /** The role string naming a role: {@code role}, or {@code clientId.role} for client roles. */
+  static String toRoleString(final RoleModel role) {
+    String clientId = getClientId(role);
+    return clientId == null ? role.getName() : clientId + "." + role.getName();
+  }
+
+  private RoleModel resolve(final RealmModel realm, final String roleString) {
+    ConcurrentMap<String, Resolved> roles = roles(realm);
+    RoleModel role = KeycloakModelUtils.getRoleFromString(realm, roleString);
+    if (role == null) {
+      roles.remove(roleString);
+    } else {
+      roles.put(roleString, new Resolved(role.getId(), role.getName(), role.getContainerId()));
+    }
+    return role;
+  }
+
+  private static String getClientId(final RoleModel role) {
+    return role.isClientRole() && role.getContainer() instanceof ClientModel client
+        ? client.getClientId()
+        : null;
+  }
+
+  private ConcurrentMap<String, Resolved> roles(final RealmModel realm) {
+    return realms.computeIfAbsent(realm.getId(), id -> new ConcurrentHashMap<>());
+  }
+
+  @Override
+  public void onEvent(final ProviderEvent event) {
+    if (event instanceof RoleContainerModel.RoleRemovedEvent removed) {
+      String id = removed.getRole().getId();
+      realms.values().forEach(roles -> roles.values().removeIf(role -> role.id.equals(id)));
+    } else if (event instanceof RoleModel.RoleNameChangeEvent renamed) {
+      Map<String, Resolved> roles = realms.get(renamed.getRealm().getId());
+      if (roles != null) {
+        roles.values().removeIf(role -> role.name.equals(renamed.getPreviousName()));
+      }
+    } else if (event instanceof ClientModel.ClientRemovedEvent removed) {
+      Map<String, Resolved> roles = realms.get(removed.getClient().getRealm().getId());
+      if (roles != null) {
+        String clientId = removed.getClient().getId();
+        roles.values().removeIf(role -> role.containerId.equals(clientId));
+      }
+    } else if (event instanceof ClientModel.ClientUpdatedEvent updated) {
+      // a changed clientId changes which roles the client's role strings name
+      ClientModel client = updated.getUpdatedClient();
+      Map<String, Resolved> roles = realms.get(client.getRealm().getId());
+      if (roles != null) {
+        String clientId = client.getId();
+        roles.values().removeIf(role -> role.containerId.equals(clientId));
+      }
+    } else if (event instanceof RealmModel.RealmRemovedEvent removed) {
+      realms.remove(removed.getRealm().getId());
+    }
+  }
+
+  private record Resolved(String id, String name, String containerId) {}
+}
@@ -0,0 +1,176 @@
+package io.github.johnjcool.keycloak.broker.cas.mappers;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import org.keycloak.models.RoleModel;
+
+/**
+ * A compiled attribute-to-role rule table. Exact rules are indexed by attribute and value, so a
+ * user is matched against the whole table with one hash lookup per attribute value; pattern rules
+ * are only tried against the values of their own attribute.
+ *
+ * <p>Rules are written as {@code attribute=value} or {@code attribute~regex}, each mapping to one
+ * or more comma separated roles in the {@code clientId.role} syntax of Keycloak's role mappers.
+ */
+final class RoleRuleTable {
+
+  static final RoleRuleTable EMPTY = new RoleRuleTable(Map.of(), Map.of(), new String[0]);
+
+  private final Map<String, Map<String, BitSet>> exact;
+  private final Map<String, List<PatternRule>> patterns;
+  private final String[] roles;
+  private final Set<String> attributes;
+  // role string -> index into roles, and every role name a role string may end in
+  private final Map<String, Integer> roleIndexes;
+  private final Set<String> roleNames;
+
+  private RoleRuleTable(
+      final Map<String, Map<String, BitSet>> exact,
+      final Map<String, List<PatternRule>> patterns,
+      final String[] roles) {
+    this.exact = exact;
+    this.patterns = patterns;
+    this.roles = roles;
+    Set<String> names = new HashSet<>(exact.keySet());
+    names.addAll(patterns.keySet());
+    this.attributes = Collections.unmodifiableSet(names);
+    this.roleIndexes = new HashMap<>();
+    this.roleNames = new HashSet<>();
+    for (int i = 0; i < roles.length; i++) {
+      String role = roles[i];
+      roleIndexes.put(role, i);
+      roleNames.add(role);
+      // "a.b.c" is the role "c" of client "a.b", "b.c" of client "a" or the realm role "a.b.c"
+      for (int dot = role.indexOf('.'); dot >= 0; dot = role.indexOf('.', dot + 1)) {
+        roleNames.add(role.substring(dot + 1));
+      }
+    }
+  }
+
+  static RoleRuleTable compile(final Map<String, List<String>> rules) {
+    if (rules == null || rules.isEmpty()) {
+      return EMPTY;
+    }
+    Map<String, Integer> roleIndexes = new LinkedHashMap<>();
+    Map<String, Map<String, BitSet>> exact = new HashMap<>();
+    Map<String, List<PatternRule>> patterns = new HashMap<>();
+    rules.forEach(
+        (rule, values) -> {
+          BitSet granted = new BitSet();
+          for (String value : values) {
+            for (String role : value.split(",")) {
+              if (!role.isBlank()) {
+                granted.set(roleIndexes.computeIfAbsent(role.trim(), r -> roleIndexes.size()));
+              }
+            }
+          }
+          if (granted.isEmpty()) {
+            return;
+          }
+          int separator = separatorIndex(rule);
+          String attribute = rule.substring(0, separator).trim();
+          String match = rule.substring(separator + 1);
+          if (rule.charAt(separator) == '=') {
+            exact
+                .computeIfAbsent(attribute, a -> new HashMap<>())
+                .computeIfAbsent(match, m -> new BitSet())
+                .or(granted);
+          } else {
+            patterns
+                .computeIfAbsent(attribute, a -> new ArrayList<>())
+                .add(new PatternRule(compilePattern(rule, match), granted));
+          }
+        });
+    return new RoleRuleTable(exact, patterns, roleIndexes.keySet().toArray(new String[0]));
+  }
+
+  private static int separatorIndex(final String rule) {
+    for (int i = 1; i < rule.length(); i++) {
+      char c = rule.charAt(i);
+      if (c == '=' || c == '~') {
+        return i;
+      }
+    }
+    throw new IllegalArgumentException(
+        "Rule '" + rule + "' must be written as attribute=value or attribute~regex");
+  }
+
+  private static Pattern compilePattern(final String rule, final String regex) {
+    try {
+      return Pattern.compile(regex);
+    } catch (PatternSyntaxException e) {
+      throw new IllegalArgumentException("Rule '" + rule + "' has an invalid pattern", e);
+    }
+  }
+
+  /** Indexes into {@link #getRoles()} of the roles the given attributes are entitled to. */
+  BitSet match(final Map<String, List<String>> attributes) {
+    BitSet matched = new BitSet(roles.length);
+    if (attributes == null) {
+      return matched;
+    }
+    exact.forEach(
+        (attribute, byValue) -> {
+          List<String> values = attributes.get(attribute);
+          if (values != null) {
+            for (String value : values) {
+              BitSet granted = byValue.get(value);
+              if (granted != null) {
+                matched.or(granted);
+              }
+            }
+          }
+        });
+    patterns.forEach(
+        (attribute, rules) -> {
+          List<String> values = attributes.get(attribute);
+          if (values != null) {
+            for (PatternRule rule : rules) {
+              // one matcher per rule, reset for every value
+              Matcher matcher = rule.pattern.matcher("");
+              for (String value : values) {
+                if (matcher.reset(value).matches()) {
+                  matched.or(rule.granted);
+                  break;
+                }
+              }
+            }
+          }
+        });
+    return matched;
+  }
+
+  /** Every role the table can grant, and so every role it manages. */
+  String[] getRoles() {
+    return roles;
+  }
+
+  Set<String> getAttributes() {
+    return attributes;
+  }
+
+  /**
+   * Index into {@link #getRoles()} of a role a user holds, or -1 when the table does not manage it.
+   * Roles are recognised by name and client id, so none of the table's roles is looked up; the
+   * client is only loaded for client roles whose name occurs in the table.
+   */
+  int indexOf(final RoleModel role) {
+    if (!roleNames.contains(role.getName())) {
+      return -1;
+    }
+    Integer index = roleIndexes.get(ResolvedRoleCache.toRoleString(role));
+    return index == null ? -1 : index;
+  }
+
+  private record PatternRule(Pattern pattern, BitSet granted) {}
+}
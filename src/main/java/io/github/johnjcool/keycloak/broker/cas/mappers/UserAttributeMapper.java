@@ -1,12 +1,19 @@
 package io.github.johnjcool.keycloak.broker.cas.mappers;
 
+import io.github.johnjcool.keycloak.broker.cas.CasIdentityProvider;
 import io.github.johnjcool.keycloak.broker.cas.CasIdentityProviderFactory;
+import io.github.johnjcool.keycloak.broker.cas.metrics.MapperMetrics;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
 import org.jboss.logging.Logger;
 import org.keycloak.broker.provider.BrokeredIdentityContext;
+import org.keycloak.broker.provider.IdentityBrokerException;
+import org.keycloak.broker.provider.IdentityProviderMapperSyncModeDelegate;
 import org.keycloak.common.util.CollectionUtil;
 import org.keycloak.models.*;
 import org.keycloak.provider.ProviderConfigProperty;
@@ -22,6 +29,16 @@ public class UserAttributeMapper extends AbstractAttributeMapper {
   private static final String EMAIL = "email";
   private static final String FIRST_NAME = "firstName";
   private static final String LAST_NAME = "lastName";
+  private static final String TRANSFORMATIONS = "transformations";
+
+  private static final MapperConfigCache<ValueTransformation> transformations =
+      new MapperConfigCache<>(
+          mapperModel -> ValueTransformation.compile(mapperModel.getConfig().get(TRANSFORMATIONS)),
+          TRANSFORMATIONS);
+
+  // mappers that never write user attributes, so the importers may run before them
+  private static final Set<String> ORDER_NEUTRAL_MAPPERS =
+      Set.of(AttributeToRoleMapper.PROVIDER_ID, AttributeRulesToRoleMapper.PROVIDER_ID);
 
   protected static final Logger logger = Logger.getLogger(UserAttributeMapper.class);
 
@@ -37,9 +54,19 @@ public class UserAttributeMapper extends AbstractAttributeMapper {
     keycloakAttributeName.setName(USER_ATTRIBUTE);
     keycloakAttributeName.setLabel("User Attribute Name");
     keycloakAttributeName.setHelpText(
-        "User attribute name to store CAS attribute. Use email, lastName, and firstName to map to those predefined user properties.");
+        "User attribute name to store CAS attribute. Use email, lastName, and firstName to map to those predefined user properties. Names starting with '"
+            + CasIdentityProvider.ATTRIBUTE_DIGEST_PREFIX
+            + "' are reserved.");
     keycloakAttributeName.setType(ProviderConfigProperty.STRING_TYPE);
     configProperties.add(keycloakAttributeName);
+
+    ProviderConfigProperty transformation = new ProviderConfigProperty();
+    transformation.setName(TRANSFORMATIONS);
+    transformation.setLabel("Transformations");
+    transformation.setHelpText(
+        "Optional steps applied to the values, one per line: 'split <delimiter>', 'extract <regex>' (first match or first group), 'filter <regex>', 'reject <regex>', 'lower', 'upper', 'trim', 'distinct' and 'limit <n>'.");
+    transformation.setType(ProviderConfigProperty.TEXT_TYPE);
+    configProperties.add(transformation);
   }
 
   public static final String PROVIDER_ID = "cas-user-attribute-idp-mapper";
@@ -70,12 +97,12 @@ public class UserAttributeMapper extends AbstractAttributeMapper {
   }
 
   @Override
-  public void preprocessFederatedIdentity(
+  protected void doPreprocessFederatedIdentity(
       final KeycloakSession session,
       final RealmModel realm,
       final IdentityProviderMapperModel mapperModel,
       final BrokeredIdentityContext context) {
-    String attribute = mapperModel.getConfig().get(USER_ATTRIBUTE);
+    String attribute = getUserAttribute(mapperModel);
     if (attribute == null || attribute.isEmpty()) {
       logger.debug("preprocessFederatedIdentity called with empty attribute");
       return;
@@ -83,7 +110,7 @@ public class UserAttributeMapper extends AbstractAttributeMapper {
 
     logger.debug("preprocessFederatedIdentity called with attribute " + attribute);
 
-    List<String> value = getAttributeValue(mapperModel, context);
+    List<String> value = getValues(mapperModel, context);
 
     logger.debug("Values: " + value);
 
@@ -104,21 +131,132 @@ public class UserAttributeMapper extends AbstractAttributeMapper {
     }
   }
 
+  /**
+   * Applies every CAS attribute importer of a provider at once: the values they would write are
+   * collected first, diffed against one read of the user's attributes, and only the net changes are
+   * written. When several importers target the same user attribute, the last one wins, as it would
+   * when run one by one. Importers whose sync mode is import only are left out.
+   *
+   * <p>This runs before the mapper chain, so it only takes over when the other mappers of the
+   * provider cannot write user attributes; otherwise, e.g. next to a hardcoded attribute mapper,
+   * the importers are left to run one by one in their configured order.
+   */
+  public static void applyAll(
+      final UserModel user,
+      final List<IdentityProviderMapperModel> mappers,
+      final BrokeredIdentityContext context) {
+    for (IdentityProviderMapperModel mapperModel : mappers) {
+      String mapper = mapperModel.getIdentityProviderMapper();
+      if (!PROVIDER_ID.equals(mapper) && !ORDER_NEUTRAL_MAPPERS.contains(mapper)) {
+        return;
+      }
+    }
+    long start = System.nanoTime();
+    IdentityProviderSyncMode idpSyncMode = context.getIdpConfig().getSyncMode();
+    Map<String, List<String>> attributes = new LinkedHashMap<>();
+    String email = null;
+    String firstName = null;
+    String lastName = null;
+    for (IdentityProviderMapperModel mapperModel : mappers) {
+      String attribute = getUserAttribute(mapperModel);
+      if (!PROVIDER_ID.equals(mapperModel.getIdentityProviderMapper())
+          || attribute == null
+          || attribute.isEmpty()
+          || IdentityProviderMapperSyncModeDelegate.combineIdpAndMapperSyncMode(
+                  idpSyncMode, mapperModel.getSyncMode())
+              == IdentityProviderSyncMode.IMPORT) {
+        continue;
+      }
+      List<String> value = getValues(mapperModel, context);
+      if (EMAIL.equalsIgnoreCase(attribute)) {
+        email = firstNonEmpty(value, email);
+      } else if (FIRST_NAME.equalsIgnoreCase(attribute)) {
+        firstName = firstNonEmpty(value, firstName);
+      } else if (LAST_NAME.equalsIgnoreCase(attribute)) {
+        lastName = firstNonEmpty(value, lastName);
+      } else {
+        attributes.remove(attribute);
+        attributes.put(attribute, value);
+      }
+    }
+
+    if (email != null && !email.equals(user.getEmail())) {
+      user.setEmail(email);
+    }
+    if (firstName != null && !firstName.equals(user.getFirstName())) {
+      user.setFirstName(firstName);
+    }
+    if (lastName != null && !lastName.equals(user.getLastName())) {
+      user.setLastName(lastName);
+    }
+    if (!attributes.isEmpty()) {
+      Map<String, List<String>> current = user.getAttributes();
+      attributes.forEach(
+          (attribute, value) -> {
+            List<String> stored = current.get(attribute);
+            if (value.isEmpty()) {
+              if (stored != null && !stored.isEmpty()) {
+                user.removeAttribute(attribute);
+              }
+            } else if (stored == null || !CollectionUtil.collectionEquals(value, stored)) {
+              user.setAttribute(attribute, value);
+            }
+          });
+    }
+    context.getContextData().put(CasIdentityProvider.USER_ATTRIBUTES_APPLIED, Boolean.TRUE);
+    MapperMetrics.record(PROVIDER_ID, "updateBrokeredUserBatch", start);
+  }
+
+  // the provider keeps its sync state in user attributes, which importers must not replace
+  private static String getUserAttribute(final IdentityProviderMapperModel mapperModel) {
+    String attribute = mapperModel.getConfig().get(USER_ATTRIBUTE);
+    if (attribute != null && attribute.startsWith(CasIdentityProvider.ATTRIBUTE_DIGEST_PREFIX)) {
+      logger.warnf(
+          "Mapper %s targets the reserved attribute %s, ignoring it",
+          mapperModel.getName(), attribute);
+      return null;
+    }
+    return attribute;
+  }
+
+  private static List<String> getValues(
+      final IdentityProviderMapperModel mapperModel, final BrokeredIdentityContext context) {
+    ValueTransformation transformation;
+    try {
+      transformation = transformations.get(mapperModel);
+    } catch (IllegalArgumentException e) {
+      throw new IdentityBrokerException(
+          "Invalid transformations in mapper " + mapperModel.getName() + ": " + e.getMessage(), e);
+    }
+    return transformation.apply(getAttributeValue(mapperModel, context));
+  }
+
+  private static String firstNonEmpty(final List<String> values, final String fallback) {
+    return values != null && !values.isEmpty() && !values.getFirst().isEmpty()
+        ? values.getFirst()
+        : fallback;
+  }
+
   @Override
-  public void updateBrokeredUser(
+  protected void doUpdateBrokeredUser(
       final KeycloakSession session,
       final RealmModel realm,
       final UserModel user,
       final IdentityProviderMapperModel mapperModel,
       final BrokeredIdentityContext context) {
-    String attribute = mapperModel.getConfig().get(USER_ATTRIBUTE);
+    if (Boolean.TRUE.equals(
+        context.getContextData().get(CasIdentityProvider.USER_ATTRIBUTES_APPLIED))) {
+      // the provider already applied all importers in one batch
+      return;
+    }
+    String attribute = getUserAttribute(mapperModel);
     if (attribute == null || attribute.isEmpty()) {
       logger.debug("updateBrokeredUser called with empty attribute");
       return;
     }
     logger.debug("updateBrokeredUser called with attribute " + attribute);
 
-    List<String> value = getAttributeValue(mapperModel, context);
+    List<String> value = getValues(mapperModel, context);
 
     logger.debug("Values: " + value);
 
@@ -0,0 +1,159 @@
+package io.github.johnjcool.keycloak.broker.cas.mappers;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.UnaryOperator;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * A chain of steps applied to an attribute's values while they are copied, compiled once from the
+ * mapper config. The spec has one step per line:
+ *
+ * <ul>
+ *   <li>{@code split <delimiter>} splits every value at a literal delimiter
+ *   <li>{@code extract <regex>} replaces every value by its first match, or the match's first group
+ *       if the pattern has one, and drops values that do not match
+ *   <li>{@code filter <regex>} keeps the values containing a match, {@code reject <regex>} drops
+ *       them
+ *   <li>{@code lower}, {@code upper} and {@code trim} change every value
+ *   <li>{@code distinct} drops repeated values, {@code limit <n>} all but the first n
+ * </ul>
+ *
+ * <p>For example {@code extract (?i)^cn=([^,]+)} followed by {@code lower} turns group DNs into
+ * lowercase group names.
+ */
+final class ValueTransformation {
+
+  static final ValueTransformation IDENTITY = new ValueTransformation(new Step[0]);
+
+  private final Step[] steps;
+
+  private ValueTransformation(final Step[] steps) {
+    this.steps = steps;
+  }
+
+  static ValueTransformation compile(final String spec) {
+    if (spec == null || spec.isBlank()) {
+      return IDENTITY;
+    }
+    List<Step> steps = new ArrayList<>();
+    for (String line : spec.split("\\R")) {
+      String step = line.strip();
+      if (!step.isEmpty()) {
+        steps.add(compileStep(step));
+      }
+    }
+    return steps.isEmpty() ? IDENTITY : new ValueTransformation(steps.toArray(new Step[0]));
+  }
+
+  private static Step compileStep(final String step) {
+    int space = step.indexOf(' ');
+    String name = (space < 0 ? step : step.substring(0, space)).toLowerCase(Locale.ROOT);
+    String argument = space < 0 ? "" : step.substring(space + 1).strip();
+    return switch (name) {
+      case "split" -> split(requireArgument(step, argument));
+      case "extract" -> extract(pattern(step, argument));
+      case "filter" -> filter(pattern(step, argument), true);
+      case "reject" -> filter(pattern(step, argument), false);
+      case "lower" -> map(value -> value.toLowerCase(Locale.ROOT));
+      case "upper" -> map(value -> value.toUpperCase(Locale.ROOT));
+      case "trim" -> map(String::strip);
+      case "distinct" -> (in, out) -> out.addAll(new LinkedHashSet<>(in));
+      case "limit" -> limit(step, argument);
+      default -> throw new IllegalArgumentException("Unknown transformation step '" + step + "'");
+    };
+  }
+
+  private static Step split(final String delimiter) {
+    Pattern pattern = Pattern.compile(Pattern.quote(delimiter));
+    return (in, out) -> {
+      for (String value : in) {
+        for (String part : pattern.split(value)) {
+          if (!part.isEmpty()) {
+            out.add(part);
+          }
+        }
+      }
+    };
+  }
+
+  private static Step extract(final Pattern pattern) {
+    return (in, out) -> {
+      Matcher matcher = pattern.matcher("");
+      for (String value : in) {
+        if (matcher.reset(value).find()) {
+          out.add(matcher.groupCount() > 0 ? matcher.group(1) : matcher.group());
+        }
+      }
+    };
+  }
+
+  private static Step filter(final Pattern pattern, final boolean keep) {
+    return (in, out) -> {
+      Matcher matcher = pattern.matcher("");
+      for (String value : in) {
+        if (matcher.reset(value).find() == keep) {
+          out.add(value);
+        }
+      }
+    };
+  }
+
+  private static Step map(final UnaryOperator<String> function) {
+    return (in, out) -> {
+      for (String value : in) {
+        out.add(function.apply(value));
+      }
+    };
+  }
+
+  private static Step limit(final String step, final String argument) {
+    int limit;
+    try {
+      limit = Integer.parseInt(requireArgument(step, argument));
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Step '" + step + "' needs a number", e);
+    }
+    if (limit < 0) {
+      throw new IllegalArgumentException("Step '" + step + "' needs a positive number");
+    }
+    return (in, out) -> out.addAll(in.subList(0, Math.min(limit, in.size())));
+  }
+
+  private static Pattern pattern(final String step, final String regex) {
+    try {
+      return Pattern.compile(requireArgument(step, regex));
+    } catch (PatternSyntaxException e) {
+      throw new IllegalArgumentException("Step '" + step + "' has an invalid pattern", e);
+    }
+  }
+
+  private static String requireArgument(final String step, final String argument) {
+    if (argument.isEmpty()) {
+      throw new IllegalArgumentException("Step '" + step + "' needs an argument");
+    }
+    return argument;
+  }
+
+  List<String> apply(final List<String> values) {
+    if (steps.length == 0 || values.isEmpty()) {
+      return values;
+    }
+    List<String> in = values;
+    for (Step step : steps) {
+      List<String> out = new ArrayList<>(Math.max(in.size(), 4));
+      step.apply(in, out);
+      in = out;
+    }
+    return in;
+  }
+
+  @FunctionalInterface
+  private interface Step {
+    void apply(List<String> in, List<String> out);
+  }
+}
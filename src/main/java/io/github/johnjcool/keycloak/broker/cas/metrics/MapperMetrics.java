@@ -0,0 +1,37 @@
+package io.github.johnjcool.keycloak.broker.cas.metrics;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Execution time of the CAS mappers by mapper id and phase. Mappers are created by Keycloak without
+ * access to the identity provider factory, so they record into the global registry, which is the
+ * one Keycloak exposes on its metrics endpoint.
+ */
+public final class MapperMetrics {
+
+  private static final MeterRegistry registry = Metrics.globalRegistry;
+  private static final Map<String, Timer> timers = new ConcurrentHashMap<>();
+
+  private MapperMetrics() {
+    // util
+  }
+
+  public static void record(final String mapperId, final String phase, final long startNanos) {
+    long nanos = System.nanoTime() - startNanos;
+    timers
+        .computeIfAbsent(
+            mapperId + '/' + phase,
+            k ->
+                Timer.builder("cas.mapper")
+                    .description("Execution time of CAS identity provider mappers")
+                    .tag("mapper", mapperId)
+                    .tag("phase", phase)
+                    .register(registry))
+        .record(nanos, TimeUnit.NANOSECONDS);
+  }
+}
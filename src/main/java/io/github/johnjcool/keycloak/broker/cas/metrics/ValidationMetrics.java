@@ -0,0 +1,233 @@
+package io.github.johnjcool.keycloak.broker.cas.metrics;
+
+import io.github.johnjcool.keycloak.broker.cas.http.CasHttpClient;
+import io.github.johnjcool.keycloak.broker.cas.jaxb.UnmarshallerPool;
+import io.github.johnjcool.keycloak.broker.cas.model.Code;
+import io.github.johnjcool.keycloak.broker.cas.validation.Bulkhead;
+import io.github.johnjcool.keycloak.broker.cas.validation.CircuitBreaker;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import java.io.Closeable;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Meters of the ticket validation of one identity provider, tagged with its alias. They are removed
+ * from the registry on {@link #close()} so that a reconfigured or deleted provider does not leave
+ * stale series behind. Once closed nothing is recorded any more, as the meters of the same alias
+ * belong to the service that replaced this one.
+ */
+public final class ValidationMetrics implements Closeable {
+
+  public static final String OUTCOME_SUCCESS = "success";
+  public static final String OUTCOME_REJECTED = "rejected";
+  public static final String OUTCOME_ERROR = "error";
+  public static final String OUTCOME_UNAVAILABLE = "unavailable";
+
+  private static final String TAG_IDP = "idp";
+  private static final String UNKNOWN_CODE = "UNKNOWN";
+
+  private final MeterRegistry registry;
+  private final Tags tags;
+  private final List<Meter> meters = new CopyOnWriteArrayList<>();
+  private final Map<String, Timer> validations = new ConcurrentHashMap<>();
+  private final Map<String, Counter> failures = new ConcurrentHashMap<>();
+  private final Map<Integer, Counter> httpErrors = new ConcurrentHashMap<>();
+  private final Map<String, Timer> parses = new ConcurrentHashMap<>();
+  private final DistributionSummary attributes;
+  private volatile boolean closed;
+
+  public ValidationMetrics(final MeterRegistry registry, final String alias) {
+    this.registry = registry;
+    this.tags = Tags.of(TAG_IDP, alias);
+    this.attributes =
+        register(
+            DistributionSummary.builder("cas.validation.attributes")
+                .description("Attribute values released by CAS per successful validation")
+                .baseUnit("values")
+                .tags(tags)
+                .publishPercentileHistogram()
+                .register(registry));
+  }
+
+  /** Time of a whole validation, including failover and hedging, by outcome. */
+  public void recordValidation(final String outcome, final long nanos) {
+    if (closed) {
+      return;
+    }
+    validations
+        .computeIfAbsent(
+            outcome,
+            o ->
+                register(
+                    Timer.builder("cas.validation")
+                        .description("CAS service ticket validation")
+                        .tags(tags)
+                        .tag("outcome", o)
+                        .publishPercentileHistogram()
+                        .register(registry)))
+        .record(nanos, TimeUnit.NANOSECONDS);
+  }
+
+  public void recordFailure(final Code code) {
+    if (closed) {
+      return;
+    }
+    failures
+        .computeIfAbsent(
+            code == null ? UNKNOWN_CODE : code.name(),
+            c ->
+                register(
+                    Counter.builder("cas.validation.failures")
+                        .description("authenticationFailure responses by CAS error code")
+                        .tags(tags)
+                        .tag("code", c)
+                        .register(registry)))
+        .increment();
+  }
+
+  public void recordHttpError(final int status) {
+    if (closed) {
+      return;
+    }
+    httpErrors
+        .computeIfAbsent(
+            status,
+            s ->
+                register(
+                    Counter.builder("cas.validation.http.errors")
+                        .description("Non-200 responses from CAS by status code")
+                        .tags(tags)
+                        .tag("status", String.valueOf(s))
+                        .register(registry)))
+        .increment();
+  }
+
+  /**
+   * Time spent in the response parser. The body is parsed while it streams in, so this includes
+   * reading it from the network.
+   */
+  public void recordParse(final String parser, final long nanos) {
+    if (closed) {
+      return;
+    }
+    parses
+        .computeIfAbsent(
+            parser,
+            p ->
+                register(
+                    Timer.builder("cas.validation.parse")
+                        .description("Parsing of CAS validation responses")
+                        .tags(tags)
+                        .tag("parser", p)
+                        .register(registry)))
+        .record(nanos, TimeUnit.NANOSECONDS);
+  }
+
+  public void recordAttributes(final Map<String, List<String>> released) {
+    if (closed) {
+      return;
+    }
+    int values = 0;
+    for (List<String> list : released.values()) {
+      values += list.size();
+    }
+    attributes.record(values);
+  }
+
+  public void bindCircuitBreaker(final CircuitBreaker circuitBreaker) {
+    register(
+        Gauge.builder("cas.circuit.breaker.state", circuitBreaker, cb -> cb.getState().ordinal())
+            .description("Circuit breaker state: 0 closed, 1 open, 2 half-open")
+            .tags(tags)
+            .register(registry));
+  }
+
+  public void bindBulkhead(final Bulkhead bulkhead) {
+    register(
+        Gauge.builder("cas.validation.bulkhead", bulkhead, Bulkhead::getActiveCount)
+            .description("CAS calls holding a bulkhead slot")
+            .tags(tags)
+            .tag("state", "active")
+            .register(registry));
+    register(
+        Gauge.builder("cas.validation.bulkhead", bulkhead, Bulkhead::getQueuedCount)
+            .description("CAS calls waiting for a bulkhead slot")
+            .tags(tags)
+            .tag("state", "queued")
+            .register(registry));
+    register(
+        FunctionCounter.builder(
+                "cas.validation.bulkhead.rejected", bulkhead, Bulkhead::getRejectedCount)
+            .description("CAS calls rejected by the bulkhead")
+            .tags(tags)
+            .register(registry));
+  }
+
+  public void bindHttpClient(final CasHttpClient httpClient) {
+    register(
+        Gauge.builder("cas.http.connections", httpClient, c -> c.getPoolStats().getLeased())
+            .description("Pooled connections to CAS currently in use")
+            .tags(tags)
+            .tag("state", "leased")
+            .register(registry));
+    register(
+        Gauge.builder("cas.http.connections", httpClient, c -> c.getPoolStats().getAvailable())
+            .description("Idle pooled connections to CAS")
+            .tags(tags)
+            .tag("state", "available")
+            .register(registry));
+    register(
+        Gauge.builder("cas.http.connections", httpClient, c -> c.getPoolStats().getPending())
+            .description("Requests waiting for a pooled connection to CAS")
+            .tags(tags)
+            .tag("state", "pending")
+            .register(registry));
+  }
+
+  /**
+   * Meters of the unmarshaller pool of the JAXB parser. The pool is shared by every provider, so
+   * its meters carry no alias and are bound once, by the factory, which removes the returned meters
+   * when it closes.
+   */
+  public static List<Meter> bindUnmarshallerPool(
+      final MeterRegistry registry, final UnmarshallerPool pool) {
+    return List.of(
+        FunctionCounter.builder("cas.jaxb.unmarshallers", pool, UnmarshallerPool::getCreatedCount)
+            .description("Unmarshallers created because none was idle")
+            .tag("event", "created")
+            .register(registry),
+        FunctionCounter.builder("cas.jaxb.unmarshallers", pool, UnmarshallerPool::getReusedCount)
+            .description("Parses served by an idle unmarshaller")
+            .tag("event", "reused")
+            .register(registry),
+        FunctionCounter.builder("cas.jaxb.unmarshallers", pool, UnmarshallerPool::getDiscardedCount)
+            .description("Unmarshallers dropped after a failed parse or with the pool full")
+            .tag("event", "discarded")
+            .register(registry),
+        Gauge.builder("cas.jaxb.unmarshallers.idle", pool, UnmarshallerPool::getIdleCount)
+            .description("Unmarshallers waiting in the pool")
+            .register(registry));
+  }
+
+  private <M extends Meter> M register(final M meter) {
+    meters.add(meter);
+    return meter;
+  }
+
+  @Override
+  public void close() {
+    closed = true;
+    meters.forEach(registry::remove);
+    meters.clear();
+  }
+}
@@ -0,0 +1,278 @@
+package io.github.johnjcool.keycloak.broker.cas.model;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import io.github.johnjcool.keycloak.broker.cas.util.StringPool;
+import java.io.Serial;
+import java.io.Serializable;
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+import java.util.Set;
+
+/**
+ * Read-only multimap of the attributes released by CAS, in document order. Names sit in one array
+ * and all values in another, sliced by offsets and indexed by a small open-addressing table,
+ * instead of a hash map of array lists per login. Names and short values go through shared {@link
+ * StringPool}s, so the attribute names and group DNs every login repeats are retained once.
+ *
+ * <p>Instances end up in the brokered identity context, which Keycloak serializes to JSON between
+ * the steps of a first broker login and restores by class name; the {@link JsonCreator}s make that
+ * round trip work.
+ */
+public final class CasAttributes extends AbstractMap<String, List<String>> implements Serializable {
+
+  @Serial private static final long serialVersionUID = 1L;
+
+  private static final StringPool NAMES = new StringPool(1024, 256);
+  private static final StringPool VALUES = new StringPool(16384, 512);
+
+  private static final CasAttributes EMPTY =
+      new CasAttributes(new String[0], new int[1], new int[] {0}, new String[0]);
+
+  private final String[] names;
+  // slot -> index into names + 1, 0 for an empty slot; the length is a power of two
+  private final int[] table;
+  private final int[] offsets;
+  private final String[] values;
+
+  private CasAttributes(
+      final String[] names, final int[] table, final int[] offsets, final String[] values) {
+    this.names = names;
+    this.table = table;
+    this.offsets = offsets;
+    this.values = values;
+  }
+
+  public static CasAttributes empty() {
+    return EMPTY;
+  }
+
+  @JsonCreator(mode = JsonCreator.Mode.DELEGATING)
+  public static CasAttributes of(final Map<String, ? extends List<String>> attributes) {
+    if (attributes instanceof CasAttributes casAttributes) {
+      return casAttributes;
+    }
+    Builder builder = new Builder();
+    attributes.forEach((name, list) -> list.forEach(value -> builder.add(name, value)));
+    return builder.build();
+  }
+
+  /** A builder; each one builds a single instance. */
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  /** A copy with only the named attributes, or this instance when {@code keep} is null. */
+  public CasAttributes retain(final Set<String> keep) {
+    if (keep == null) {
+      return this;
+    }
+    Builder builder = new Builder();
+    for (int i = 0; i < names.length; i++) {
+      if (keep.contains(names[i])) {
+        for (int v = offsets[i]; v < offsets[i + 1]; v++) {
+          builder.add(names[i], values[v]);
+        }
+      }
+    }
+    return builder.build();
+  }
+
+  private int indexOf(final Object name) {
+    if (!(name instanceof String key)) {
+      return -1;
+    }
+    int mask = table.length - 1;
+    for (int slot = spread(key.hashCode()) & mask; ; slot = (slot + 1) & mask) {
+      int entry = table[slot];
+      if (entry == 0) {
+        return -1;
+      }
+      if (names[entry - 1].equals(key)) {
+        return entry - 1;
+      }
+    }
+  }
+
+  private static int spread(final int hash) {
+    return hash ^ (hash >>> 16);
+  }
+
+  @Override
+  public List<String> get(final Object name) {
+    int index = indexOf(name);
+    return index < 0 ? null : new Values(values, offsets[index], offsets[index + 1]);
+  }
+
+  @Override
+  public boolean containsKey(final Object name) {
+    return indexOf(name) >= 0;
+  }
+
+  @Override
+  public int size() {
+    return names.length;
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return names.length == 0;
+  }
+
+  @Override
+  public Set<Entry<String, List<String>>> entrySet() {
+    return new AbstractSet<>() {
+      @Override
+      public Iterator<Entry<String, List<String>>> iterator() {
+        return new Iterator<>() {
+          private int next;
+
+          @Override
+          public boolean hasNext() {
+            return next < names.length;
+          }
+
+          @Override
+          public Entry<String, List<String>> next() {
+            if (next >= names.length) {
+              throw new NoSuchElementException();
+            }
+            int i = next++;
+            return new SimpleImmutableEntry<>(
+                names[i], new Values(values, offsets[i], offsets[i + 1]));
+          }
+        };
+      }
+
+      @Override
+      public int size() {
+        return names.length;
+      }
+    };
+  }
+
+  /** Read-only view of one attribute's values. */
+  public static final class Values extends AbstractList<String>
+      implements RandomAccess, Serializable {
+
+    @Serial private static final long serialVersionUID = 1L;
+
+    private final String[] values;
+    private final int from;
+    private final int to;
+
+    private Values(final String[] values, final int from, final int to) {
+      this.values = values;
+      this.from = from;
+      this.to = to;
+    }
+
+    @JsonCreator(mode = JsonCreator.Mode.DELEGATING)
+    public static Values of(final List<String> values) {
+      if (values instanceof Values v) {
+        return v;
+      }
+      String[] array = values.toArray(new String[0]);
+      return new Values(array, 0, array.length);
+    }
+
+    @Override
+    public String get(final int index) {
+      if (index < 0 || index >= to - from) {
+        throw new IndexOutOfBoundsException(index);
+      }
+      return values[from + index];
+    }
+
+    @Override
+    public int size() {
+      return to - from;
+    }
+  }
+
+  /**
+   * Collects name/value pairs in document order; values of the same name keep their relative order
+   * wherever they appear.
+   */
+  public static final class Builder {
+    private int[] pairNames = new int[16];
+    private String[] pairValues = new String[16];
+    private int pairs;
+
+    private String[] names = new String[8];
+    private int[] counts = new int[8];
+    private int[] table = new int[16];
+    private int size;
+
+    private Builder() {}
+
+    public Builder add(final String name, final String value) {
+      if (pairs == pairValues.length) {
+        pairNames = Arrays.copyOf(pairNames, pairs * 2);
+        pairValues = Arrays.copyOf(pairValues, pairs * 2);
+      }
+      int index = indexOf(name);
+      counts[index]++;
+      pairNames[pairs] = index;
+      pairValues[pairs] = VALUES.canonicalize(value);
+      pairs++;
+      return this;
+    }
+
+    private int indexOf(final String name) {
+      int mask = table.length - 1;
+      int slot = spread(name.hashCode()) & mask;
+      for (int entry = table[slot]; entry != 0; entry = table[slot]) {
+        if (names[entry - 1].equals(name)) {
+          return entry - 1;
+        }
+        slot = (slot + 1) & mask;
+      }
+      if (size == names.length) {
+        names = Arrays.copyOf(names, size * 2);
+        counts = Arrays.copyOf(counts, size * 2);
+      }
+      names[size] = NAMES.canonicalize(name);
+      table[slot] = ++size;
+      if (size * 2 > table.length) {
+        rehash(table.length * 2);
+      }
+      return size - 1;
+    }
+
+    private void rehash(final int capacity) {
+      table = new int[capacity];
+      int mask = capacity - 1;
+      for (int i = 0; i < size; i++) {
+        int slot = spread(names[i].hashCode()) & mask;
+        while (table[slot] != 0) {
+          slot = (slot + 1) & mask;
+        }
+        table[slot] = i + 1;
+      }
+    }
+
+    public CasAttributes build() {
+      if (pairs == 0) {
+        return EMPTY;
+      }
+      int[] offsets = new int[size + 1];
+      for (int i = 0; i < size; i++) {
+        offsets[i + 1] = offsets[i] + counts[i];
+      }
+      // counts become the fill position of each name
+      System.arraycopy(offsets, 0, counts, 0, size);
+      String[] values = new String[pairs];
+      for (int p = 0; p < pairs; p++) {
+        values[counts[pairNames[p]]++] = pairValues[p];
+      }
+      return new CasAttributes(Arrays.copyOf(names, size), table, offsets, values);
+    }
+  }
+}
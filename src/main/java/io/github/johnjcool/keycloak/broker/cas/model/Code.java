@@ -5,6 +5,8 @@ public enum Code {
   INVALID_TICKET_SPEC,
   UNAUTHORIZED_SERVICE_PROXY,
   INVALID_PROXY_CALLBACK,
+  UNAUTHORIZED_SERVICE,
+  BAD_PGT,
   INVALID_TICKET,
   INVALID_SERVICE,
   INTERNAL_ERROR;
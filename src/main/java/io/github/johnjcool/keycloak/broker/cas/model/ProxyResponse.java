@@ -0,0 +1,37 @@
+package io.github.johnjcool.keycloak.broker.cas.model;
+
+import java.io.Serial;
+import java.io.Serializable;
+
+/** The answer of CAS {@code /proxy}: a proxy ticket or the reason there is none. */
+public class ProxyResponse implements Serializable {
+
+  @Serial private static final long serialVersionUID = 1L;
+
+  private String proxyTicket;
+
+  private Failure failure;
+
+  public String getProxyTicket() {
+    return proxyTicket;
+  }
+
+  public void setProxyTicket(final String proxyTicket) {
+    this.proxyTicket = proxyTicket;
+  }
+
+  public Failure getFailure() {
+    return failure;
+  }
+
+  public void setFailure(final Failure failure) {
+    this.failure = failure;
+  }
+
+  @Override
+  public String toString() {
+    // the ticket is a credential
+    return String.format(
+        "ProxyResponse [proxyTicket=%s, failure=%s]", proxyTicket != null ? "***" : null, failure);
+  }
+}
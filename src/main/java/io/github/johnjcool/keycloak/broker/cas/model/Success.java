@@ -7,7 +7,6 @@ import jakarta.xml.bind.annotation.XmlElement;
 import jakarta.xml.bind.annotation.adapters.XmlJavaTypeAdapter;
 import java.io.Serial;
 import java.io.Serializable;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -19,9 +18,12 @@ public class Success implements Serializable {
   @XmlElement(name = "user", namespace = "http://www.yale.edu/tp/cas")
   private String user;
 
+  @XmlElement(name = "proxyGrantingTicket", namespace = "http://www.yale.edu/tp/cas")
+  private String proxyGrantingTicket;
+
   @XmlElement(name = "attributes", namespace = "http://www.yale.edu/tp/cas")
   @XmlJavaTypeAdapter(AttributesAdapter.class)
-  private Map<String, List<String>> attributes = new HashMap<>();
+  private Map<String, List<String>> attributes = CasAttributes.empty();
 
   public String getUser() {
     return user;
@@ -31,6 +33,15 @@ public class Success implements Serializable {
     this.user = user;
   }
 
+  /** The PGT IOU, when a proxy callback URL was passed; the PGT itself went to the callback. */
+  public String getProxyGrantingTicket() {
+    return proxyGrantingTicket;
+  }
+
+  public void setProxyGrantingTicket(final String proxyGrantingTicket) {
+    this.proxyGrantingTicket = proxyGrantingTicket;
+  }
+
   public Map<String, List<String>> getAttributes() {
     return attributes;
   }
@@ -0,0 +1,61 @@
+package io.github.johnjcool.keycloak.broker.cas.parser;
+
+import io.github.johnjcool.keycloak.broker.cas.model.CasAttributes;
+import io.github.johnjcool.keycloak.broker.cas.model.Code;
+import io.github.johnjcool.keycloak.broker.cas.model.Failure;
+import io.github.johnjcool.keycloak.broker.cas.model.ServiceResponse;
+import io.github.johnjcool.keycloak.broker.cas.model.Success;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+
+/**
+ * Parser for the plain-text CAS 1.0 {@code /validate} response, {@code yes} and the username on the
+ * next line, or {@code no}. The protocol releases no attributes.
+ */
+public final class Cas10ResponseParser implements ServiceResponseParser {
+
+  public static final Cas10ResponseParser INSTANCE = new Cas10ResponseParser();
+
+  // two short lines; anything longer is not a CAS 1.0 response
+  private static final int MAX_LENGTH = 4096;
+
+  private Cas10ResponseParser() {}
+
+  @Override
+  public String getName() {
+    return "cas10";
+  }
+
+  @Override
+  public ServiceResponse parse(final InputStream in, final Set<String> attributes)
+      throws IOException {
+    String body = new String(in.readNBytes(MAX_LENGTH), StandardCharsets.UTF_8);
+    int firstLineEnd = lineEnd(body, 0);
+    String answer = body.substring(0, firstLineEnd).strip();
+    ServiceResponse response = new ServiceResponse();
+    if ("no".equals(answer)) {
+      Failure failure = new Failure();
+      failure.setCode(Code.INVALID_TICKET);
+      failure.setDescription("Ticket not validated");
+      response.setFailure(failure);
+      return response;
+    }
+    int userStart = Math.min(body.length(), firstLineEnd + 1);
+    String user = body.substring(userStart, lineEnd(body, userStart)).strip();
+    if (!"yes".equals(answer) || user.isEmpty()) {
+      throw new ServiceResponseParseException("Unable to parse CAS 1.0 validation response");
+    }
+    Success success = new Success();
+    success.setUser(user);
+    success.setAttributes(CasAttributes.empty());
+    response.setSuccess(success);
+    return response;
+  }
+
+  private static int lineEnd(final String body, final int from) {
+    int end = body.indexOf('\n', from);
+    return end < 0 ? body.length() : end;
+  }
+}
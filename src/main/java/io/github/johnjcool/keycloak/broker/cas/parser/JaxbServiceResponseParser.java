@@ -0,0 +1,44 @@
+package io.github.johnjcool.keycloak.broker.cas.parser;
+
+import io.github.johnjcool.keycloak.broker.cas.jaxb.UnmarshallerPool;
+import io.github.johnjcool.keycloak.broker.cas.model.CasAttributes;
+import io.github.johnjcool.keycloak.broker.cas.model.ServiceResponse;
+import io.github.johnjcool.keycloak.broker.cas.model.Success;
+import jakarta.xml.bind.JAXBException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Set;
+
+public final class JaxbServiceResponseParser implements ServiceResponseParser {
+
+  public static final JaxbServiceResponseParser INSTANCE = new JaxbServiceResponseParser();
+
+  private final UnmarshallerPool unmarshallers = UnmarshallerPool.create(ServiceResponse.class);
+
+  private JaxbServiceResponseParser() {}
+
+  @Override
+  public String getName() {
+    return JAXB;
+  }
+
+  @Override
+  public ServiceResponse parse(final InputStream in, final Set<String> attributes)
+      throws IOException {
+    try {
+      ServiceResponse response = unmarshallers.unmarshal(in, ServiceResponse.class);
+      // the binding always reads every attribute, so projecting only trims what is kept
+      if (attributes != null && response.getSuccess() != null) {
+        Success success = response.getSuccess();
+        success.setAttributes(CasAttributes.of(success.getAttributes()).retain(attributes));
+      }
+      return response;
+    } catch (JAXBException e) {
+      throw new ServiceResponseParseException("Unable to parse CAS service response", e);
+    }
+  }
+
+  public UnmarshallerPool getUnmarshallers() {
+    return unmarshallers;
+  }
+}
@@ -0,0 +1,156 @@
+package io.github.johnjcool.keycloak.broker.cas.parser;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import io.github.johnjcool.keycloak.broker.cas.model.CasAttributes;
+import io.github.johnjcool.keycloak.broker.cas.model.Failure;
+import io.github.johnjcool.keycloak.broker.cas.model.ServiceResponse;
+import io.github.johnjcool.keycloak.broker.cas.model.Success;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Set;
+
+/**
+ * Streaming parser for the JSON {@code serviceResponse} CAS 5 and later return for {@code
+ * format=JSON}. Produces the same model as the XML parsers; an attribute is either a single value
+ * or an array of them.
+ */
+public final class JsonServiceResponseParser implements ServiceResponseParser {
+
+  public static final JsonServiceResponseParser INSTANCE = new JsonServiceResponseParser();
+
+  private static final String FORMAT = "JSON";
+
+  private final JsonFactory factory = new JsonFactory();
+
+  private JsonServiceResponseParser() {}
+
+  @Override
+  public String getName() {
+    return JSON;
+  }
+
+  @Override
+  public String getFormat() {
+    return FORMAT;
+  }
+
+  @Override
+  public ServiceResponse parse(final InputStream in, final Set<String> attributes)
+      throws IOException {
+    try (JsonParser parser = factory.createParser(in)) {
+      return readServiceResponse(parser, attributes);
+    } catch (JsonParseException e) {
+      throw new ServiceResponseParseException("Unable to parse CAS service response", e);
+    }
+  }
+
+  private static ServiceResponse readServiceResponse(
+      final JsonParser parser, final Set<String> attributes) throws IOException {
+    expect(parser, parser.nextToken(), JsonToken.START_OBJECT);
+    ServiceResponse response = null;
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String name = parser.currentName();
+      JsonToken value = parser.nextToken();
+      if ("serviceResponse".equals(name) && value == JsonToken.START_OBJECT) {
+        response = new ServiceResponse();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+          String field = parser.currentName();
+          JsonToken token = parser.nextToken();
+          if ("authenticationSuccess".equals(field) && token == JsonToken.START_OBJECT) {
+            response.setSuccess(readSuccess(parser, attributes));
+          } else if ("authenticationFailure".equals(field) && token == JsonToken.START_OBJECT) {
+            response.setFailure(readFailure(parser));
+          } else {
+            parser.skipChildren();
+          }
+        }
+      } else {
+        parser.skipChildren();
+      }
+    }
+    if (response == null) {
+      throw new ServiceResponseParseException("Expected a serviceResponse object");
+    }
+    return response;
+  }
+
+  private static Success readSuccess(final JsonParser parser, final Set<String> attributes)
+      throws IOException {
+    Success success = new Success();
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String field = parser.currentName();
+      JsonToken token = parser.nextToken();
+      if ("user".equals(field) && token.isScalarValue()) {
+        success.setUser(parser.getText());
+      } else if ("proxyGrantingTicket".equals(field) && token.isScalarValue()) {
+        success.setProxyGrantingTicket(parser.getText());
+      } else if ("attributes".equals(field) && token == JsonToken.START_OBJECT) {
+        success.setAttributes(readAttributes(parser, attributes));
+      } else {
+        parser.skipChildren();
+      }
+    }
+    return success;
+  }
+
+  private static CasAttributes readAttributes(final JsonParser parser, final Set<String> keep)
+      throws IOException {
+    CasAttributes.Builder attributes = CasAttributes.builder();
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String name = parser.currentName();
+      JsonToken token = parser.nextToken();
+      if (keep != null && !keep.contains(name)) {
+        // unreferenced attributes are stepped over without materializing their values
+        parser.skipChildren();
+      } else if (token == JsonToken.START_ARRAY) {
+        while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+          addValue(parser, token, name, attributes);
+        }
+      } else {
+        addValue(parser, token, name, attributes);
+      }
+    }
+    return attributes.build();
+  }
+
+  // numbers and booleans keep their JSON text, as the XML parsers would read it
+  private static void addValue(
+      final JsonParser parser,
+      final JsonToken token,
+      final String name,
+      final CasAttributes.Builder attributes)
+      throws IOException {
+    if (token.isScalarValue() && token != JsonToken.VALUE_NULL) {
+      attributes.add(name, parser.getText());
+    } else {
+      parser.skipChildren();
+    }
+  }
+
+  private static Failure readFailure(final JsonParser parser) throws IOException {
+    Failure failure = new Failure();
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String field = parser.currentName();
+      JsonToken token = parser.nextToken();
+      if ("code".equals(field) && token.isScalarValue()) {
+        failure.setCode(ParserSupport.toCode(parser.getText()));
+      } else if ("description".equals(field) && token.isScalarValue()) {
+        failure.setDescription(parser.getText());
+      } else {
+        parser.skipChildren();
+      }
+    }
+    return failure;
+  }
+
+  private static void expect(final JsonParser parser, final JsonToken actual, final JsonToken token)
+      throws IOException {
+    if (actual != token) {
+      throw new ServiceResponseParseException(
+          "Expected " + token + " but found " + actual + " at " + parser.currentLocation());
+    }
+  }
+}
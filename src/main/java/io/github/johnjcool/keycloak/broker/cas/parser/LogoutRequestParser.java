@@ -0,0 +1,58 @@
+package io.github.johnjcool.keycloak.broker.cas.parser;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Pull parser for the SAML {@code LogoutRequest} a CAS server posts for back-channel single logout.
+ * Only the {@code SessionIndex} elements, which carry the service tickets, are read; a document may
+ * hold several of them, or several requests, when the server batches logouts.
+ */
+public final class LogoutRequestParser {
+
+  public static final LogoutRequestParser INSTANCE = new LogoutRequestParser();
+
+  static final String SAML_PROTOCOL_NAMESPACE = "urn:oasis:names:tc:SAML:2.0:protocol";
+
+  private final XMLInputFactory factory;
+
+  private LogoutRequestParser() {
+    factory = ParserSupport.newInputFactory();
+  }
+
+  /** The service tickets of every session the request logs out, in document order. */
+  public List<String> parseSessionIndexes(final String logoutRequest)
+      throws ServiceResponseParseException {
+    XMLStreamReader reader = null;
+    try {
+      reader = factory.createXMLStreamReader(new StringReader(logoutRequest));
+      List<String> sessionIndexes = new ArrayList<>(1);
+      while (reader.hasNext()) {
+        if (reader.next() == XMLStreamConstants.START_ELEMENT
+            && "SessionIndex".equals(reader.getLocalName())
+            && SAML_PROTOCOL_NAMESPACE.equals(reader.getNamespaceURI())) {
+          String sessionIndex = reader.getElementText().strip();
+          if (!sessionIndex.isEmpty()) {
+            sessionIndexes.add(sessionIndex);
+          }
+        }
+      }
+      return sessionIndexes;
+    } catch (XMLStreamException e) {
+      throw new ServiceResponseParseException("Unable to parse CAS logout request", e);
+    } finally {
+      if (reader != null) {
+        try {
+          reader.close();
+        } catch (XMLStreamException e) {
+          // nothing left to read
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,36 @@
+package io.github.johnjcool.keycloak.broker.cas.parser;
+
+import io.github.johnjcool.keycloak.broker.cas.model.Code;
+import javax.xml.stream.XMLInputFactory;
+
+/** Setup and conversions shared by the CAS response parsers. */
+final class ParserSupport {
+
+  private ParserSupport() {
+    // util
+  }
+
+  /**
+   * A StAX factory for documents from CAS or posted to Keycloak: no DTDs and no external entities,
+   * so a response cannot make the parser read files or URLs, and text delivered in one piece.
+   */
+  static XMLInputFactory newInputFactory() {
+    XMLInputFactory factory = XMLInputFactory.newFactory();
+    factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+    return factory;
+  }
+
+  /** The failure code CAS sent, or null when it is missing or unknown. */
+  static Code toCode(final String value) {
+    if (value == null) {
+      return null;
+    }
+    try {
+      return Code.valueOf(value.trim());
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,79 @@
+package io.github.johnjcool.keycloak.broker.cas.parser;
+
+import static io.github.johnjcool.keycloak.broker.cas.parser.StaxServiceResponseParser.CAS_NAMESPACE;
+import static io.github.johnjcool.keycloak.broker.cas.parser.StaxServiceResponseParser.readText;
+import static io.github.johnjcool.keycloak.broker.cas.parser.StaxServiceResponseParser.skipElement;
+
+import io.github.johnjcool.keycloak.broker.cas.model.Failure;
+import io.github.johnjcool.keycloak.broker.cas.model.ProxyResponse;
+import java.io.InputStream;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/** Pull parser for the {@code cas:serviceResponse} of CAS {@code /proxy}. */
+public final class ProxyResponseParser {
+
+  public static final ProxyResponseParser INSTANCE = new ProxyResponseParser();
+
+  private final XMLInputFactory factory;
+
+  private ProxyResponseParser() {
+    factory = ParserSupport.newInputFactory();
+  }
+
+  public ProxyResponse parse(final InputStream in) throws ServiceResponseParseException {
+    XMLStreamReader reader = null;
+    try {
+      reader = factory.createXMLStreamReader(in);
+      return readProxyResponse(reader);
+    } catch (XMLStreamException e) {
+      throw new ServiceResponseParseException("Unable to parse CAS proxy response", e);
+    } finally {
+      if (reader != null) {
+        try {
+          reader.close();
+        } catch (XMLStreamException e) {
+          // nothing left to read
+        }
+      }
+    }
+  }
+
+  private static ProxyResponse readProxyResponse(final XMLStreamReader reader)
+      throws XMLStreamException {
+    reader.nextTag();
+    if (!isCasElement(reader, "serviceResponse")) {
+      throw new XMLStreamException("Expected cas:serviceResponse but found " + reader.getName());
+    }
+    ProxyResponse response = new ProxyResponse();
+    while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+      if (isCasElement(reader, "proxySuccess")) {
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+          if (isCasElement(reader, "proxyTicket")) {
+            response.setProxyTicket(readText(reader).strip());
+          } else {
+            skipElement(reader);
+          }
+        }
+      } else if (isCasElement(reader, "proxyFailure")) {
+        Failure failure = new Failure();
+        failure.setCode(ParserSupport.toCode(reader.getAttributeValue(null, "code")));
+        failure.setDescription(readText(reader).strip());
+        response.setFailure(failure);
+      } else {
+        skipElement(reader);
+      }
+    }
+    if (response.getProxyTicket() == null && response.getFailure() == null) {
+      throw new XMLStreamException("Expected cas:proxySuccess or cas:proxyFailure");
+    }
+    return response;
+  }
+
+  private static boolean isCasElement(final XMLStreamReader reader, final String localName) {
+    return localName.equals(reader.getLocalName())
+        && CAS_NAMESPACE.equals(reader.getNamespaceURI());
+  }
+}
@@ -0,0 +1,134 @@
+package io.github.johnjcool.keycloak.broker.cas.parser;
+
+import static io.github.johnjcool.keycloak.broker.cas.parser.StaxServiceResponseParser.readText;
+import static io.github.johnjcool.keycloak.broker.cas.parser.StaxServiceResponseParser.skipElement;
+
+import io.github.johnjcool.keycloak.broker.cas.model.CasAttributes;
+import io.github.johnjcool.keycloak.broker.cas.model.Code;
+import io.github.johnjcool.keycloak.broker.cas.model.Failure;
+import io.github.johnjcool.keycloak.broker.cas.model.ServiceResponse;
+import io.github.johnjcool.keycloak.broker.cas.model.Success;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Set;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Single-pass pull parser for the SOAP-wrapped SAML 1.1 response of CAS {@code /samlValidate}. The
+ * subject's name identifier becomes the user and the attribute statement the attributes, so the
+ * result matches what {@code /p3/serviceValidate} would have produced.
+ */
+public final class Saml11ResponseParser implements ServiceResponseParser {
+
+  public static final Saml11ResponseParser INSTANCE = new Saml11ResponseParser();
+
+  static final String SAML_PROTOCOL_NAMESPACE = "urn:oasis:names:tc:SAML:1.0:protocol";
+  static final String SAML_ASSERTION_NAMESPACE = "urn:oasis:names:tc:SAML:1.0:assertion";
+
+  private final XMLInputFactory factory;
+
+  private Saml11ResponseParser() {
+    factory = ParserSupport.newInputFactory();
+  }
+
+  @Override
+  public String getName() {
+    return "saml11";
+  }
+
+  @Override
+  public ServiceResponse parse(final InputStream in, final Set<String> attributes)
+      throws IOException {
+    XMLStreamReader reader = null;
+    try {
+      reader = factory.createXMLStreamReader(in);
+      return readResponse(reader, attributes);
+    } catch (XMLStreamException e) {
+      throw new ServiceResponseParseException("Unable to parse CAS SAML 1.1 response", e);
+    } finally {
+      if (reader != null) {
+        try {
+          reader.close();
+        } catch (XMLStreamException e) {
+          // nothing left to read
+        }
+      }
+    }
+  }
+
+  private ServiceResponse readResponse(final XMLStreamReader reader, final Set<String> keep)
+      throws XMLStreamException {
+    String statusCode = null;
+    String statusMessage = null;
+    String user = null;
+    CasAttributes.Builder attributes = CasAttributes.builder();
+    // the envelope, body and assertion are only descended through
+    while (reader.hasNext()) {
+      if (reader.next() != XMLStreamConstants.START_ELEMENT) {
+        continue;
+      }
+      if (isElement(reader, SAML_PROTOCOL_NAMESPACE, "StatusCode")) {
+        // the top-level code; nested codes only refine it
+        if (statusCode == null) {
+          statusCode = reader.getAttributeValue(null, "Value");
+        }
+      } else if (isElement(reader, SAML_PROTOCOL_NAMESPACE, "StatusMessage")) {
+        statusMessage = readText(reader);
+      } else if (isElement(reader, SAML_ASSERTION_NAMESPACE, "NameIdentifier")) {
+        // every statement repeats the subject
+        String name = readText(reader).strip();
+        if (user == null) {
+          user = name;
+        }
+      } else if (isElement(reader, SAML_ASSERTION_NAMESPACE, "Attribute")) {
+        readAttribute(reader, attributes, keep);
+      }
+    }
+    if (statusCode == null) {
+      throw new XMLStreamException("Expected a samlp:StatusCode");
+    }
+    ServiceResponse response = new ServiceResponse();
+    if (isSuccess(statusCode) && user != null && !user.isEmpty()) {
+      Success success = new Success();
+      success.setUser(user);
+      success.setAttributes(attributes.build());
+      response.setSuccess(success);
+    } else {
+      Failure failure = new Failure();
+      failure.setCode(Code.INVALID_TICKET);
+      failure.setDescription(statusMessage != null ? statusMessage.strip() : statusCode);
+      response.setFailure(failure);
+    }
+    return response;
+  }
+
+  private static void readAttribute(
+      final XMLStreamReader reader, final CasAttributes.Builder attributes, final Set<String> keep)
+      throws XMLStreamException {
+    String name = reader.getAttributeValue(null, "AttributeName");
+    if (name == null || (keep != null && !keep.contains(name))) {
+      skipElement(reader);
+      return;
+    }
+    while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+      if (isElement(reader, SAML_ASSERTION_NAMESPACE, "AttributeValue")) {
+        attributes.add(name, readText(reader));
+      } else {
+        skipElement(reader);
+      }
+    }
+  }
+
+  // a QName such as samlp:Success, whatever prefix the server bound
+  private static boolean isSuccess(final String statusCode) {
+    return "Success".equals(statusCode.substring(statusCode.indexOf(':') + 1).strip());
+  }
+
+  private static boolean isElement(
+      final XMLStreamReader reader, final String namespace, final String localName) {
+    return localName.equals(reader.getLocalName()) && namespace.equals(reader.getNamespaceURI());
+  }
+}
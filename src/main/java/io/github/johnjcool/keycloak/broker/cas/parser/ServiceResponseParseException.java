@@ -0,0 +1,18 @@
+package io.github.johnjcool.keycloak.broker.cas.parser;
+
+import java.io.IOException;
+import java.io.Serial;
+
+/** The CAS server answered, but its response could not be understood. */
+public class ServiceResponseParseException extends IOException {
+
+  @Serial private static final long serialVersionUID = 1L;
+
+  public ServiceResponseParseException(final String message) {
+    super(message);
+  }
+
+  public ServiceResponseParseException(final String message, final Throwable cause) {
+    super(message, cause);
+  }
+}
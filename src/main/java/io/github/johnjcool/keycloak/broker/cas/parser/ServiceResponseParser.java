@@ -0,0 +1,41 @@
+package io.github.johnjcool.keycloak.broker.cas.parser;
+
+import io.github.johnjcool.keycloak.broker.cas.model.ServiceResponse;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Set;
+
+public interface ServiceResponseParser {
+
+  String STAX = "stax";
+  String JAXB = "jaxb";
+  String JSON = "json";
+
+  default ServiceResponse parse(final InputStream in) throws IOException {
+    return parse(in, null);
+  }
+
+  /**
+   * Parses a response keeping only the named attributes of a success, or all of them when {@code
+   * attributes} is null.
+   */
+  ServiceResponse parse(InputStream in, Set<String> attributes) throws IOException;
+
+  /** Name under which the parser is configured, {@link #STAX}, {@link #JAXB} or {@link #JSON}. */
+  String getName();
+
+  /** Value of the {@code format} parameter requesting this parser's format, or null for XML. */
+  default String getFormat() {
+    return null;
+  }
+
+  static ServiceResponseParser forName(final String name) {
+    if (JAXB.equalsIgnoreCase(name)) {
+      return JaxbServiceResponseParser.INSTANCE;
+    }
+    if (JSON.equalsIgnoreCase(name)) {
+      return JsonServiceResponseParser.INSTANCE;
+    }
+    return StaxServiceResponseParser.INSTANCE;
+  }
+}
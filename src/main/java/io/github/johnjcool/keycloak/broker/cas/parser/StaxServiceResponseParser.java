@@ -0,0 +1,164 @@
+package io.github.johnjcool.keycloak.broker.cas.parser;
+
+import io.github.johnjcool.keycloak.broker.cas.model.CasAttributes;
+import io.github.johnjcool.keycloak.broker.cas.model.Failure;
+import io.github.johnjcool.keycloak.broker.cas.model.ServiceResponse;
+import io.github.johnjcool.keycloak.broker.cas.model.Success;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Set;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Single-pass pull parser for {@code cas:serviceResponse} documents. Produces the same model as the
+ * JAXB mapping without buffering the document or building DOM nodes for attributes.
+ */
+public final class StaxServiceResponseParser implements ServiceResponseParser {
+
+  public static final StaxServiceResponseParser INSTANCE = new StaxServiceResponseParser();
+
+  static final String CAS_NAMESPACE = "http://www.yale.edu/tp/cas";
+
+  private final XMLInputFactory factory;
+
+  private StaxServiceResponseParser() {
+    factory = ParserSupport.newInputFactory();
+  }
+
+  @Override
+  public String getName() {
+    return STAX;
+  }
+
+  @Override
+  public ServiceResponse parse(final InputStream in, final Set<String> attributes)
+      throws IOException {
+    XMLStreamReader reader = null;
+    try {
+      reader = factory.createXMLStreamReader(in);
+      return readServiceResponse(reader, attributes);
+    } catch (XMLStreamException e) {
+      throw new ServiceResponseParseException("Unable to parse CAS service response", e);
+    } finally {
+      if (reader != null) {
+        try {
+          reader.close();
+        } catch (XMLStreamException e) {
+          // nothing left to read
+        }
+      }
+    }
+  }
+
+  private ServiceResponse readServiceResponse(
+      final XMLStreamReader reader, final Set<String> attributes) throws XMLStreamException {
+    reader.nextTag();
+    if (!isCasElement(reader, "serviceResponse")) {
+      throw new XMLStreamException("Expected cas:serviceResponse but found " + reader.getName());
+    }
+    ServiceResponse response = new ServiceResponse();
+    while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+      if (isCasElement(reader, "authenticationSuccess")) {
+        response.setSuccess(readSuccess(reader, attributes));
+      } else if (isCasElement(reader, "authenticationFailure")) {
+        response.setFailure(readFailure(reader));
+      } else {
+        skipElement(reader);
+      }
+    }
+    return response;
+  }
+
+  private Success readSuccess(final XMLStreamReader reader, final Set<String> attributes)
+      throws XMLStreamException {
+    Success success = new Success();
+    while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+      if (isCasElement(reader, "user")) {
+        success.setUser(readText(reader));
+      } else if (isCasElement(reader, "proxyGrantingTicket")) {
+        success.setProxyGrantingTicket(readText(reader).strip());
+      } else if (isCasElement(reader, "attributes")) {
+        success.setAttributes(readAttributes(reader, attributes));
+      } else {
+        skipElement(reader);
+      }
+    }
+    return success;
+  }
+
+  private CasAttributes readAttributes(final XMLStreamReader reader, final Set<String> keep)
+      throws XMLStreamException {
+    CasAttributes.Builder attributes = CasAttributes.builder();
+    while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+      String name = reader.getLocalName();
+      if (keep != null && !keep.contains(name)) {
+        // unreferenced attributes are stepped over without materializing their text
+        skipElement(reader);
+        continue;
+      }
+      attributes.add(name, readText(reader));
+    }
+    return attributes.build();
+  }
+
+  private Failure readFailure(final XMLStreamReader reader) throws XMLStreamException {
+    Failure failure = new Failure();
+    failure.setCode(ParserSupport.toCode(reader.getAttributeValue(null, "code")));
+    failure.setDescription(readText(reader));
+    return failure;
+  }
+
+  private static boolean isCasElement(final XMLStreamReader reader, final String localName) {
+    return localName.equals(reader.getLocalName())
+        && CAS_NAMESPACE.equals(reader.getNamespaceURI());
+  }
+
+  /**
+   * Returns the concatenated text of the current element and its descendants, leaving the reader on
+   * the matching end tag. The common single text node case does not allocate a builder.
+   */
+  static String readText(final XMLStreamReader reader) throws XMLStreamException {
+    String first = null;
+    StringBuilder builder = null;
+    int depth = 1;
+    while (depth > 0) {
+      switch (reader.next()) {
+        case XMLStreamConstants.START_ELEMENT -> depth++;
+        case XMLStreamConstants.END_ELEMENT -> depth--;
+        case XMLStreamConstants.CHARACTERS,
+            XMLStreamConstants.CDATA,
+            XMLStreamConstants.SPACE,
+            XMLStreamConstants.ENTITY_REFERENCE -> {
+          if (first == null) {
+            first = reader.getText();
+          } else {
+            if (builder == null) {
+              builder = new StringBuilder(first);
+            }
+            builder.append(reader.getText());
+          }
+        }
+        default -> {}
+      }
+    }
+    if (builder != null) {
+      return builder.toString();
+    }
+    return first == null ? "" : first;
+  }
+
+  static void skipElement(final XMLStreamReader reader) throws XMLStreamException {
+    int depth = 1;
+    while (depth > 0) {
+      int event = reader.next();
+      if (event == XMLStreamConstants.START_ELEMENT) {
+        depth++;
+      } else if (event == XMLStreamConstants.END_ELEMENT) {
+        depth--;
+      }
+    }
+  }
+}
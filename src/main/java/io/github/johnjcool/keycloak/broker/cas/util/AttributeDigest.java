@@ -0,0 +1,79 @@
+package io.github.johnjcool.keycloak.broker.cas.util;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import org.keycloak.models.IdentityProviderMapperModel;
+
+/**
+ * Digest of everything that decides what the CAS mappers write to a user: the released attributes
+ * and the configuration of the mappers themselves. When neither changed since the last login, the
+ * mappers would write what the user already has.
+ */
+public final class AttributeDigest {
+
+  // 128 bits, as 22 characters of unpadded base64url
+  private static final int LENGTH = 16;
+
+  private AttributeDigest() {
+    // util
+  }
+
+  public static String of(
+      final Map<String, List<String>> attributes, final List<IdentityProviderMapperModel> mappers) {
+    MessageDigest digest = sha256();
+    if (attributes != null) {
+      // attribute order is whatever CAS sends, so names are sorted
+      String[] names = attributes.keySet().toArray(new String[0]);
+      Arrays.sort(names);
+      for (String name : names) {
+        List<String> values = attributes.get(name);
+        update(digest, name);
+        update(digest, Integer.toString(values.size()));
+        for (String value : values) {
+          update(digest, value);
+        }
+      }
+    }
+    update(digest, "");
+    mappers.stream()
+        .sorted(
+            Comparator.comparing(
+                IdentityProviderMapperModel::getId,
+                Comparator.nullsFirst(Comparator.naturalOrder())))
+        .forEach(
+            mapper -> {
+              update(digest, String.valueOf(mapper.getId()));
+              update(digest, mapper.getIdentityProviderMapper());
+              new TreeMap<>(mapper.getConfig())
+                  .forEach(
+                      (key, value) -> {
+                        update(digest, key);
+                        update(digest, String.valueOf(value));
+                      });
+            });
+    return Base64.getUrlEncoder()
+        .withoutPadding()
+        .encodeToString(Arrays.copyOf(digest.digest(), LENGTH));
+  }
+
+  private static void update(final MessageDigest digest, final String value) {
+    digest.update(value.getBytes(StandardCharsets.UTF_8));
+    // separator, so that ("ab", "c") and ("a", "bc") differ
+    digest.update((byte) 0);
+  }
+
+  private static MessageDigest sha256() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 is not available", e);
+    }
+  }
+}
@@ -0,0 +1,79 @@
+package io.github.johnjcool.keycloak.broker.cas.util;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Lets one caller at a time through per key; the others wait for it instead of racing it. A permit
+ * is not tied to a thread, so it can be released from a transaction callback, and keys nobody holds
+ * or waits for are dropped.
+ */
+public final class SingleFlight {
+
+  private final ConcurrentMap<String, Flight> flights = new ConcurrentHashMap<>();
+
+  /**
+   * Waits up to the timeout for the key, returning the permit to release, or null when the wait
+   * timed out or was interrupted.
+   */
+  public Permit acquire(final String key, final long timeout, final TimeUnit unit) {
+    Flight flight =
+        flights.compute(
+            key,
+            (k, current) -> {
+              Flight f = current != null ? current : new Flight();
+              f.users++;
+              return f;
+            });
+    boolean acquired;
+    try {
+      acquired = flight.semaphore.tryAcquire(timeout, unit);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      acquired = false;
+    }
+    if (!acquired) {
+      leave(key);
+      return null;
+    }
+    return new Permit(key, flight);
+  }
+
+  private void leave(final String key) {
+    flights.computeIfPresent(key, (k, flight) -> --flight.users == 0 ? null : flight);
+  }
+
+  /** Keys currently held or waited for. */
+  public int size() {
+    return flights.size();
+  }
+
+  private static final class Flight {
+    private final Semaphore semaphore = new Semaphore(1);
+    // guarded by the map's compute
+    private int users;
+  }
+
+  /** A held key; releasing more than once has no effect. */
+  public final class Permit implements AutoCloseable {
+    private final String key;
+    private final Flight flight;
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    private Permit(final String key, final Flight flight) {
+      this.key = key;
+      this.flight = flight;
+    }
+
+    @Override
+    public void close() {
+      if (released.compareAndSet(false, true)) {
+        flight.semaphore.release();
+        leave(key);
+      }
+    }
+  }
+}
@@ -0,0 +1,62 @@
+package io.github.johnjcool.keycloak.broker.cas.util;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded canonicalization pool for strings that repeat across logins, such as attribute names and
+ * group DNs. A string is only admitted once it has been seen twice, so one-off values, which are
+ * mostly personal data such as names and mail addresses, are not retained; only their hash is
+ * remembered. Admitted strings sit in a fixed table and are replaced by the next repeating string
+ * that hashes to the same slot, so the pool never holds more than its capacity.
+ */
+public final class StringPool {
+
+  private final AtomicReferenceArray<String> pool;
+  // hashes of strings seen once, the admission filter in front of the pool
+  private final AtomicIntegerArray seen;
+  private final int mask;
+  private final int maxLength;
+
+  public StringPool(final int capacity, final int maxLength) {
+    int size = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1);
+    this.pool = new AtomicReferenceArray<>(size);
+    this.seen = new AtomicIntegerArray(size);
+    this.mask = size - 1;
+    this.maxLength = maxLength;
+  }
+
+  public String canonicalize(final String value) {
+    if (value == null || value.length() > maxLength) {
+      return value;
+    }
+    int hash = value.hashCode();
+    int slot = spread(hash) & mask;
+    String pooled = pool.get(slot);
+    if (value.equals(pooled)) {
+      return pooled;
+    }
+    if (seen.get(slot) == hash) {
+      // seen before: admit it, replacing whatever repeating string had the slot
+      pool.set(slot, value);
+    } else {
+      seen.set(slot, hash);
+    }
+    return value;
+  }
+
+  private static int spread(final int hash) {
+    return hash ^ (hash >>> 16);
+  }
+
+  /** Strings currently pooled. */
+  public int size() {
+    int size = 0;
+    for (int i = 0; i < pool.length(); i++) {
+      if (pool.get(i) != null) {
+        size++;
+      }
+    }
+    return size;
+  }
+}
@@ -1,9 +1,10 @@
 package io.github.johnjcool.keycloak.broker.cas.util;
 
+import io.github.johnjcool.keycloak.broker.cas.CasConfigSnapshot;
 import io.github.johnjcool.keycloak.broker.cas.CasIdentityProvider;
-import io.github.johnjcool.keycloak.broker.cas.CasIdentityProviderConfig;
 import jakarta.ws.rs.core.UriBuilder;
 import jakarta.ws.rs.core.UriInfo;
+import java.net.URI;
 import org.keycloak.broker.provider.AuthenticationRequest;
 import org.keycloak.models.RealmModel;
 import org.keycloak.services.resources.IdentityBrokerService;
@@ -12,55 +13,80 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 public final class UrlHelper {
-  private static final String PROVIDER_PARAMETER_SERVICE = "service";
-  private static final String PROVIDER_PARAMETER_RENEW = "renew";
-  private static final String PROVIDER_PARAMETER_GATEWAY = "gateway";
   public static final String PROVIDER_PARAMETER_TICKET = "ticket";
+  public static final String PROXY_CALLBACK_PATH = "proxy_callback";
   private static final Logger log = LoggerFactory.getLogger(UrlHelper.class);
 
+  // "realms/{realm}/broker/{provider_alias}/endpoint/logout_response", resolved from the JAX-RS
+  // annotations once instead of on every logout
+  private static final String[] LOGOUT_RESPONSE_PATH =
+      UriBuilder.fromPath("")
+          .path(RealmsResource.class)
+          .path(RealmsResource.class, "getBrokerService")
+          .path(IdentityBrokerService.class, "getEndpoint")
+          .path(CasIdentityProvider.Endpoint.class, "logoutResponse")
+          .toTemplate()
+          .replaceFirst("^/", "")
+          .split("\\{[^}]+}", -1);
+
   private UrlHelper() {
     // util
   }
 
-  public static UriBuilder createAuthenticationUrl(
-      final CasIdentityProviderConfig config, final AuthenticationRequest request) {
-    UriBuilder builder =
-        UriBuilder.fromUri(config.getCasServerLoginUrl())
-            .queryParam(PROVIDER_PARAMETER_SERVICE, request.getRedirectUri());
-    if (config.isRenew()) {
-      builder.queryParam(PROVIDER_PARAMETER_RENEW, config.isRenew());
-    }
-    if (config.isGateway()) {
-      builder.queryParam(PROVIDER_PARAMETER_GATEWAY, config.isGateway());
-    }
-    return builder;
+  public static URI createAuthenticationUrl(
+      final CasConfigSnapshot config, final AuthenticationRequest request) {
+    return config.getLoginTemplate().expand(request.getRedirectUri());
   }
 
-  public static UriBuilder createValidateServiceUrl(
-      final CasIdentityProviderConfig config, final String ticket, final UriInfo uriInfo) {
-    UriBuilder builder =
-        UriBuilder.fromUri(config.getCasServiceValidateUrl())
-            .queryParam(PROVIDER_PARAMETER_TICKET, ticket)
-            .queryParam(PROVIDER_PARAMETER_SERVICE, uriInfo.getAbsolutePath().toString());
-    if (config.isRenew()) {
-      builder.queryParam(PROVIDER_PARAMETER_RENEW, config.isRenew());
-    }
-    return builder;
+  public static URI createValidateServiceUrl(
+      final CasConfigSnapshot config,
+      final String casServerUrlPrefix,
+      final String ticket,
+      final UriInfo uriInfo) {
+    String service = uriInfo.getAbsolutePath().toString();
+    return config
+        .getProtocol()
+        .expand(
+            config.getServiceValidateTemplate(casServerUrlPrefix),
+            ticket,
+            service,
+            config.isProxyGranting() ? proxyCallbackUrl(service) : null);
+  }
+
+  // the service is the broker endpoint, which also receives the proxy callback
+  private static String proxyCallbackUrl(final String service) {
+    return service.endsWith("/")
+        ? service + PROXY_CALLBACK_PATH
+        : service + "/" + PROXY_CALLBACK_PATH;
   }
 
-  public static UriBuilder createLogoutUrl(
-      final CasIdentityProviderConfig config, final RealmModel realm, final UriInfo uriInfo) {
-    UriBuilder builder =
-        UriBuilder.fromUri(config.getCasServerLogoutUrl())
-            .queryParam(
-                PROVIDER_PARAMETER_SERVICE,
-                RealmsResource.brokerUrl(uriInfo)
-                    .path(IdentityBrokerService.class, "getEndpoint")
-                    .path(CasIdentityProvider.Endpoint.class, "logoutResponse")
-                    .build(realm.getName(), config.getAlias())
-                    .toString());
-    log.debug("=====url-debug=====");
-    log.debug("builder.toString()");
-    return builder;
+  public static URI createProxyUrl(
+      final CasConfigSnapshot config,
+      final String casServerUrlPrefix,
+      final String proxyGrantingTicket,
+      final String targetService) {
+    return config.getProxyTemplate(casServerUrlPrefix).expand(proxyGrantingTicket, targetService);
+  }
+
+  public static URI createLogoutUrl(
+      final CasConfigSnapshot config, final RealmModel realm, final UriInfo uriInfo) {
+    URI url =
+        config.getLogoutTemplate().expand(logoutResponseUrl(uriInfo.getBaseUri(), realm, config));
+    log.debug("CAS logout URL: {}", url);
+    return url;
+  }
+
+  private static String logoutResponseUrl(
+      final URI baseUri, final RealmModel realm, final CasConfigSnapshot config) {
+    String base = baseUri.toString();
+    StringBuilder url = new StringBuilder(base.length() + 64).append(base);
+    if (!base.endsWith("/")) {
+      url.append('/');
+    }
+    url.append(LOGOUT_RESPONSE_PATH[0]);
+    UrlTemplate.encode(realm.getName(), url);
+    url.append(LOGOUT_RESPONSE_PATH[1]);
+    UrlTemplate.encode(config.getAlias(), url);
+    return url.append(LOGOUT_RESPONSE_PATH[2]).toString();
   }
 }
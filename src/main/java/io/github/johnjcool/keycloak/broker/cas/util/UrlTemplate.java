@@ -0,0 +1,138 @@
+package io.github.johnjcool.keycloak.broker.cas.util;
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A URL whose query parameters are either constant or filled in per request. Everything constant is
+ * rendered once when the template is built; {@link #expand(String...)} only percent-encodes the
+ * variable values between the precomputed fragments.
+ */
+public final class UrlTemplate {
+
+  private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+  // U+FFFD in UTF-8, what the encoder of a well-formed string would substitute for a lone surrogate
+  private static final String REPLACEMENT_CHARACTER = "%EF%BF%BD";
+
+  private final String[] fragments;
+  private final int fragmentsLength;
+
+  private UrlTemplate(final List<String> fragments) {
+    this.fragments = fragments.toArray(String[]::new);
+    this.fragmentsLength = fragments.stream().mapToInt(String::length).sum();
+  }
+
+  public static Builder builder(final URI base) {
+    return new Builder(base.toString());
+  }
+
+  /** Fills in the variable parameters in the order they were declared. */
+  public URI expand(final String... values) {
+    if (values.length != fragments.length - 1) {
+      throw new IllegalArgumentException(
+          "Expected " + (fragments.length - 1) + " values but got " + values.length);
+    }
+    int capacity = fragmentsLength;
+    for (String value : values) {
+      if (value == null) {
+        throw new IllegalArgumentException("Query parameter values must not be null");
+      }
+      // room for a few escapes without growing
+      capacity += value.length() + (value.length() >> 1);
+    }
+    StringBuilder url = new StringBuilder(capacity);
+    for (int i = 0; i < values.length; i++) {
+      url.append(fragments[i]);
+      encode(values[i], url);
+    }
+    url.append(fragments[values.length]);
+    return URI.create(url.toString());
+  }
+
+  /**
+   * Percent-encodes everything but RFC 3986 unreserved characters. An unpaired surrogate is encoded
+   * as U+FFFD.
+   */
+  static void encode(final String value, final StringBuilder out) {
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (isUnreserved(c)) {
+        out.append(c);
+      } else if (c < 0x80) {
+        appendEscaped((byte) c, out);
+      } else if (Character.isSurrogate(c)
+          && !(Character.isHighSurrogate(c)
+              && i + 1 < value.length()
+              && Character.isLowSurrogate(value.charAt(i + 1)))) {
+        // an unpaired surrogate has no UTF-8 form; getBytes would silently turn it into '?'
+        out.append(REPLACEMENT_CHARACTER);
+      } else {
+        int codePoint = value.codePointAt(i);
+        int chars = Character.charCount(codePoint);
+        for (byte b : value.substring(i, i + chars).getBytes(StandardCharsets.UTF_8)) {
+          appendEscaped(b, out);
+        }
+        i += chars - 1;
+      }
+    }
+  }
+
+  private static boolean isUnreserved(final char c) {
+    return (c >= 'a' && c <= 'z')
+        || (c >= 'A' && c <= 'Z')
+        || (c >= '0' && c <= '9')
+        || c == '-'
+        || c == '.'
+        || c == '_'
+        || c == '~';
+  }
+
+  private static void appendEscaped(final byte b, final StringBuilder out) {
+    out.append('%').append(HEX[(b >> 4) & 0xF]).append(HEX[b & 0xF]);
+  }
+
+  @Override
+  public String toString() {
+    return String.join("{}", fragments);
+  }
+
+  public static final class Builder {
+    private final List<String> fragments = new ArrayList<>();
+    private final StringBuilder current;
+    private boolean hasQuery;
+
+    private Builder(final String base) {
+      current = new StringBuilder(base);
+      hasQuery = base.indexOf('?') >= 0;
+    }
+
+    private void appendName(final String name) {
+      current.append(hasQuery ? '&' : '?');
+      hasQuery = true;
+      encode(name, current);
+      current.append('=');
+    }
+
+    /** A query parameter whose value is passed to {@link UrlTemplate#expand(String...)}. */
+    public Builder variable(final String name) {
+      appendName(name);
+      fragments.add(current.toString());
+      current.setLength(0);
+      return this;
+    }
+
+    public Builder constant(final String name, final String value) {
+      appendName(name);
+      encode(value, current);
+      return this;
+    }
+
+    public UrlTemplate build() {
+      List<String> all = new ArrayList<>(fragments);
+      all.add(current.toString());
+      return new UrlTemplate(all);
+    }
+  }
+}
@@ -0,0 +1,98 @@
+package io.github.johnjcool.keycloak.broker.cas.validation;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import org.keycloak.broker.provider.IdentityBrokerException;
+
+/**
+ * Limits the calls in flight to the CAS server of one identity provider, so that a slow CAS holds
+ * at most that many request threads and cannot starve the realms sharing the node. Callers beyond
+ * the limit wait in a bounded queue, in arrival order, and are rejected when the queue is full or
+ * their wait times out. A limit of 0 disables the bulkhead.
+ */
+public final class Bulkhead {
+
+  private final String name;
+  private final int maxConcurrent;
+  private final int maxQueued;
+  private final long queueTimeoutNanos;
+  private final Semaphore permits;
+  private final AtomicInteger queued = new AtomicInteger();
+  private final LongAdder rejected = new LongAdder();
+
+  public Bulkhead(
+      final String name,
+      final int maxConcurrent,
+      final int maxQueued,
+      final long queueTimeoutMillis) {
+    this.name = name;
+    this.maxConcurrent = maxConcurrent;
+    this.maxQueued = maxQueued;
+    this.queueTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(queueTimeoutMillis);
+    this.permits = new Semaphore(Math.max(maxConcurrent, 1), true);
+  }
+
+  /**
+   * Takes a slot, waiting for one if need be; every successful call must be paired with {@link
+   * #release()}.
+   *
+   * @throws BulkheadFullException when no slot became free in time
+   */
+  public void acquire() {
+    if (maxConcurrent <= 0) {
+      return;
+    }
+    try {
+      // the timed variant honours the fairness, so newcomers do not overtake the queue
+      if (permits.tryAcquire(0, TimeUnit.NANOSECONDS)) {
+        return;
+      }
+      int current;
+      do {
+        current = queued.get();
+        if (current >= maxQueued) {
+          throw reject("all " + maxConcurrent + " slots and " + maxQueued + " queue places taken");
+        }
+      } while (!queued.compareAndSet(current, current + 1));
+      try {
+        if (!permits.tryAcquire(queueTimeoutNanos, TimeUnit.NANOSECONDS)) {
+          throw reject(
+              "no slot free within " + TimeUnit.NANOSECONDS.toMillis(queueTimeoutNanos) + "ms");
+        }
+      } finally {
+        queued.decrementAndGet();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IdentityBrokerException("Interrupted while waiting for CAS", e);
+    }
+  }
+
+  public void release() {
+    if (maxConcurrent > 0) {
+      permits.release();
+    }
+  }
+
+  private BulkheadFullException reject(final String reason) {
+    rejected.increment();
+    return new BulkheadFullException("CAS calls for " + name + " rejected: " + reason);
+  }
+
+  /** Calls currently holding a slot. */
+  public int getActiveCount() {
+    return maxConcurrent <= 0 ? 0 : maxConcurrent - permits.availablePermits();
+  }
+
+  /** Calls currently waiting for a slot. */
+  public int getQueuedCount() {
+    return queued.get();
+  }
+
+  /** Calls rejected since the bulkhead was created. */
+  public long getRejectedCount() {
+    return rejected.sum();
+  }
+}
@@ -0,0 +1,13 @@
+package io.github.johnjcool.keycloak.broker.cas.validation;
+
+import java.io.Serial;
+
+/** The identity provider already has as many CAS calls in flight and queued as it may. */
+public class BulkheadFullException extends CasUnavailableException {
+
+  @Serial private static final long serialVersionUID = 1L;
+
+  public BulkheadFullException(final String message) {
+    super(message);
+  }
+}
@@ -0,0 +1,163 @@
+package io.github.johnjcool.keycloak.broker.cas.validation;
+
+import io.github.johnjcool.keycloak.broker.cas.parser.Cas10ResponseParser;
+import io.github.johnjcool.keycloak.broker.cas.parser.Saml11ResponseParser;
+import io.github.johnjcool.keycloak.broker.cas.parser.ServiceResponseParser;
+import io.github.johnjcool.keycloak.broker.cas.util.UrlTemplate;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.UUID;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+
+/**
+ * The CAS endpoint tickets are validated against. Each protocol knows the shape of its validation
+ * request and which parser reads its response.
+ */
+public enum CasProtocol {
+
+  /** {@code /validate}: plain text and no attributes, the cheapest when only the user matters. */
+  CAS10("cas-1.0", "validate"),
+  /** {@code /serviceValidate}: the CAS 2.0 XML response, with attributes from CAS 4 on. */
+  CAS20("cas-2.0", "serviceValidate"),
+  /** {@code /p3/serviceValidate}: the CAS 3.0 XML response with attributes. */
+  CAS30("cas-3.0", "p3/serviceValidate"),
+  /** {@code /samlValidate}: a SAML 1.1 assertion, the ticket posted in a SOAP request. */
+  SAML11("saml-1.1", "samlValidate");
+
+  private static final String PARAMETER_TICKET = "ticket";
+  private static final String PARAMETER_SERVICE = "service";
+  private static final String PARAMETER_RENEW = "renew";
+  private static final String PARAMETER_TARGET = "TARGET";
+  private static final String PARAMETER_FORMAT = "format";
+  private static final String PARAMETER_PGT_URL = "pgtUrl";
+  private static final ContentType SOAP_CONTENT_TYPE =
+      ContentType.create("text/xml", StandardCharsets.UTF_8);
+
+  private final String name;
+  private final String path;
+
+  CasProtocol(final String name, final String path) {
+    this.name = name;
+    this.path = path;
+  }
+
+  /** Name under which the protocol is configured. */
+  public String getName() {
+    return name;
+  }
+
+  /** The protocol configured under {@code name}, CAS 3.0 when none or an unknown one is. */
+  public static CasProtocol forName(final String name) {
+    for (CasProtocol protocol : values()) {
+      if (protocol.name.equalsIgnoreCase(name)) {
+        return protocol;
+      }
+    }
+    return CAS30;
+  }
+
+  public String getValidateUrl(final String casServerUrlPrefix) {
+    return String.format("%s/%s", casServerUrlPrefix, path);
+  }
+
+  /** Whether the validation can issue a proxy-granting ticket to a callback URL. */
+  public boolean supportsProxyCallback() {
+    return this == CAS20 || this == CAS30;
+  }
+
+  /** Whether a successful validation can carry attributes. */
+  public boolean releasesAttributes() {
+    return this != CAS10;
+  }
+
+  /** The parser for this protocol's responses; CAS 2.0 and 3.0 use the configured XML parser. */
+  public ServiceResponseParser getParser(final ServiceResponseParser xmlParser) {
+    return switch (this) {
+      case CAS10 -> Cas10ResponseParser.INSTANCE;
+      case CAS20, CAS30 -> xmlParser;
+      case SAML11 -> Saml11ResponseParser.INSTANCE;
+    };
+  }
+
+  /**
+   * Template of the validation URL, expanded by {@link #expand(UrlTemplate, String, String,
+   * String)}, asking for the response {@code format} of the parser unless it is null and for a
+   * proxy-granting ticket if {@code proxyCallback} is set.
+   */
+  public UrlTemplate getValidateTemplate(
+      final URI validateUrl,
+      final boolean renew,
+      final String format,
+      final boolean proxyCallback) {
+    if (this == SAML11) {
+      // the ticket travels in the request body
+      return UrlTemplate.builder(validateUrl).variable(PARAMETER_TARGET).build();
+    }
+    UrlTemplate.Builder template =
+        UrlTemplate.builder(validateUrl).variable(PARAMETER_TICKET).variable(PARAMETER_SERVICE);
+    if (renew) {
+      template.constant(PARAMETER_RENEW, "true");
+    }
+    if (format != null) {
+      template.constant(PARAMETER_FORMAT, format);
+    }
+    if (proxyCallback && supportsProxyCallback()) {
+      template.variable(PARAMETER_PGT_URL);
+    }
+    return template.build();
+  }
+
+  /** The validation URL; {@code pgtUrl} is only passed when the template asks for it. */
+  public URI expand(
+      final UrlTemplate template, final String ticket, final String service, final String pgtUrl) {
+    if (this == SAML11) {
+      return template.expand(service);
+    }
+    return pgtUrl != null
+        ? template.expand(ticket, service, pgtUrl)
+        : template.expand(ticket, service);
+  }
+
+  public HttpRequestBase newRequest(final URI validateUrl, final String ticket) {
+    if (this != SAML11) {
+      return new HttpGet(validateUrl);
+    }
+    HttpPost request = new HttpPost(validateUrl);
+    request.setEntity(new StringEntity(samlRequest(ticket), SOAP_CONTENT_TYPE));
+    return request;
+  }
+
+  private static String samlRequest(final String ticket) {
+    return "<SOAP-ENV:Envelope xmlns:SOAP-ENV=\"http://schemas.xmlsoap.org/soap/envelope/\">"
+        + "<SOAP-ENV:Header/><SOAP-ENV:Body>"
+        + "<samlp:Request xmlns:samlp=\"urn:oasis:names:tc:SAML:1.0:protocol\""
+        + " MajorVersion=\"1\" MinorVersion=\"1\" RequestID=\"_"
+        + UUID.randomUUID()
+        + "\" IssueInstant=\""
+        + Instant.now()
+        + "\"><samlp:AssertionArtifact>"
+        + escape(ticket)
+        + "</samlp:AssertionArtifact></samlp:Request></SOAP-ENV:Body></SOAP-ENV:Envelope>";
+  }
+
+  // tickets are opaque, and a forged one must not be able to change the request
+  private static String escape(final String value) {
+    StringBuilder escaped = new StringBuilder(value.length());
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      switch (c) {
+        case '<' -> escaped.append("&lt;");
+        case '>' -> escaped.append("&gt;");
+        case '&' -> escaped.append("&amp;");
+        case '"' -> escaped.append("&quot;");
+        default -> escaped.append(c);
+      }
+    }
+    return escaped.toString();
+  }
+}
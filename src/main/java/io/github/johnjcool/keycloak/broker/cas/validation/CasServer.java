@@ -0,0 +1,68 @@
+package io.github.johnjcool.keycloak.broker.cas.validation;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** One CAS node used for ticket validation, with passively tracked health and latency. */
+public final class CasServer {
+
+  private static final double LATENCY_SMOOTHING = 0.2;
+
+  private final String urlPrefix;
+  private final int failureThreshold;
+  private final long quarantineNanos;
+
+  private final AtomicInteger consecutiveFailures = new AtomicInteger();
+  private volatile long unhealthyUntil;
+  private volatile double averageLatency;
+
+  CasServer(final String urlPrefix, final int failureThreshold, final long quarantineMillis) {
+    this.urlPrefix = urlPrefix;
+    this.failureThreshold = failureThreshold;
+    this.quarantineNanos = TimeUnit.MILLISECONDS.toNanos(quarantineMillis);
+  }
+
+  public String getUrlPrefix() {
+    return urlPrefix;
+  }
+
+  public boolean isHealthy() {
+    return unhealthyUntil == 0 || System.nanoTime() - unhealthyUntil >= 0;
+  }
+
+  long getUnhealthyUntil() {
+    return unhealthyUntil;
+  }
+
+  /** Exponentially weighted average of successful validations, 0 until the first one. */
+  public double getAverageLatency() {
+    return averageLatency;
+  }
+
+  public int getConsecutiveFailures() {
+    return consecutiveFailures.get();
+  }
+
+  void onSuccess(final long latencyMillis) {
+    consecutiveFailures.set(0);
+    unhealthyUntil = 0;
+    double previous = averageLatency;
+    // racy updates only lose a sample, which is fine for a moving average
+    averageLatency =
+        previous == 0 ? latencyMillis : previous + LATENCY_SMOOTHING * (latencyMillis - previous);
+  }
+
+  void onFailure() {
+    if (consecutiveFailures.incrementAndGet() >= failureThreshold) {
+      // nanoTime may be 0, which is reserved for "healthy"
+      unhealthyUntil = (System.nanoTime() + quarantineNanos) | 1;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        "CasServer [urlPrefix=%s, healthy=%s, consecutiveFailures=%s, averageLatency=%.1f]",
+        urlPrefix, isHealthy(), getConsecutiveFailures(), getAverageLatency());
+  }
+}
@@ -0,0 +1,75 @@
+package io.github.johnjcool.keycloak.broker.cas.validation;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The CAS nodes ticket validation may be sent to. Healthy nodes are chosen round-robin or by lowest
+ * average latency; nodes that keep failing are skipped until their quarantine ends, and when no
+ * healthy node is left the one closest to recovery is tried anyway.
+ */
+public final class CasServerPool {
+
+  public static final String ROUND_ROBIN = "round-robin";
+  public static final String LEAST_LATENCY = "least-latency";
+
+  static final int FAILURE_THRESHOLD = 3;
+  static final long QUARANTINE_MILLIS = 10000;
+
+  private final List<CasServer> servers;
+  private final boolean leastLatency;
+  private final AtomicInteger next = new AtomicInteger();
+
+  public CasServerPool(final List<String> urlPrefixes, final String strategy) {
+    if (urlPrefixes.isEmpty()) {
+      throw new IllegalArgumentException("At least one CAS server URL prefix is required");
+    }
+    List<CasServer> list = new ArrayList<>(urlPrefixes.size());
+    for (String urlPrefix : urlPrefixes) {
+      list.add(new CasServer(urlPrefix, FAILURE_THRESHOLD, QUARANTINE_MILLIS));
+    }
+    this.servers = Collections.unmodifiableList(list);
+    this.leastLatency = LEAST_LATENCY.equalsIgnoreCase(strategy);
+  }
+
+  public List<CasServer> getServers() {
+    return servers;
+  }
+
+  public int size() {
+    return servers.size();
+  }
+
+  /** Picks the next server to try, skipping those already tried for this validation. */
+  public CasServer select(final List<CasServer> tried) {
+    if (servers.size() == 1) {
+      return tried.isEmpty() ? servers.getFirst() : null;
+    }
+    CasServer best = null;
+    int offset = leastLatency ? 0 : Math.floorMod(next.getAndIncrement(), servers.size());
+    for (int i = 0; i < servers.size(); i++) {
+      CasServer server = servers.get((offset + i) % servers.size());
+      if (!server.isHealthy() || tried.contains(server)) {
+        continue;
+      }
+      if (!leastLatency) {
+        return server;
+      }
+      if (best == null || server.getAverageLatency() < best.getAverageLatency()) {
+        best = server;
+      }
+    }
+    if (best != null) {
+      return best;
+    }
+    for (CasServer server : servers) {
+      if (!tried.contains(server)
+          && (best == null || server.getUnhealthyUntil() - best.getUnhealthyUntil() < 0)) {
+        best = server;
+      }
+    }
+    return best;
+  }
+}
@@ -0,0 +1,39 @@
+package io.github.johnjcool.keycloak.broker.cas.validation;
+
+import java.io.Serial;
+import org.keycloak.broker.provider.IdentityBrokerException;
+
+/**
+ * The CAS server could not be reached or failed to answer properly (I/O error, timeout or 5xx), as
+ * opposed to a well-formed response rejecting the ticket.
+ */
+public class CasUnavailableException extends IdentityBrokerException {
+
+  @Serial private static final long serialVersionUID = 1L;
+
+  private final boolean retryable;
+
+  public CasUnavailableException(final String message) {
+    this(message, false);
+  }
+
+  public CasUnavailableException(final String message, final boolean retryable) {
+    super(message);
+    this.retryable = retryable;
+  }
+
+  public CasUnavailableException(final String message, final Throwable cause) {
+    this(message, cause, false);
+  }
+
+  public CasUnavailableException(
+      final String message, final Throwable cause, final boolean retryable) {
+    super(message, cause);
+    this.retryable = retryable;
+  }
+
+  /** Whether the ticket is known to be untouched, so the validation may go to another node. */
+  public boolean isRetryable() {
+    return retryable;
+  }
+}
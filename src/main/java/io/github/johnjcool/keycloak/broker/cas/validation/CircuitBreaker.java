@@ -0,0 +1,98 @@
+package io.github.johnjcool.keycloak.broker.cas.validation;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.jboss.logging.Logger;
+
+/**
+ * Consecutive-failure circuit breaker. While open, calls are rejected until the open duration has
+ * elapsed; then a single probe call is let through in the half-open state and its outcome either
+ * closes or re-opens the circuit. A threshold of 0 disables the breaker.
+ */
+public final class CircuitBreaker {
+
+  private static final Logger logger = Logger.getLogger(CircuitBreaker.class);
+
+  public enum State {
+    CLOSED,
+    OPEN,
+    HALF_OPEN
+  }
+
+  private final String name;
+  private final int failureThreshold;
+  private final long openDurationNanos;
+
+  private final AtomicReference<State> state = new AtomicReference<>(State.CLOSED);
+  private final AtomicInteger consecutiveFailures = new AtomicInteger();
+  private volatile long openedAt;
+
+  public CircuitBreaker(
+      final String name, final int failureThreshold, final long openDurationMillis) {
+    this.name = name;
+    this.failureThreshold = failureThreshold;
+    this.openDurationNanos = TimeUnit.MILLISECONDS.toNanos(openDurationMillis);
+  }
+
+  public boolean tryAcquire() {
+    if (failureThreshold <= 0) {
+      return true;
+    }
+    State current = state.get();
+    if (current == State.CLOSED) {
+      return true;
+    }
+    if (current == State.OPEN && System.nanoTime() - openedAt >= openDurationNanos) {
+      // only the caller winning the transition becomes the probe
+      if (state.compareAndSet(State.OPEN, State.HALF_OPEN)) {
+        logger.infof("CAS circuit %s is half-open, probing", name);
+        return true;
+      }
+    }
+    return false;
+  }
+
+  public void onSuccess() {
+    consecutiveFailures.set(0);
+    if (state.get() != State.CLOSED && state.getAndSet(State.CLOSED) != State.CLOSED) {
+      logger.infof("CAS circuit %s closed", name);
+    }
+  }
+
+  public void onFailure() {
+    if (failureThreshold <= 0) {
+      return;
+    }
+    State current = state.get();
+    if (current == State.HALF_OPEN) {
+      trip(State.HALF_OPEN);
+    } else if (current == State.CLOSED
+        && consecutiveFailures.incrementAndGet() >= failureThreshold) {
+      trip(State.CLOSED);
+    }
+  }
+
+  private void trip(final State expected) {
+    openedAt = System.nanoTime();
+    if (state.compareAndSet(expected, State.OPEN)) {
+      logger.warnf(
+          "CAS circuit %s opened after %d consecutive failures", name, consecutiveFailures.get());
+    }
+  }
+
+  public State getState() {
+    return state.get();
+  }
+
+  public int getConsecutiveFailures() {
+    return consecutiveFailures.get();
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        "CircuitBreaker [name=%s, state=%s, consecutiveFailures=%s]",
+        name, getState(), getConsecutiveFailures());
+  }
+}
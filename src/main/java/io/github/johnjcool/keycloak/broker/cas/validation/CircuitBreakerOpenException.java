@@ -0,0 +1,12 @@
+package io.github.johnjcool.keycloak.broker.cas.validation;
+
+import java.io.Serial;
+
+public class CircuitBreakerOpenException extends CasUnavailableException {
+
+  @Serial private static final long serialVersionUID = 1L;
+
+  public CircuitBreakerOpenException(final String message) {
+    super(message);
+  }
+}
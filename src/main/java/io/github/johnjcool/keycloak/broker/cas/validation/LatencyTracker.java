@@ -0,0 +1,63 @@
+package io.github.johnjcool.keycloak.broker.cas.validation;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Sliding window of the most recent latency samples, in milliseconds. Percentiles are read from a
+ * sorted copy of the window that is only taken again after a sixteenth of the window was replaced,
+ * so reading them on every validation does not sort on every validation.
+ */
+public final class LatencyTracker {
+
+  private final AtomicLongArray samples;
+  private final AtomicLong recorded = new AtomicLong();
+  private final int refreshInterval;
+  private volatile Sorted sorted = new Sorted(0, new long[0]);
+
+  public LatencyTracker(final int windowSize) {
+    samples = new AtomicLongArray(windowSize);
+    refreshInterval = Math.max(1, windowSize / 16);
+  }
+
+  public void record(final long millis) {
+    long index = recorded.getAndIncrement();
+    samples.set((int) (index % samples.length()), millis);
+  }
+
+  public int getSampleCount() {
+    return (int) Math.min(recorded.get(), samples.length());
+  }
+
+  /** Returns the given percentile (0-100) of the window, or -1 when no samples were recorded. */
+  public long percentile(final double percentile) {
+    long[] window = getSorted();
+    int count = window.length;
+    if (count == 0) {
+      return -1;
+    }
+    int rank = (int) Math.ceil(percentile / 100.0 * count) - 1;
+    return window[Math.max(0, Math.min(count - 1, rank))];
+  }
+
+  private long[] getSorted() {
+    long now = recorded.get();
+    Sorted current = sorted;
+    // until the window is full every sample counts, so the copy is refreshed on each of them
+    if (now == current.recorded
+        || (current.recorded >= samples.length() && now - current.recorded < refreshInterval)) {
+      return current.window;
+    }
+    int count = (int) Math.min(now, samples.length());
+    long[] window = new long[count];
+    for (int i = 0; i < count; i++) {
+      window[i] = samples.get(i);
+    }
+    Arrays.sort(window);
+    sorted = new Sorted(now, window);
+    return window;
+  }
+
+  private record Sorted(long recorded, long[] window) {}
+}
@@ -0,0 +1,650 @@
+package io.github.johnjcool.keycloak.broker.cas.validation;
+
+import io.github.johnjcool.keycloak.broker.cas.CasIdentityProviderConfig;
+import io.github.johnjcool.keycloak.broker.cas.http.CasHttpClient;
+import io.github.johnjcool.keycloak.broker.cas.metrics.ValidationMetrics;
+import io.github.johnjcool.keycloak.broker.cas.model.ProxyResponse;
+import io.github.johnjcool.keycloak.broker.cas.model.ServiceResponse;
+import io.github.johnjcool.keycloak.broker.cas.parser.ProxyResponseParser;
+import io.github.johnjcool.keycloak.broker.cas.parser.ServiceResponseParseException;
+import io.github.johnjcool.keycloak.broker.cas.parser.ServiceResponseParser;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.util.EntityUtils;
+import org.jboss.logging.Logger;
+import org.keycloak.broker.provider.IdentityBrokerException;
+import org.keycloak.truststore.TruststoreProvider;
+
+/**
+ * Validates service tickets against the CAS server of one identity provider. Instances are shared
+ * by all logins through that provider and rebuilt by the factory when its configuration changes.
+ *
+ * <p>The factory holds one reference and every provider using the service another, see {@link
+ * #retain()}. A replaced service is only closed once the last provider released it, so logins still
+ * running against it are not cut off.
+ */
+public final class TicketValidationService implements Closeable {
+
+  private static final Logger logger = Logger.getLogger(TicketValidationService.class);
+
+  private static final int LATENCY_WINDOW = 256;
+  private static final int ADAPTIVE_TIMEOUT_MIN_SAMPLES = 32;
+  private static final double ADAPTIVE_TIMEOUT_PERCENTILE = 99;
+  private static final int ADAPTIVE_TIMEOUT_MULTIPLIER = 3;
+  private static final int ADAPTIVE_TIMEOUT_FLOOR = 1000;
+
+  // one daemon thread aborts the requests of every validation that outlives its timeout
+  private static final ScheduledThreadPoolExecutor DEADLINES = newDeadlineTimer();
+
+  private final Map<String, String> configuration;
+  private final String alias;
+  private final CasHttpClient httpClient;
+  private final CasServerPool servers;
+  private final ExecutorService executor;
+  private final CircuitBreaker circuitBreaker;
+  private final Bulkhead bulkhead;
+  private final LatencyTracker latencies = new LatencyTracker(LATENCY_WINDOW);
+  private final ValidationMetrics metrics;
+
+  private final LongAdder hedgedRequests = new LongAdder();
+  private final LongAdder hedgedWins = new LongAdder();
+  // the factory's reference plus one per provider; closed when it drops to zero
+  private final AtomicInteger references = new AtomicInteger(1);
+
+  private final boolean hedging;
+  private final double hedgingPercentile;
+  private final int validationTimeout;
+  private final boolean adaptiveTimeout;
+  private final int readTimeout;
+
+  public TicketValidationService(
+      final CasIdentityProviderConfig config,
+      final TruststoreProvider truststoreProvider,
+      final ExecutorService executor,
+      final MeterRegistry meterRegistry) {
+    this.configuration = new HashMap<>(config.getConfig());
+    this.alias = config.getAlias();
+    this.httpClient = new CasHttpClient(config.getHttpClientSettings(), truststoreProvider);
+    this.servers = new CasServerPool(config.getValidationUrlPrefixes(), config.getLoadBalancing());
+    this.executor = executor;
+    this.circuitBreaker =
+        new CircuitBreaker(
+            alias,
+            config.getCircuitBreakerFailureThreshold(),
+            config.getCircuitBreakerOpenDuration());
+    this.bulkhead =
+        new Bulkhead(
+            alias,
+            config.getValidationMaxConcurrent(),
+            config.getValidationQueueSize(),
+            config.getValidationQueueTimeout());
+    this.hedging = config.isHedging();
+    this.hedgingPercentile = config.getHedgingPercentile();
+    this.validationTimeout = config.getValidationTimeout();
+    this.adaptiveTimeout = config.isAdaptiveTimeout();
+    this.readTimeout = config.getValidationReadTimeout();
+    this.metrics = new ValidationMetrics(meterRegistry, alias);
+    metrics.bindCircuitBreaker(circuitBreaker);
+    metrics.bindBulkhead(bulkhead);
+    metrics.bindHttpClient(httpClient);
+  }
+
+  private static ScheduledThreadPoolExecutor newDeadlineTimer() {
+    ScheduledThreadPoolExecutor timer =
+        new ScheduledThreadPoolExecutor(
+            1, Thread.ofPlatform().name("cas-validation-deadline").daemon().factory());
+    timer.setRemoveOnCancelPolicy(true);
+    return timer;
+  }
+
+  public boolean isConfiguredBy(final CasIdentityProviderConfig config) {
+    return configuration.equals(config.getConfig());
+  }
+
+  /**
+   * Validates against the configured CAS nodes. {@code newRequest} builds the validation request
+   * for a node's URL prefix; failures that certainly left the ticket untouched are retried on
+   * another node. Only the named {@code attributes} are kept from a success, all of them when null.
+   */
+  public ServiceResponse validate(
+      final Function<String, HttpRequestBase> newRequest,
+      final ServiceResponseParser parser,
+      final Set<String> attributes) {
+    // taken before the circuit breaker, so a rejection cannot strand its half-open probe
+    bulkhead.acquire();
+    try {
+      return validateInBulkhead(newRequest, parser, attributes);
+    } finally {
+      bulkhead.release();
+    }
+  }
+
+  private ServiceResponse validateInBulkhead(
+      final Function<String, HttpRequestBase> newRequest,
+      final ServiceResponseParser parser,
+      final Set<String> attributes) {
+    if (!circuitBreaker.tryAcquire()) {
+      throw new CircuitBreakerOpenException(
+          "CAS validation for " + alias + " is suspended after repeated failures");
+    }
+    int socketTimeout = getSocketTimeout();
+    long hedgingDelay = getHedgingDelay();
+    long start = System.nanoTime();
+    try {
+      ServiceResponse response;
+      if (hedgingDelay >= 0) {
+        response = executeHedged(newRequest, parser, attributes, socketTimeout, hedgingDelay);
+      } else {
+        response = executeWithDeadline(newRequest, parser, attributes, socketTimeout);
+      }
+      latencies.record(elapsedMillis(start));
+      circuitBreaker.onSuccess();
+      if (response.getFailure() != null) {
+        metrics.recordValidation(ValidationMetrics.OUTCOME_REJECTED, System.nanoTime() - start);
+        metrics.recordFailure(response.getFailure().getCode());
+      } else {
+        metrics.recordValidation(ValidationMetrics.OUTCOME_SUCCESS, System.nanoTime() - start);
+        if (response.getSuccess() != null) {
+          metrics.recordAttributes(response.getSuccess().getAttributes());
+        }
+      }
+      return response;
+    } catch (CasUnavailableException e) {
+      circuitBreaker.onFailure();
+      metrics.recordValidation(ValidationMetrics.OUTCOME_UNAVAILABLE, System.nanoTime() - start);
+      throw e;
+    } catch (RuntimeException e) {
+      // CAS answered, so the circuit has no reason to stay open
+      circuitBreaker.onSuccess();
+      metrics.recordValidation(ValidationMetrics.OUTCOME_ERROR, System.nanoTime() - start);
+      throw e;
+    }
+  }
+
+  private ServiceResponse executeWithFailover(
+      final Function<String, HttpRequestBase> newRequest,
+      final ServiceResponseParser parser,
+      final Set<String> attributes,
+      final int socketTimeout,
+      final AtomicReference<HttpRequestBase> inFlight) {
+    List<CasServer> tried = new ArrayList<>(1);
+    return executeWithFailover(
+        servers.select(tried), tried, newRequest, parser, attributes, socketTimeout, inFlight);
+  }
+
+  private ServiceResponse executeWithFailover(
+      final CasServer first,
+      final List<CasServer> tried,
+      final Function<String, HttpRequestBase> newRequest,
+      final ServiceResponseParser parser,
+      final Set<String> attributes,
+      final int socketTimeout,
+      final AtomicReference<HttpRequestBase> inFlight) {
+    CasServer server = first;
+    while (true) {
+      tried.add(server);
+      HttpRequestBase request = newRequest.apply(server.getUrlPrefix());
+      request.setConfig(
+          RequestConfig.copy(httpClient.getDefaultRequestConfig())
+              .setSocketTimeout(socketTimeout)
+              .build());
+      HttpRequestBase previous = inFlight.getAndSet(request);
+      if (previous != null && previous.isAborted()) {
+        // the validation was given up on while the previous node failed
+        request.abort();
+      }
+      long start = System.nanoTime();
+      try {
+        ServiceResponse response = execute(request, parser, attributes);
+        server.onSuccess(elapsedMillis(start));
+        return response;
+      } catch (CasUnavailableException e) {
+        server.onFailure();
+        CasServer next = e.isRetryable() ? servers.select(tried) : null;
+        if (next == null || Thread.currentThread().isInterrupted()) {
+          throw e;
+        }
+        logger.warnf(
+            "CAS server %s failed (%s), retrying on %s",
+            server.getUrlPrefix(), e.getMessage(), next.getUrlPrefix());
+        server = next;
+      }
+    }
+  }
+
+  private static long elapsedMillis(final long start) {
+    return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+  }
+
+  /**
+   * Socket timeout for the next request. Once enough samples exist it follows the observed tail
+   * latency, so a degraded server is given up on long before the configured read timeout.
+   */
+  int getSocketTimeout() {
+    if (!adaptiveTimeout || latencies.getSampleCount() < ADAPTIVE_TIMEOUT_MIN_SAMPLES) {
+      return readTimeout;
+    }
+    long adaptive = latencies.percentile(ADAPTIVE_TIMEOUT_PERCENTILE) * ADAPTIVE_TIMEOUT_MULTIPLIER;
+    return (int) Math.min(readTimeout, Math.max(ADAPTIVE_TIMEOUT_FLOOR, adaptive));
+  }
+
+  /**
+   * Delay after which a second validation is sent to another node, or -1 when hedging is off or not
+   * enough latency samples exist yet.
+   */
+  long getHedgingDelay() {
+    if (!hedging
+        || servers.size() < 2
+        || latencies.getSampleCount() < ADAPTIVE_TIMEOUT_MIN_SAMPLES) {
+      return -1;
+    }
+    return latencies.percentile(hedgingPercentile);
+  }
+
+  /**
+   * Sends the validation to one node and, if it has not answered after {@code hedgingDelay}, to a
+   * second one. The first successful response wins and the other request is aborted; a rejected
+   * ticket only wins once both have answered, since the slower node may have consumed it first.
+   */
+  private ServiceResponse executeHedged(
+      final Function<String, HttpRequestBase> newRequest,
+      final ServiceResponseParser parser,
+      final Set<String> attributes,
+      final int socketTimeout,
+      final long hedgingDelay) {
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(validationTimeout);
+    CasServer primary = servers.select(List.of());
+    List<Attempt> attempts = new ArrayList<>(2);
+    attempts.add(new Attempt(primary, newRequest, parser, attributes, socketTimeout));
+    try {
+      try {
+        attempts.getFirst().future.get(hedgingDelay, TimeUnit.MILLISECONDS);
+      } catch (TimeoutException e) {
+        CasServer secondary = servers.select(List.of(primary));
+        if (secondary != null) {
+          logger.debugf(
+              "CAS server %s slower than %dms, hedging on %s",
+              primary.getUrlPrefix(), hedgingDelay, secondary.getUrlPrefix());
+          hedgedRequests.increment();
+          attempts.add(new Attempt(secondary, newRequest, parser, attributes, socketTimeout));
+        }
+      } catch (ExecutionException e) {
+        // examined below with the other outcomes
+      }
+      Attempt fallback = null;
+      List<Attempt> pending = new ArrayList<>(attempts);
+      while (!pending.isEmpty()) {
+        long remaining = deadline - System.nanoTime();
+        try {
+          CompletableFuture.anyOf(
+                  pending.stream().map(attempt -> attempt.future).toArray(CompletableFuture[]::new))
+              .get(remaining, TimeUnit.NANOSECONDS);
+        } catch (ExecutionException e) {
+          // examined below
+        }
+        for (Iterator<Attempt> it = pending.iterator(); it.hasNext(); ) {
+          Attempt attempt = it.next();
+          if (!attempt.future.isDone()) {
+            continue;
+          }
+          it.remove();
+          if (attempt.isSuccess()) {
+            if (attempt != attempts.getFirst()) {
+              hedgedWins.increment();
+            }
+            return attempt.join();
+          }
+          if (fallback == null) {
+            fallback = attempt;
+          }
+        }
+      }
+      return fallback.join();
+    } catch (TimeoutException e) {
+      throw new CasUnavailableException("CAS did not answer within " + validationTimeout + "ms", e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IdentityBrokerException("Interrupted while waiting for CAS", e);
+    } finally {
+      attempts.forEach(Attempt::cancel);
+    }
+  }
+
+  private final class Attempt {
+    private final AtomicReference<HttpRequestBase> inFlight = new AtomicReference<>();
+    private final CompletableFuture<ServiceResponse> future;
+
+    Attempt(
+        final CasServer server,
+        final Function<String, HttpRequestBase> newRequest,
+        final ServiceResponseParser parser,
+        final Set<String> attributes,
+        final int socketTimeout) {
+      List<CasServer> tried = new ArrayList<>(1);
+      future =
+          CompletableFuture.supplyAsync(
+              () ->
+                  executeWithFailover(
+                      server, tried, newRequest, parser, attributes, socketTimeout, inFlight),
+              executor);
+    }
+
+    boolean isSuccess() {
+      return !future.isCompletedExceptionally() && future.join().getSuccess() != null;
+    }
+
+    ServiceResponse join() {
+      try {
+        return future.join();
+      } catch (CompletionException e) {
+        if (e.getCause() instanceof IdentityBrokerException cause) {
+          throw cause;
+        }
+        throw new CasUnavailableException("Failed to complete CAS authentication", e.getCause());
+      }
+    }
+
+    void cancel() {
+      if (!future.isDone()) {
+        future.cancel(true);
+        HttpRequestBase request = inFlight.get();
+        if (request != null) {
+          request.abort();
+        }
+      }
+    }
+  }
+
+  /**
+   * Runs the validation with failover on the calling thread. Socket timeouts bound each read, not
+   * the whole exchange or the retries, so the request in flight is aborted once the validation
+   * timeout has elapsed.
+   */
+  private ServiceResponse executeWithDeadline(
+      final Function<String, HttpRequestBase> newRequest,
+      final ServiceResponseParser parser,
+      final Set<String> attributes,
+      final int socketTimeout) {
+    AtomicReference<HttpRequestBase> inFlight = new AtomicReference<>();
+    Deadline deadline = new Deadline(inFlight, validationTimeout);
+    try {
+      return executeWithFailover(newRequest, parser, attributes, socketTimeout, inFlight);
+    } catch (RuntimeException e) {
+      if (deadline.isExpired()) {
+        throw new CasUnavailableException(
+            "CAS did not answer within " + validationTimeout + "ms", e);
+      }
+      throw e;
+    } finally {
+      deadline.cancel();
+    }
+  }
+
+  /** Aborts the request in flight when the validation timeout elapses. */
+  private static final class Deadline implements Runnable {
+    private final AtomicReference<HttpRequestBase> inFlight;
+    private final ScheduledFuture<?> timer;
+    private volatile boolean expired;
+
+    Deadline(final AtomicReference<HttpRequestBase> inFlight, final long timeoutMillis) {
+      this.inFlight = inFlight;
+      this.timer = DEADLINES.schedule(this, timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void run() {
+      expired = true;
+      HttpRequestBase request = inFlight.get();
+      if (request != null) {
+        // a retry that is about to start sees the abort, see executeWithFailover
+        request.abort();
+      }
+    }
+
+    boolean isExpired() {
+      return expired;
+    }
+
+    void cancel() {
+      timer.cancel(false);
+    }
+  }
+
+  private ServiceResponse execute(
+      final HttpRequestBase request,
+      final ServiceResponseParser parser,
+      final Set<String> attributes) {
+    return execute(
+        request,
+        in -> {
+          long start = System.nanoTime();
+          try {
+            return parser.parse(in, attributes);
+          } finally {
+            metrics.recordParse(parser.getName(), System.nanoTime() - start);
+          }
+        });
+  }
+
+  private <T> T execute(final HttpRequestBase request, final ResponseReader<T> reader) {
+    try (CloseableHttpResponse response = httpClient.execute(request)) {
+      int status = response.getStatusLine().getStatusCode();
+      HttpEntity entity = response.getEntity();
+      if (status != 200) {
+        metrics.recordHttpError(status);
+        logger.error(entity == null ? "" : EntityUtils.toString(entity));
+        String message = "CAS returned a non-200 response code: " + status;
+        if (status >= 500) {
+          // the gateway could not reach CAS or CAS refused the work, so the ticket is untouched
+          boolean retryable = status == 502 || status == 503;
+          throw new CasUnavailableException(message, retryable);
+        }
+        throw new IdentityBrokerException(message);
+      }
+      if (entity == null) {
+        throw new IdentityBrokerException("CAS returned an empty response");
+      }
+
+      InputStream in;
+      if (logger.isDebugEnabled()) {
+        byte[] raw = EntityUtils.toByteArray(entity);
+        logger.debug("Raw response from CAS: " + new String(raw, StandardCharsets.UTF_8));
+        in = new ByteArrayInputStream(raw);
+      } else {
+        in = entity.getContent();
+      }
+      try (in) {
+        return reader.read(in);
+      }
+    } catch (ServiceResponseParseException e) {
+      throw new IdentityBrokerException("Failed to complete CAS authentication", e);
+    } catch (ConnectException
+        | ConnectTimeoutException
+        | NoRouteToHostException
+        | UnknownHostException e) {
+      // the request never reached CAS; this includes waiting for a pooled connection
+      throw new CasUnavailableException("Failed to connect to CAS", e, true);
+    } catch (IOException e) {
+      throw new CasUnavailableException("Failed to complete CAS authentication", e);
+    }
+  }
+
+  @FunctionalInterface
+  private interface ResponseReader<T> {
+    T read(InputStream in) throws IOException;
+  }
+
+  /**
+   * Requests a proxy ticket from the configured CAS nodes; {@code proxyUrl} builds the proxy URL
+   * for a node's URL prefix. Like validations, requests that certainly did not reach CAS are
+   * retried on another node.
+   */
+  public ProxyResponse requestProxyTicket(final Function<String, URI> proxyUrl) {
+    bulkhead.acquire();
+    try {
+      return requestProxyTicketInBulkhead(proxyUrl);
+    } finally {
+      bulkhead.release();
+    }
+  }
+
+  private ProxyResponse requestProxyTicketInBulkhead(final Function<String, URI> proxyUrl) {
+    if (!circuitBreaker.tryAcquire()) {
+      throw new CircuitBreakerOpenException(
+          "CAS requests for " + alias + " are suspended after repeated failures");
+    }
+    int socketTimeout = getSocketTimeout();
+    List<CasServer> tried = new ArrayList<>(1);
+    CasServer server = servers.select(tried);
+    try {
+      while (true) {
+        tried.add(server);
+        HttpGet request = new HttpGet(proxyUrl.apply(server.getUrlPrefix()));
+        request.setConfig(
+            RequestConfig.copy(httpClient.getDefaultRequestConfig())
+                .setSocketTimeout(socketTimeout)
+                .build());
+        long start = System.nanoTime();
+        try {
+          ProxyResponse response = execute(request, ProxyResponseParser.INSTANCE::parse);
+          server.onSuccess(elapsedMillis(start));
+          circuitBreaker.onSuccess();
+          return response;
+        } catch (CasUnavailableException e) {
+          server.onFailure();
+          CasServer next = e.isRetryable() ? servers.select(tried) : null;
+          if (next == null) {
+            throw e;
+          }
+          server = next;
+        }
+      }
+    } catch (CasUnavailableException e) {
+      circuitBreaker.onFailure();
+      throw e;
+    } catch (RuntimeException e) {
+      // CAS answered, so the circuit has no reason to stay open
+      circuitBreaker.onSuccess();
+      throw e;
+    }
+  }
+
+  public String getAlias() {
+    return alias;
+  }
+
+  public CasHttpClient getHttpClient() {
+    return httpClient;
+  }
+
+  public CasServerPool getServers() {
+    return servers;
+  }
+
+  /** Validations for which a second request was sent. */
+  public long getHedgedRequestCount() {
+    return hedgedRequests.sum();
+  }
+
+  /** Hedged validations answered by the second request. */
+  public long getHedgedWinCount() {
+    return hedgedWins.sum();
+  }
+
+  public Bulkhead getBulkhead() {
+    return bulkhead;
+  }
+
+  public CircuitBreaker getCircuitBreaker() {
+    return circuitBreaker;
+  }
+
+  public LatencyTracker getLatencies() {
+    return latencies;
+  }
+
+  public ValidationMetrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * Takes a reference for a provider, to be given back with {@link #release()}. Fails once the
+   * service was released by everyone, as it is closed then.
+   */
+  public boolean retain() {
+    int count;
+    do {
+      count = references.get();
+      if (count == 0) {
+        return false;
+      }
+    } while (!references.compareAndSet(count, count + 1));
+    return true;
+  }
+
+  /** Gives back a reference; the last one closes the service. */
+  public void release() {
+    if (references.decrementAndGet() == 0) {
+      logger.debugf("Closing CAS validation service for %s", alias);
+      try {
+        close();
+      } catch (IOException e) {
+        logger.warn("Failed to close CAS validation service", e);
+      }
+    }
+  }
+
+  /**
+   * Called by the factory when the service is replaced or its provider removed. The meters go at
+   * once, so that a successor can register its own; the service itself is closed once released by
+   * every provider.
+   */
+  public void retire() {
+    metrics.close();
+    release();
+  }
+
+  public boolean isClosed() {
+    return references.get() == 0;
+  }
+
+  /** Closes the service at once, whoever still uses it. */
+  @Override
+  public void close() throws IOException {
+    references.set(0);
+    metrics.close();
+    httpClient.close();
+  }
+}
@@ -0,0 +1,475 @@
+package io.github.johnjcool.keycloak.broker.cas;
+
+import io.github.johnjcool.keycloak.broker.cas.validation.TicketValidationService;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.undertow.Undertow;
+import io.undertow.util.Headers;
+import jakarta.ws.rs.core.Response;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.keycloak.broker.provider.IdentityBrokerException;
+import org.keycloak.broker.provider.IdentityProvider;
+import org.keycloak.common.ClientConnection;
+import org.keycloak.common.util.Time;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.KeycloakContext;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.SingleUseObjectProvider;
+import org.keycloak.models.UserSessionModel;
+import org.keycloak.models.UserSessionProvider;
+import org.keycloak.sessions.AuthenticationSessionModel;
+import org.keycloak.sessions.AuthenticationSessionProvider;
+import org.keycloak.sessions.RootAuthenticationSessionModel;
+
+public class CasIdentityProviderEndpointTest {
+
+  private static final String PROXY_SUCCESS =
+      "<cas:serviceResponse xmlns:cas=\"http://www.yale.edu/tp/cas\"><cas:proxySuccess>"
+          + "<cas:proxyTicket>PT-1</cas:proxyTicket></cas:proxySuccess></cas:serviceResponse>";
+
+  private static Undertow server;
+  private static int port;
+  // what the CAS /proxy endpoint answers, and the requests it received
+  private static volatile String proxyResponse;
+  private static final List<String> proxyRequests = new CopyOnWriteArrayList<>();
+
+  private final Map<String, Map<String, String>> singleUseObjects = new HashMap<>();
+  private final Map<String, Long> lifespans = new HashMap<>();
+  private final Map<String, Session> userSessions = new HashMap<>();
+  private final List<String> removed = new ArrayList<>();
+  private final List<TicketValidationService> services = new ArrayList<>();
+  private CasIdentityProviderConfig config;
+  private RealmModel realm;
+  private KeycloakSession session;
+
+  @BeforeClass
+  public static void startServer() {
+    server =
+        Undertow.builder()
+            .addHttpListener(0, "localhost")
+            .setHandler(
+                exchange -> {
+                  proxyRequests.add(exchange.getRequestPath() + "?" + exchange.getQueryString());
+                  exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, "application/xml");
+                  exchange.getResponseSender().send(proxyResponse);
+                })
+            .build();
+    server.start();
+    port = ((InetSocketAddress) server.getListenerInfo().getFirst().getAddress()).getPort();
+  }
+
+  @AfterClass
+  public static void stopServer() {
+    server.stop();
+  }
+
+  @Before
+  @SuppressWarnings("unchecked")
+  public void setUp() {
+    proxyResponse = PROXY_SUCCESS;
+    proxyRequests.clear();
+    config = new CasIdentityProviderConfig();
+    config.setAlias("cas");
+    config.setCasServerUrlPrefix("http://localhost:" + port + "/cas");
+    config.setProxyGranting(true);
+    config.setProxyGrantingTicketLifespan(600);
+    realm =
+        Models.stub(
+            RealmModel.class,
+            Map.of(
+                "getSsoSessionMaxLifespan", args -> 36000,
+                "getSsoSessionMaxLifespanRememberMe", args -> 0,
+                "getClientByClientId", args -> Models.stub(ClientModel.class, Map.of())));
+    SingleUseObjectProvider singleUse =
+        Models.stub(
+            SingleUseObjectProvider.class,
+            Map.of(
+                "put",
+                args -> {
+                  singleUseObjects.put((String) args[0], (Map<String, String>) args[2]);
+                  lifespans.put((String) args[0], (Long) args[1]);
+                  return null;
+                },
+                "remove",
+                args -> singleUseObjects.remove((String) args[0])));
+    UserSessionProvider sessions =
+        Models.stub(
+            UserSessionProvider.class,
+            Map.of(
+                "getUserSession",
+                args -> model(userSessions.get((String) args[1])),
+                "getUserSessionByBrokerSessionId",
+                args ->
+                    model(
+                        userSessions.values().stream()
+                            .filter(s -> args[1].equals(s.brokerSessionId))
+                            .findFirst()
+                            .orElse(null)),
+                "removeUserSession",
+                args -> {
+                  removed.add(((UserSessionModel) args[1]).getId());
+                  return null;
+                }));
+    // the logout runs in an authentication session of its own
+    AtomicReference<RootAuthenticationSessionModel> logoutSession = new AtomicReference<>();
+    logoutSession.set(
+        Models.stub(
+            RootAuthenticationSessionModel.class,
+            Map.of(
+                "getId",
+                args -> "logout",
+                "getAuthenticationSessions",
+                args -> Map.of(),
+                "createAuthenticationSession",
+                args ->
+                    Models.stub(
+                        AuthenticationSessionModel.class,
+                        Map.of("getParentSession", a -> logoutSession.get())))));
+    AuthenticationSessionProvider authenticationSessions =
+        Models.stub(
+            AuthenticationSessionProvider.class,
+            Map.of("createRootAuthenticationSession", args -> logoutSession.get()));
+    KeycloakContext context =
+        Models.stub(
+            KeycloakContext.class,
+            Map.of("getConnection", args -> Models.stub(ClientConnection.class, Map.of())));
+    session =
+        Models.stub(
+            KeycloakSession.class,
+            Map.of(
+                "getContext", args -> context,
+                "singleUseObjects", args -> singleUse,
+                "sessions", args -> sessions,
+                "authenticationSessions", args -> authenticationSessions));
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    for (TicketValidationService service : services) {
+      service.close();
+    }
+  }
+
+  @Test
+  public void testIndexedTicketEndsItsSession() {
+    Session userSession = addSession(null);
+    endpoint().indexSession("ST-1", authSession(userSession.id));
+
+    Response response = endpoint().backchannelLogout(List.of(logoutRequest("ST-1")));
+
+    Assert.assertEquals(200, response.getStatus());
+    Assert.assertEquals(List.of(userSession.id), removed);
+    Assert.assertEquals(UserSessionModel.State.LOGGED_OUT, userSession.state);
+    // the index entry is used up
+    Assert.assertTrue(singleUseObjects.isEmpty());
+  }
+
+  @Test
+  public void testSessionIsIndexedForTheSsoLifespan() {
+    endpoint().indexSession("ST-1", authSession("root"));
+
+    Assert.assertEquals(
+        Map.of("userSessionId", "root"), singleUseObjects.get("cas.sessionIndex.cas.ST-1"));
+    Assert.assertEquals(Long.valueOf(36000), lifespans.get("cas.sessionIndex.cas.ST-1"));
+  }
+
+  @Test
+  public void testUnindexedTicketFallsBackToTheBrokerSessionId() {
+    // e.g. the index entry was lost to a restart
+    Session userSession = addSession("ST-2");
+
+    Response response = endpoint().backchannelLogout(List.of(logoutRequest("ST-2")));
+
+    Assert.assertEquals(200, response.getStatus());
+    Assert.assertEquals(List.of(userSession.id), removed);
+  }
+
+  @Test
+  public void testIndexOfAGoneSessionFallsBackToTheBrokerSessionId() {
+    Session userSession = addSession("ST-2");
+    endpoint().indexSession("ST-2", authSession("gone"));
+
+    endpoint().backchannelLogout(List.of(logoutRequest("ST-2")));
+
+    Assert.assertEquals(List.of(userSession.id), removed);
+  }
+
+  @Test
+  public void testBatchedRequestEndsEverySession() {
+    Session indexed = addSession(null);
+    endpoint().indexSession("ST-1", authSession(indexed.id));
+    Session brokered = addSession("ST-2");
+    Session other = addSession("ST-3");
+    Session untouched = addSession("ST-4");
+
+    Response response =
+        endpoint().backchannelLogout(List.of(logoutRequest("ST-1", "ST-2"), logoutRequest("ST-3")));
+
+    Assert.assertEquals(200, response.getStatus());
+    Assert.assertEquals(List.of(indexed.id, brokered.id, other.id), removed);
+    Assert.assertEquals(UserSessionModel.State.LOGGED_IN, untouched.state);
+  }
+
+  @Test
+  public void testUnknownTicketIsIgnored() {
+    Session userSession = addSession("ST-1");
+    endpoint().indexSession("ST-1", authSession(userSession.id));
+
+    Response response = endpoint().backchannelLogout(List.of(logoutRequest("ST-unknown")));
+
+    Assert.assertEquals(200, response.getStatus());
+    Assert.assertTrue(removed.isEmpty());
+    Assert.assertEquals(UserSessionModel.State.LOGGED_IN, userSession.state);
+    Assert.assertTrue(singleUseObjects.containsKey("cas.sessionIndex.cas.ST-1"));
+  }
+
+  @Test
+  public void testEndedSessionIsNotLoggedOutAgain() {
+    Session loggedOut = addSession("ST-1");
+    loggedOut.state = UserSessionModel.State.LOGGED_OUT;
+    Session loggingOut = addSession("ST-2");
+    loggingOut.state = UserSessionModel.State.LOGGING_OUT;
+
+    Response response = endpoint().backchannelLogout(List.of(logoutRequest("ST-1", "ST-2")));
+
+    Assert.assertEquals(200, response.getStatus());
+    Assert.assertTrue(removed.isEmpty());
+    Assert.assertEquals(UserSessionModel.State.LOGGED_OUT, loggedOut.state);
+    Assert.assertEquals(UserSessionModel.State.LOGGING_OUT, loggingOut.state);
+  }
+
+  @Test
+  public void testMalformedRequestIsRejected() {
+    Session userSession = addSession("ST-1");
+
+    // nothing is ended when any request of the batch is malformed
+    Response response =
+        endpoint()
+            .backchannelLogout(List.of(logoutRequest("ST-1"), "<samlp:LogoutRequest><broken"));
+
+    Assert.assertEquals(400, response.getStatus());
+    Assert.assertTrue(removed.isEmpty());
+    Assert.assertEquals(UserSessionModel.State.LOGGED_IN, userSession.state);
+  }
+
+  @Test
+  public void testMissingRequestIsRejected() {
+    Assert.assertEquals(400, endpoint().backchannelLogout(null).getStatus());
+    Assert.assertEquals(400, endpoint().backchannelLogout(List.of()).getStatus());
+  }
+
+  @Test
+  public void testProxyGrantingTicketIsCorrelatedByItsIou() {
+    Response response = endpoint().proxyCallback("PGTIOU-1", "PGT-1");
+    Assert.assertEquals(200, response.getStatus());
+    Assert.assertEquals(Map.of("pgtId", "PGT-1"), singleUseObjects.get("cas.pgtIou.cas.PGTIOU-1"));
+    Assert.assertEquals(Long.valueOf(60), lifespans.get("cas.pgtIou.cas.PGTIOU-1"));
+
+    // the validation response then names the IOU
+    Map<String, String> notes = new HashMap<>();
+    int now = Time.currentTime();
+    endpoint().keepProxyGrantingTicket("PGTIOU-1", noteTaking(notes));
+
+    Assert.assertEquals("PGT-1", notes.get("cas.pgt.cas"));
+    int expires = Integer.parseInt(notes.get("cas.pgtExpires.cas"));
+    Assert.assertTrue(expires >= now + 600 && expires <= Time.currentTime() + 600);
+    // and the IOU cannot be used again
+    Assert.assertTrue(singleUseObjects.isEmpty());
+  }
+
+  @Test
+  public void testMissingIouKeepsNoTicket() {
+    endpoint().proxyCallback("PGTIOU-1", "PGT-1");
+    Map<String, String> notes = new HashMap<>();
+
+    // CAS never called back for this IOU, or the entry expired
+    endpoint().keepProxyGrantingTicket("PGTIOU-2", noteTaking(notes));
+    // CAS issued no proxy-granting ticket at all
+    endpoint().keepProxyGrantingTicket(null, noteTaking(notes));
+
+    Assert.assertTrue(notes.isEmpty());
+    Assert.assertTrue(singleUseObjects.containsKey("cas.pgtIou.cas.PGTIOU-1"));
+  }
+
+  @Test
+  public void testProxyCallbackWithoutParametersIsAProbe() {
+    Assert.assertEquals(200, endpoint().proxyCallback(null, null).getStatus());
+    Assert.assertTrue(singleUseObjects.isEmpty());
+  }
+
+  @Test
+  public void testInvalidProxyCallbackIsRejected() {
+    Assert.assertEquals(400, endpoint().proxyCallback("PGTIOU-1", null).getStatus());
+    Assert.assertEquals(400, endpoint().proxyCallback(" ", "PGT-1").getStatus());
+    Assert.assertEquals(400, endpoint().proxyCallback("PGTIOU-1", "x".repeat(257)).getStatus());
+
+    config.setProxyGranting(false);
+    Assert.assertEquals(400, endpoint().proxyCallback("PGTIOU-1", "PGT-1").getStatus());
+    Assert.assertTrue(singleUseObjects.isEmpty());
+  }
+
+  @Test
+  public void testProxyTicketIsRequestedWithTheKeptTicket() {
+    Session userSession = proxyGrantingSession(Time.currentTime() + 60);
+
+    CasIdentityProvider provider = proxyGrantingProvider();
+    Assert.assertEquals(
+        "PT-1", provider.requestProxyTicket(userSession.model, "https://backend.example.org"));
+
+    Assert.assertEquals(1, proxyRequests.size());
+    Assert.assertTrue(proxyRequests.get(0).startsWith("/cas/proxy?"));
+    Assert.assertTrue(proxyRequests.get(0).contains("pgt=PGT-1"));
+    Assert.assertTrue(
+        proxyRequests.get(0).contains("targetService=https%3A%2F%2Fbackend.example.org"));
+  }
+
+  @Test
+  public void testExpiredOrAbsentTicketRequestsNoProxyTicket() {
+    Session expired = proxyGrantingSession(Time.currentTime() - 1);
+    Session absent = addSession(null);
+
+    CasIdentityProvider provider = proxyGrantingProvider();
+    Assert.assertNull(provider.requestProxyTicket(expired.model, "https://backend.example.org"));
+    Assert.assertNull(provider.requestProxyTicket(absent.model, "https://backend.example.org"));
+
+    // CAS is not asked, and the expired ticket is dropped
+    Assert.assertTrue(proxyRequests.isEmpty());
+    Assert.assertTrue(expired.notes.isEmpty());
+  }
+
+  @Test
+  public void testEndedTicketIsDropped() {
+    proxyResponse = proxyFailure("INVALID_TICKET");
+    Session userSession = proxyGrantingSession(Time.currentTime() + 60);
+
+    CasIdentityProvider provider = proxyGrantingProvider();
+    Assert.assertNull(
+        provider.requestProxyTicket(userSession.model, "https://backend.example.org"));
+
+    Assert.assertEquals(1, proxyRequests.size());
+    Assert.assertTrue(userSession.notes.isEmpty());
+  }
+
+  @Test
+  public void testProxyFailureIsReported() {
+    proxyResponse = proxyFailure("INTERNAL_ERROR");
+    Session userSession = proxyGrantingSession(Time.currentTime() + 60);
+
+    CasIdentityProvider provider = proxyGrantingProvider();
+    IdentityBrokerException e =
+        Assert.assertThrows(
+            IdentityBrokerException.class,
+            () -> provider.requestProxyTicket(userSession.model, "https://backend.example.org"));
+    Assert.assertTrue(e.getMessage().contains("INTERNAL_ERROR"));
+
+    // the ticket may still be good
+    Assert.assertEquals("PGT-1", userSession.notes.get("cas.pgt.cas"));
+  }
+
+  private CasIdentityProvider proxyGrantingProvider() {
+    TicketValidationService service =
+        new TicketValidationService(config, null, null, new SimpleMeterRegistry());
+    services.add(service);
+    return new CasIdentityProvider(session, config, CasConfigSnapshot.of(config), service);
+  }
+
+  private Session proxyGrantingSession(final int expires) {
+    Session userSession = addSession(null);
+    userSession.notes.put("cas.pgt.cas", "PGT-1");
+    userSession.notes.put("cas.pgtExpires.cas", String.valueOf(expires));
+    return userSession;
+  }
+
+  private static String proxyFailure(final String code) {
+    return "<cas:serviceResponse xmlns:cas=\"http://www.yale.edu/tp/cas\">"
+        + "<cas:proxyFailure code=\""
+        + code
+        + "\">PGT-1 not usable</cas:proxyFailure></cas:serviceResponse>";
+  }
+
+  private static AuthenticationSessionModel noteTaking(final Map<String, String> notes) {
+    return Models.stub(
+        AuthenticationSessionModel.class,
+        Map.of(
+            "setUserSessionNote",
+            args -> {
+              notes.put((String) args[0], (String) args[1]);
+              return null;
+            }));
+  }
+
+  private CasIdentityProvider.Endpoint endpoint() {
+    CasIdentityProvider provider =
+        new CasIdentityProvider(session, config, CasConfigSnapshot.of(config), null);
+    return new CasIdentityProvider.Endpoint(
+        Models.stub(IdentityProvider.AuthenticationCallback.class, Map.of()), realm, provider);
+  }
+
+  private Session addSession(final String ticket) {
+    Session userSession = new Session();
+    userSession.brokerSessionId = ticket == null ? null : "cas." + ticket;
+    userSessions.put(userSession.id, userSession);
+    return userSession;
+  }
+
+  private static AuthenticationSessionModel authSession(final String rootSessionId) {
+    RootAuthenticationSessionModel root =
+        Models.stub(RootAuthenticationSessionModel.class, Map.of("getId", args -> rootSessionId));
+    return Models.stub(AuthenticationSessionModel.class, Map.of("getParentSession", args -> root));
+  }
+
+  private static String logoutRequest(final String... tickets) {
+    StringBuilder request =
+        new StringBuilder(
+            "<samlp:LogoutRequest xmlns:samlp=\"urn:oasis:names:tc:SAML:2.0:protocol\""
+                + " xmlns:saml=\"urn:oasis:names:tc:SAML:2.0:assertion\" ID=\"LR-1\""
+                + " Version=\"2.0\" IssueInstant=\"2024-01-01T00:00:00Z\">"
+                + "<saml:NameID>@NOT_USED@</saml:NameID>");
+    for (String ticket : tickets) {
+      request.append("<samlp:SessionIndex>").append(ticket).append("</samlp:SessionIndex>");
+    }
+    return request.append("</samlp:LogoutRequest>").toString();
+  }
+
+  private static UserSessionModel model(final Session userSession) {
+    return userSession == null ? null : userSession.model;
+  }
+
+  /** A user session as far as the back-channel logout looks at it. */
+  private static final class Session {
+    final String id = UUID.randomUUID().toString();
+    final Map<String, String> notes = new HashMap<>();
+    String brokerSessionId;
+    UserSessionModel.State state = UserSessionModel.State.LOGGED_IN;
+    final UserSessionModel model =
+        Models.stub(
+            UserSessionModel.class,
+            Map.of(
+                "getId", args -> id,
+                "getBrokerSessionId", args -> brokerSessionId,
+                "getState", args -> state,
+                "setState",
+                    args -> {
+                      state = (UserSessionModel.State) args[0];
+                      return null;
+                    },
+                "getNote", args -> notes.get((String) args[0]),
+                "removeNote", args -> notes.remove((String) args[0]),
+                "getNotes", args -> notes,
+                "getAuthenticatedClientSessions", args -> Map.of()));
+  }
+}
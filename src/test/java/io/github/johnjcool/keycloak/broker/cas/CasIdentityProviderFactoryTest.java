@@ -0,0 +1,197 @@
+package io.github.johnjcool.keycloak.broker.cas;
+
+import io.github.johnjcool.keycloak.broker.cas.validation.TicketValidationService;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.keycloak.models.IdentityProviderModel;
+import org.keycloak.models.KeycloakContext;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.provider.Provider;
+import org.keycloak.provider.ProviderEventListener;
+
+public class CasIdentityProviderFactoryTest {
+
+  private final CasIdentityProviderFactory factory = new CasIdentityProviderFactory();
+  private final Models.Realm realm = new Models.Realm();
+  private final AtomicReference<ProviderEventListener> listener = new AtomicReference<>();
+
+  @Before
+  public void setUp() {
+    factory.postInit(
+        Models.stub(
+            KeycloakSessionFactory.class,
+            Map.of(
+                "register",
+                args -> {
+                  listener.set((ProviderEventListener) args[0]);
+                  return null;
+                })));
+  }
+
+  @After
+  public void tearDown() {
+    factory.close();
+  }
+
+  /** A request: its providers are closed with it. */
+  private final class Request implements AutoCloseable {
+    private final List<Provider> enlisted = new ArrayList<>();
+    private final KeycloakSession session;
+
+    Request(final RealmModel realm) {
+      KeycloakContext context =
+          Models.stub(KeycloakContext.class, Map.of("getRealm", args -> realm));
+      session =
+          Models.stub(
+              KeycloakSession.class,
+              Map.of(
+                  "getContext",
+                  args -> context,
+                  "enlistForClose",
+                  args -> enlisted.add((Provider) args[0])));
+    }
+
+    TicketValidationService validationService(final IdentityProviderModel model) {
+      return factory.create(session, model).getValidationService();
+    }
+
+    @Override
+    public void close() {
+      enlisted.forEach(Provider::close);
+    }
+  }
+
+  private static CasIdentityProviderConfig config(final String casServerUrlPrefix) {
+    CasIdentityProviderConfig config = new CasIdentityProviderConfig();
+    config.setInternalId("idp-1");
+    config.setAlias("cas");
+    config.setProviderId(CasIdentityProviderFactory.PROVIDER_ID);
+    config.setCasServerUrlPrefix(casServerUrlPrefix);
+    return config;
+  }
+
+  @Test
+  public void testServiceIsSharedWhileConfigIsUnchanged() {
+    try (Request first = new Request(realm.model);
+        Request second = new Request(realm.model)) {
+      Assert.assertSame(
+          first.validationService(config("https://cas.example.org/cas")),
+          second.validationService(config("https://cas.example.org/cas")));
+    }
+  }
+
+  @Test
+  public void testReplacedServiceIsClosedAfterItsLastRequest() {
+    Request running = new Request(realm.model);
+    TicketValidationService old = running.validationService(config("https://cas.example.org/cas"));
+
+    try (Request request = new Request(realm.model)) {
+      TicketValidationService replacement =
+          request.validationService(config("https://cas2.example.org/cas"));
+      Assert.assertNotSame(old, replacement);
+      // the login still running against the old service is not cut off
+      Assert.assertFalse(old.isClosed());
+    }
+
+    running.close();
+    Assert.assertTrue(old.isClosed());
+  }
+
+  @Test
+  public void testUnusedReplacedServiceIsClosedAtOnce() {
+    TicketValidationService old;
+    try (Request request = new Request(realm.model)) {
+      old = request.validationService(config("https://cas.example.org/cas"));
+    }
+    Assert.assertFalse(old.isClosed());
+    try (Request request = new Request(realm.model)) {
+      request.validationService(config("https://cas2.example.org/cas"));
+      Assert.assertTrue(old.isClosed());
+    }
+  }
+
+  @Test
+  public void testRemovedProviderIsClosedAfterItsLastRequest() {
+    CasIdentityProviderConfig config = config("https://cas.example.org/cas");
+    Request running = new Request(realm.model);
+    TicketValidationService service = running.validationService(config);
+
+    listener
+        .get()
+        .onEvent(
+            new RealmModel.IdentityProviderRemovedEvent() {
+              @Override
+              public RealmModel getRealm() {
+                return realm.model;
+              }
+
+              @Override
+              public IdentityProviderModel getRemovedIdentityProvider() {
+                return config;
+              }
+
+              @Override
+              public KeycloakSession getKeycloakSession() {
+                return null;
+              }
+            });
+    Assert.assertFalse(service.isClosed());
+    running.close();
+    Assert.assertTrue(service.isClosed());
+  }
+
+  @Test
+  public void testRemovedRealmIsEvicted() {
+    Models.Realm other = new Models.Realm();
+    CasIdentityProviderConfig config = config("https://cas.example.org/cas");
+    Request running = new Request(realm.model);
+    TicketValidationService service = running.validationService(config);
+    TicketValidationService otherService;
+    try (Request request = new Request(other.model)) {
+      // the same internal id in another realm does not share the service
+      otherService = request.validationService(config);
+      Assert.assertNotSame(service, otherService);
+    }
+
+    listener
+        .get()
+        .onEvent(
+            new RealmModel.RealmRemovedEvent() {
+              @Override
+              public RealmModel getRealm() {
+                return realm.model;
+              }
+
+              @Override
+              public KeycloakSession getKeycloakSession() {
+                return null;
+              }
+            });
+    Assert.assertFalse(service.isClosed());
+    running.close();
+    Assert.assertTrue(service.isClosed());
+    Assert.assertFalse(otherService.isClosed());
+
+    try (Request request = new Request(realm.model)) {
+      Assert.assertNotSame(service, request.validationService(config));
+    }
+  }
+
+  @Test
+  public void testProviderReleasesItsServiceOnce() {
+    CasIdentityProviderConfig config = config("https://cas.example.org/cas");
+    Request request = new Request(realm.model);
+    TicketValidationService service = request.validationService(config);
+    request.close();
+    request.close();
+    Assert.assertFalse(service.isClosed());
+  }
+}
@@ -0,0 +1,260 @@
+package io.github.johnjcool.keycloak.broker.cas;
+
+import io.github.johnjcool.keycloak.broker.cas.mappers.UserAttributeMapper;
+import io.github.johnjcool.keycloak.broker.cas.validation.TicketValidationService;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.ws.rs.core.Cookie;
+import jakarta.ws.rs.core.Response;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.keycloak.broker.provider.BrokeredIdentityContext;
+import org.keycloak.broker.provider.IdentityProvider;
+import org.keycloak.common.ClientConnection;
+import org.keycloak.forms.login.LoginFormsProvider;
+import org.keycloak.models.IdentityProviderMapperModel;
+import org.keycloak.models.IdentityProviderMapperSyncMode;
+import org.keycloak.models.IdentityProviderStorageProvider;
+import org.keycloak.models.IdentityProviderSyncMode;
+import org.keycloak.models.KeycloakContext;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.KeycloakTransactionManager;
+import org.keycloak.models.RealmModel;
+
+public class CasIdentityProviderTest {
+
+  private static final String DIGEST = CasIdentityProvider.ATTRIBUTE_DIGEST_PREFIX + "cas";
+
+  private final List<IdentityProviderMapperModel> mappers = new ArrayList<>();
+  private final UserAttributeMapper importer = new UserAttributeMapper();
+  private final Models.User user = new Models.User();
+  private CasIdentityProviderConfig config;
+  private KeycloakSession session;
+  private int mapperReads;
+
+  @Before
+  public void setUp() {
+    config = new CasIdentityProviderConfig();
+    config.setAlias("cas");
+    config.setCasServerUrlPrefix("https://cas.example.org/cas");
+    config.setSyncMode(IdentityProviderSyncMode.FORCE);
+    IdentityProviderStorageProvider identityProviders =
+        (IdentityProviderStorageProvider)
+            Proxy.newProxyInstance(
+                getClass().getClassLoader(),
+                new Class<?>[] {IdentityProviderStorageProvider.class},
+                (proxy, method, args) -> {
+                  if (method.getName().equals("getMappersByAliasStream")) {
+                    mapperReads++;
+                    return new ArrayList<>(mappers).stream();
+                  }
+                  throw new UnsupportedOperationException(method.getName());
+                });
+    session =
+        (KeycloakSession)
+            Proxy.newProxyInstance(
+                getClass().getClassLoader(),
+                new Class<?>[] {KeycloakSession.class},
+                (proxy, method, args) -> {
+                  if (method.getName().equals("identityProviders")) {
+                    return identityProviders;
+                  }
+                  throw new UnsupportedOperationException(method.getName());
+                });
+    mappers.add(importer("department", "department"));
+  }
+
+  @Test
+  public void testUnchangedLoginSkipsMappers() {
+    firstLogin(Map.of("department", List.of("sales")));
+    Assert.assertNotNull(user.attributes.get(DIGEST));
+
+    // a change made in Keycloak is not repaired while nothing CAS decides on changed
+    user.attributes.put("department", List.of("edited"));
+    user.writes = 0;
+    BrokeredIdentityContext context = login(Map.of("department", List.of("sales")));
+    Assert.assertEquals(
+        Boolean.TRUE, context.getContextData().get(CasIdentityProvider.ATTRIBUTES_UNCHANGED));
+    Assert.assertEquals(0, user.writes);
+    Assert.assertEquals(List.of("edited"), user.attributes.get("department"));
+  }
+
+  @Test
+  public void testForcedSyncAppliesUnchangedLogin() {
+    config.setForceAttributeSync(true);
+    firstLogin(Map.of("department", List.of("sales")));
+    user.attributes.put("department", List.of("edited"));
+    login(Map.of("department", List.of("sales")));
+    Assert.assertEquals(List.of("sales"), user.attributes.get("department"));
+  }
+
+  @Test
+  public void testChangedAttributeIsApplied() {
+    firstLogin(Map.of("department", List.of("sales")));
+    String digest = user.attributes.get(DIGEST).get(0);
+
+    BrokeredIdentityContext context = login(Map.of("department", List.of("it")));
+    Assert.assertNull(context.getContextData().get(CasIdentityProvider.ATTRIBUTES_UNCHANGED));
+    Assert.assertEquals(List.of("it"), user.attributes.get("department"));
+    Assert.assertNotEquals(digest, user.attributes.get(DIGEST).get(0));
+  }
+
+  @Test
+  public void testChangedMapperConfigIsApplied() {
+    firstLogin(Map.of("department", List.of("sales")));
+
+    mappers.get(0).getConfig().put("user.attribute", "dept");
+    login(Map.of("department", List.of("sales")));
+    Assert.assertEquals(List.of("sales"), user.attributes.get("dept"));
+
+    // and the next login is unchanged again
+    BrokeredIdentityContext context = login(Map.of("department", List.of("sales")));
+    Assert.assertEquals(
+        Boolean.TRUE, context.getContextData().get(CasIdentityProvider.ATTRIBUTES_UNCHANGED));
+  }
+
+  @Test
+  public void testMappersAreReadOncePerLogin() {
+    firstLogin(Map.of("department", List.of("sales")));
+    mapperReads = 0;
+    CasIdentityProvider provider = provider();
+    provider.updateBrokeredUser(session, null, user.model, newContext(Map.of()));
+    provider.updateBrokeredUser(
+        session, null, user.model, newContext(Map.of("department", List.of("it"))));
+    Assert.assertEquals(1, mapperReads);
+  }
+
+  @Test
+  public void testImportersCannotWriteTheDigest() {
+    mappers.add(importer("department", DIGEST));
+    BrokeredIdentityContext imported = firstLogin(Map.of("department", List.of("sales")));
+    Assert.assertFalse(imported.getAttributes().containsKey(DIGEST));
+    String digest = user.attributes.get(DIGEST).get(0);
+
+    login(Map.of("department", List.of("it")));
+    String updated = user.attributes.get(DIGEST).get(0);
+    Assert.assertNotEquals(digest, updated);
+    Assert.assertNotEquals("it", updated);
+
+    // the same, with the importers run one by one by the mapper chain
+    BrokeredIdentityContext context = newContext(Map.of("department", List.of("sales")));
+    for (IdentityProviderMapperModel mapper : mappers) {
+      importer.updateBrokeredUser(session, null, user.model, mapper, context);
+    }
+    Assert.assertEquals(updated, user.attributes.get(DIGEST).get(0));
+  }
+
+  @Test
+  public void testFullBulkheadShowsServiceUnavailable() throws Exception {
+    config.setKeepAllAttributes(true);
+    config.setValidationMaxConcurrent(1);
+    config.setValidationQueueSize(0);
+    AtomicReference<Response.Status> errorPage = new AtomicReference<>();
+    LoginFormsProvider forms =
+        Models.stub(
+            LoginFormsProvider.class,
+            Map.of(
+                "createErrorPage",
+                args -> {
+                  errorPage.set((Response.Status) args[0]);
+                  return Response.status((Response.Status) args[0]).build();
+                }));
+    KeycloakContext keycloakContext =
+        Models.stub(
+            KeycloakContext.class,
+            Map.of("getConnection", args -> Models.stub(ClientConnection.class, Map.of())));
+    // the login event is sent in a transaction of its own
+    KeycloakSession eventSession =
+        Models.stub(
+            KeycloakSession.class,
+            Map.of(
+                "getContext",
+                args -> keycloakContext,
+                "getTransactionManager",
+                args -> Models.stub(KeycloakTransactionManager.class, Map.of())));
+    KeycloakSessionFactory sessionFactory =
+        Models.stub(KeycloakSessionFactory.class, Map.of("create", args -> eventSession));
+    KeycloakSession endpointSession =
+        Models.stub(
+            KeycloakSession.class,
+            Map.of(
+                "getContext",
+                args -> keycloakContext,
+                "getKeycloakSessionFactory",
+                args -> sessionFactory,
+                "getProvider",
+                args -> args[0] == LoginFormsProvider.class ? forms : null));
+
+    try (TicketValidationService service =
+        new TicketValidationService(config, null, null, new SimpleMeterRegistry())) {
+      // the one slot is taken and nobody may queue
+      service.getBulkhead().acquire();
+      CasIdentityProvider provider =
+          new CasIdentityProvider(endpointSession, config, CasConfigSnapshot.of(config), service);
+      CasIdentityProvider.Endpoint endpoint =
+          new CasIdentityProvider.Endpoint(
+              Models.stub(IdentityProvider.AuthenticationCallback.class, Map.of()),
+              Models.stub(RealmModel.class, Map.of()),
+              provider);
+
+      Response response =
+          endpoint.authResponse(
+              "ST-1", new Cookie.Builder("__Host-cas_state").value("state").build());
+      Assert.assertEquals(503, response.getStatus());
+      Assert.assertEquals(Response.Status.SERVICE_UNAVAILABLE, errorPage.get());
+      Assert.assertEquals(1, service.getBulkhead().getRejectedCount());
+    }
+  }
+
+  /** Preprocessing and import of a new user, as in the first broker login. */
+  private BrokeredIdentityContext firstLogin(final Map<String, List<String>> attributes) {
+    BrokeredIdentityContext context = newContext(attributes);
+    for (IdentityProviderMapperModel mapper : mappers) {
+      importer.preprocessFederatedIdentity(session, null, mapper, context);
+    }
+    context.getAttributes().forEach(user.attributes::put);
+    provider().importNewUser(session, null, user.model, context);
+    return context;
+  }
+
+  /** A returning user: the provider, then the mapper chain. */
+  private BrokeredIdentityContext login(final Map<String, List<String>> attributes) {
+    BrokeredIdentityContext context = newContext(attributes);
+    provider().updateBrokeredUser(session, null, user.model, context);
+    for (IdentityProviderMapperModel mapper : mappers) {
+      importer.updateBrokeredUser(session, null, user.model, mapper, context);
+    }
+    return context;
+  }
+
+  private CasIdentityProvider provider() {
+    return new CasIdentityProvider(session, config, CasConfigSnapshot.of(config), null);
+  }
+
+  private BrokeredIdentityContext newContext(final Map<String, List<String>> attributes) {
+    BrokeredIdentityContext context = new BrokeredIdentityContext("jdoe", config);
+    context.getContextData().put(CasIdentityProvider.USER_ATTRIBUTES, new HashMap<>(attributes));
+    return context;
+  }
+
+  private static IdentityProviderMapperModel importer(
+      final String casAttribute, final String userAttribute) {
+    IdentityProviderMapperModel mapper = new IdentityProviderMapperModel();
+    mapper.setId(casAttribute + "-" + userAttribute);
+    mapper.setName(casAttribute + " importer");
+    mapper.setIdentityProviderMapper(UserAttributeMapper.PROVIDER_ID);
+    Map<String, String> config = new HashMap<>();
+    config.put("attribute", casAttribute);
+    config.put("user.attribute", userAttribute);
+    mapper.setConfig(config);
+    mapper.setSyncMode(IdentityProviderMapperSyncMode.INHERIT);
+    return mapper;
+  }
+}
@@ -0,0 +1,285 @@
+package io.github.johnjcool.keycloak.broker.cas;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RoleModel;
+import org.keycloak.models.UserModel;
+
+/**
+ * In-memory stand-ins for the few Keycloak models the provider and its mappers touch. Any other
+ * method fails, so a test notices when a mapper starts to depend on more of the model.
+ */
+public final class Models {
+
+  private Models() {
+    // util
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <T> T proxy(final Class<T> type, final InvocationHandler handler) {
+    return (T)
+        Proxy.newProxyInstance(Models.class.getClassLoader(), new Class<?>[] {type}, handler);
+  }
+
+  /**
+   * A stand-in for models a test only passes through: methods answer from {@code answers} by name,
+   * fluent ones return the stub itself and all others a default value.
+   */
+  public static <T> T stub(
+      final Class<T> type, final Map<String, Function<Object[], Object>> answers) {
+    return proxy(
+        type,
+        (proxy, method, args) -> {
+          Function<Object[], Object> answer = answers.get(method.getName());
+          if (answer != null) {
+            return answer.apply(args);
+          }
+          Class<?> returnType = method.getReturnType();
+          if (returnType.isInterface() && returnType.isInstance(proxy)) {
+            return proxy;
+          }
+          if (returnType == boolean.class) {
+            return false;
+          }
+          if (returnType == int.class || returnType == long.class) {
+            return returnType == int.class ? (Object) 0 : (Object) 0L;
+          }
+          if (returnType == Stream.class) {
+            return Stream.empty();
+          }
+          if (returnType == Optional.class) {
+            return Optional.empty();
+          }
+          return null;
+        });
+  }
+
+  private abstract static class Fake implements InvocationHandler {
+    @Override
+    public Object invoke(final Object proxy, final Method method, final Object[] args) {
+      switch (method.getName()) {
+        case "equals":
+          return proxy == args[0];
+        case "hashCode":
+          return System.identityHashCode(proxy);
+        case "toString":
+          return getClass().getSimpleName() + "@" + System.identityHashCode(proxy);
+        default:
+          return handle(method.getName(), args == null ? new Object[0] : args);
+      }
+    }
+
+    abstract Object handle(String method, Object[] args);
+
+    UnsupportedOperationException unsupported(final String method) {
+      return new UnsupportedOperationException(getClass().getSimpleName() + "." + method);
+    }
+  }
+
+  public static final class Realm extends Fake {
+    public final String id = UUID.randomUUID().toString();
+    public final RealmModel model = proxy(RealmModel.class, this);
+    // every role by id, realm and client roles alike
+    public final Map<String, Role> roles = new HashMap<>();
+    public final Map<String, Client> clients = new HashMap<>();
+    // role and client lookups, the calls a cached role should save
+    public int lookups;
+
+    public Role addRole(final String name) {
+      Role role = new Role(name, id, null);
+      roles.put(role.id, role);
+      return role;
+    }
+
+    public Client addClient(final String clientId) {
+      Client client = new Client(this, clientId);
+      clients.put(client.id, client);
+      return client;
+    }
+
+    /** Removes a role the way another node would: without any event reaching this one. */
+    public void removeRole(final Role role) {
+      roles.remove(role.id);
+    }
+
+    @Override
+    Object handle(final String method, final Object[] args) {
+      if (method.startsWith("getRole") || method.startsWith("getClient")) {
+        lookups++;
+      }
+      switch (method) {
+        case "getId":
+        case "getName":
+          return id;
+        case "getRole":
+          return roles.values().stream()
+              .filter(role -> role.client == null && role.name.equals(args[0]))
+              .map(role -> role.model)
+              .findFirst()
+              .orElse(null);
+        case "getRoleById":
+          Role role = roles.get(args[0]);
+          return role == null ? null : role.model;
+        case "getClientByClientId":
+          return clients.values().stream()
+              .filter(client -> client.clientId.equals(args[0]))
+              .map(client -> client.model)
+              .findFirst()
+              .orElse(null);
+        default:
+          throw unsupported(method);
+      }
+    }
+  }
+
+  public static final class Client extends Fake {
+    public final String id = UUID.randomUUID().toString();
+    public final Realm realm;
+    public final ClientModel model = proxy(ClientModel.class, this);
+    public String clientId;
+
+    private Client(final Realm realm, final String clientId) {
+      this.realm = realm;
+      this.clientId = clientId;
+    }
+
+    public Role addRole(final String name) {
+      Role role = new Role(name, id, this);
+      realm.roles.put(role.id, role);
+      return role;
+    }
+
+    @Override
+    Object handle(final String method, final Object[] args) {
+      switch (method) {
+        case "getId":
+          return id;
+        case "getClientId":
+          return clientId;
+        case "getRealm":
+          return realm.model;
+        case "getRole":
+          realm.lookups++;
+          return realm.roles.values().stream()
+              .filter(role -> role.client == this && role.name.equals(args[0]))
+              .map(role -> role.model)
+              .findFirst()
+              .orElse(null);
+        default:
+          throw unsupported(method);
+      }
+    }
+  }
+
+  public static final class Role extends Fake {
+    public final String id = UUID.randomUUID().toString();
+    public final String containerId;
+    public final Client client;
+    public final RoleModel model = proxy(RoleModel.class, this);
+    public String name;
+
+    private Role(final String name, final String containerId, final Client client) {
+      this.name = name;
+      this.containerId = containerId;
+      this.client = client;
+    }
+
+    @Override
+    Object handle(final String method, final Object[] args) {
+      switch (method) {
+        case "getId":
+          return id;
+        case "getName":
+          return name;
+        case "getContainerId":
+          return containerId;
+        case "isClientRole":
+          return client != null;
+        case "getContainer":
+          return client == null ? null : client.model;
+        default:
+          throw unsupported(method);
+      }
+    }
+  }
+
+  public static final class User extends Fake {
+    public final UserModel model = proxy(UserModel.class, this);
+    public final Map<String, List<String>> attributes = new LinkedHashMap<>();
+    public final Set<RoleModel> roles = new LinkedHashSet<>();
+    // attribute writes, to tell a skipped update from one that wrote the same values
+    public int writes;
+    public String email;
+    public String firstName;
+    public String lastName;
+
+    @Override
+    @SuppressWarnings("unchecked")
+    Object handle(final String method, final Object[] args) {
+      switch (method) {
+        case "getAttributes":
+          return new HashMap<>(attributes);
+        case "getAttributeStream":
+          return attributes.getOrDefault((String) args[0], List.of()).stream();
+        case "getFirstAttribute":
+          List<String> values = attributes.get((String) args[0]);
+          return values == null || values.isEmpty() ? null : values.get(0);
+        case "setAttribute":
+          writes++;
+          attributes.put((String) args[0], new ArrayList<>((List<String>) args[1]));
+          return null;
+        case "setSingleAttribute":
+          writes++;
+          attributes.put((String) args[0], new ArrayList<>(Arrays.asList((String) args[1])));
+          return null;
+        case "removeAttribute":
+          writes++;
+          attributes.remove((String) args[0]);
+          return null;
+        case "getEmail":
+          return email;
+        case "setEmail":
+          writes++;
+          email = (String) args[0];
+          return null;
+        case "getFirstName":
+          return firstName;
+        case "setFirstName":
+          writes++;
+          firstName = (String) args[0];
+          return null;
+        case "getLastName":
+          return lastName;
+        case "setLastName":
+          writes++;
+          lastName = (String) args[0];
+          return null;
+        case "getRoleMappingsStream":
+          return new ArrayList<>(roles).stream();
+        case "grantRole":
+          roles.add((RoleModel) args[0]);
+          return null;
+        case "deleteRoleMapping":
+          roles.remove((RoleModel) args[0]);
+          return null;
+        default:
+          throw unsupported(method);
+      }
+    }
+  }
+}
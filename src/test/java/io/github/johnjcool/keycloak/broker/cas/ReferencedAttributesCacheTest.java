@@ -0,0 +1,144 @@
+package io.github.johnjcool.keycloak.broker.cas;
+
+import io.github.johnjcool.keycloak.broker.cas.mappers.UserAttributeMapper;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.keycloak.broker.provider.IdentityProviderMapper;
+import org.keycloak.models.IdentityProviderMapperModel;
+import org.keycloak.models.KeycloakSessionFactory;
+
+public class ReferencedAttributesCacheTest {
+
+  private static final String OTHER = "other-idp-mapper";
+  private static final String UNKNOWN = "unknown-cas-idp-mapper";
+
+  private final ReferencedAttributesCache cache = new ReferencedAttributesCache();
+  private final List<String> lookups = new ArrayList<>();
+  private KeycloakSessionFactory factory;
+
+  @Before
+  public void setUp() {
+    UserAttributeMapper importer = new UserAttributeMapper();
+    IdentityProviderMapper other =
+        Models.stub(
+            IdentityProviderMapper.class,
+            Map.of("getCompatibleProviders", args -> new String[] {"oidc"}));
+    IdentityProviderMapper unknown =
+        Models.stub(
+            IdentityProviderMapper.class,
+            Map.of(
+                "getCompatibleProviders",
+                args -> new String[] {CasIdentityProviderFactory.PROVIDER_ID}));
+    factory =
+        Models.stub(
+            KeycloakSessionFactory.class,
+            Map.of(
+                "getProviderFactory",
+                args -> {
+                  lookups.add((String) args[1]);
+                  switch ((String) args[1]) {
+                    case UserAttributeMapper.PROVIDER_ID:
+                      return importer;
+                    case OTHER:
+                      return other;
+                    case UNKNOWN:
+                      return unknown;
+                    default:
+                      return null;
+                  }
+                }));
+  }
+
+  @Test
+  public void testCollectsTheAttributesOfCasMappers() {
+    Set<String> attributes =
+        cache.get(
+            "realm/cas",
+            List.of(
+                mapper("1", UserAttributeMapper.PROVIDER_ID, "department"),
+                mapper("2", UserAttributeMapper.PROVIDER_ID, "mail"),
+                mapper("3", OTHER, "ignored")),
+            factory);
+    Assert.assertEquals(Set.of("department", "mail"), attributes);
+  }
+
+  @Test
+  public void testUnchangedMappersAreNotLookedUpAgain() {
+    Set<String> attributes =
+        cache.get(
+            "realm/cas", List.of(mapper("1", UserAttributeMapper.PROVIDER_ID, "mail")), factory);
+    lookups.clear();
+
+    // every login reads fresh, equal models
+    Set<String> again =
+        cache.get(
+            "realm/cas", List.of(mapper("1", UserAttributeMapper.PROVIDER_ID, "mail")), factory);
+    Assert.assertSame(attributes, again);
+    Assert.assertTrue(lookups.isEmpty());
+    Assert.assertEquals(1, cache.size());
+  }
+
+  @Test
+  public void testChangedConfigIsCollectedAgain() {
+    cache.get("realm/cas", List.of(mapper("1", UserAttributeMapper.PROVIDER_ID, "mail")), factory);
+    Assert.assertEquals(
+        Set.of("email"),
+        cache.get(
+            "realm/cas", List.of(mapper("1", UserAttributeMapper.PROVIDER_ID, "email")), factory));
+    Assert.assertEquals(
+        List.of(UserAttributeMapper.PROVIDER_ID, UserAttributeMapper.PROVIDER_ID), lookups);
+  }
+
+  @Test
+  public void testAddedOrRemovedMapperIsCollectedAgain() {
+    IdentityProviderMapperModel mail = mapper("1", UserAttributeMapper.PROVIDER_ID, "mail");
+    IdentityProviderMapperModel department =
+        mapper("2", UserAttributeMapper.PROVIDER_ID, "department");
+    cache.get("realm/cas", List.of(mail), factory);
+    Assert.assertEquals(
+        Set.of("mail", "department"), cache.get("realm/cas", List.of(mail, department), factory));
+    Assert.assertEquals(Set.of("department"), cache.get("realm/cas", List.of(department), factory));
+  }
+
+  @Test
+  public void testUnknownCasMapperKeepsAllAttributes() {
+    List<IdentityProviderMapperModel> mappers =
+        List.of(mapper("1", UserAttributeMapper.PROVIDER_ID, "mail"), mapper("2", UNKNOWN, "mail"));
+    Assert.assertNull(cache.get("realm/cas", mappers, factory));
+    lookups.clear();
+    Assert.assertNull(cache.get("realm/cas", mappers, factory));
+    Assert.assertTrue(lookups.isEmpty());
+  }
+
+  @Test
+  public void testProvidersAreKeptApart() {
+    List<IdentityProviderMapperModel> mappers =
+        List.of(mapper("1", UserAttributeMapper.PROVIDER_ID, "mail"));
+    cache.get("realm/cas", mappers, factory);
+    Assert.assertEquals(
+        Set.of("department"),
+        cache.get(
+            "realm/cas2",
+            List.of(mapper("2", UserAttributeMapper.PROVIDER_ID, "department")),
+            factory));
+    Assert.assertEquals(Set.of("mail"), cache.get("realm/cas", mappers, factory));
+    Assert.assertEquals(2, cache.size());
+  }
+
+  private static IdentityProviderMapperModel mapper(
+      final String id, final String type, final String attribute) {
+    IdentityProviderMapperModel mapper = new IdentityProviderMapperModel();
+    mapper.setId(id);
+    mapper.setIdentityProviderMapper(type);
+    Map<String, String> config = new HashMap<>();
+    config.put("attribute", attribute);
+    mapper.setConfig(config);
+    return mapper;
+  }
+}
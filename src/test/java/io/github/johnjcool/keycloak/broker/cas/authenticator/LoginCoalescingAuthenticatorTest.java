@@ -0,0 +1,248 @@
+package io.github.johnjcool.keycloak.broker.cas.authenticator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import io.github.johnjcool.keycloak.broker.cas.Models;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Assert;
+import org.junit.Test;
+import org.keycloak.authentication.AuthenticationFlowContext;
+import org.keycloak.authentication.authenticators.broker.IdpConfirmOverrideLinkAuthenticator;
+import org.keycloak.broker.provider.BrokeredIdentityContext;
+import org.keycloak.models.AuthenticationExecutionModel;
+import org.keycloak.models.AuthenticatorConfigModel;
+import org.keycloak.models.FederatedIdentityModel;
+import org.keycloak.models.IdentityProviderModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakTransaction;
+import org.keycloak.models.KeycloakTransactionManager;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserProvider;
+import org.keycloak.sessions.AuthenticationSessionModel;
+
+public class LoginCoalescingAuthenticatorTest {
+
+  private final LoginCoalescingAuthenticator authenticator = new LoginCoalescingAuthenticator();
+
+  private final String realmId = UUID.randomUUID().toString();
+
+  // the user the brokered identity is linked to, null while it is not linked
+  private final AtomicReference<UserModel> linked = new AtomicReference<>();
+
+  private final List<FederatedIdentityModel> lookups = new ArrayList<>();
+
+  @Test
+  public void testLinkedIdentityContinuesAsThatUser() {
+    UserModel user = user("jdoe");
+    linked.set(user);
+    Login login = new Login(AuthenticationExecutionModel.Requirement.ALTERNATIVE, null);
+
+    login.authenticate();
+
+    assertEquals("success", login.result);
+    assertSame(user, login.user);
+    assertEquals("true", login.notes.get(IdpConfirmOverrideLinkAuthenticator.OVERRIDE_LINK));
+    assertEquals(1, lookups.size());
+    assertEquals("cas", lookups.get(0).getIdentityProvider());
+    assertEquals("jdoe", lookups.get(0).getUserId());
+    login.complete();
+  }
+
+  @Test
+  public void testUnlinkedIdentityGoesOnToTheNextAlternative() {
+    Login login = new Login(AuthenticationExecutionModel.Requirement.ALTERNATIVE, null);
+
+    login.authenticate();
+
+    assertEquals("attempted", login.result);
+    assertNull(login.user);
+    assertTrue(login.notes.isEmpty());
+    login.complete();
+  }
+
+  @Test
+  public void testUnlinkedIdentitySucceedsAsRequiredStep() {
+    Login login = new Login(AuthenticationExecutionModel.Requirement.REQUIRED, null);
+
+    login.authenticate();
+
+    assertEquals("success", login.result);
+    assertNull(login.user);
+    login.complete();
+  }
+
+  @Test
+  public void testConcurrentLoginContinuesAsTheUserTheFirstCreated() throws Exception {
+    Login first = new Login(AuthenticationExecutionModel.Requirement.ALTERNATIVE, null);
+    first.authenticate();
+    assertEquals("attempted", first.result);
+
+    Login second = new Login(AuthenticationExecutionModel.Requirement.ALTERNATIVE, null);
+    CompletableFuture<Void> waiting = CompletableFuture.runAsync(second::authenticate);
+    Assert.assertThrows(TimeoutException.class, () -> waiting.get(200, TimeUnit.MILLISECONDS));
+    assertNull(second.result);
+
+    // the first login creates and links the user, then commits
+    UserModel user = user("jdoe");
+    linked.set(user);
+    first.complete();
+
+    waiting.get(5, TimeUnit.SECONDS);
+    assertEquals("success", second.result);
+    assertSame(user, second.user);
+    second.complete();
+  }
+
+  @Test
+  public void testConcurrentLoginGoesAheadAfterTheTimeout() throws Exception {
+    Login first = new Login(AuthenticationExecutionModel.Requirement.ALTERNATIVE, null);
+    first.authenticate();
+
+    Login second = new Login(AuthenticationExecutionModel.Requirement.ALTERNATIVE, "100");
+    long start = System.nanoTime();
+    CompletableFuture.runAsync(second::authenticate).get(5, TimeUnit.SECONDS);
+
+    assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 100);
+    assertEquals("attempted", second.result);
+    assertTrue(second.enlisted.isEmpty());
+    first.complete();
+  }
+
+  @Test
+  public void testRollbackReleasesTheLogin() throws Exception {
+    Login first = new Login(AuthenticationExecutionModel.Requirement.ALTERNATIVE, null);
+    first.authenticate();
+    first.enlisted.forEach(KeycloakTransaction::begin);
+    first.enlisted.forEach(KeycloakTransaction::rollback);
+
+    Login second = new Login(AuthenticationExecutionModel.Requirement.ALTERNATIVE, null);
+    CompletableFuture.runAsync(second::authenticate).get(1, TimeUnit.SECONDS);
+
+    assertEquals("attempted", second.result);
+    assertFalse(second.enlisted.isEmpty());
+    second.complete();
+  }
+
+  @Test
+  public void testTimeoutConfig() {
+    assertEquals(
+        LoginCoalescingAuthenticatorFactory.DEFAULT_TIMEOUT,
+        LoginCoalescingAuthenticator.getTimeout(null));
+    assertEquals(
+        LoginCoalescingAuthenticatorFactory.DEFAULT_TIMEOUT,
+        LoginCoalescingAuthenticator.getTimeout(config("soon")));
+    assertEquals(0, LoginCoalescingAuthenticator.getTimeout(config("-5")));
+    assertEquals(500, LoginCoalescingAuthenticator.getTimeout(config(" 500 ")));
+  }
+
+  private static AuthenticatorConfigModel config(final String timeout) {
+    AuthenticatorConfigModel config = new AuthenticatorConfigModel();
+    config.setConfig(new HashMap<>(Map.of(LoginCoalescingAuthenticatorFactory.TIMEOUT, timeout)));
+    return config;
+  }
+
+  private static UserModel user(final String username) {
+    return Models.stub(UserModel.class, Map.of("getUsername", args -> username));
+  }
+
+  /** One first broker login of the brokered user "jdoe" through the authenticator. */
+  private final class Login {
+
+    final Map<String, String> notes = new HashMap<>();
+    final List<KeycloakTransaction> enlisted = new ArrayList<>();
+    final AuthenticationFlowContext context;
+    final BrokeredIdentityContext brokerContext;
+    volatile String result;
+    volatile UserModel user;
+
+    Login(final AuthenticationExecutionModel.Requirement requirement, final String timeout) {
+      AuthenticationExecutionModel execution = new AuthenticationExecutionModel();
+      execution.setRequirement(requirement);
+      RealmModel realm = Models.stub(RealmModel.class, Map.of("getId", args -> realmId));
+      UserProvider users =
+          Models.stub(
+              UserProvider.class,
+              Map.of(
+                  "getUserByFederatedIdentity",
+                  args -> {
+                    synchronized (lookups) {
+                      lookups.add((FederatedIdentityModel) args[1]);
+                    }
+                    return linked.get();
+                  }));
+      KeycloakTransactionManager transactions =
+          Models.stub(
+              KeycloakTransactionManager.class,
+              Map.of(
+                  "enlistAfterCompletion",
+                  args -> {
+                    enlisted.add((KeycloakTransaction) args[0]);
+                    return null;
+                  }));
+      KeycloakSession session =
+          Models.stub(
+              KeycloakSession.class,
+              Map.of("users", args -> users, "getTransactionManager", args -> transactions));
+      AuthenticationSessionModel authSession =
+          Models.stub(
+              AuthenticationSessionModel.class,
+              Map.of(
+                  "setAuthNote",
+                  args -> {
+                    notes.put((String) args[0], (String) args[1]);
+                    return null;
+                  }));
+      context =
+          Models.stub(
+              AuthenticationFlowContext.class,
+              Map.of(
+                  "getRealm", args -> realm,
+                  "getSession", args -> session,
+                  "getAuthenticationSession", args -> authSession,
+                  "getExecution", args -> execution,
+                  "getAuthenticatorConfig", args -> timeout == null ? null : config(timeout),
+                  "setUser",
+                      args -> {
+                        user = (UserModel) args[0];
+                        return null;
+                      },
+                  "success",
+                      args -> {
+                        result = "success";
+                        return null;
+                      },
+                  "attempted",
+                      args -> {
+                        result = "attempted";
+                        return null;
+                      }));
+      IdentityProviderModel idp = new IdentityProviderModel();
+      idp.setAlias("cas");
+      brokerContext = new BrokeredIdentityContext("jdoe", idp);
+      brokerContext.setUsername("jdoe");
+    }
+
+    void authenticate() {
+      authenticator.authenticateImpl(context, null, brokerContext);
+    }
+
+    /** Commits the login's transaction, which lets the next login of the same user through. */
+    void complete() {
+      enlisted.forEach(KeycloakTransaction::begin);
+      enlisted.forEach(KeycloakTransaction::commit);
+    }
+  }
+}
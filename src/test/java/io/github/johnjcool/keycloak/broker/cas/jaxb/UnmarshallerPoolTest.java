@@ -0,0 +1,50 @@
+package io.github.johnjcool.keycloak.broker.cas.jaxb;
+
+import io.github.johnjcool.keycloak.broker.cas.metrics.ValidationMetrics;
+import io.github.johnjcool.keycloak.broker.cas.model.ServiceResponse;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.xml.bind.JAXBContext;
+import jakarta.xml.bind.JAXBException;
+import java.io.StringReader;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class UnmarshallerPoolTest {
+
+  private static final String SUCCESS =
+      "<cas:serviceResponse xmlns:cas=\"http://www.yale.edu/tp/cas\">"
+          + "<cas:authenticationSuccess><cas:user>jdoe</cas:user></cas:authenticationSuccess>"
+          + "</cas:serviceResponse>";
+
+  private static void parse(final UnmarshallerPool pool, final String xml) throws JAXBException {
+    pool.unmarshal(new StringReader(xml), ServiceResponse.class);
+  }
+
+  @Test
+  public void testCountsAreExposedAsMeters() throws JAXBException {
+    UnmarshallerPool pool = new UnmarshallerPool(JAXBContext.newInstance(ServiceResponse.class), 1);
+    SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    List<Meter> meters = ValidationMetrics.bindUnmarshallerPool(registry, pool);
+
+    parse(pool, SUCCESS);
+    parse(pool, SUCCESS);
+    Assert.assertThrows(JAXBException.class, () -> parse(pool, "<cas:serviceResponse"));
+
+    Assert.assertEquals(1, pool.getCreatedCount());
+    Assert.assertEquals(2, pool.getReusedCount());
+    Assert.assertEquals(1, pool.getDiscardedCount());
+    Assert.assertEquals(1, count(registry, "created"), 0);
+    Assert.assertEquals(2, count(registry, "reused"), 0);
+    Assert.assertEquals(1, count(registry, "discarded"), 0);
+    Assert.assertEquals(0, registry.get("cas.jaxb.unmarshallers.idle").gauge().value(), 0);
+
+    meters.forEach(registry::remove);
+    Assert.assertTrue(registry.getMeters().isEmpty());
+  }
+
+  private static double count(final SimpleMeterRegistry registry, final String event) {
+    return registry.get("cas.jaxb.unmarshallers").tag("event", event).functionCounter().count();
+  }
+}
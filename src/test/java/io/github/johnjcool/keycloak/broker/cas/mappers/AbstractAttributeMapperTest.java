@@ -0,0 +1,118 @@
+package io.github.johnjcool.keycloak.broker.cas.mappers;
+
+import io.github.johnjcool.keycloak.broker.cas.CasIdentityProvider;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.junit.Assert;
+import org.junit.Test;
+import org.keycloak.broker.provider.BrokeredIdentityContext;
+import org.keycloak.models.IdentityProviderMapperModel;
+import org.keycloak.models.IdentityProviderModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.provider.ProviderConfigProperty;
+
+public class AbstractAttributeMapperTest {
+
+  private final List<String> calls = new ArrayList<>();
+
+  /** A mapper written against the hooks, as the mappers of this package are. */
+  private class HookMapper extends AbstractAttributeMapper {
+    @Override
+    protected void doImportNewUser(
+        final KeycloakSession session,
+        final RealmModel realm,
+        final UserModel user,
+        final IdentityProviderMapperModel mapperModel,
+        final BrokeredIdentityContext context) {
+      calls.add("doImportNewUser");
+    }
+
+    @Override
+    protected void doUpdateBrokeredUser(
+        final KeycloakSession session,
+        final RealmModel realm,
+        final UserModel user,
+        final IdentityProviderMapperModel mapperModel,
+        final BrokeredIdentityContext context) {
+      calls.add("doUpdateBrokeredUser");
+    }
+
+    @Override
+    public String[] getCompatibleProviders() {
+      return new String[0];
+    }
+
+    @Override
+    public String getDisplayCategory() {
+      return "test";
+    }
+
+    @Override
+    public String getDisplayType() {
+      return "test";
+    }
+
+    @Override
+    public String getHelpText() {
+      return "test";
+    }
+
+    @Override
+    public List<ProviderConfigProperty> getConfigProperties() {
+      return List.of();
+    }
+
+    @Override
+    public String getId() {
+      return "test-mapper";
+    }
+  }
+
+  private static BrokeredIdentityContext context(final boolean unchanged) {
+    BrokeredIdentityContext context =
+        new BrokeredIdentityContext("jdoe", new IdentityProviderModel());
+    context.getContextData().put(CasIdentityProvider.USER_ATTRIBUTES, Map.of());
+    if (unchanged) {
+      context.getContextData().put(CasIdentityProvider.ATTRIBUTES_UNCHANGED, Boolean.TRUE);
+    }
+    return context;
+  }
+
+  @Test
+  public void testEntryPointsRunTheHooks() {
+    HookMapper mapper = new HookMapper();
+    IdentityProviderMapperModel model = new IdentityProviderMapperModel();
+    mapper.importNewUser(null, null, null, model, context(false));
+    mapper.updateBrokeredUser(null, null, null, model, context(false));
+    Assert.assertEquals(List.of("doImportNewUser", "doUpdateBrokeredUser"), calls);
+  }
+
+  @Test
+  public void testUnchangedAttributesSkipTheUpdate() {
+    new HookMapper()
+        .updateBrokeredUser(null, null, null, new IdentityProviderMapperModel(), context(true));
+    Assert.assertTrue(calls.isEmpty());
+  }
+
+  @Test
+  public void testEntryPointsCanStillBeOverridden() {
+    HookMapper mapper =
+        new HookMapper() {
+          @Override
+          public void updateBrokeredUser(
+              final KeycloakSession session,
+              final RealmModel realm,
+              final UserModel user,
+              final IdentityProviderMapperModel mapperModel,
+              final BrokeredIdentityContext context) {
+            calls.add("updateBrokeredUser");
+            super.updateBrokeredUser(session, realm, user, mapperModel, context);
+          }
+        };
+    mapper.updateBrokeredUser(null, null, null, new IdentityProviderMapperModel(), context(false));
+    Assert.assertEquals(List.of("updateBrokeredUser", "doUpdateBrokeredUser"), calls);
+  }
+}
@@ -0,0 +1,144 @@
+package io.github.johnjcool.keycloak.broker.cas.mappers;
+
+import io.github.johnjcool.keycloak.broker.cas.CasIdentityProvider;
+import io.github.johnjcool.keycloak.broker.cas.Models;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.junit.Assert;
+import org.junit.Test;
+import org.keycloak.broker.provider.BrokeredIdentityContext;
+import org.keycloak.broker.provider.IdentityBrokerException;
+import org.keycloak.models.IdentityProviderMapperModel;
+import org.keycloak.models.IdentityProviderModel;
+
+public class AttributeRulesToRoleMapperTest {
+
+  private final Models.Realm realm = new Models.Realm();
+  private final Models.Role admin = realm.addRole("admin");
+  private final Models.Role ops = realm.addRole("ops");
+  private final Models.Role viewer = realm.addClient("app").addRole("viewer");
+  private final Models.Role unrelated = realm.addRole("offline_access");
+  private final Models.User user = new Models.User();
+  private final AttributeRulesToRoleMapper mapper = new AttributeRulesToRoleMapper();
+
+  private static IdentityProviderMapperModel mapperModel(final String rules) {
+    IdentityProviderMapperModel mapperModel = new IdentityProviderMapperModel();
+    mapperModel.setName("rules");
+    mapperModel.setConfig(new HashMap<>(Map.of(AttributeRulesToRoleMapper.RULES, rules)));
+    return mapperModel;
+  }
+
+  private static final IdentityProviderMapperModel RULES =
+      mapperModel(
+          "[{\"key\":\"group=admins\",\"value\":\"admin,app.viewer\"},"
+              + "{\"key\":\"group~adm.*\",\"value\":\"ops\"},"
+              + "{\"key\":\"department=it\",\"value\":\"app.viewer\"}]");
+
+  private static BrokeredIdentityContext context(final Map<String, List<String>> attributes) {
+    BrokeredIdentityContext context =
+        new BrokeredIdentityContext("jdoe", new IdentityProviderModel());
+    context.getContextData().put(CasIdentityProvider.USER_ATTRIBUTES, attributes);
+    return context;
+  }
+
+  @Test
+  public void testImportGrantsRolesOfEveryMatchingRule() {
+    mapper.doImportNewUser(
+        null, realm.model, user.model, RULES, context(Map.of("group", List.of("admins"))));
+    Assert.assertEquals(Set.of(admin.model, ops.model, viewer.model), user.roles);
+  }
+
+  @Test
+  public void testImportWithMissingAttributeGrantsNothing() {
+    mapper.doImportNewUser(
+        null, realm.model, user.model, RULES, context(Map.of("mail", List.of("a@example.org"))));
+    Assert.assertTrue(user.roles.isEmpty());
+    mapper.doImportNewUser(null, realm.model, user.model, RULES, context(null));
+    Assert.assertTrue(user.roles.isEmpty());
+  }
+
+  @Test
+  public void testUpdateRevokesRolesWhoseRulesNoLongerMatch() {
+    user.roles.addAll(Set.of(admin.model, ops.model, viewer.model, unrelated.model));
+    mapper.doUpdateBrokeredUser(
+        null, realm.model, user.model, RULES, context(Map.of("group", List.of("admins-eu"))));
+    // roles outside the table are left alone
+    Assert.assertEquals(Set.of(ops.model, unrelated.model), user.roles);
+  }
+
+  @Test
+  public void testUpdateKeepsRoleGrantedByAnotherRule() {
+    user.roles.addAll(Set.of(admin.model, viewer.model));
+    mapper.doUpdateBrokeredUser(
+        null,
+        realm.model,
+        user.model,
+        RULES,
+        context(Map.of("group", List.of("users"), "department", List.of("it"))));
+    Assert.assertEquals(Set.of(viewer.model), user.roles);
+  }
+
+  @Test
+  public void testUpdateWithMissingAttributeRevokesEveryTableRole() {
+    user.roles.addAll(Set.of(admin.model, ops.model, unrelated.model));
+    mapper.doUpdateBrokeredUser(null, realm.model, user.model, RULES, context(Map.of()));
+    Assert.assertEquals(Set.of(unrelated.model), user.roles);
+  }
+
+  @Test
+  public void testUpdateGrantsNewlyMatchingRoles() {
+    user.roles.add(unrelated.model);
+    mapper.doUpdateBrokeredUser(
+        null, realm.model, user.model, RULES, context(Map.of("department", List.of("it"))));
+    Assert.assertEquals(Set.of(unrelated.model, viewer.model), user.roles);
+  }
+
+  @Test
+  public void testLargeTableOnlyLooksUpGrantedRoles() {
+    StringBuilder table = new StringBuilder("[");
+    for (int i = 0; i < 400; i++) {
+      realm.addRole("role-" + i);
+      table.append(i == 0 ? "" : ",").append("{\"key\":\"group=g").append(i);
+      table.append("\",\"value\":\"role-").append(i).append("\"}");
+    }
+    IdentityProviderMapperModel rules = mapperModel(table.append(']').toString());
+    mapper.doImportNewUser(
+        null, realm.model, user.model, rules, context(Map.of("group", List.of("g1", "g2"))));
+    user.roles.add(unrelated.model);
+    user.roles.add(viewer.model);
+
+    // unchanged and revoked roles are recognised among the user's mappings without lookups
+    realm.lookups = 0;
+    mapper.doUpdateBrokeredUser(
+        null, realm.model, user.model, rules, context(Map.of("group", List.of("g1", "g2"))));
+    mapper.doUpdateBrokeredUser(
+        null, realm.model, user.model, rules, context(Map.of("group", List.of("g1"))));
+    Assert.assertEquals(0, realm.lookups);
+    Assert.assertEquals(3, user.roles.size());
+
+    mapper.doUpdateBrokeredUser(
+        null, realm.model, user.model, rules, context(Map.of("group", List.of("g1", "g3"))));
+    // the granted role is resolved by name once, and fetched by id afterwards
+    Assert.assertEquals(1, realm.lookups);
+    Assert.assertEquals(4, user.roles.size());
+  }
+
+  @Test
+  public void testMissingRoleFailsTheLogin() {
+    IdentityProviderMapperModel rules =
+        mapperModel("[{\"key\":\"group=admins\",\"value\":\"missing\"}]");
+    Assert.assertThrows(
+        IdentityBrokerException.class,
+        () ->
+            mapper.doImportNewUser(
+                null, realm.model, user.model, rules, context(Map.of("group", List.of("admins")))));
+  }
+
+  @Test
+  public void testInvalidRulesFailTheLogin() {
+    IdentityProviderMapperModel rules = mapperModel("[{\"key\":\"group~[\",\"value\":\"admin\"}]");
+    Assert.assertThrows(IdentityBrokerException.class, () -> mapper.getReferencedAttributes(rules));
+  }
+}
@@ -0,0 +1,98 @@
+package io.github.johnjcool.keycloak.broker.cas.mappers;
+
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class AttributeValueMatcherTest {
+
+  private static boolean matches(final String mode, final String value, final String... values) {
+    return AttributeValueMatcher.compile(mode, value).matches(List.of(values));
+  }
+
+  @Test
+  public void testEqualsNeedsExactlyOneValue() {
+    Assert.assertTrue(matches("equals", "admins", "admins"));
+    Assert.assertFalse(matches("equals", "admins", "Admins"));
+    Assert.assertFalse(matches("equals", "admins", "admins", "users"));
+    Assert.assertFalse(matches("equals", "admins"));
+  }
+
+  @Test
+  public void testEqualsIsTheDefault() {
+    Assert.assertTrue(matches(null, "admins", "admins"));
+    Assert.assertTrue(matches("", "admins", "admins"));
+    Assert.assertTrue(matches("EQUALS", "admins", "admins"));
+  }
+
+  @Test
+  public void testContainsAnyValue() {
+    Assert.assertTrue(matches("contains", "admins", "users", "admins"));
+    Assert.assertFalse(matches("contains", "admins", "users", "admins-eu"));
+    Assert.assertFalse(matches("contains", "admins"));
+  }
+
+  @Test
+  public void testRegexMatchesTheWholeValue() {
+    Assert.assertTrue(matches("regex", "adm.*", "users", "admins"));
+    Assert.assertTrue(matches("regex", "cn=([^,]+),ou=groups", "cn=admins,ou=groups"));
+    // a match inside the value, as find() would accept, is not enough
+    Assert.assertFalse(matches("regex", "adm", "admins"));
+    Assert.assertFalse(matches("regex", "cn=admins", "cn=admins,ou=groups"));
+  }
+
+  @Test
+  public void testRegexMatcherIsReusedAcrossCalls() {
+    AttributeValueMatcher matcher = AttributeValueMatcher.compile("regex", "a+");
+    Assert.assertTrue(matcher.matches(List.of("aaa")));
+    Assert.assertFalse(matcher.matches(List.of("aab")));
+    Assert.assertTrue(matcher.matches(List.of("b", "a")));
+  }
+
+  @Test
+  public void testGlobWithStarAtTheStart() {
+    Assert.assertTrue(matches("glob", "*,ou=groups", "cn=admins,ou=groups"));
+    Assert.assertTrue(matches("glob", "*,ou=groups", ",ou=groups"));
+    Assert.assertFalse(matches("glob", "*,ou=groups", "cn=admins,ou=groups,dc=org"));
+  }
+
+  @Test
+  public void testGlobWithStarInTheMiddle() {
+    Assert.assertTrue(matches("glob", "cn=*,ou=groups", "cn=admins,ou=groups"));
+    Assert.assertTrue(matches("glob", "cn=*,ou=groups", "cn=,ou=groups"));
+    // the star has to retry past a partial match of the rest
+    Assert.assertTrue(matches("glob", "a*bc", "abxbbc"));
+    Assert.assertFalse(matches("glob", "cn=*,ou=groups", "cn=admins,ou=people"));
+  }
+
+  @Test
+  public void testGlobWithStarAtTheEnd() {
+    Assert.assertTrue(matches("glob", "admins*", "admins"));
+    Assert.assertTrue(matches("glob", "admins*", "admins-eu"));
+    Assert.assertTrue(matches("glob", "*", ""));
+    Assert.assertFalse(matches("glob", "admins*", "the-admins"));
+  }
+
+  @Test
+  public void testGlobQuestionMarkIsOneChar() {
+    Assert.assertTrue(matches("glob", "team-?", "team-a"));
+    Assert.assertFalse(matches("glob", "team-?", "team-"));
+    Assert.assertFalse(matches("glob", "team-?", "team-ab"));
+  }
+
+  @Test
+  public void testGlobWithoutMatch() {
+    Assert.assertFalse(matches("glob", "admins", "admins-eu", "users"));
+    Assert.assertFalse(matches("glob", "*admins*", "users", "ops"));
+    Assert.assertFalse(matches("glob", "a*b*c", "acb"));
+    Assert.assertFalse(matches("glob", "admins"));
+  }
+
+  @Test
+  public void testInvalidConfigIsRejected() {
+    Assert.assertThrows(
+        IllegalArgumentException.class, () -> AttributeValueMatcher.compile("fuzzy", "admins"));
+    Assert.assertThrows(
+        IllegalArgumentException.class, () -> AttributeValueMatcher.compile("regex", "adm("));
+  }
+}
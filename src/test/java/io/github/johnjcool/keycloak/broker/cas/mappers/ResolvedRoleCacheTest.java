@@ -0,0 +1,194 @@
+package io.github.johnjcool.keycloak.broker.cas.mappers;
+
+import io.github.johnjcool.keycloak.broker.cas.CasIdentityProvider;
+import io.github.johnjcool.keycloak.broker.cas.Models;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Assert;
+import org.junit.Test;
+import org.keycloak.broker.provider.BrokeredIdentityContext;
+import org.keycloak.broker.provider.ConfigConstants;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.IdentityProviderMapperModel;
+import org.keycloak.models.IdentityProviderModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RoleModel;
+
+public class ResolvedRoleCacheTest {
+
+  private final Models.Realm realm = new Models.Realm();
+
+  @Test
+  public void testResolvesRealmAndClientRoles() {
+    Models.Role admin = realm.addRole("admin");
+    Models.Role clientAdmin = realm.addClient("app").addRole("admin");
+
+    Assert.assertSame(admin.model, ResolvedRoleCache.ROLES.getRole(realm.model, "admin"));
+    Assert.assertSame(clientAdmin.model, ResolvedRoleCache.ROLES.getRole(realm.model, "app.admin"));
+    Assert.assertNull(ResolvedRoleCache.ROLES.getRole(realm.model, "missing"));
+    Assert.assertFalse(ResolvedRoleCache.ROLES.isResolved(realm.model, "missing"));
+  }
+
+  @Test
+  public void testKnownRoleIsFetchedById() {
+    Models.Role clientAdmin = realm.addClient("app").addRole("admin");
+    ResolvedRoleCache.ROLES.getRole(realm.model, "app.admin");
+    realm.lookups = 0;
+
+    Assert.assertSame(clientAdmin.model, ResolvedRoleCache.ROLES.getRole(realm.model, "app.admin"));
+    // no client by clientId and role by name, just the role by id
+    Assert.assertEquals(1, realm.lookups);
+  }
+
+  @Test
+  public void testRecreatedRoleIsResolvedAgain() {
+    Models.Role old = realm.addRole("admin");
+    Assert.assertSame(old.model, ResolvedRoleCache.ROLES.getRole(realm.model, "admin"));
+
+    // removed and recreated on another node, so no event reached this one
+    realm.removeRole(old);
+    Assert.assertNull(ResolvedRoleCache.ROLES.getRole(realm.model, "admin"));
+    Assert.assertFalse(ResolvedRoleCache.ROLES.isResolved(realm.model, "admin"));
+    Models.Role recreated = realm.addRole("admin");
+    Assert.assertSame(recreated.model, ResolvedRoleCache.ROLES.getRole(realm.model, "admin"));
+  }
+
+  @Test
+  public void testRoleNameChangeEventDropsRole() {
+    Models.Role old = realm.addRole("admin");
+    Assert.assertSame(old.model, ResolvedRoleCache.ROLES.getRole(realm.model, "admin"));
+
+    old.name = "former-admin";
+    ResolvedRoleCache.ROLES.onEvent(
+        new RoleModel.RoleNameChangeEvent() {
+          @Override
+          public RealmModel getRealm() {
+            return realm.model;
+          }
+
+          @Override
+          public String getNewName() {
+            return "former-admin";
+          }
+
+          @Override
+          public String getPreviousName() {
+            return "admin";
+          }
+
+          @Override
+          public String getClientId() {
+            return null;
+          }
+
+          @Override
+          public KeycloakSession getKeycloakSession() {
+            return null;
+          }
+        });
+    Assert.assertNull(ResolvedRoleCache.ROLES.getRole(realm.model, "admin"));
+    Models.Role admin = realm.addRole("admin");
+    Assert.assertSame(admin.model, ResolvedRoleCache.ROLES.getRole(realm.model, "admin"));
+  }
+
+  @Test
+  public void testClientUpdatedEventDropsClientRoles() {
+    Models.Client app = realm.addClient("app");
+    Models.Role role = app.addRole("admin");
+    Assert.assertSame(role.model, ResolvedRoleCache.ROLES.getRole(realm.model, "app.admin"));
+
+    app.clientId = "renamed";
+    ResolvedRoleCache.ROLES.onEvent(
+        new ClientModel.ClientUpdatedEvent() {
+          @Override
+          public ClientModel getUpdatedClient() {
+            return app.model;
+          }
+
+          @Override
+          public KeycloakSession getKeycloakSession() {
+            return null;
+          }
+        });
+    Assert.assertNull(ResolvedRoleCache.ROLES.getRole(realm.model, "app.admin"));
+    Assert.assertSame(role.model, ResolvedRoleCache.ROLES.getRole(realm.model, "renamed.admin"));
+  }
+
+  @Test
+  public void testRoleStringNamesRoleByNameAndClientId() {
+    Models.Role realmRole = realm.addRole("app.admin");
+    Models.Role clientRole = realm.addClient("app").addRole("admin");
+    Models.Role dottedClientRole = realm.addClient("my.app").addRole("admin");
+
+    Assert.assertTrue(ResolvedRoleCache.names("app.admin", realmRole.model));
+    Assert.assertTrue(ResolvedRoleCache.names("app.admin", clientRole.model));
+    Assert.assertTrue(ResolvedRoleCache.names("my.app.admin", dottedClientRole.model));
+    Assert.assertFalse(ResolvedRoleCache.names("admin", clientRole.model));
+    Assert.assertFalse(ResolvedRoleCache.names("my.app.admin", clientRole.model));
+    Assert.assertFalse(ResolvedRoleCache.names("xapp.admin", clientRole.model));
+    Assert.assertFalse(ResolvedRoleCache.names("admin", realmRole.model));
+    Assert.assertEquals("my.app.admin", ResolvedRoleCache.toRoleString(dottedClientRole.model));
+  }
+
+  @Test
+  public void testRecreatedRoleIsRevoked() {
+    realm.addRole("other");
+    Models.Role old = realm.addRole("admin");
+    AttributeToRoleMapper mapper = new AttributeToRoleMapper();
+    IdentityProviderMapperModel mapperModel = new IdentityProviderMapperModel();
+    mapperModel.setName("admins");
+    mapperModel.setConfig(
+        new HashMap<>(
+            Map.of(
+                AbstractAttributeMapper.ATTRIBUTE, "group",
+                AbstractAttributeMapper.ATTRIBUTE_VALUE, "admins",
+                ConfigConstants.ROLE, "admin")));
+    Models.User user = new Models.User();
+    mapper.doImportNewUser(null, realm.model, user.model, mapperModel, context("admins"));
+    Assert.assertTrue(user.roles.contains(old.model));
+
+    // recreated elsewhere and granted again, then the user leaves the group
+    realm.removeRole(old);
+    user.roles.clear();
+    Models.Role recreated = realm.addRole("admin");
+    user.roles.add(recreated.model);
+    mapper.doUpdateBrokeredUser(null, realm.model, user.model, mapperModel, context("users"));
+    Assert.assertFalse(user.roles.contains(recreated.model));
+  }
+
+  @Test
+  public void testRecreatedRoleIsRevokedByRuleTable() {
+    Models.Role old = realm.addRole("admin");
+    AttributeRulesToRoleMapper mapper = new AttributeRulesToRoleMapper();
+    IdentityProviderMapperModel mapperModel = new IdentityProviderMapperModel();
+    mapperModel.setName("rules");
+    mapperModel.setConfig(
+        new HashMap<>(
+            Map.of(
+                AttributeRulesToRoleMapper.RULES,
+                "[{\"key\":\"group=admins\",\"value\":\"admin\"}]")));
+    Models.User user = new Models.User();
+    mapper.doImportNewUser(null, realm.model, user.model, mapperModel, context("admins"));
+    Assert.assertTrue(user.roles.contains(old.model));
+    // caches the old id
+    mapper.doUpdateBrokeredUser(null, realm.model, user.model, mapperModel, context("admins"));
+
+    realm.removeRole(old);
+    user.roles.clear();
+    Models.Role recreated = realm.addRole("admin");
+    user.roles.add(recreated.model);
+    mapper.doUpdateBrokeredUser(null, realm.model, user.model, mapperModel, context("users"));
+    Assert.assertFalse(user.roles.contains(recreated.model));
+  }
+
+  static BrokeredIdentityContext context(final String group) {
+    BrokeredIdentityContext context =
+        new BrokeredIdentityContext("user", new IdentityProviderModel());
+    context
+        .getContextData()
+        .put(CasIdentityProvider.USER_ATTRIBUTES, Map.of("group", List.of(group)));
+    return context;
+  }
+}
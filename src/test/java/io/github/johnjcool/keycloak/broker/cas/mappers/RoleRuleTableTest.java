@@ -0,0 +1,95 @@
+package io.github.johnjcool.keycloak.broker.cas.mappers;
+
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RoleRuleTableTest {
+
+  private static Set<String> granted(
+      final RoleRuleTable table, final Map<String, List<String>> attributes) {
+    BitSet matched = table.match(attributes);
+    Set<String> roles = new TreeSet<>();
+    for (int i = matched.nextSetBit(0); i >= 0; i = matched.nextSetBit(i + 1)) {
+      roles.add(table.getRoles()[i]);
+    }
+    return roles;
+  }
+
+  private static RoleRuleTable compile(final String... rules) {
+    Map<String, List<String>> table = new LinkedHashMap<>();
+    for (int i = 0; i < rules.length; i += 2) {
+      table.put(rules[i], List.of(rules[i + 1]));
+    }
+    return RoleRuleTable.compile(table);
+  }
+
+  @Test
+  public void testExactRuleGrantsEveryListedRole() {
+    RoleRuleTable table = compile("group=admins", "admin, app.viewer");
+    Assert.assertEquals(
+        Set.of("admin", "app.viewer"), granted(table, Map.of("group", List.of("admins"))));
+    Assert.assertEquals(Set.of(), granted(table, Map.of("group", List.of("Admins"))));
+  }
+
+  @Test
+  public void testSeveralRulesMatchingOneValueAreCombined() {
+    RoleRuleTable table =
+        compile("group=admins", "admin", " group =admins", "auditor", "group~adm.*", "ops");
+    Assert.assertEquals(
+        Set.of("admin", "auditor", "ops"), granted(table, Map.of("group", List.of("admins"))));
+    Assert.assertEquals(Set.of("ops"), granted(table, Map.of("group", List.of("admins-eu"))));
+  }
+
+  @Test
+  public void testRulesMatchAnyValueOfTheirAttribute() {
+    RoleRuleTable table =
+        compile("group=admins", "admin", "department=it", "it", "group~dev-.*", "dev");
+    Assert.assertEquals(
+        Set.of("admin", "dev"),
+        granted(table, Map.of("group", List.of("users", "dev-java", "admins"))));
+    // a value only counts for the attribute it belongs to
+    Assert.assertEquals(Set.of(), granted(table, Map.of("department", List.of("admins"))));
+    Assert.assertEquals(Set.of("group", "department"), table.getAttributes());
+  }
+
+  @Test
+  public void testPatternMustMatchTheWholeValue() {
+    RoleRuleTable table = compile("group~adm", "admin");
+    Assert.assertEquals(Set.of(), granted(table, Map.of("group", List.of("admins"))));
+    Assert.assertEquals(Set.of("admin"), granted(table, Map.of("group", List.of("adm"))));
+  }
+
+  @Test
+  public void testMissingAttributeMatchesNothing() {
+    RoleRuleTable table = compile("group=admins", "admin");
+    Assert.assertTrue(table.match(Map.of("department", List.of("admins"))).isEmpty());
+    Assert.assertTrue(table.match(Map.of()).isEmpty());
+    Assert.assertTrue(table.match(null).isEmpty());
+  }
+
+  @Test
+  public void testRuleWithoutRolesIsIgnored() {
+    RoleRuleTable table = compile("group=admins", " , ", "group=users", "user");
+    Assert.assertArrayEquals(new String[] {"user"}, table.getRoles());
+    Assert.assertEquals(Set.of("group"), table.getAttributes());
+  }
+
+  @Test
+  public void testEmptyRulesCompileToTheEmptyTable() {
+    Assert.assertSame(RoleRuleTable.EMPTY, RoleRuleTable.compile(null));
+    Assert.assertSame(RoleRuleTable.EMPTY, RoleRuleTable.compile(Map.of()));
+  }
+
+  @Test
+  public void testInvalidRulesAreRejected() {
+    Assert.assertThrows(IllegalArgumentException.class, () -> compile("group", "admin"));
+    Assert.assertThrows(IllegalArgumentException.class, () -> compile("=admins", "admin"));
+    Assert.assertThrows(IllegalArgumentException.class, () -> compile("group~[", "admin"));
+  }
+}
@@ -0,0 +1,148 @@
+package io.github.johnjcool.keycloak.broker.cas.mappers;
+
+import io.github.johnjcool.keycloak.broker.cas.CasIdentityProvider;
+import io.github.johnjcool.keycloak.broker.cas.Models;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Assert;
+import org.junit.Test;
+import org.keycloak.broker.provider.BrokeredIdentityContext;
+import org.keycloak.models.IdentityProviderMapperModel;
+import org.keycloak.models.IdentityProviderMapperSyncMode;
+import org.keycloak.models.IdentityProviderModel;
+import org.keycloak.models.IdentityProviderSyncMode;
+
+public class UserAttributeMapperTest {
+
+  private final Models.User user = new Models.User();
+
+  @Test
+  public void testOnlyChangedAttributesAreWritten() {
+    user.attributes.put("department", List.of("sales"));
+    user.attributes.put("phone", List.of("123"));
+    user.email = "jdoe@example.org";
+    List<IdentityProviderMapperModel> mappers =
+        List.of(
+            importer("dept", "department"), importer("tel", "phone"), importer("mail", "email"));
+
+    BrokeredIdentityContext context =
+        context(
+            IdentityProviderSyncMode.FORCE,
+            Map.of(
+                "dept",
+                List.of("sales"),
+                "tel",
+                List.of("456"),
+                "mail",
+                List.of("jdoe@example.org")));
+    UserAttributeMapper.applyAll(user.model, mappers, context);
+
+    Assert.assertEquals(1, user.writes);
+    Assert.assertEquals(List.of("456"), user.attributes.get("phone"));
+    Assert.assertEquals(
+        Boolean.TRUE, context.getContextData().get(CasIdentityProvider.USER_ATTRIBUTES_APPLIED));
+  }
+
+  @Test
+  public void testMissingAttributeIsRemoved() {
+    user.attributes.put("phone", List.of("123"));
+    UserAttributeMapper.applyAll(
+        user.model,
+        List.of(importer("tel", "phone")),
+        context(IdentityProviderSyncMode.FORCE, Map.of()));
+    Assert.assertFalse(user.attributes.containsKey("phone"));
+  }
+
+  @Test
+  public void testLastImporterOfAnAttributeWins() {
+    UserAttributeMapper.applyAll(
+        user.model,
+        List.of(importer("a", "department"), importer("b", "department")),
+        context(IdentityProviderSyncMode.FORCE, Map.of("a", List.of("sales"), "b", List.of("it"))));
+    Assert.assertEquals(List.of("it"), user.attributes.get("department"));
+  }
+
+  @Test
+  public void testImportSyncModeIsSkipped() {
+    user.attributes.put("phone", List.of("123"));
+    IdentityProviderMapperModel inherited = importer("tel", "phone");
+    IdentityProviderMapperModel forced = importer("dept", "department");
+    forced.setSyncMode(IdentityProviderMapperSyncMode.FORCE);
+
+    UserAttributeMapper.applyAll(
+        user.model,
+        List.of(inherited, forced),
+        context(
+            IdentityProviderSyncMode.IMPORT,
+            Map.of("tel", List.of("456"), "dept", List.of("sales"))));
+
+    Assert.assertEquals(List.of("123"), user.attributes.get("phone"));
+    Assert.assertEquals(List.of("sales"), user.attributes.get("department"));
+  }
+
+  @Test
+  public void testImportMapperSyncModeIsSkipped() {
+    IdentityProviderMapperModel mapper = importer("tel", "phone");
+    mapper.setSyncMode(IdentityProviderMapperSyncMode.IMPORT);
+    UserAttributeMapper.applyAll(
+        user.model,
+        List.of(mapper),
+        context(IdentityProviderSyncMode.FORCE, Map.of("tel", List.of("456"))));
+    Assert.assertEquals(0, user.writes);
+  }
+
+  @Test
+  public void testOtherMappersKeepTheConfiguredOrder() {
+    IdentityProviderMapperModel hardcoded = new IdentityProviderMapperModel();
+    hardcoded.setName("hardcoded");
+    hardcoded.setIdentityProviderMapper("hardcoded-attribute-idp-mapper");
+    hardcoded.setConfig(new HashMap<>());
+    BrokeredIdentityContext context =
+        context(IdentityProviderSyncMode.FORCE, Map.of("tel", List.of("456")));
+
+    UserAttributeMapper.applyAll(user.model, List.of(importer("tel", "phone"), hardcoded), context);
+
+    // the importers are left to the mapper chain, which runs them in order with the other mapper
+    Assert.assertEquals(0, user.writes);
+    Assert.assertNull(context.getContextData().get(CasIdentityProvider.USER_ATTRIBUTES_APPLIED));
+  }
+
+  @Test
+  public void testRoleMappersDoNotPreventTheBatch() {
+    IdentityProviderMapperModel role = new IdentityProviderMapperModel();
+    role.setName("role");
+    role.setIdentityProviderMapper(AttributeToRoleMapper.PROVIDER_ID);
+    role.setConfig(new HashMap<>());
+    UserAttributeMapper.applyAll(
+        user.model,
+        List.of(role, importer("tel", "phone")),
+        context(IdentityProviderSyncMode.FORCE, Map.of("tel", List.of("456"))));
+    Assert.assertEquals(List.of("456"), user.attributes.get("phone"));
+  }
+
+  private static IdentityProviderMapperModel importer(
+      final String casAttribute, final String userAttribute) {
+    IdentityProviderMapperModel mapper = new IdentityProviderMapperModel();
+    mapper.setName(casAttribute + " importer");
+    mapper.setIdentityProviderMapper(UserAttributeMapper.PROVIDER_ID);
+    Map<String, String> config = new HashMap<>();
+    config.put("attribute", casAttribute);
+    config.put("user.attribute", userAttribute);
+    mapper.setConfig(config);
+    mapper.setSyncMode(IdentityProviderMapperSyncMode.INHERIT);
+    return mapper;
+  }
+
+  private static BrokeredIdentityContext context(
+      final IdentityProviderSyncMode syncMode, final Map<String, List<String>> attributes) {
+    IdentityProviderModel idp = new IdentityProviderModel();
+    idp.setSyncMode(syncMode);
+    BrokeredIdentityContext context = new BrokeredIdentityContext("jdoe", idp);
+    Map<String, List<String>> copy = new HashMap<>();
+    attributes.forEach((name, values) -> copy.put(name, new ArrayList<>(values)));
+    context.getContextData().put(CasIdentityProvider.USER_ATTRIBUTES, copy);
+    return context;
+  }
+}
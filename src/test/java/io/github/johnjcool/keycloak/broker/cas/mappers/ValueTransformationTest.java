@@ -0,0 +1,94 @@
+package io.github.johnjcool.keycloak.broker.cas.mappers;
+
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ValueTransformationTest {
+
+  private static List<String> apply(final String spec, final String... values) {
+    return ValueTransformation.compile(spec).apply(List.of(values));
+  }
+
+  @Test
+  public void testSplit() {
+    Assert.assertEquals(List.of("a", "b", "c", "d"), apply("split ;", "a;b;;c", "d"));
+    // the delimiter is literal, not a pattern
+    Assert.assertEquals(List.of("a", "b"), apply("split .", "a.b"));
+  }
+
+  @Test
+  public void testExtract() {
+    Assert.assertEquals(
+        List.of("admins", "Users"),
+        apply("extract (?i)^cn=([^,]+)", "cn=admins,ou=groups", "uid=jdoe", "CN=Users,dc=org"));
+    // without a group the whole match is kept
+    Assert.assertEquals(List.of("42"), apply("extract \\d+", "id 42 and 7"));
+  }
+
+  @Test
+  public void testFilter() {
+    Assert.assertEquals(
+        List.of("dev-java", "ops-dev"), apply("filter dev", "dev-java", "ops-dev", "hr"));
+  }
+
+  @Test
+  public void testReject() {
+    Assert.assertEquals(List.of("hr"), apply("reject dev", "dev-java", "ops-dev", "hr"));
+  }
+
+  @Test
+  public void testLower() {
+    Assert.assertEquals(List.of("admins", "istanbul"), apply("lower", "ADMINS", "ISTANBUL"));
+  }
+
+  @Test
+  public void testUpper() {
+    Assert.assertEquals(List.of("ADMINS", "INFO"), apply("upper", "admins", "info"));
+  }
+
+  @Test
+  public void testTrim() {
+    Assert.assertEquals(List.of("a", "b c"), apply("trim", "  a ", "\tb c "));
+  }
+
+  @Test
+  public void testDistinct() {
+    Assert.assertEquals(List.of("b", "a"), apply("distinct", "b", "a", "b", "a"));
+  }
+
+  @Test
+  public void testLimit() {
+    Assert.assertEquals(List.of("a", "b"), apply("limit 2", "a", "b", "c"));
+    Assert.assertEquals(List.of("a"), apply("limit 5", "a"));
+    Assert.assertEquals(List.of(), apply("limit 0", "a"));
+  }
+
+  @Test
+  public void testStepsApplyInOrder() {
+    Assert.assertEquals(
+        List.of("admins", "users"),
+        apply(
+            "split |\n  extract (?i)^cn=([^,]+)\r\nLOWER\n\ndistinct",
+            "cn=Admins,ou=g|CN=admins,ou=g|cn=users,ou=g|uid=x"));
+  }
+
+  @Test
+  public void testEmptySpecIsIdentity() {
+    Assert.assertSame(ValueTransformation.IDENTITY, ValueTransformation.compile(null));
+    Assert.assertSame(ValueTransformation.IDENTITY, ValueTransformation.compile(" \n "));
+    List<String> values = List.of("a");
+    Assert.assertSame(values, ValueTransformation.IDENTITY.apply(values));
+  }
+
+  @Test
+  public void testInvalidConfigIsRejected() {
+    for (String spec :
+        new String[] {
+          "reverse", "split", "extract", "filter (", "reject [a-", "limit", "limit two", "limit -1"
+        }) {
+      Assert.assertThrows(
+          spec, IllegalArgumentException.class, () -> ValueTransformation.compile(spec));
+    }
+  }
+}
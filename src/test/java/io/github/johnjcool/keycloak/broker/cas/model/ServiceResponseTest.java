@@ -1,5 +1,13 @@
 package io.github.johnjcool.keycloak.broker.cas.model;
 
+import io.github.johnjcool.keycloak.broker.cas.parser.Cas10ResponseParser;
+import io.github.johnjcool.keycloak.broker.cas.parser.JaxbServiceResponseParser;
+import io.github.johnjcool.keycloak.broker.cas.parser.JsonServiceResponseParser;
+import io.github.johnjcool.keycloak.broker.cas.parser.LogoutRequestParser;
+import io.github.johnjcool.keycloak.broker.cas.parser.ProxyResponseParser;
+import io.github.johnjcool.keycloak.broker.cas.parser.Saml11ResponseParser;
+import io.github.johnjcool.keycloak.broker.cas.parser.ServiceResponseParser;
+import io.github.johnjcool.keycloak.broker.cas.parser.StaxServiceResponseParser;
 import io.undertow.Undertow;
 import io.undertow.util.Headers;
 import jakarta.ws.rs.client.Client;
@@ -8,17 +16,26 @@ import jakarta.ws.rs.core.Response;
 import jakarta.xml.bind.JAXBContext;
 import jakarta.xml.bind.JAXBException;
 import jakarta.xml.bind.Unmarshaller;
+import java.io.ByteArrayInputStream;
 import java.io.StringReader;
 import java.nio.CharBuffer;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import org.jboss.resteasy.client.jaxrs.ResteasyClientBuilder;
 import org.jboss.resteasy.spi.ResteasyProviderFactory;
 import org.junit.AfterClass;
 import org.junit.Assert;
 import org.junit.BeforeClass;
 import org.junit.Test;
+import org.keycloak.util.JsonSerialization;
 
 public class ServiceResponseTest {
 
@@ -114,6 +131,240 @@ public class ServiceResponseTest {
     Assert.assertTrue(success.getAttributes().isEmpty());
   }
 
+  @Test
+  public void testStaxParserMatchesJaxb() throws Exception {
+    Unmarshaller um = JAXBContext.newInstance(ServiceResponse.class).createUnmarshaller();
+    for (String path :
+        Arrays.asList(
+            "/without-attributes", "/with-attributes", "/with-multival-attributes", "/failure")) {
+      String stringResponse = read(path);
+
+      ServiceResponse expected = (ServiceResponse) um.unmarshal(new StringReader(stringResponse));
+      ServiceResponse actual =
+          StaxServiceResponseParser.INSTANCE.parse(
+              new ByteArrayInputStream(stringResponse.getBytes(StandardCharsets.UTF_8)));
+
+      Assert.assertEquals(
+          path, String.valueOf(expected.getSuccess()), String.valueOf(actual.getSuccess()));
+      Assert.assertEquals(
+          path, String.valueOf(expected.getFailure()), String.valueOf(actual.getFailure()));
+    }
+  }
+
+  @Test
+  public void testJsonParserMatchesStax() throws Exception {
+    // the XML fixtures as CAS renders them for format=JSON
+    Map<String, String> json = new HashMap<>();
+    json.put(
+        "/without-attributes",
+        "{\"serviceResponse\":{\"authenticationSuccess\":{\"user\":\"test\"}}}");
+    json.put(
+        "/with-attributes",
+        "{\"serviceResponse\":{\"authenticationSuccess\":{\"user\":\"test\","
+            + "\"proxyGrantingTicket\":\"PGTIOU-1\",\"attributes\":{"
+            + "\"mail\":[\"test.test@test.test\"],\"sn\":\"tets\",\"cn\":[\"test\"]}}}}");
+    json.put(
+        "/with-multival-attributes",
+        "{\"serviceResponse\":{\"authenticationSuccess\":{\"user\":\"test\",\"attributes\":{"
+            + "\"mail\":[\"test.test@test.test\"],\"sn\":[\"tets\"],\"cn\":[\"test\"],"
+            + "\"successfulAuthenticationHandlers\":[\"LdapAuthenticationHandler\",\"mfa-duo\"]}}}}");
+    json.put(
+        "/failure",
+        "{\"serviceResponse\":{\"authenticationFailure\":{\"code\":\"INVALID_TICKET\","
+            + "\"description\":\"Ticket ST-1856339-aA5Yuvrxzpv8Tau1cYQ7 not recognized\"}}}");
+    for (Map.Entry<String, String> fixture : json.entrySet()) {
+      String path = fixture.getKey();
+      ServiceResponse expected =
+          StaxServiceResponseParser.INSTANCE.parse(
+              new ByteArrayInputStream(read(path).getBytes(StandardCharsets.UTF_8)));
+      ServiceResponse actual =
+          JsonServiceResponseParser.INSTANCE.parse(
+              new ByteArrayInputStream(fixture.getValue().getBytes(StandardCharsets.UTF_8)));
+
+      Assert.assertEquals(
+          path, String.valueOf(expected.getSuccess()), String.valueOf(actual.getSuccess()));
+      if (expected.getFailure() != null) {
+        // XML keeps the whitespace around the description
+        Assert.assertEquals(path, expected.getFailure().getCode(), actual.getFailure().getCode());
+        Assert.assertEquals(
+            path,
+            expected.getFailure().getDescription().strip(),
+            actual.getFailure().getDescription());
+      } else {
+        Assert.assertNull(path, actual.getFailure());
+      }
+    }
+  }
+
+  @Test
+  public void testParsersKeepOnlyReferencedAttributes() throws Exception {
+    byte[] stringResponse = read("/with-multival-attributes").getBytes(StandardCharsets.UTF_8);
+    Set<String> referenced =
+        new HashSet<>(Arrays.asList("mail", "successfulAuthenticationHandlers"));
+    for (ServiceResponseParser parser :
+        Arrays.asList(StaxServiceResponseParser.INSTANCE, JaxbServiceResponseParser.INSTANCE)) {
+      Success success =
+          parser.parse(new ByteArrayInputStream(stringResponse), referenced).getSuccess();
+
+      Assert.assertEquals(parser.getName(), "test", success.getUser());
+      Assert.assertEquals(parser.getName(), referenced, success.getAttributes().keySet());
+      Assert.assertEquals(
+          parser.getName(),
+          Arrays.asList("LdapAuthenticationHandler", "mfa-duo"),
+          success.getAttributes().get("successfulAuthenticationHandlers"));
+    }
+  }
+
+  @Test
+  public void testCas10Response() throws Exception {
+    ServiceResponse success =
+        Cas10ResponseParser.INSTANCE.parse(
+            new ByteArrayInputStream("yes\ntest\n".getBytes(StandardCharsets.UTF_8)));
+    Assert.assertEquals("test", success.getSuccess().getUser());
+    Assert.assertTrue(success.getSuccess().getAttributes().isEmpty());
+
+    ServiceResponse failure =
+        Cas10ResponseParser.INSTANCE.parse(
+            new ByteArrayInputStream("no\n\n".getBytes(StandardCharsets.UTF_8)));
+    Assert.assertNull(failure.getSuccess());
+    Assert.assertEquals(Code.INVALID_TICKET, failure.getFailure().getCode());
+  }
+
+  @Test
+  public void testSaml11Response() throws Exception {
+    String response =
+        "<SOAP-ENV:Envelope xmlns:SOAP-ENV=\"http://schemas.xmlsoap.org/soap/envelope/\">"
+            + "<SOAP-ENV:Body><Response xmlns=\"urn:oasis:names:tc:SAML:1.0:protocol\""
+            + " xmlns:saml1=\"urn:oasis:names:tc:SAML:1.0:assertion\""
+            + " xmlns:saml1p=\"urn:oasis:names:tc:SAML:1.0:protocol\">"
+            + "<Status><StatusCode Value=\"saml1p:Success\"/></Status>"
+            + "<saml1:Assertion><saml1:AttributeStatement>"
+            + "<saml1:Subject><saml1:NameIdentifier>test</saml1:NameIdentifier></saml1:Subject>"
+            + "<saml1:Attribute AttributeName=\"mail\" AttributeNamespace=\"http://www.ja-sig.org/products/cas/\">"
+            + "<saml1:AttributeValue>test@example.org</saml1:AttributeValue></saml1:Attribute>"
+            + "<saml1:Attribute AttributeName=\"memberOf\" AttributeNamespace=\"http://www.ja-sig.org/products/cas/\">"
+            + "<saml1:AttributeValue>admins</saml1:AttributeValue>"
+            + "<saml1:AttributeValue>users</saml1:AttributeValue></saml1:Attribute>"
+            + "</saml1:AttributeStatement></saml1:Assertion></Response></SOAP-ENV:Body>"
+            + "</SOAP-ENV:Envelope>";
+    Success success =
+        Saml11ResponseParser.INSTANCE
+            .parse(
+                new ByteArrayInputStream(response.getBytes(StandardCharsets.UTF_8)),
+                Collections.singleton("memberOf"))
+            .getSuccess();
+
+    Assert.assertEquals("test", success.getUser());
+    Assert.assertEquals(Collections.singleton("memberOf"), success.getAttributes().keySet());
+    Assert.assertEquals(Arrays.asList("admins", "users"), success.getAttributes().get("memberOf"));
+
+    String failure =
+        response
+            .replace("saml1p:Success", "saml1p:RequestDenied")
+            .replace("</Status>", "<StatusMessage>Invalid ticket</StatusMessage></Status>");
+    ServiceResponse rejected =
+        Saml11ResponseParser.INSTANCE.parse(
+            new ByteArrayInputStream(failure.getBytes(StandardCharsets.UTF_8)));
+    Assert.assertNull(rejected.getSuccess());
+    Assert.assertEquals("Invalid ticket", rejected.getFailure().getDescription());
+  }
+
+  @Test
+  public void testProxyGrantingTicket() throws Exception {
+    String validation =
+        "<cas:serviceResponse xmlns:cas='http://www.yale.edu/tp/cas'><cas:authenticationSuccess>"
+            + "<cas:user>test</cas:user><cas:proxyGrantingTicket>PGTIOU-1-abc</cas:proxyGrantingTicket>"
+            + "</cas:authenticationSuccess></cas:serviceResponse>";
+    Assert.assertEquals(
+        "PGTIOU-1-abc",
+        StaxServiceResponseParser.INSTANCE
+            .parse(new ByteArrayInputStream(validation.getBytes(StandardCharsets.UTF_8)))
+            .getSuccess()
+            .getProxyGrantingTicket());
+
+    String proxySuccess =
+        "<cas:serviceResponse xmlns:cas='http://www.yale.edu/tp/cas'><cas:proxySuccess>"
+            + "<cas:proxyTicket>PT-1-def</cas:proxyTicket></cas:proxySuccess></cas:serviceResponse>";
+    Assert.assertEquals(
+        "PT-1-def",
+        ProxyResponseParser.INSTANCE
+            .parse(new ByteArrayInputStream(proxySuccess.getBytes(StandardCharsets.UTF_8)))
+            .getProxyTicket());
+
+    String proxyFailure =
+        "<cas:serviceResponse xmlns:cas='http://www.yale.edu/tp/cas'>"
+            + "<cas:proxyFailure code=\"INVALID_TICKET\">PGT-1 not recognized</cas:proxyFailure>"
+            + "</cas:serviceResponse>";
+    ProxyResponse failure =
+        ProxyResponseParser.INSTANCE.parse(
+            new ByteArrayInputStream(proxyFailure.getBytes(StandardCharsets.UTF_8)));
+    Assert.assertNull(failure.getProxyTicket());
+    Assert.assertEquals(Code.INVALID_TICKET, failure.getFailure().getCode());
+  }
+
+  @Test
+  public void testLogoutRequestSessionIndexes() throws Exception {
+    String logoutRequest =
+        "<samlp:LogoutRequest xmlns:samlp=\"urn:oasis:names:tc:SAML:2.0:protocol\""
+            + " xmlns:saml=\"urn:oasis:names:tc:SAML:2.0:assertion\" ID=\"LR-1\" Version=\"2.0\">"
+            + "<saml:NameID>@NOT_USED@</saml:NameID>"
+            + "<samlp:SessionIndex>ST-1-abc</samlp:SessionIndex>"
+            + "<samlp:SessionIndex> ST-2-def </samlp:SessionIndex>"
+            + "</samlp:LogoutRequest>";
+    Assert.assertEquals(
+        Arrays.asList("ST-1-abc", "ST-2-def"),
+        LogoutRequestParser.INSTANCE.parseSessionIndexes(logoutRequest));
+  }
+
+  @Test
+  public void testAttributesSurviveContextSerialization() throws Exception {
+    byte[] stringResponse = read("/with-multival-attributes").getBytes(StandardCharsets.UTF_8);
+    Map<String, List<String>> attributes =
+        StaxServiceResponseParser.INSTANCE
+            .parse(new ByteArrayInputStream(stringResponse))
+            .getSuccess()
+            .getAttributes();
+    List<String> handlers = attributes.get("successfulAuthenticationHandlers");
+
+    // the brokered context is stored as JSON and restored by class name
+    Object restored =
+        JsonSerialization.readValue(
+            JsonSerialization.writeValueAsString(attributes), attributes.getClass());
+    Object restoredHandlers =
+        JsonSerialization.readValue(
+            JsonSerialization.writeValueAsString(handlers), handlers.getClass());
+
+    Assert.assertEquals(attributes, restored);
+    Assert.assertEquals(Arrays.asList("LdapAuthenticationHandler", "mfa-duo"), restoredHandlers);
+  }
+
+  @Test
+  public void testCasAttributesMatchHashMap() {
+    Map<String, List<String>> expected = new HashMap<>();
+    CasAttributes.Builder builder = CasAttributes.builder();
+    for (int i = 0; i < 100; i++) {
+      // interleave names so that values of one name arrive apart
+      String name = "attribute" + (i % 37);
+      String value = "value" + i;
+      expected.computeIfAbsent(name, k -> new ArrayList<>()).add(value);
+      builder.add(name, value);
+    }
+    CasAttributes actual = builder.build();
+
+    Assert.assertEquals(expected, actual);
+    Assert.assertEquals(expected.keySet(), actual.keySet());
+    Assert.assertNull(actual.get("missing"));
+    Assert.assertEquals(expected.get("attribute3"), actual.get("attribute3"));
+  }
+
+  private static String read(final String path) {
+    Client client = ResteasyClientBuilder.newClient(ResteasyProviderFactory.getInstance());
+    WebTarget target = client.target(String.format("http://%s:%d%s", "localhost", 9999, path));
+    Response response = target.request().get();
+    Assert.assertEquals(200, response.getStatus());
+    return response.readEntity(String.class);
+  }
+
   @BeforeClass
   public static void init() {
     server =
@@ -202,6 +453,24 @@ public class ServiceResponseTest {
 
 
     </cas:authenticationSuccess>
+</cas:serviceResponse>
+                                  """)));
+                      break;
+                    case "/failure":
+                      httpServerExchange
+                          .getResponseHeaders()
+                          .put(Headers.CONTENT_TYPE, "application/xml");
+                      httpServerExchange
+                          .getResponseSender()
+                          .send(
+                              Charset.defaultCharset()
+                                  .encode(
+                                      CharBuffer.wrap(
+                                          """
+<cas:serviceResponse xmlns:cas='http://www.yale.edu/tp/cas'>
+    <cas:authenticationFailure code="INVALID_TICKET">
+        Ticket ST-1856339-aA5Yuvrxzpv8Tau1cYQ7 not recognized
+    </cas:authenticationFailure>
 </cas:serviceResponse>
                                   """)));
                       break;
@@ -0,0 +1,84 @@
+package io.github.johnjcool.keycloak.broker.cas.util;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SingleFlightTest {
+
+  @Test
+  public void testSecondAcquirerWaitsForRelease() throws Exception {
+    SingleFlight flights = new SingleFlight();
+    SingleFlight.Permit first = flights.acquire("user", 1, TimeUnit.SECONDS);
+    Assert.assertNotNull(first);
+
+    CompletableFuture<SingleFlight.Permit> second =
+        CompletableFuture.supplyAsync(() -> flights.acquire("user", 10, TimeUnit.SECONDS));
+    Thread.sleep(100);
+    Assert.assertFalse(second.isDone());
+    Assert.assertEquals(1, flights.size());
+
+    first.close();
+    SingleFlight.Permit permit = second.get(5, TimeUnit.SECONDS);
+    Assert.assertNotNull(permit);
+    permit.close();
+    Assert.assertEquals(0, flights.size());
+  }
+
+  @Test
+  public void testOtherKeysDoNotWait() {
+    SingleFlight flights = new SingleFlight();
+    try (SingleFlight.Permit first = flights.acquire("a", 0, TimeUnit.MILLISECONDS);
+        SingleFlight.Permit second = flights.acquire("b", 0, TimeUnit.MILLISECONDS)) {
+      Assert.assertNotNull(first);
+      Assert.assertNotNull(second);
+      Assert.assertEquals(2, flights.size());
+    }
+    Assert.assertEquals(0, flights.size());
+  }
+
+  @Test
+  public void testTimeoutReturnsNull() {
+    SingleFlight flights = new SingleFlight();
+    SingleFlight.Permit first = flights.acquire("user", 0, TimeUnit.MILLISECONDS);
+    long start = System.nanoTime();
+    Assert.assertNull(flights.acquire("user", 50, TimeUnit.MILLISECONDS));
+    Assert.assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+    // the waiter that gave up no longer counts
+    Assert.assertEquals(1, flights.size());
+    first.close();
+    Assert.assertEquals(0, flights.size());
+  }
+
+  @Test
+  public void testInterruptedWaitReturnsNull() {
+    SingleFlight flights = new SingleFlight();
+    SingleFlight.Permit first = flights.acquire("user", 0, TimeUnit.MILLISECONDS);
+    Thread.currentThread().interrupt();
+    try {
+      Assert.assertNull(flights.acquire("user", 10, TimeUnit.SECONDS));
+      Assert.assertTrue(Thread.interrupted());
+    } finally {
+      first.close();
+    }
+    Assert.assertEquals(0, flights.size());
+  }
+
+  @Test
+  public void testDoubleCloseReleasesOnce() {
+    SingleFlight flights = new SingleFlight();
+    SingleFlight.Permit first = flights.acquire("user", 0, TimeUnit.MILLISECONDS);
+    first.close();
+    SingleFlight.Permit second = flights.acquire("user", 0, TimeUnit.MILLISECONDS);
+    Assert.assertNotNull(second);
+
+    // a second close of the old permit must not let a third caller in next to the holder
+    first.close();
+    Assert.assertNull(flights.acquire("user", 0, TimeUnit.MILLISECONDS));
+    Assert.assertEquals(1, flights.size());
+
+    second.close();
+    Assert.assertEquals(0, flights.size());
+  }
+}
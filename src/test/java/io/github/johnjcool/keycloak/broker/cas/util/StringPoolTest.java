@@ -0,0 +1,64 @@
+package io.github.johnjcool.keycloak.broker.cas.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class StringPoolTest {
+
+  private static final String DN = "cn=admins,ou=groups,dc=example,dc=org";
+
+  @Test
+  public void testRepeatedValueIsPooled() {
+    StringPool pool = new StringPool(1024, 512);
+    String first = new String(DN);
+    Assert.assertSame(first, pool.canonicalize(first));
+    String second = new String(DN);
+    Assert.assertSame(second, pool.canonicalize(second));
+    Assert.assertSame(second, pool.canonicalize(new String(DN)));
+    Assert.assertEquals(1, pool.size());
+  }
+
+  @Test
+  public void testOneOffValuesAreNotRetained() {
+    StringPool pool = new StringPool(1024, 512);
+    for (int i = 0; i < 100_000; i++) {
+      pool.canonicalize("user" + i + "@example.org");
+    }
+    Assert.assertEquals(0, pool.size());
+  }
+
+  @Test
+  public void testRepeatedValueStaysPooledAfterManyUniqueValues() {
+    StringPool pool = new StringPool(1024, 512);
+    pool.canonicalize(new String(DN));
+    String pooled = new String(DN);
+    pool.canonicalize(pooled);
+
+    for (int i = 0; i < 100_000; i++) {
+      pool.canonicalize("user" + i + "@example.org");
+    }
+    Assert.assertSame(pooled, pool.canonicalize(new String(DN)));
+  }
+
+  @Test
+  public void testPoolIsBounded() {
+    StringPool pool = new StringPool(64, 512);
+    for (int round = 0; round < 2; round++) {
+      for (int i = 0; i < 10_000; i++) {
+        pool.canonicalize("cn=group" + i + ",dc=example,dc=org");
+      }
+    }
+    Assert.assertTrue(pool.size() <= 64);
+  }
+
+  @Test
+  public void testLongValuesAreNotPooled() {
+    StringPool pool = new StringPool(64, 8);
+    String first = new String(DN);
+    pool.canonicalize(first);
+    pool.canonicalize(first);
+    String second = new String(DN);
+    Assert.assertSame(second, pool.canonicalize(second));
+    Assert.assertEquals(0, pool.size());
+  }
+}
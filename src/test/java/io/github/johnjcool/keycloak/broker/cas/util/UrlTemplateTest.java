@@ -0,0 +1,127 @@
+package io.github.johnjcool.keycloak.broker.cas.util;
+
+import jakarta.ws.rs.core.UriBuilder;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class UrlTemplateTest {
+
+  private static final URI LOGIN = URI.create("https://cas.example.org/cas/login");
+
+  private static final String[] VALUES = {
+    "https://kc.example.org/realms/demo/broker/cas/endpoint",
+    "https://kc.example.org/realms/r?a=1&b=2#fragment",
+    "a b+c/d",
+    "x=y;z,!*'()@:$[]",
+    "café 中文 😀",
+  };
+
+  private static String queryValue(final URI url, final String name) {
+    for (String pair : url.getRawQuery().split("&")) {
+      int eq = pair.indexOf('=');
+      if (pair.substring(0, eq).equals(name)) {
+        return URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8);
+      }
+    }
+    return null;
+  }
+
+  // what UrlHelper built before the templates
+  private static URI uriBuilder(final String service, final String ticket) {
+    return UriBuilder.fromUri(LOGIN)
+        .queryParam("service", service)
+        .queryParam("ticket", ticket)
+        .queryParam("renew", true)
+        .build();
+  }
+
+  private static URI template(final String service, final String ticket) {
+    return UrlTemplate.builder(LOGIN)
+        .variable("service")
+        .variable("ticket")
+        .constant("renew", "true")
+        .build()
+        .expand(service, ticket);
+  }
+
+  @Test
+  public void testPlainValuesAreByteIdenticalToUriBuilder() {
+    String service = "https://kc.example.org/realms/demo/broker/cas/endpoint";
+    Assert.assertEquals(uriBuilder(service, "ST-1-abc"), template(service, "ST-1-abc"));
+  }
+
+  @Test
+  public void testNonAsciiIsByteIdenticalToUriBuilder() {
+    String service = "https://kc.example.org/realms/café/中文/😀";
+    URI url = template(service, "ST-1");
+    Assert.assertEquals(uriBuilder(service, "ST-1"), url);
+    Assert.assertTrue(
+        url.getRawQuery(),
+        url.getRawQuery().contains("caf%C3%A9%2F%E4%B8%AD%E6%96%87%2F%F0%9F%98%80"));
+  }
+
+  @Test
+  public void testValuesRoundTripLikeUriBuilder() {
+    for (String value : VALUES) {
+      URI url = template(value, value);
+      Assert.assertEquals(value, queryValue(url, "service"));
+      Assert.assertEquals(value, queryValue(url, "ticket"));
+      Assert.assertEquals("true", queryValue(url, "renew"));
+      Assert.assertEquals(value, queryValue(uriBuilder(value, value), "service"));
+    }
+  }
+
+  @Test
+  public void testReservedCharactersDoNotLeakIntoTheQuery() {
+    URI url = template("https://kc.example.org/r?renew=false&gateway=true#x", "ST-1");
+    Assert.assertNull(url.getRawFragment());
+    Assert.assertEquals(3, url.getRawQuery().split("&").length);
+    Assert.assertEquals("true", queryValue(url, "renew"));
+  }
+
+  @Test
+  public void testPercentIsEncodedLiterally() {
+    // UriBuilder keeps "%20" as an existing escape; the template encodes the value as given
+    URI url = template("a%20b", "ST-1");
+    Assert.assertTrue(url.getRawQuery(), url.getRawQuery().startsWith("service=a%2520b&"));
+    Assert.assertEquals("a%20b", queryValue(url, "service"));
+  }
+
+  @Test
+  public void testBaseWithQueryIsExtended() {
+    URI url =
+        UrlTemplate.builder(URI.create("https://cas.example.org/cas/login?locale=de"))
+            .variable("service")
+            .build()
+            .expand("https://kc.example.org/");
+    Assert.assertEquals(
+        "https://cas.example.org/cas/login?locale=de&service=https%3A%2F%2Fkc.example.org%2F",
+        url.toString());
+  }
+
+  @Test
+  public void testUnpairedSurrogateIsEncodedAsReplacementCharacter() {
+    StringBuilder out = new StringBuilder();
+    UrlTemplate.encode("a\ud83db", out);
+    Assert.assertEquals("a%EF%BF%BDb", out.toString());
+
+    out.setLength(0);
+    UrlTemplate.encode("\ude00\ud83d", out);
+    Assert.assertEquals("%EF%BF%BD%EF%BF%BD", out.toString());
+
+    out.setLength(0);
+    UrlTemplate.encode("😀", out);
+    Assert.assertEquals("%F0%9F%98%80", out.toString());
+  }
+
+  @Test
+  public void testWrongNumberOfValuesIsRejected() {
+    UrlTemplate template = UrlTemplate.builder(LOGIN).variable("service").build();
+    Assert.assertThrows(IllegalArgumentException.class, () -> template.expand());
+    Assert.assertThrows(IllegalArgumentException.class, () -> template.expand("a", "b"));
+    Assert.assertThrows(IllegalArgumentException.class, () -> template.expand((String) null));
+  }
+}
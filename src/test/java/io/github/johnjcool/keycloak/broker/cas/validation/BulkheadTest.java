@@ -0,0 +1,87 @@
+package io.github.johnjcool.keycloak.broker.cas.validation;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BulkheadTest {
+
+  @Test
+  public void testLimitsConcurrentCalls() {
+    Bulkhead bulkhead = new Bulkhead("cas", 2, 0, 1000);
+    bulkhead.acquire();
+    bulkhead.acquire();
+    Assert.assertEquals(2, bulkhead.getActiveCount());
+
+    Assert.assertThrows(BulkheadFullException.class, bulkhead::acquire);
+    Assert.assertEquals(1, bulkhead.getRejectedCount());
+
+    bulkhead.release();
+    bulkhead.acquire();
+    Assert.assertEquals(2, bulkhead.getActiveCount());
+  }
+
+  @Test
+  public void testQueuedCallGetsReleasedSlot() throws Exception {
+    Bulkhead bulkhead = new Bulkhead("cas", 1, 1, 10_000);
+    bulkhead.acquire();
+
+    CompletableFuture<Void> queued = CompletableFuture.runAsync(bulkhead::acquire);
+    awaitQueued(bulkhead, 1);
+    Assert.assertFalse(queued.isDone());
+
+    bulkhead.release();
+    queued.get(5, TimeUnit.SECONDS);
+    Assert.assertEquals(1, bulkhead.getActiveCount());
+    Assert.assertEquals(0, bulkhead.getQueuedCount());
+  }
+
+  @Test
+  public void testFullQueueRejectsAtOnce() throws Exception {
+    Bulkhead bulkhead = new Bulkhead("cas", 1, 1, 10_000);
+    bulkhead.acquire();
+    CompletableFuture<Void> queued = CompletableFuture.runAsync(bulkhead::acquire);
+    awaitQueued(bulkhead, 1);
+
+    long start = System.nanoTime();
+    Assert.assertThrows(BulkheadFullException.class, bulkhead::acquire);
+    Assert.assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+    Assert.assertEquals(1, bulkhead.getRejectedCount());
+
+    bulkhead.release();
+    queued.get(5, TimeUnit.SECONDS);
+  }
+
+  @Test
+  public void testQueueTimeout() {
+    Bulkhead bulkhead = new Bulkhead("cas", 1, 1, 50);
+    bulkhead.acquire();
+
+    long start = System.nanoTime();
+    BulkheadFullException e = Assert.assertThrows(BulkheadFullException.class, bulkhead::acquire);
+    Assert.assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+    Assert.assertTrue(e.getMessage(), e.getMessage().contains("within 50ms"));
+    Assert.assertEquals(0, bulkhead.getQueuedCount());
+    Assert.assertEquals(1, bulkhead.getRejectedCount());
+  }
+
+  @Test
+  public void testZeroLimitDisables() {
+    Bulkhead bulkhead = new Bulkhead("cas", 0, 0, 0);
+    for (int i = 0; i < 100; i++) {
+      bulkhead.acquire();
+    }
+    Assert.assertEquals(0, bulkhead.getActiveCount());
+    Assert.assertEquals(0, bulkhead.getRejectedCount());
+  }
+
+  private static void awaitQueued(final Bulkhead bulkhead, final int count)
+      throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (bulkhead.getQueuedCount() < count) {
+      Assert.assertTrue("nothing queued", System.nanoTime() < deadline);
+      Thread.sleep(5);
+    }
+  }
+}
@@ -0,0 +1,138 @@
+package io.github.johnjcool.keycloak.broker.cas.validation;
+
+import io.github.johnjcool.keycloak.broker.cas.CasIdentityProviderConfig;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CircuitBreakerTest {
+
+  private static final long OPEN_MILLIS = 50;
+
+  @Test
+  public void testOpensAfterConsecutiveFailures() {
+    CircuitBreaker breaker = new CircuitBreaker("cas", 3, OPEN_MILLIS);
+    breaker.onFailure();
+    breaker.onFailure();
+    Assert.assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    Assert.assertTrue(breaker.tryAcquire());
+
+    breaker.onFailure();
+    Assert.assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    Assert.assertFalse(breaker.tryAcquire());
+  }
+
+  @Test
+  public void testSuccessResetsFailureCount() {
+    CircuitBreaker breaker = new CircuitBreaker("cas", 2, OPEN_MILLIS);
+    breaker.onFailure();
+    breaker.onSuccess();
+    breaker.onFailure();
+    Assert.assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    Assert.assertEquals(1, breaker.getConsecutiveFailures());
+  }
+
+  @Test
+  public void testHalfOpenProbeSuccessCloses() throws InterruptedException {
+    CircuitBreaker breaker = open();
+    Thread.sleep(OPEN_MILLIS * 2);
+
+    Assert.assertTrue(breaker.tryAcquire());
+    Assert.assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+    // only one probe at a time
+    Assert.assertFalse(breaker.tryAcquire());
+
+    breaker.onSuccess();
+    Assert.assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    Assert.assertTrue(breaker.tryAcquire());
+  }
+
+  @Test
+  public void testHalfOpenProbeFailureReopens() throws InterruptedException {
+    CircuitBreaker breaker = open();
+    Thread.sleep(OPEN_MILLIS * 2);
+    Assert.assertTrue(breaker.tryAcquire());
+
+    breaker.onFailure();
+    Assert.assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    // the open duration starts again
+    Assert.assertFalse(breaker.tryAcquire());
+    Thread.sleep(OPEN_MILLIS * 2);
+    Assert.assertTrue(breaker.tryAcquire());
+  }
+
+  @Test
+  public void testStaysOpenBeforeDuration() {
+    CircuitBreaker breaker = new CircuitBreaker("cas", 1, 60_000);
+    breaker.onFailure();
+    Assert.assertFalse(breaker.tryAcquire());
+    Assert.assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+  }
+
+  @Test
+  public void testZeroThresholdDisables() {
+    CircuitBreaker breaker = new CircuitBreaker("cas", 0, OPEN_MILLIS);
+    for (int i = 0; i < 10; i++) {
+      breaker.onFailure();
+    }
+    Assert.assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    Assert.assertTrue(breaker.tryAcquire());
+  }
+
+  @Test
+  public void testAdaptiveTimeout() throws Exception {
+    CasIdentityProviderConfig config = config();
+    config.setAdaptiveTimeout(true);
+    try (TicketValidationService service =
+        new TicketValidationService(config, null, null, new SimpleMeterRegistry())) {
+      LatencyTracker latencies = service.getLatencies();
+      // too few samples to go by
+      for (int i = 0; i < 31; i++) {
+        latencies.record(800);
+      }
+      Assert.assertEquals(10_000, service.getSocketTimeout());
+
+      // 3 x p99
+      latencies.record(800);
+      Assert.assertEquals(2400, service.getSocketTimeout());
+
+      // never below the floor
+      for (int i = 0; i < 256; i++) {
+        latencies.record(100);
+      }
+      Assert.assertEquals(1000, service.getSocketTimeout());
+
+      // nor above the read timeout
+      for (int i = 0; i < 256; i++) {
+        latencies.record(5000);
+      }
+      Assert.assertEquals(10_000, service.getSocketTimeout());
+    }
+  }
+
+  @Test
+  public void testAdaptiveTimeoutOff() throws Exception {
+    try (TicketValidationService service =
+        new TicketValidationService(config(), null, null, new SimpleMeterRegistry())) {
+      for (int i = 0; i < 64; i++) {
+        service.getLatencies().record(100);
+      }
+      Assert.assertEquals(10_000, service.getSocketTimeout());
+    }
+  }
+
+  private static CasIdentityProviderConfig config() {
+    CasIdentityProviderConfig config = new CasIdentityProviderConfig();
+    config.setAlias("cas");
+    config.setCasServerUrlPrefix("http://localhost:9999/cas");
+    config.setValidationReadTimeout(10_000);
+    return config;
+  }
+
+  private static CircuitBreaker open() {
+    CircuitBreaker breaker = new CircuitBreaker("cas", 1, OPEN_MILLIS);
+    breaker.onFailure();
+    Assert.assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    return breaker;
+  }
+}
@@ -0,0 +1,64 @@
+package io.github.johnjcool.keycloak.broker.cas.validation;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LatencyTrackerTest {
+
+  @Test
+  public void testEmptyWindow() {
+    LatencyTracker tracker = new LatencyTracker(16);
+    Assert.assertEquals(0, tracker.getSampleCount());
+    Assert.assertEquals(-1, tracker.percentile(99));
+  }
+
+  @Test
+  public void testPercentiles() {
+    LatencyTracker tracker = new LatencyTracker(100);
+    for (int i = 100; i >= 1; i--) {
+      tracker.record(i);
+    }
+    Assert.assertEquals(100, tracker.getSampleCount());
+    Assert.assertEquals(50, tracker.percentile(50));
+    Assert.assertEquals(99, tracker.percentile(99));
+    Assert.assertEquals(100, tracker.percentile(100));
+    Assert.assertEquals(1, tracker.percentile(0));
+  }
+
+  @Test
+  public void testPartialWindowCountsEverySample() {
+    LatencyTracker tracker = new LatencyTracker(256);
+    tracker.record(10);
+    Assert.assertEquals(10, tracker.percentile(99));
+    tracker.record(20);
+    Assert.assertEquals(20, tracker.percentile(99));
+  }
+
+  @Test
+  public void testFullWindowIsResortedAfterAFewSamples() {
+    LatencyTracker tracker = new LatencyTracker(32);
+    for (int i = 0; i < 32; i++) {
+      tracker.record(10);
+    }
+    Assert.assertEquals(10, tracker.percentile(100));
+
+    // below a sixteenth of the window the sorted copy is kept
+    tracker.record(500);
+    Assert.assertEquals(10, tracker.percentile(100));
+    tracker.record(500);
+    Assert.assertEquals(500, tracker.percentile(100));
+  }
+
+  @Test
+  public void testOldSamplesLeaveTheWindow() {
+    LatencyTracker tracker = new LatencyTracker(16);
+    for (int i = 0; i < 16; i++) {
+      tracker.record(1000);
+    }
+    for (int i = 0; i < 16; i++) {
+      tracker.record(5);
+    }
+    Assert.assertEquals(16, tracker.getSampleCount());
+    Assert.assertEquals(5, tracker.percentile(100));
+  }
+}
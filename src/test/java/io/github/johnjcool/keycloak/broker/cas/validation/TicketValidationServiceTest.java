@@ -0,0 +1,449 @@
+package io.github.johnjcool.keycloak.broker.cas.validation;
+
+import io.github.johnjcool.keycloak.broker.cas.CasIdentityProviderConfig;
+import io.github.johnjcool.keycloak.broker.cas.model.ServiceResponse;
+import io.github.johnjcool.keycloak.broker.cas.parser.ServiceResponseParser;
+import io.github.johnjcool.keycloak.broker.cas.parser.StaxServiceResponseParser;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.undertow.Undertow;
+import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.Headers;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.pool.PoolStats;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.keycloak.broker.provider.IdentityBrokerException;
+
+public class TicketValidationServiceTest {
+
+  private static final String SUCCESS =
+      "<cas:serviceResponse xmlns:cas=\"http://www.yale.edu/tp/cas\">"
+          + "<cas:authenticationSuccess><cas:user>test</cas:user></cas:authenticationSuccess>"
+          + "</cas:serviceResponse>";
+
+  private static final String FAILURE =
+      "<cas:serviceResponse xmlns:cas=\"http://www.yale.edu/tp/cas\">"
+          + "<cas:authenticationFailure code=\"INVALID_TICKET\">Ticket not recognized"
+          + "</cas:authenticationFailure></cas:serviceResponse>";
+
+  private static final List<Node> nodes = new ArrayList<>();
+  private static Undertow server;
+  private static int port;
+
+  private final List<TicketValidationService> services = new ArrayList<>();
+  private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+  @BeforeClass
+  public static void startServer() {
+    for (int i = 0; i < 3; i++) {
+      nodes.add(new Node());
+    }
+    server =
+        Undertow.builder()
+            .addHttpListener(0, "localhost")
+            .setHandler(
+                exchange -> {
+                  // /node<n>/p3/serviceValidate
+                  String path = exchange.getRequestPath();
+                  int n = Integer.parseInt(path.substring(5, path.indexOf('/', 1)));
+                  nodes.get(n).handleRequest(exchange);
+                })
+            .build();
+    server.start();
+    port = ((InetSocketAddress) server.getListenerInfo().getFirst().getAddress()).getPort();
+  }
+
+  @AfterClass
+  public static void stopServer() {
+    server.stop();
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    for (TicketValidationService service : services) {
+      service.close();
+    }
+    executor.shutdownNow();
+    nodes.forEach(Node::reset);
+  }
+
+  @Test
+  public void testGatewayErrorsRetryOnNextNode() {
+    for (int status : new int[] {502, 503}) {
+      nodes.get(0).status = status;
+      TicketValidationService service = newService(prefix(0), prefix(1));
+
+      ServiceResponse response = validate(service);
+      Assert.assertEquals("test", response.getSuccess().getUser());
+      Assert.assertEquals(1, nodes.get(0).hits.get());
+      Assert.assertEquals(1, nodes.get(1).hits.get());
+      nodes.forEach(Node::reset);
+    }
+  }
+
+  @Test
+  public void testConnectErrorRetriesOnNextNode() throws IOException {
+    String closed;
+    try (ServerSocket socket = new ServerSocket(0)) {
+      closed = "http://localhost:" + socket.getLocalPort() + "/cas";
+    }
+    TicketValidationService service = newService(closed, prefix(1));
+
+    Assert.assertEquals("test", validate(service).getSuccess().getUser());
+    Assert.assertEquals(1, nodes.get(1).hits.get());
+  }
+
+  @Test
+  public void testClientErrorIsNotRetried() {
+    nodes.get(0).status = 404;
+    TicketValidationService service = newService(prefix(0), prefix(1));
+
+    Assert.assertThrows(IdentityBrokerException.class, () -> validate(service));
+    Assert.assertEquals(1, nodes.get(0).hits.get());
+    Assert.assertEquals(0, nodes.get(1).hits.get());
+  }
+
+  @Test
+  public void testServerErrorIsNotRetried() {
+    // CAS itself failed, possibly after consuming the ticket
+    nodes.get(0).status = 500;
+    TicketValidationService service = newService(prefix(0), prefix(1));
+
+    Assert.assertThrows(CasUnavailableException.class, () -> validate(service));
+    Assert.assertEquals(0, nodes.get(1).hits.get());
+  }
+
+  @Test
+  public void testAllNodesFailing() {
+    nodes.get(0).status = 503;
+    nodes.get(1).status = 503;
+    TicketValidationService service = newService(prefix(0), prefix(1));
+
+    Assert.assertThrows(CasUnavailableException.class, () -> validate(service));
+    Assert.assertEquals(1, nodes.get(0).hits.get());
+    Assert.assertEquals(1, nodes.get(1).hits.get());
+  }
+
+  @Test
+  public void testDownNodeIsSkipped() {
+    nodes.get(0).status = 503;
+    TicketValidationService service = newService(prefix(0), prefix(1));
+    for (int i = 0; i < CasServerPool.FAILURE_THRESHOLD; i++) {
+      validate(service);
+    }
+    Assert.assertEquals(CasServerPool.FAILURE_THRESHOLD, nodes.get(0).hits.get());
+    Assert.assertFalse(service.getServers().getServers().getFirst().isHealthy());
+
+    for (int i = 0; i < 3; i++) {
+      Assert.assertEquals("test", validate(service).getSuccess().getUser());
+    }
+    Assert.assertEquals(CasServerPool.FAILURE_THRESHOLD, nodes.get(0).hits.get());
+    Assert.assertEquals(CasServerPool.FAILURE_THRESHOLD + 3, nodes.get(1).hits.get());
+  }
+
+  @Test
+  public void testSlowNodeIsHedged() {
+    nodes.get(0).delayMillis = 2000;
+    TicketValidationService service = newHedgedService(20);
+
+    long start = System.nanoTime();
+    Assert.assertEquals("test", validate(service).getSuccess().getUser());
+    Assert.assertTrue(elapsedMillis(start) < 1500);
+    Assert.assertEquals(1, nodes.get(1).hits.get());
+    Assert.assertEquals(1, service.getHedgedRequestCount());
+    Assert.assertEquals(1, service.getHedgedWinCount());
+  }
+
+  @Test
+  public void testFastNodeIsNotHedged() {
+    TicketValidationService service = newHedgedService(500);
+
+    Assert.assertEquals("test", validate(service).getSuccess().getUser());
+    Assert.assertEquals(0, nodes.get(1).hits.get());
+    Assert.assertEquals(0, service.getHedgedRequestCount());
+  }
+
+  @Test
+  public void testFirstSuccessWins() {
+    // the hedged node rejects the ticket at once, the slow one validates it
+    nodes.get(0).delayMillis = 300;
+    nodes.get(1).body = FAILURE;
+    TicketValidationService service = newHedgedService(20);
+
+    Assert.assertEquals("test", validate(service).getSuccess().getUser());
+    Assert.assertEquals(1, service.getHedgedRequestCount());
+    Assert.assertEquals(0, service.getHedgedWinCount());
+  }
+
+  @Test
+  public void testFailureWinsOnlyAfterAllAttemptsAnswered() {
+    nodes.get(0).delayMillis = 300;
+    nodes.get(0).body = FAILURE;
+    nodes.get(1).body = FAILURE;
+    TicketValidationService service = newHedgedService(20);
+
+    long start = System.nanoTime();
+    ServiceResponse response = validate(service);
+    Assert.assertNotNull(response.getFailure());
+    Assert.assertTrue(elapsedMillis(start) >= 300);
+    Assert.assertEquals(1, nodes.get(0).hits.get());
+    Assert.assertEquals(1, nodes.get(1).hits.get());
+  }
+
+  @Test
+  public void testValidationRunsOnTheCallingThread() {
+    TicketValidationService service = newService(prefix(0));
+    List<Thread> parsedOn = new ArrayList<>();
+    service.validate(
+        prefix -> new HttpGet(prefix + "/p3/serviceValidate?ticket=ST-1"),
+        new ServiceResponseParser() {
+          @Override
+          public ServiceResponse parse(final InputStream in, final Set<String> attributes)
+              throws IOException {
+            parsedOn.add(Thread.currentThread());
+            return StaxServiceResponseParser.INSTANCE.parse(in, attributes);
+          }
+
+          @Override
+          public String getName() {
+            return "test";
+          }
+        },
+        null);
+    Assert.assertEquals(List.of(Thread.currentThread()), parsedOn);
+  }
+
+  @Test
+  public void testStalledNodeIsAbortedAtTheDeadline() {
+    nodes.get(0).delayMillis = 3000;
+    CasIdentityProviderConfig config = newConfig(prefix(0));
+    config.setValidationTimeout(300);
+    TicketValidationService service = newService(config);
+
+    long start = System.nanoTime();
+    CasUnavailableException e =
+        Assert.assertThrows(CasUnavailableException.class, () -> validate(service));
+    // the read timeout is 10s, so only the deadline can have ended it
+    Assert.assertTrue(elapsedMillis(start) < 1500);
+    Assert.assertTrue(e.getMessage(), e.getMessage().contains("within 300ms"));
+    Assert.assertEquals(1, nodes.get(0).hits.get());
+  }
+
+  @Test
+  public void testDeadlineCoversRetries() {
+    nodes.get(0).status = 503;
+    nodes.get(1).delayMillis = 3000;
+    CasIdentityProviderConfig config = newConfig(prefix(0), prefix(1));
+    config.setValidationTimeout(300);
+    TicketValidationService service = newService(config);
+
+    long start = System.nanoTime();
+    Assert.assertThrows(CasUnavailableException.class, () -> validate(service));
+    Assert.assertTrue(elapsedMillis(start) < 1500);
+    Assert.assertEquals(1, nodes.get(0).hits.get());
+    Assert.assertEquals(1, nodes.get(1).hits.get());
+    Assert.assertEquals(0, nodes.get(2).hits.get());
+  }
+
+  @Test
+  public void testHedgedValidationIsAbortedAtTheDeadline() {
+    nodes.get(0).delayMillis = 3000;
+    nodes.get(1).delayMillis = 3000;
+    CasIdentityProviderConfig config = newConfig(prefix(0), prefix(1));
+    config.setHedging(true);
+    config.setValidationTimeout(300);
+    TicketValidationService service = newService(config);
+    for (int i = 0; i < 32; i++) {
+      service.getLatencies().record(20);
+    }
+
+    long start = System.nanoTime();
+    Assert.assertThrows(CasUnavailableException.class, () -> validate(service));
+    Assert.assertTrue(elapsedMillis(start) < 1500);
+    Assert.assertEquals(1, service.getHedgedRequestCount());
+  }
+
+  @Test
+  public void testConnectionIsReused() {
+    TicketValidationService service = newService(prefix(0));
+
+    for (int i = 0; i < 5; i++) {
+      Assert.assertEquals("test", validate(service).getSuccess().getUser());
+    }
+    Assert.assertEquals(5, nodes.get(0).hits.get());
+    Assert.assertEquals(1, nodes.get(0).clientPorts.size());
+    PoolStats stats = service.getHttpClient().getPoolStats();
+    Assert.assertEquals(0, stats.getLeased());
+    Assert.assertEquals(1, stats.getAvailable());
+  }
+
+  @Test
+  public void testConnectionIsNotReusedWithoutKeepAlive() {
+    CasIdentityProviderConfig config = newConfig(prefix(0));
+    config.setValidationKeepAlive(0);
+    TicketValidationService service = newService(config);
+
+    for (int i = 0; i < 3; i++) {
+      validate(service);
+    }
+    Assert.assertEquals(3, nodes.get(0).clientPorts.size());
+    Assert.assertEquals(0, service.getHttpClient().getPoolStats().getAvailable());
+  }
+
+  @Test
+  public void testReadTimeoutIsApplied() {
+    nodes.get(0).delayMillis = 3000;
+    CasIdentityProviderConfig config = newConfig(prefix(0));
+    config.setValidationReadTimeout(200);
+    TicketValidationService service = newService(config);
+    Assert.assertEquals(200, service.getHttpClient().getDefaultRequestConfig().getSocketTimeout());
+
+    long start = System.nanoTime();
+    CasUnavailableException e =
+        Assert.assertThrows(CasUnavailableException.class, () -> validate(service));
+    // the deadline is 15s, so only the read timeout can have ended it
+    Assert.assertTrue(elapsedMillis(start) < 1500);
+    Assert.assertTrue(e.getCause() instanceof SocketTimeoutException);
+  }
+
+  @Test
+  public void testConnectTimeoutIsApplied() throws IOException {
+    // a listener that never accepts, with its backlog filled, leaves further connects unanswered
+    try (ServerSocket listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+      List<Socket> backlog = new ArrayList<>();
+      try {
+        try {
+          for (int i = 0; i < 8; i++) {
+            Socket socket = new Socket();
+            backlog.add(socket);
+            socket.connect(listener.getLocalSocketAddress(), 100);
+          }
+        } catch (SocketTimeoutException e) {
+          // the backlog is full
+        }
+        CasIdentityProviderConfig config =
+            newConfig("http://127.0.0.1:" + listener.getLocalPort() + "/cas");
+        config.setValidationConnectTimeout(200);
+        TicketValidationService service = newService(config);
+        Assert.assertEquals(
+            200, service.getHttpClient().getDefaultRequestConfig().getConnectTimeout());
+
+        long start = System.nanoTime();
+        CasUnavailableException e =
+            Assert.assertThrows(CasUnavailableException.class, () -> validate(service));
+        long elapsed = elapsedMillis(start);
+        Assert.assertTrue(String.valueOf(elapsed), elapsed >= 150 && elapsed < 1500);
+        Assert.assertTrue(e.getCause() instanceof ConnectTimeoutException);
+      } finally {
+        for (Socket socket : backlog) {
+          socket.close();
+        }
+      }
+    }
+  }
+
+  private TicketValidationService newHedgedService(final long latencyMillis) {
+    CasIdentityProviderConfig config = newConfig(prefix(0), prefix(1));
+    config.setHedging(true);
+    TicketValidationService service = newService(config);
+    // the hedge goes out after the recent validations' latency
+    for (int i = 0; i < 32; i++) {
+      service.getLatencies().record(latencyMillis);
+    }
+    return service;
+  }
+
+  private static long elapsedMillis(final long start) {
+    return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+  }
+
+  private ServiceResponse validate(final TicketValidationService service) {
+    return service.validate(
+        prefix -> new HttpGet(prefix + "/p3/serviceValidate?ticket=ST-1"),
+        StaxServiceResponseParser.INSTANCE,
+        null);
+  }
+
+  private TicketValidationService newService(final String... prefixes) {
+    return newService(newConfig(prefixes));
+  }
+
+  private TicketValidationService newService(final CasIdentityProviderConfig config) {
+    TicketValidationService service =
+        new TicketValidationService(config, null, executor, new SimpleMeterRegistry());
+    services.add(service);
+    return service;
+  }
+
+  private static CasIdentityProviderConfig newConfig(final String... prefixes) {
+    CasIdentityProviderConfig config = new CasIdentityProviderConfig();
+    config.setAlias("cas");
+    config.setCasServerUrlPrefix(prefixes[0]);
+    config.setValidationUrlPrefixes(String.join(",", prefixes));
+    // always tries the first healthy node first, as the nodes start without latency
+    config.setLoadBalancing(CasServerPool.LEAST_LATENCY);
+    return config;
+  }
+
+  private static String prefix(final int node) {
+    return "http://localhost:" + port + "/node" + node;
+  }
+
+  /** One CAS node on the shared server, answering as a test sets it up. */
+  private static final class Node implements HttpHandler {
+    final AtomicInteger hits = new AtomicInteger();
+    // the client side ports of the connections the node was called on
+    final Set<Integer> clientPorts = ConcurrentHashMap.newKeySet();
+    volatile int status;
+    volatile long delayMillis;
+    volatile String body;
+
+    Node() {
+      reset();
+    }
+
+    void reset() {
+      hits.set(0);
+      clientPorts.clear();
+      status = 200;
+      delayMillis = 0;
+      body = SUCCESS;
+    }
+
+    @Override
+    public void handleRequest(final HttpServerExchange exchange) throws Exception {
+      if (exchange.isInIoThread()) {
+        exchange.dispatch(this);
+        return;
+      }
+      hits.incrementAndGet();
+      clientPorts.add(exchange.getSourceAddress().getPort());
+      if (delayMillis > 0) {
+        Thread.sleep(delayMillis);
+      }
+      exchange.setStatusCode(status);
+      exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, "application/xml");
+      exchange.getResponseSender().send(status == 200 ? body : "unavailable");
+    }
+  }
+}